@@ -0,0 +1,97 @@
+/*
+ Project: dbx-capture
+ File: CaptureBenchmark.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBackend;
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import com.dividebyxero.dbxcapture.capture.SyntheticCaptureBackend;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Getting a frame off the screen and into Java: the grab itself, through the
+ * same CaptureBackend contract the native library sits behind (with the
+ * synthetic backend standing in for the screen), and then what the crop does
+ * with it.
+ *
+ * @author Alex Kersten
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptureBenchmark {
+
+    @Param({"1280x720", "1920x1080", "2560x1440", "3840x2160"})
+    public String resolution;
+
+    private CaptureBackend backend;
+
+    private CaptureBuffer buffer;
+
+    //The middle quarter of the screen, about what a crop usually keeps.
+    private Rectangle region;
+
+    private int[] cropped;
+
+    @Setup
+    public void setUp() {
+        int width = Resolutions.width(resolution);
+        int height = Resolutions.height(resolution);
+
+        backend = new SyntheticCaptureBackend(width, height);
+        buffer = new CaptureBuffer(backend.getRequiredCapacity());
+        backend.grab(buffer);
+
+        region = new Rectangle(width / 4, height / 4, width / 2, height / 2);
+        cropped = new int[region.width * region.height];
+    }
+
+    @Benchmark
+    public CaptureBuffer grab() {
+        backend.grab(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public CaptureBuffer grabRegion() {
+        backend.grabRegion(buffer, region);
+        return buffer;
+    }
+
+    /**
+     * The whole frame converted to a BufferedImage, like the pipeline does
+     * when there's no crop.
+     */
+    @Benchmark
+    public BufferedImage toImage() {
+        return buffer.toImage();
+    }
+
+    /**
+     * The crop copied out of a whole frame.
+     */
+    @Benchmark
+    public int[] cropAndCopy() {
+        buffer.copyRegionTo(cropped, region.width, region.x, region.y,
+                            region.width, region.height);
+        return cropped;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ Project: dbx-capture
+ File: ConfigurationBenchmark.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import com.dividebyxero.dbxcapture.config.Configuration;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading settings.cfg, and reading settings the way the capture threads do
+ * on every screenshot. Each one is also run against LinearConfiguration, the
+ * list-based store Configuration used to be, for comparison.
+ *
+ * @author Alex Kersten
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationBenchmark {
+
+    //What a settings file written by the program holds.
+    static final String[][] SETTINGS = {
+        {"bConfirmExit", "false"},
+        {"sContentDirectory", "/home/someone/dbx/DBXCapture/content"},
+        {"sUploadScript", "worker:java ImgurScript --worker"},
+        {"bLocalMode", "false"},
+        {"iScreenshotKey", "44"},
+        {"iPngCompression", "6"},
+        {"sScreenshotArea", "desktop"},
+        {"iCropMode", "2"},
+        {"iScriptWorkers", "1"},
+        {"iVideoKey", "19"},
+        {"iVideoScale", "1"},
+        {"iVideoFps", "24"},
+        {"iVideoPlaybackFps", "24"},
+        {"bTimeLapse", "false"},
+        {"iTimeLapseInterval", "10"},
+        {"bReplayBuffer", "false"},
+        {"iReplayKey", "145"},
+        {"iReplaySeconds", "30"},
+        {"iReplayFps", "10"},
+        {"iReplayBufferSize", "64"},
+        {"sAudioSource", "none"},
+        {"bRetention", "false"},
+        {"iRetentionDays", "30"},
+        {"iRetentionCount", "0"},
+        {"iRetentionMegabytes", "0"},
+        {"bRecompressOld", "false"},
+        {"iRecompressDays", "7"}
+    };
+
+    private File file, linearFile;
+
+    private Configuration settings;
+
+    private LinearConfiguration linear;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("dbxc-bench", ".cfg");
+
+        Configuration written = new Configuration();
+        for (String[] setting : SETTINGS) {
+            written.setSetting(setting[0], setting[1]);
+        }
+
+        if (!written.saveSettings(file)) {
+            throw new IOException("Couldn't write " + file);
+        }
+
+        settings = new Configuration(file);
+
+        linearFile = File.createTempFile("dbxc-bench-linear", ".cfg");
+        linear = new LinearConfiguration();
+        for (String[] setting : SETTINGS) {
+            linear.setSetting(setting[0], setting[1]);
+        }
+
+        if (!linear.saveSettings(linearFile)) {
+            throw new IOException("Couldn't write " + linearFile);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        linearFile.delete();
+    }
+
+    @Benchmark
+    public boolean loadSettings() {
+        return settings.loadSettings(file);
+    }
+
+    @Benchmark
+    public String getSetting() {
+        return settings.getSetting("iRecompressDays");
+    }
+
+    /**
+     * A key in a different case than it was saved in.
+     */
+    @Benchmark
+    public String getSettingOtherCase() {
+        return settings.getSetting("IRECOMPRESSDAYS");
+    }
+
+    @Benchmark
+    public int getIntSetting() {
+        return settings.getIntSetting("iScreenshotKey");
+    }
+
+    @Benchmark
+    public boolean getBooleanSetting() {
+        return settings.getBooleanSetting("bLocalMode");
+    }
+
+    @Benchmark
+    public boolean linearLoadSettings() {
+        return linear.loadSettings(linearFile);
+    }
+
+    /**
+     * The last setting in the file, so the whole list is scanned.
+     */
+    @Benchmark
+    public String linearGetSetting() {
+        return linear.getSetting("iRecompressDays");
+    }
+
+    @Benchmark
+    public String linearGetSettingOtherCase() {
+        return linear.getSetting("IRECOMPRESSDAYS");
+    }
+
+    @Benchmark
+    public int linearGetIntSetting() {
+        return Integer.parseInt(linear.getSetting("iScreenshotKey"));
+    }
+
+    @Benchmark
+    public boolean linearGetBooleanSetting() {
+        return Boolean.parseBoolean(linear.getSetting("bLocalMode"));
+    }
+}
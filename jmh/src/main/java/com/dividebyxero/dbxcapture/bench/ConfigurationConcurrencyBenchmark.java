@@ -0,0 +1,63 @@
+/*
+ Project: dbx-capture
+ File: ConfigurationConcurrencyBenchmark.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import com.dividebyxero.dbxcapture.config.Configuration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Capture threads reading settings while the settings frame writes them.
+ * Reads never take a lock, so they should cost about the same as with
+ * nobody writing (compare ConfigurationBenchmark.getIntSetting).
+ *
+ * @author Alex Kersten
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationConcurrencyBenchmark {
+
+    private Configuration settings;
+
+    private int written;
+
+    @Setup
+    public void setUp() {
+        settings = new Configuration();
+        for (String[] setting : ConfigurationBenchmark.SETTINGS) {
+            settings.setSetting(setting[0], setting[1]);
+        }
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(3)
+    public int read() {
+        return settings.getIntSetting("iScreenshotKey");
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public void write() {
+        settings.setSetting("iPngCompression", "" + (written++ % 10));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ Project: dbx-capture
+ File: LinearConfiguration.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * How Configuration used to store settings, kept to compare the hashed store
+ * against: a list scanned with equalsIgnoreCase() on every lookup, no typed
+ * getters (callers parsed the string every time), and a file read through a
+ * DataInputStream.
+ *
+ * @author Alex Kersten
+ */
+class LinearConfiguration {
+
+    private static final byte[] SETTINGS_FILE_HEADER = {
+        'D', 'B', 'X', 'S', 'F', 'i', 'l', 'e', 1, 3, 3, 7
+    };
+
+    private static final short FILE_VERSION = 1;
+
+    private static class Setting {
+
+        private final String key;
+
+        private String value;
+
+        Setting(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final ArrayList<Setting> settings = new ArrayList<>();
+
+    String getSetting(String settingKey) {
+        for (Setting s : settings) {
+            if (s.key.equalsIgnoreCase(settingKey)) {
+                return s.value;
+            }
+        }
+
+        return null;
+    }
+
+    void setSetting(String settingKey, String newValue) {
+        for (Setting s : settings) {
+            if (s.key.equalsIgnoreCase(settingKey)) {
+                s.value = newValue;
+                return;
+            }
+        }
+
+        settings.add(new Setting(settingKey, newValue));
+    }
+
+    boolean loadSettings(File f) {
+        settings.clear();
+
+        try (DataInputStream dIn = new DataInputStream(
+                new FileInputStream(f))) {
+            byte[] headerBuffer = new byte[SETTINGS_FILE_HEADER.length];
+            dIn.readFully(headerBuffer);
+
+            if (!Arrays.equals(headerBuffer, SETTINGS_FILE_HEADER)) {
+                return false;
+            }
+
+            short settingsCount = dIn.readShort();
+
+            if (settingsCount < 0 || dIn.readShort() != FILE_VERSION) {
+                return false;
+            }
+
+            for (int i = 0; i < settingsCount; i++) {
+                String keyData = dIn.readUTF();
+                String valueData = dIn.readUTF();
+                setSetting(keyData, valueData);
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+
+        return true;
+    }
+
+    boolean saveSettings(File f) {
+        try (DataOutputStream dOut = new DataOutputStream(
+                new FileOutputStream(f))) {
+            dOut.write(SETTINGS_FILE_HEADER);
+            dOut.writeShort(settings.size());
+            dOut.writeShort(FILE_VERSION);
+
+            for (Setting s : settings) {
+                dOut.writeUTF(s.key);
+                dOut.writeUTF(s.value);
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+
+        return true;
+    }
+}
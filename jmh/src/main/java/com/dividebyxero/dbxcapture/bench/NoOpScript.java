@@ -0,0 +1,34 @@
+/*
+ Project: dbx-capture
+ File: NoOpScript.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * A post-process script that does nothing with the image, so that starting
+ * it (or handing it an image, as a worker) is all that gets measured.
+ * Follows the same protocol as ImgurScript.
+ *
+ * @author Alex Kersten
+ */
+public class NoOpScript {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 || !args[0].equals("--worker")) {
+            return;
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                System.in));
+
+        while (in.readLine() != null) {
+            System.out.println("OK");
+            System.out.flush();
+        }
+    }
+}
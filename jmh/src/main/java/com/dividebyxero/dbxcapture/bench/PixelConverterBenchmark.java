@@ -0,0 +1,101 @@
+/*
+ Project: dbx-capture
+ File: PixelConverterBenchmark.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import com.dividebyxero.dbxcapture.capture.PixelConverter;
+import com.dividebyxero.dbxcapture.capture.PixelFormat;
+import com.dividebyxero.dbxcapture.capture.SyntheticCaptureBackend;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converting a whole 1080p frame, and a crop out of one, from each format a
+ * backend can capture in to xRGB. The synthetic backend grabs in whichever
+ * format is asked for. With a byte of padding after each row, BGRA rows
+ * aren't a multiple of 4 bytes apart anymore and can't take the bulk copy.
+ *
+ * @author Alex Kersten
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixelConverterBenchmark {
+
+    @Param({"BGRA_8888", "RGB_888", "BGR_888", "RGB_565"})
+    public PixelFormat format;
+
+    @Param({"1920x1080"})
+    public String resolution;
+
+    //Bytes between the end of one row and the start of the next.
+    @Param({"0", "1"})
+    public int padding;
+
+    private ByteBuffer pixels;
+
+    private int width, height, stride;
+
+    private int[] data;
+
+    @Setup
+    public void setUp() {
+        width = Resolutions.width(resolution);
+        height = Resolutions.height(resolution);
+
+        SyntheticCaptureBackend backend = new SyntheticCaptureBackend(
+                width, height, format);
+        CaptureBuffer buffer = new CaptureBuffer(backend.getRequiredCapacity());
+        backend.grab(buffer);
+
+        ByteBuffer grabbed = buffer.getPixels();
+        int rowBytes = buffer.getStride();
+
+        stride = rowBytes + padding;
+        pixels = ByteBuffer.allocateDirect(stride * height).
+                order(grabbed.order());
+
+        for (int y = 0; y < height; y++) {
+            grabbed.limit((y + 1) * rowBytes).position(y * rowBytes);
+            pixels.position(y * stride);
+            pixels.put(grabbed);
+        }
+
+        pixels.clear();
+        data = new int[width * height];
+    }
+
+    @Benchmark
+    public int[] frame() {
+        PixelConverter.toXRGB(pixels, format, stride, 0, 0, width, height,
+                              data, 0, width);
+        return data;
+    }
+
+    /**
+     * The middle quarter, like a crop.
+     */
+    @Benchmark
+    public int[] region() {
+        PixelConverter.toXRGB(pixels, format, stride, width / 4, height / 4,
+                              width / 2, height / 2, data, 0, width / 2);
+        return data;
+    }
+}
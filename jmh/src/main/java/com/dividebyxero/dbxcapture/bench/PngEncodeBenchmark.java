@@ -0,0 +1,72 @@
+/*
+ Project: dbx-capture
+ File: PngEncodeBenchmark.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import com.dividebyxero.dbxcapture.capture.SyntheticCaptureBackend;
+import com.dividebyxero.dbxcapture.encode.ParallelPngEncoder;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a whole screen as a PNG, at the compression levels the settings
+ * offer.
+ *
+ * @author Alex Kersten
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PngEncodeBenchmark {
+
+    @Param({"1280x720", "1920x1080", "2560x1440", "3840x2160"})
+    public String resolution;
+
+    @Param({"" + ParallelPngEncoder.STORE, "" + ParallelPngEncoder.FAST,
+            "" + ParallelPngEncoder.DEFAULT})
+    public int level;
+
+    private BufferedImage image;
+
+    private ParallelPngEncoder encoder;
+
+    //Kept between calls so the benchmark isn't mostly array growth.
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Setup
+    public void setUp() {
+        SyntheticCaptureBackend backend = new SyntheticCaptureBackend(
+                Resolutions.width(resolution), Resolutions.height(resolution));
+        CaptureBuffer buffer = new CaptureBuffer(backend.getRequiredCapacity());
+        backend.grab(buffer);
+
+        image = buffer.toImage();
+        encoder = new ParallelPngEncoder(level);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        out.reset();
+        encoder.write(image, out);
+        return out.size();
+    }
+}
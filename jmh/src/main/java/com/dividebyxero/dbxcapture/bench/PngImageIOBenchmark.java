@@ -0,0 +1,88 @@
+/*
+ Project: dbx-capture
+ File: PngImageIOBenchmark.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import com.dividebyxero.dbxcapture.capture.SyntheticCaptureBackend;
+import com.dividebyxero.dbxcapture.encode.ParallelPngEncoder;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ParallelPngEncoder against the ImageIO.write() it replaced, up to a pair of
+ * 4K screens side by side. ImageIO has no compression setting, so it's
+ * compared with our default level (which is about what it uses) and with the
+ * fast and store levels local mode can pick.
+ *
+ * @author Alex Kersten
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PngImageIOBenchmark {
+
+    @Param({"1920x1080", "3840x2160", "7680x2160"})
+    public String resolution;
+
+    private BufferedImage image;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Setup
+    public void setUp() {
+        SyntheticCaptureBackend backend = new SyntheticCaptureBackend(
+                Resolutions.width(resolution), Resolutions.height(resolution));
+        CaptureBuffer buffer = new CaptureBuffer(backend.getRequiredCapacity());
+        backend.grab(buffer);
+
+        image = buffer.toImage();
+    }
+
+    @Benchmark
+    public int imageIO() throws IOException {
+        out.reset();
+        ImageIO.write(image, "png", out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int parallelDefault() throws IOException {
+        return encode(ParallelPngEncoder.DEFAULT);
+    }
+
+    @Benchmark
+    public int parallelFast() throws IOException {
+        return encode(ParallelPngEncoder.FAST);
+    }
+
+    @Benchmark
+    public int parallelStore() throws IOException {
+        return encode(ParallelPngEncoder.STORE);
+    }
+
+    private int encode(int level) throws IOException {
+        out.reset();
+        new ParallelPngEncoder(level).write(image, out);
+        return out.size();
+    }
+}
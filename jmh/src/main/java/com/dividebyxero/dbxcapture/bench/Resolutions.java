@@ -0,0 +1,25 @@
+/*
+ Project: dbx-capture
+ File: Resolutions.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+/**
+ * Turns the "widthxheight" strings the benchmarks take as parameters into
+ * numbers.
+ *
+ * @author Alex Kersten
+ */
+abstract class Resolutions {
+
+    static int width(String resolution) {
+        return Integer.parseInt(resolution.substring(
+                0, resolution.indexOf('x')));
+    }
+
+    static int height(String resolution) {
+        return Integer.parseInt(resolution.substring(
+                resolution.indexOf('x') + 1));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ Project: dbx-capture
+ File: ScriptLaunchBenchmark.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import com.dividebyxero.dbxcapture.DBXCRuntime;
+import com.dividebyxero.dbxcapture.scripts.ScriptLauncher;
+import com.dividebyxero.dbxcapture.scripts.ScriptWorker;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What it costs to hand a screenshot to a post-process script: starting a
+ * one-shot script and waiting for it, against a round trip to a worker that's
+ * already running. Both scripts are a NoOpScript in a JVM of their own, like
+ * the default script would be.
+ *
+ * @author Alex Kersten
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptLaunchBenchmark {
+
+    private String oneShotCommandLine;
+
+    private ScriptWorker worker;
+
+    private File image;
+
+    @Setup
+    public void setUp() throws IOException {
+        //Scripts run in the program's scripts directory.
+        Files.createDirectories(Paths.get(DBXCRuntime.SCRIPTS_DIRECTORY));
+
+        String java = "\"" + System.getProperty("java.home") + File.separator
+                      + "bin" + File.separator + "java\"";
+        String script = java + " -cp \""
+                        + System.getProperty("java.class.path") + "\" "
+                        + NoOpScript.class.getName();
+
+        oneShotCommandLine = script + " " + ScriptLauncher.IMAGEPATH_VARIABLE
+                             + " " + ScriptLauncher.LOCALMODE_VARIABLE;
+        worker = new ScriptWorker(ScriptLauncher.buildWorkerCommand(
+                ScriptLauncher.WORKER_PREFIX + script + " --worker"));
+
+        //Never opened, the scripts only get its name.
+        image = new File(System.getProperty("java.io.tmpdir"),
+                         "dbxc-bench.png");
+    }
+
+    @TearDown
+    public void tearDown() {
+        worker.close();
+    }
+
+    @Benchmark
+    public int oneShot() throws IOException, InterruptedException {
+        return ScriptLauncher.run(oneShotCommandLine, image, false);
+    }
+
+    @Benchmark
+    public String worker() throws IOException {
+        return worker.process(image, false);
+    }
+}
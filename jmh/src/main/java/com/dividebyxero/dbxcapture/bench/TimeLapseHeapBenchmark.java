@@ -0,0 +1,156 @@
+/*
+ Project: dbx-capture
+ File: TimeLapseHeapBenchmark.java (com.dividebyxero.dbxcapture.bench)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.bench;
+
+import com.dividebyxero.dbxcapture.capture.SyntheticCaptureBackend;
+import com.dividebyxero.dbxcapture.video.TimeLapseRecorder;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap use over a long time-lapse. A recording of iTimeLapseInterval-spaced
+ * frames over the given number of hours is made with the frames coming as
+ * fast as they can be encoded instead, so 8 hours of frames take a few
+ * minutes. The synthetic screen changes every frame, so every one of them is
+ * encoded (nothing is stored as a repeat), which is the worst case.
+ *
+ * The heap is measured right after a GC once per segment (as the collector
+ * saw it, so the recorder allocating in the meantime doesn't count). What
+ * matters is the heapGrowthKB counter in the results - the difference between
+ * the first and last segment - which should stay around zero however many
+ * hours are recorded.
+ *
+ * @author Alex Kersten
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class TimeLapseHeapBenchmark {
+
+    @Param({"8"})
+    public int hours;
+
+    //The default iTimeLapseInterval.
+    @Param({"10"})
+    public int intervalSeconds;
+
+    @Param({"1920x1080"})
+    public String resolution;
+
+    @Param({"2"})
+    public int scale;
+
+    //How often the recorder is actually told to grab. Encoding a frame takes
+    //longer than this, so it grabs as fast as it can.
+    private static final int COMPRESSED_INTERVAL_MILLIS = 5;
+
+    /**
+     * What gets reported alongside the time, in the JSON results too.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+
+        public long frames, heapFirstKB, heapLastKB, heapMaxKB, heapGrowthKB;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+            heapFirstKB = 0;
+            heapLastKB = 0;
+            heapMaxKB = 0;
+            heapGrowthKB = 0;
+        }
+    }
+
+    private File dir;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("dbxc-timelapse").toFile();
+    }
+
+    @Benchmark
+    public long record(Heap heap) throws IOException, InterruptedException {
+        long target = hours * 3600L / intervalSeconds;
+        TimeLapseRecorder recorder = new TimeLapseRecorder(
+                new SyntheticCaptureBackend(Resolutions.width(resolution),
+                                            Resolutions.height(resolution)),
+                COMPRESSED_INTERVAL_MILLIS, 30, scale);
+
+        recorder.start(dir);
+
+        try {
+            long nextSample = TimeLapseRecorder.SEGMENT_FRAMES;
+            long frames;
+
+            while ((frames = recorder.getCapturedCount()
+                             + recorder.getUnchangedCount()) < target) {
+                if (!recorder.isRecording()) {
+                    throw new IOException("Recording stopped by itself.");
+                }
+
+                if (frames >= nextSample) {
+                    System.gc();
+                    long used = getHeapAfterGC() / 1024;
+
+                    if (heap.heapFirstKB == 0) {
+                        heap.heapFirstKB = used;
+                    }
+
+                    heap.heapLastKB = used;
+                    heap.heapMaxKB = Math.max(heap.heapMaxKB, used);
+                    nextSample += TimeLapseRecorder.SEGMENT_FRAMES;
+                }
+
+                Thread.sleep(50);
+            }
+
+            heap.frames = frames;
+            heap.heapGrowthKB = heap.heapLastKB - heap.heapFirstKB;
+            return frames;
+        } finally {
+            recorder.stop();
+            TimeLapseRecorder.discard(dir);
+        }
+    }
+
+    private static long getHeapAfterGC() {
+        long used = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                used += usage.getUsed();
+            }
+        }
+
+        return used;
+    }
+}
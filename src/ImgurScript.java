@@ -1,4 +1,7 @@
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import javax.swing.JOptionPane;
 
 /*
@@ -36,8 +39,18 @@ public class ImgurScript {
      * command line argument is a 'true' or 'false' based on whether we are
      * operating in local mode ('true') in which case the image will be copied
      * to the desktop rather than uploaded to Imgur.
+     *
+     * Alternatively, the only argument can be --worker, in which case the
+     * script stays running and reads one image per line from stdin (the path,
+     * a tab, and the local mode flag), answering each with OK or ERR on
+     * stdout. It exits when stdin is closed.
      */
     public static void main(String[] args) {
+        if (args.length == 1 && args[0].equals("--worker")) {
+            runWorker();
+            return;
+        }
+
         if (args.length != 2) {
             JOptionPane.showMessageDialog(
                     null, "Not enough args passed to ImgurUpload script!",
@@ -46,10 +59,44 @@ public class ImgurScript {
             return;
         }
 
+        process(args[0], args[1]);
+    }
+
+    /**
+     * Handles images from DBXCapture until it closes our stdin.
+     */
+    private static void runWorker() {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                System.in));
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] job = line.split("\t");
+
+                if (job.length != 2) {
+                    System.out.println("ERR Malformed job: " + line);
+                } else {
+                    process(job[0], job[1]);
+                    System.out.println("OK");
+                }
+
+                System.out.flush();
+            }
+        } catch (IOException ioe) {
+            System.err.println("Upload script worker stopping: "
+                               + ioe.getMessage());
+        }
+
+        //The dialogs start the AWT thread, which would keep us alive.
+        System.exit(0);
+    }
+
+    private static void process(String imagePath, String localMode) {
         JOptionPane.showMessageDialog(
                 null,
                 "DEBUG: Hello from the ImgurUpload script!\nImage path was: "
-                + args[0] + "\nLocalmode is " + args[1], "Upload script",
+                + imagePath + "\nLocalmode is " + localMode, "Upload script",
                 JOptionPane.INFORMATION_MESSAGE);
     }
 }
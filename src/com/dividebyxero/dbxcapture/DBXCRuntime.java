@@ -5,19 +5,29 @@
  */
 package com.dividebyxero.dbxcapture;
 
+import com.dividebyxero.dbxcapture.capture.CaptureBackend;
+import com.dividebyxero.dbxcapture.capture.CaptureBackendSelector;
+import com.dividebyxero.dbxcapture.catalog.CaptureCatalog;
+import com.dividebyxero.dbxcapture.catalog.ThumbnailCache;
+import com.dividebyxero.dbxcapture.catalog.ThumbnailPack;
 import com.dividebyxero.dbxcapture.config.Configuration;
+import com.dividebyxero.dbxcapture.config.ConfigurationListener;
+import com.dividebyxero.dbxcapture.config.ConfigurationWatcher;
 import com.dividebyxero.dbxcapture.gui.DBXCTrayComponent;
 import com.dividebyxero.dbxcapture.gui.DebugFrame;
 import com.dividebyxero.dbxcapture.gui.SettingsFrame;
+import com.dividebyxero.dbxcapture.runners.RetentionRunner;
 import com.dividebyxero.dbxcapture.runners.ScreenshotRunner;
+import com.dividebyxero.dbxcapture.runners.VideoRunner;
+import com.dividebyxero.dbxcapture.scripts.PostProcessorLoader;
+import com.dividebyxero.dbxcapture.scripts.ScriptExecutor;
+import com.dividebyxero.dbxcapture.scripts.ScriptRegistry;
+import com.dividebyxero.dbxcapture.scripts.ScriptRegistryListener;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Iterator;
-import java.util.List;
 import javax.swing.JOptionPane;
 
 /**
@@ -35,6 +45,20 @@ public class DBXCRuntime {
     public static final String SETTINGS_FILE_NAME =
                                PROGRAM_HOME + "/settings.cfg";
 
+    //Directory the post-process scripts live in (and are run from).
+    public static final String SCRIPTS_DIRECTORY = PROGRAM_HOME + "/scripts";
+
+    //Where things that are still being written (like videos being recorded)
+    //live until they're done and get moved to the content directory.
+    public static final String TEMP_DIRECTORY = PROGRAM_HOME + "/temp";
+
+    //Every capture's thumbnail, whichever content directory it's in.
+    public static final String THUMBNAIL_PACK_FILE_NAME =
+                               PROGRAM_HOME + "/thumbnails.pack";
+
+    //How much memory decoded thumbnails get.
+    private static final long THUMBNAIL_CACHE_BYTES = 8 * 1024 * 1024;
+
     //Name of scripts file containing command line actions for postprocessing.
     private static final String SCRIPTS_FILE_NAME =
                                 PROGRAM_HOME + "/scripts.cfg";
@@ -43,9 +67,18 @@ public class DBXCRuntime {
     //save it when it's updated.
     private Configuration settings;
 
-    //Command lines that are loaded at the program start for what the possible
-    //post-process scripts are.
-    private String[] postProcessScripts;
+    //Command lines and plugins for what the possible post-process scripts
+    //are. Loaded at program start, and the command lines are reloaded
+    //whenever scripts.cfg changes.
+    private ScriptRegistry scriptRegistry;
+
+    //Runs the selected script on every saved image, keeping worker scripts
+    //warm between screenshots.
+    private ScriptExecutor scriptExecutor;
+
+    //Picks up edits to settings.cfg and scripts.cfg while we're running. May
+    //be null if the platform can't watch the directory.
+    private ConfigurationWatcher configurationWatcher;
 
     //The settings frame for DBXCapture.
     private SettingsFrame settingsFrame;
@@ -56,26 +89,100 @@ public class DBXCRuntime {
     //Listener for keypress actions
     private ScreenshotRunner screenshotRunner;
 
+    //Records video when the video key is pressed.
+    private VideoRunner videoRunner;
+
+    //What's in the content directory. Null if it couldn't be opened, and
+    //replaced when the content directory changes.
+    private volatile CaptureCatalog catalog;
+
+    //Thumbnails of what's in the catalog. Null if the pack couldn't be
+    //opened.
+    private ThumbnailCache thumbnails;
+
+    //Deletes and recompresses old captures, if it's been asked to.
+    private RetentionRunner retentionRunner;
+
+    //Whatever grabs the screen for us - native library, Robot or synthetic,
+    //decided once at startup.
+    private CaptureBackend captureBackend;
+
     //The name of the default script file on disk.
     private static final String DEFAULT_SCRIPT_FILENAME = "ImgurScript.class";
 
     //The default script command line which will be put into scripts.cfg if
-    //it doesn't exist.
+    //it doesn't exist. Runs as a worker so we only start one JVM for it.
     private static final String DEFAULT_COMMAND_LINE =
-                                "java ImgurScript %imagepath% %localmode%";
+                                "worker:java ImgurScript --worker";
+
+    //Every setting and its default value. Settings added in newer versions
+    //get filled in from here when an older settings file is loaded.
+    private static final String[][] DEFAULT_SETTINGS = {
+        {"bConfirmExit", "false"},
+        {"sContentDirectory", PROGRAM_HOME + "/content"},
+        //Empty until checkSelectedScript() picks one (see there).
+        {"sUploadScript", ""},
+        {"bLocalMode", "false"},
+        {"iScreenshotKey", "44"},
+        {"iPngCompression", "6"},
+        {"sScreenshotArea", "desktop"},
+        {"iCropMode", "2"},
+        {"iScriptWorkers", "1"},
+        {"iVideoKey", "19"},
+        {"iVideoScale", "1"},
+        {"iVideoFps", "24"},
+        {"iVideoPlaybackFps", "24"},
+        {"bTimeLapse", "false"},
+        {"iTimeLapseInterval", "10"},
+        {"bReplayBuffer", "false"},
+        {"iReplayKey", "145"},
+        {"iReplaySeconds", "30"},
+        {"iReplayFps", "10"},
+        {"iReplayBufferSize", "64"},
+        {"sAudioSource", "none"},
+        {"bRetention", "false"},
+        {"iRetentionDays", "30"},
+        {"iRetentionCount", "0"},
+        {"iRetentionMegabytes", "0"},
+        {"bRecompressOld", "false"},
+        {"iRecompressDays", "7"}
+    };
 
     /**
      * (Re)sets settings to default values. Should invoke if settings file
      * doesn't exist.
      */
     private void setDefaultSettings() {
-        getSettings().setSetting("bConfirmExit", "false");
-        getSettings().setSetting("sContentDirectory",
-                                 PROGRAM_HOME + "/content");
-        getSettings().setSetting("iUploadScript", "0");
-        getSettings().setSetting("bLocalMode", "false");
-        getSettings().setSetting("iScreenshotKey", "44");
+        for (String[] setting : DEFAULT_SETTINGS) {
+            getSettings().setSetting(setting[0], setting[1]);
+        }
+
+        saveSettingsOrExit();
+    }
 
+    /**
+     * Sets any settings that don't exist yet (because the settings file was
+     * written by an older version) to their defaults, and saves if anything
+     * changed.
+     */
+    private void addMissingSettings() {
+        boolean changed = false;
+
+        for (String[] setting : DEFAULT_SETTINGS) {
+            if (!getSettings().isSettingSet(setting[0])) {
+                System.out.println("Adding missing setting " + setting[0]
+                                   + "...");
+                getSettings().setSetting(setting[0], setting[1]);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            saveSettingsOrExit();
+        }
+    }
+
+    private void saveSettingsOrExit() {
         if (!settings.saveSettings(new File(SETTINGS_FILE_NAME))) {
             JOptionPane.showMessageDialog(
                     null,
@@ -92,13 +199,14 @@ public class DBXCRuntime {
      * This method:
      *
      * <ul><li>Ensures the configuration file exists, and loads it if it
-     * does.</li><li>If not, generates the default one.</li><li>Ensures the
+     * does (filling in any settings it's missing).</li><li>If not, generates
+     * the default one.</li><li>Ensures the
      * scripts folder exists - if not, creates it and populates it with the
-     * default script.</li><li>Ensures the specified content directory
-     * exists.</li><li>Loads all command lines from scripts.cfg into
-     * memory.</li><li>Creates default scripts.cfg if it does not
-     * exist.</li><li>Makes sure the specified selected script is within
-     * range.</li></ul>
+     * default script.</li><li>Ensures the specified content directory and
+     * the temporary directory exist.</li><li>Loads all command lines from
+     * scripts.cfg into memory.</li><li>Creates default scripts.cfg if it
+     * does not exist.</li><li>Makes sure the specified selected script is
+     * within range.</li></ul>
      *
      * If one or more of these is an issue, it will do its best to remedy the
      * problem by making directories/files or notifying the user.
@@ -111,93 +219,222 @@ public class DBXCRuntime {
                     "Settings file does not exist, making with defaults...");
 
             setDefaultSettings();
+        } else {
+            addMissingSettings();
         }
 
         //If it did exist, we'll have loaded the settings implicitly already.
         //Now let's check that scripts.cfg exists, and load the command line
-        //actions from it. If it doesn't, create it and load the default.
-        Path scriptsFile = Paths.get(SCRIPTS_FILE_NAME);
+        //actions from it. If it doesn't, the registry creates it with the
+        //default.
+        scriptRegistry = new ScriptRegistry(Paths.get(SCRIPTS_FILE_NAME),
+                                            DEFAULT_COMMAND_LINE);
+        scriptRegistry.load();
+
+        //Scripts can come and go while we're running - keep the selection
+        //pointing at one that exists.
+        scriptRegistry.addScriptRegistryListener(new ScriptRegistryListener() {
+
+            @Override
+            public void scriptsChanged(ScriptRegistry registry) {
+                checkSelectedScript();
+                scriptExecutor.retain(registry.getCommandLines());
+            }
+        });
+
+        scriptExecutor = new ScriptExecutor(
+                getSettings().getIntSetting("iScriptWorkers"));
+
+        getSettings().addConfigurationListener(new ConfigurationListener() {
+
+            @Override
+            public void settingChanged(String key, String oldValue,
+                                       String newValue) {
+                if (key.equalsIgnoreCase("iScriptWorkers")
+                    && newValue != null) {
+                    scriptExecutor.setWorkersPerScript(
+                            getSettings().getIntSetting("iScriptWorkers"));
+                }
+
+                if (key.equalsIgnoreCase("sContentDirectory")
+                    && newValue != null) {
+                    //Might be a rebuild, don't hold up whoever changed it.
+                    new Thread(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            openCatalog();
+                        }
+                    }, "DBXC catalog").start();
+                }
+            }
+        });
 
+        Path scriptsFolder = Paths.get(SCRIPTS_DIRECTORY);
 
-        if (!Files.exists(scriptsFile)) {
-            System.out.println(
-                    "Scripts file does not exist, making with defaults...");
+        if (!Files.isDirectory(scriptsFolder)) {
+            //TODO: Create scripts folder and drop default script.
+            Files.createDirectories(scriptsFolder);
 
-            //Create the file and dump the defualt command line into it.
-            Files.createFile(scriptsFile);
+            if (!Platforming.copyFileFromBinariesToDisk(
+                    "ImgurScript.bin",
+                    SCRIPTS_DIRECTORY + "/" + DEFAULT_SCRIPT_FILENAME)) {
 
-            if (!Files.exists(scriptsFile)) {
-                //The file still doesn't exist despite creation attempt
-                throw new IOException("Couldn't create scripts.cfg file.\n"
-                                      + "Check working directory permissions.");
+                throw new IOException("Copying default script failed.");
             }
-
-            Files.write(scriptsFile, DEFAULT_COMMAND_LINE.getBytes());
         }
 
-        //Load the command lines into postProcessScripts, line by line.
-        List<String> tmpScriptLines =
-                     Files.readAllLines(scriptsFile, Charset.defaultCharset());
+        //In-process plugins from the jars in the scripts folder are listed
+        //after the command lines. Now that we know about both, make sure the
+        //selected one exists.
+        scriptRegistry.setPostProcessors(
+                PostProcessorLoader.load(scriptsFolder));
 
-        if (tmpScriptLines.isEmpty()) {
-            System.out.println(
-                    "Scripts file empty, deleting and using default...");
+        checkSelectedScript();
 
-            //The actual default file will be re-created on next program start.
 
-            Files.delete(scriptsFile);
-            postProcessScripts = new String[1];
-            postProcessScripts[0] = DEFAULT_COMMAND_LINE;
-        } else {
-            postProcessScripts = new String[tmpScriptLines.size()];
-
-            //Read each item out of the list into the script array.
-            int idx = 0;
-            Iterator<String> itr = tmpScriptLines.iterator();
-            while (itr.hasNext()) {
-                postProcessScripts[idx] = itr.next();
-                idx++;
-            }
+        //Check if the content directory exists and is writable.
+        Path contentDirectory =
+             getSettings().getPathSetting("sContentDirectory");
+
+        if (!Files.isDirectory(contentDirectory)) {
+            System.out.println("Content directory did not exist, creating...");
+            Files.createDirectories(contentDirectory);
         }
 
+        Path tempDirectory = Paths.get(TEMP_DIRECTORY);
 
-        //Make sure our selected script is within range of how many scripts
-        //there actually are.
-        int currentSetting =
-            Integer.parseInt(getSettings().getSetting("iUploadScript"));
+        if (!Files.isDirectory(tempDirectory)) {
+            System.out.println("Temporary directory did not exist, "
+                               + "creating...");
+            Files.createDirectories(tempDirectory);
+        }
 
-        if ((currentSetting < 0)
-            || (currentSetting > (tmpScriptLines.size() - 1))) {
-            System.out.println(
-                    "Selected script out of range, resetting to default...");
+        try {
+            thumbnails = new ThumbnailCache(
+                    ThumbnailPack.open(Paths.get(THUMBNAIL_PACK_FILE_NAME)),
+                    THUMBNAIL_CACHE_BYTES);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't open " + THUMBNAIL_PACK_FILE_NAME
+                               + ", captures won't have thumbnails:\n"
+                               + ioe.getMessage());
+        }
+
+        openCatalog();
+    }
 
-            getSettings().setSetting("iUploadScript", "0");
-            getSettings().saveSettings(new File(SETTINGS_FILE_NAME));
+    /**
+     * Opens the catalog of the current content directory (rebuilding it if
+     * it's been lost), replacing the one that's open.
+     */
+    private synchronized void openCatalog() {
+        Path contentDirectory =
+             getSettings().getPathSetting("sContentDirectory");
+
+        if (catalog != null) {
+            if (catalog.getDirectory().equals(contentDirectory)) {
+                return;
+            }
+
+            catalog.close();
+            catalog = null;
         }
 
-        Path scriptsFolder = Paths.get(PROGRAM_HOME + "/scripts");
+        try {
+            catalog = CaptureCatalog.open(contentDirectory);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't open the capture catalog in "
+                               + contentDirectory + ", captures won't be "
+                               + "catalogued:\n" + ioe.getMessage());
+        }
+    }
 
-        if (!Files.isDirectory(scriptsFolder)) {
-            //TODO: Create scripts folder and drop default script.
-            Files.createDirectories(scriptsFolder);
+    /**
+     * Makes sure our selected script is one that actually exists, resetting it
+     * to the first one if not. Settings files from older versions selected the
+     * script by its index in the list instead, which gets converted here.
+     */
+    private void checkSelectedScript() {
+        String currentSetting = getSettings().getSetting("sUploadScript");
 
-            if (!Platforming.copyFileFromBinariesToDisk(
-                    "ImgurScript.bin",
-                    PROGRAM_HOME + "/scripts/" + DEFAULT_SCRIPT_FILENAME)) {
+        if (scriptRegistry.indexOf(currentSetting) >= 0) {
+            return;
+        }
 
-                throw new IOException("Copying default script failed.");
+        String replacement = null;
+
+        if (getSettings().isSettingSet("iUploadScript")) {
+            try {
+                replacement = scriptRegistry.getKey(
+                        getSettings().getIntSetting("iUploadScript"));
+            } catch (NumberFormatException nfe) {
+                //Fall through to the default.
             }
+
+            getSettings().removeField("iUploadScript");
         }
 
+        if (replacement == null) {
+            if (currentSetting != null && !currentSetting.isEmpty()) {
+                System.out.println(
+                        "Selected script is gone, resetting to default...");
+            }
 
-        //Check if the content directory exists and is writable.
-        Path contentDirectory =
-             Paths.get(getSettings().getSetting("sContentDirectory"));
+            replacement = scriptRegistry.getKey(0);
+        }
 
-        if (!Files.isDirectory(contentDirectory)) {
-            System.out.println("Content directory did not exist, creating...");
-            Files.createDirectories(contentDirectory);
+        getSettings().setSetting("sUploadScript", replacement);
+        getSettings().saveSettings(new File(SETTINGS_FILE_NAME));
+    }
+
+    /**
+     * Starts watching the program directory so that edits to settings.cfg and
+     * scripts.cfg take effect right away. Only the file that changed gets
+     * re-read; the configuration and script registry then tell whoever is
+     * listening about what actually changed.
+     */
+    private void startConfigurationWatcher() {
+        try {
+            configurationWatcher = new ConfigurationWatcher(
+                    Paths.get(PROGRAM_HOME));
+        } catch (IOException ioe) {
+            System.err.println("Can't watch " + PROGRAM_HOME + " for changes, "
+                               + "edits will need a restart:\n"
+                               + ioe.getMessage());
+            return;
         }
+
+        configurationWatcher.watch(
+                Paths.get(SETTINGS_FILE_NAME).getFileName().toString(),
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        //A file that fails to load is probably mid-write, the
+                        //next change event will pick it up properly.
+                        if (settings.reloadSettings(
+                                new File(SETTINGS_FILE_NAME))) {
+                            checkSelectedScript();
+                        }
+                    }
+                });
+
+        configurationWatcher.watch(
+                Paths.get(SCRIPTS_FILE_NAME).getFileName().toString(),
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            scriptRegistry.load();
+                        } catch (IOException ioe) {
+                            System.err.println("Problem reloading scripts:\n"
+                                               + ioe.getMessage());
+                        }
+                    }
+                });
+
+        configurationWatcher.start();
     }
 
     /**
@@ -205,10 +442,37 @@ public class DBXCRuntime {
      * All nice terminations should use this method.
      */
     public void quit() {
+        if (configurationWatcher != null) {
+            configurationWatcher.stop();
+        }
+
+        //Finish any recording before the dispatcher it's hooked into goes.
+        if (videoRunner != null) {
+            videoRunner.stop();
+        }
+
         if (screenshotRunner != null) {
             screenshotRunner.stop();
         }
 
+        if (scriptExecutor != null) {
+            scriptExecutor.shutdown();
+        }
+
+        //Before the catalog it works on is closed.
+        if (retentionRunner != null) {
+            retentionRunner.stop();
+        }
+
+        if (catalog != null) {
+            catalog.close();
+        }
+
+        if (thumbnails != null) {
+            System.out.println("Thumbnail cache: " + thumbnails.getStats());
+            thumbnails.getPack().close();
+        }
+
         if (trayComponent != null) {
             trayComponent.quitting();
         }
@@ -228,6 +492,10 @@ public class DBXCRuntime {
         //and load native libraries.
         Platforming.staticInitialize();
 
+        //Now that we know whether the native library loaded, pick the fastest
+        //way of capturing the screen that actually works here.
+        captureBackend = CaptureBackendSelector.select();
+
         //Initialize the configuration object - this gets loaded from disk next.
         settings = new Configuration();
 
@@ -263,7 +531,15 @@ public class DBXCRuntime {
             debugFrame.setVisible(true);
         } else {
             screenshotRunner = new ScreenshotRunner(this);
+            videoRunner = new VideoRunner(this,
+                                          screenshotRunner.getDispatcher());
         }
+
+        retentionRunner = new RetentionRunner(this);
+
+        //Everything that cares about settings is listening now, so start
+        //picking up changes made on disk.
+        startConfigurationWatcher();
     }
 
     /**
@@ -280,10 +556,67 @@ public class DBXCRuntime {
         return settingsFrame;
     }
 
+    /**
+     * @return the screenshotRunner, or null in debug mode
+     */
+    public ScreenshotRunner getScreenshotRunner() {
+        return screenshotRunner;
+    }
+
+    /**
+     * @return the videoRunner, or null in debug mode
+     */
+    public VideoRunner getVideoRunner() {
+        return videoRunner;
+    }
+
+    /**
+     * @return the retentionRunner
+     */
+    public RetentionRunner getRetentionRunner() {
+        return retentionRunner;
+    }
+
+    /**
+     * @return the captureBackend
+     */
+    public CaptureBackend getCaptureBackend() {
+        return captureBackend;
+    }
+
+    /**
+     * @return the catalog of the content directory, or null if there isn't one
+     */
+    public CaptureCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * @return the thumbnails of the catalog's captures, or null if there
+     * aren't any
+     */
+    public ThumbnailCache getThumbnails() {
+        return thumbnails;
+    }
+
     /**
      * @return the postProcessScripts
      */
     public String[] getPostProcessScripts() {
-        return postProcessScripts;
+        return scriptRegistry.getCommandLines();
+    }
+
+    /**
+     * @return the scriptExecutor
+     */
+    public ScriptExecutor getScriptExecutor() {
+        return scriptExecutor;
+    }
+
+    /**
+     * @return the scriptRegistry
+     */
+    public ScriptRegistry getScriptRegistry() {
+        return scriptRegistry;
     }
 }
@@ -58,8 +58,9 @@ public class DBXCapture {
      * First, the static block in Platforming.java runs - this checks the system
      * platform and determines what native library it's looking for. It creates
      * ~/dbx/DBXCapture, and, if the platform is Windows, drops the correct DLL
-     * in that folder - if not, it prompts the user to compile their own based
-     * on the GitHub source and place it there.
+     * in that folder - if the library isn't there or won't load, it explains
+     * how to compile one and we carry on with a Java capture backend instead
+     * (see CaptureBackendSelector).
      *
      * Then, the first stuff that runs in DBXCRuntime does creation of the
      * settings.cfg and scripts.cfg file, as well as the content and scripts
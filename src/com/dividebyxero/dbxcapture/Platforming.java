@@ -19,11 +19,16 @@ import javax.swing.JOptionPane;
  * This file takes care of all platform-dependant stuff (within reason) that we
  * can from within Java. It'll automatically set the platform value in the
  * DBXCapture class, and attempt to statically load the correct dynamic library.
+ * If the library can't be loaded we keep running without it - see
+ * isNativeLibraryLoaded().
  *
  * @author Alex Kersten
  */
 public abstract class Platforming {
 
+    //Whether libcapture was loaded successfully by staticInitialize().
+    private static boolean nativeLibraryLoaded = false;
+
     /**
      * Copies a file out of the com.dividebyxero.dbxcapture.binaries package and
      * writes it into the home working directory of DBXCapture.
@@ -139,65 +144,71 @@ public abstract class Platforming {
                         DBXCRuntime.PROGRAM_HOME + "/"
                         + DBXCapture.platform.getLibName())) {
 
-                    JOptionPane.showMessageDialog(
-                            null,
-                            "Couldn't write library file. Check home directory "
-                            + "permissions.", "DBXCapture - Error",
-                            JOptionPane.ERROR_MESSAGE);
-
-                    System.exit(1);
+                    System.err.println("Couldn't write library file. Check "
+                                       + "home directory permissions.");
                 }
             }
         }
 
 
+        //A missing or broken library isn't fatal anymore - the capture backend
+        //selection will just fall back to java.awt.Robot (or synthetic frames
+        //if there's no display either). We still explain what went wrong so
+        //people know why captures are slower than they should be.
         try {
 
             System.load(DBXCRuntime.PROGRAM_HOME + "/"
                         + DBXCapture.platform.getLibName());
 
+            nativeLibraryLoaded = true;
         } catch (Throwable e) {
             String arch = System.getProperty("os.arch");
 
             if (!((arch.toLowerCase().indexOf("x86") >= 0)
                   || (arch.toLowerCase().indexOf("amd64") >= 0))) {
-                JOptionPane.showMessageDialog(
-                        null,
-                        "Couldn't load the native "
-                        + "library.\nIt looks like you're not running on x86 or"
-                        + " amd64, and will need to build your own library.\n"
-                        + "You can download the source off of akersten's GitHub"
-                        + "page - the project is named dbx-libcapture.\n\nYou "
-                        + "will need to place a resulting file named "
-                        + DBXCapture.platform.getLibName() + " into the "
-                        + "directory " + DBXCRuntime.PROGRAM_HOME,
-                        "DBXCapture - Error",
-                        JOptionPane.ERROR_MESSAGE);
+                System.err.println(
+                        "Couldn't load the native library. It looks like "
+                        + "you're not running on x86 or amd64, and will need "
+                        + "to build your own library - the source is on "
+                        + "akersten's GitHub page as dbx-libcapture. Place the "
+                        + "resulting " + DBXCapture.platform.getLibName()
+                        + " in " + DBXCRuntime.PROGRAM_HOME);
             } else {
-                JOptionPane.showMessageDialog(
-                        null,
-                        "Couldn't load the native "
-                        + "library " + DBXCapture.platform.getLibName() + " in "
-                        + "the directory " + DBXCRuntime.PROGRAM_HOME + "\n\n"
-                        + "One of the following is true:\n- It does not exist"
-                        + "\n- It is not binary compatible with your system"
-                        + "\n- It is corrupt"
-                        + "\n- It was compiled or linked incorrectly"
-                        + "\n\nMore information in the next error message...",
-                        "DBXCapture - Error",
-                        JOptionPane.ERROR_MESSAGE);
+                System.err.println(
+                        "Couldn't load the native library "
+                        + DBXCapture.platform.getLibName() + " in "
+                        + DBXCRuntime.PROGRAM_HOME + " - it either doesn't "
+                        + "exist, isn't binary compatible with your system, is "
+                        + "corrupt, or was compiled or linked incorrectly.");
             }
 
-            JOptionPane.showMessageDialog(
-                    null,
-                    e.getLocalizedMessage(),
-                    "DBXCapture - Error",
-                    JOptionPane.ERROR_MESSAGE);
+            System.err.println(e.getLocalizedMessage());
 
-            System.exit(1);
+            //We ship the library on Windows, so failing there is unexpected
+            //enough to be worth a dialog.
+            if (DBXCapture.platform == Platform.WIN) {
+                JOptionPane.showMessageDialog(
+                        null,
+                        "Couldn't load the native library "
+                        + DBXCapture.platform.getLibName() + " in the "
+                        + "directory " + DBXCRuntime.PROGRAM_HOME + "\n\n"
+                        + "DBXCapture will fall back to slower Java screen "
+                        + "capture.\n\nSpecific error:\n"
+                        + e.getLocalizedMessage(),
+                        "DBXCapture - Warning",
+                        JOptionPane.WARNING_MESSAGE);
+            }
         }
     }
 
+    /**
+     * @return True if staticInitialize() managed to load libcapture, meaning
+     * the methods in DBXCNativeInterface are safe to call.
+     */
+    public static boolean isNativeLibraryLoaded() {
+        return nativeLibraryLoaded;
+    }
+
     public enum Platform {
         //32- vs 64-bit naming is only in the binaries package - when it gets
         //written out to disk, it's named the same.
@@ -0,0 +1,210 @@
+/*
+ Project: dbx-capture
+ File: AudioCapture.java (com.dividebyxero.dbxcapture.audio)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.audio;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Reads an AudioSource on its own thread and puts what it gets into an
+ * AudioRingBuffer for whoever's writing the video to pick up.
+ *
+ * The capture thread never waits on the reader. If the reader falls so far
+ * behind that the ring fills up, new sound is thrown away and counted, and
+ * the reader sees the gap in the timestamps and fills it with silence.
+ *
+ * Every read is timestamped, so the reader can tell when any byte in the ring
+ * was recorded (see getTimestamp()) and keep the sound lined up with the
+ * video even if the device's clock doesn't quite agree with ours.
+ *
+ * @author Alex Kersten
+ */
+public class AudioCapture {
+
+    //Size of each read from the source.
+    private static final int CHUNK_MILLIS = 10;
+
+    private final AudioSource source;
+
+    private final AudioRingBuffer ring;
+
+    private final int chunkSize;
+
+    private Thread thread;
+
+    private volatile boolean running = false;
+
+    private volatile Timestamp timestamp;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * When a byte was recorded, in System.nanoTime() terms, and its position
+     * in everything ever read from the source (dropped bytes included), along
+     * with how many bytes had been dropped by then. All three are from the
+     * same moment, so they can be used together.
+     */
+    public static class Timestamp {
+
+        private final long nanos, position, droppedBytes;
+
+        Timestamp(long nanos, long position, long droppedBytes) {
+            this.nanos = nanos;
+            this.position = position;
+            this.droppedBytes = droppedBytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return How many bytes were thrown away because the ring was full,
+         * up to and including the read this timestamp is for.
+         */
+        public long getDroppedBytes() {
+            return droppedBytes;
+        }
+    }
+
+    /**
+     * @param source Where to record from.
+     * @param bufferMillis How much sound the ring can hold before it starts
+     * getting thrown away.
+     */
+    public AudioCapture(AudioSource source, int bufferMillis) {
+        this.source = source;
+
+        AudioFormat format = source.getFormat();
+        int bytesPerSecond = (int) format.getFrameRate()
+                             * format.getFrameSize();
+
+        ring = new AudioRingBuffer(bytesPerSecond / 1000 * bufferMillis);
+        chunkSize = bytesPerSecond / 1000 * CHUNK_MILLIS
+                    / format.getFrameSize() * format.getFrameSize();
+    }
+
+    /**
+     * Opens the source and starts recording.
+     *
+     * @throws IOException If the source couldn't be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        source.open();
+        running = true;
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                captureLoop();
+            }
+        }, "DBXC audio capture");
+        thread.setDaemon(true);
+        //Late reads are lost sound.
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    private void captureLoop() {
+        byte[] chunk = new byte[chunkSize];
+        AudioFormat format = source.getFormat();
+        double nanosPerByte = 1e9 / (format.getFrameRate()
+                                     * format.getFrameSize());
+        long position = 0;
+
+        while (running) {
+            int n;
+
+            try {
+                n = source.read(chunk, 0, chunk.length);
+            } catch (IOException ioe) {
+                System.err.println("Audio capture failed:\n"
+                                   + ioe.getMessage());
+                break;
+            }
+
+            if (n < 0) {
+                break;
+            }
+
+            long now = System.nanoTime();
+
+            if (n == 0) {
+                continue;
+            }
+
+            //Only whole sample frames go in, so the reader never gets half
+            //of one.
+            int room = ring.getCapacity() - ring.available();
+            int frameSize = format.getFrameSize();
+            int written = ring.write(chunk, 0,
+                                     Math.min(n, room - room % frameSize));
+            long droppedBytes = written < n
+                                ? dropped.addAndGet(n - written)
+                                : dropped.get();
+
+            //The last byte just arrived, so the first one was recorded a
+            //chunk's length ago.
+            timestamp = new Timestamp(now - (long) (n * nanosPerByte),
+                                      position, droppedBytes);
+            position += n;
+        }
+    }
+
+    /**
+     * Stops recording. Whatever's left in the ring can still be read.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        source.close();
+
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public AudioFormat getFormat() {
+        return source.getFormat();
+    }
+
+    /**
+     * @return The ring to read the sound from. Only one thread should.
+     */
+    public AudioRingBuffer getBuffer() {
+        return ring;
+    }
+
+    /**
+     * @return When the most recent read started, or null if nothing's been
+     * read yet.
+     */
+    public Timestamp getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return How many bytes were thrown away because the ring was full.
+     */
+    public long getDroppedBytes() {
+        return dropped.get();
+    }
+}
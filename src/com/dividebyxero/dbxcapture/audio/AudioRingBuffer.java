@@ -0,0 +1,104 @@
+/*
+ Project: dbx-capture
+ File: AudioRingBuffer.java (com.dividebyxero.dbxcapture.audio)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free ring of bytes between exactly one writer thread and exactly one
+ * reader thread. Neither side ever waits for the other: write() takes what
+ * fits and read() takes what's there.
+ *
+ * The positions only ever count up (they'd take a few million years to
+ * overflow at CD rates). Each side publishes its own position with lazySet
+ * after copying, which is all the ordering the other side needs to see the
+ * bytes before it sees the position move.
+ *
+ * @author Alex Kersten
+ */
+public class AudioRingBuffer {
+
+    private final byte[] buffer;
+
+    private final int mask;
+
+    //Total bytes ever written and read.
+    private final AtomicLong writePosition = new AtomicLong();
+
+    private final AtomicLong readPosition = new AtomicLong();
+
+    /**
+     * @param minimumCapacity How many bytes it has to hold at least. Rounded
+     * up to a power of two.
+     */
+    public AudioRingBuffer(int minimumCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(minimumCapacity, 2) - 1)
+                       << 1;
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Writer side. Copies in as much as there's room for.
+     *
+     * @return How many bytes were written.
+     */
+    public int write(byte[] src, int offset, int length) {
+        long w = writePosition.get();
+        int free = buffer.length - (int) (w - readPosition.get());
+        int n = Math.min(length, free);
+
+        int at = (int) (w & mask);
+        int first = Math.min(n, buffer.length - at);
+        System.arraycopy(src, offset, buffer, at, first);
+        System.arraycopy(src, offset + first, buffer, 0, n - first);
+
+        writePosition.lazySet(w + n);
+        return n;
+    }
+
+    /**
+     * Reader side. Copies out as much as is there.
+     *
+     * @return How many bytes were read.
+     */
+    public int read(byte[] dst, int offset, int length) {
+        long r = readPosition.get();
+        int n = Math.min(length, (int) (writePosition.get() - r));
+
+        int at = (int) (r & mask);
+        int first = Math.min(n, buffer.length - at);
+        System.arraycopy(buffer, at, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, n - first);
+
+        readPosition.lazySet(r + n);
+        return n;
+    }
+
+    /**
+     * Reader side. Throws away bytes without copying them.
+     *
+     * @return How many bytes were skipped.
+     */
+    public int skip(int length) {
+        long r = readPosition.get();
+        int n = Math.min(length, (int) (writePosition.get() - r));
+
+        readPosition.lazySet(r + n);
+        return n;
+    }
+
+    /**
+     * @return How many bytes are waiting to be read.
+     */
+    public int available() {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ Project: dbx-capture
+ File: AudioSource.java (com.dividebyxero.dbxcapture.audio)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.audio;
+
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Somewhere to record sound from while a video is being recorded. Sources
+ * always produce signed 16-bit little-endian PCM, which is what ends up in
+ * the video file as-is.
+ *
+ * @author Alex Kersten
+ */
+public interface AudioSource {
+
+    /**
+     * @return A short name for logging.
+     */
+    String getName();
+
+    /**
+     * @return True if open() has a chance of succeeding on this machine.
+     */
+    boolean isAvailable();
+
+    /**
+     * @return The format read() produces.
+     */
+    AudioFormat getFormat();
+
+    /**
+     * Starts recording.
+     *
+     * @throws IOException If the device couldn't be opened.
+     */
+    void open() throws IOException;
+
+    /**
+     * Waits for the next bit of sound and reads it. Only ever reads whole
+     * sample frames.
+     *
+     * @param buffer Where to put it.
+     * @param offset Where in the buffer to start.
+     * @param length Most bytes to read.
+     * @return How many bytes were read, or -1 once the source is closed.
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Stops recording. A read() in progress returns soon after.
+     */
+    void close();
+}
@@ -0,0 +1,45 @@
+/*
+ Project: dbx-capture
+ File: AudioSourceSelector.java (com.dividebyxero.dbxcapture.audio)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.audio;
+
+/**
+ * Turns the sAudioSource setting into an AudioSource: "none" for silent
+ * videos, "device" for the recording device, or "synthetic" for a test tone
+ * (only settable in the settings file).
+ *
+ * @author Alex Kersten
+ */
+public abstract class AudioSourceSelector {
+
+    //Pitch of the synthetic source, an A.
+    private static final double SYNTHETIC_FREQUENCY = 440;
+
+    /**
+     * @param setting The value of sAudioSource.
+     * @return The source to record from, or null for no audio (including
+     * when the chosen source isn't available).
+     */
+    public static AudioSource forSetting(String setting) {
+        AudioSource source;
+
+        if ("device".equalsIgnoreCase(setting)) {
+            source = new JavaSoundAudioSource();
+        } else if ("synthetic".equalsIgnoreCase(setting)) {
+            source = new SyntheticAudioSource(SYNTHETIC_FREQUENCY);
+        } else {
+            return null;
+        }
+
+        if (!source.isAvailable()) {
+            System.err.println("Audio source " + source.getName()
+                               + " isn't available, recording without "
+                               + "sound.");
+            return null;
+        }
+
+        return source;
+    }
+}
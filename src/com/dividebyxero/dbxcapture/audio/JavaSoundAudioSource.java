@@ -0,0 +1,85 @@
+/*
+ Project: dbx-capture
+ File: JavaSoundAudioSource.java (com.dividebyxero.dbxcapture.audio)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.audio;
+
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Records from the default recording device through Java Sound. That's the
+ * microphone, or whatever the system has set up to capture its own output
+ * ("Stereo Mix" and friends, or a PulseAudio monitor source on Linux).
+ *
+ * @author Alex Kersten
+ */
+public class JavaSoundAudioSource implements AudioSource {
+
+    private static final AudioFormat FORMAT =
+                                     new AudioFormat(44100, 16, 2, true, false);
+
+    //How much the device buffers before we lose sound, in milliseconds.
+    private static final int LINE_BUFFER_MILLIS = 500;
+
+    private volatile TargetDataLine line;
+
+    @Override
+    public String getName() {
+        return "Java Sound";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return AudioSystem.isLineSupported(
+                new DataLine.Info(TargetDataLine.class, FORMAT));
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public void open() throws IOException {
+        try {
+            TargetDataLine l = AudioSystem.getTargetDataLine(FORMAT);
+            l.open(FORMAT, (int) (FORMAT.getFrameRate() * LINE_BUFFER_MILLIS
+                                  / 1000) * FORMAT.getFrameSize());
+            l.start();
+            line = l;
+        } catch (LineUnavailableException | IllegalArgumentException
+                 | SecurityException e) {
+            throw new IOException("Couldn't open the recording device: "
+                                  + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        TargetDataLine l = line;
+
+        if (l == null || !l.isOpen()) {
+            return -1;
+        }
+
+        length -= length % FORMAT.getFrameSize();
+        return l.read(buffer, offset, length);
+    }
+
+    @Override
+    public void close() {
+        TargetDataLine l = line;
+        line = null;
+
+        if (l != null) {
+            l.stop();
+            l.close();
+        }
+    }
+}
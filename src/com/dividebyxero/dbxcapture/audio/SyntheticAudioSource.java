@@ -0,0 +1,106 @@
+/*
+ Project: dbx-capture
+ File: SyntheticAudioSource.java (com.dividebyxero.dbxcapture.audio)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.audio;
+
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A source that makes up its own sound: a steady tone, handed out at the rate
+ * a real device would produce it. Always available, so recordings with audio
+ * can be tried out (and their sync checked) on machines without a recording
+ * device.
+ *
+ * @author Alex Kersten
+ */
+public class SyntheticAudioSource implements AudioSource {
+
+    private static final AudioFormat FORMAT =
+                                     new AudioFormat(44100, 16, 1, true, false);
+
+    private final double frequency;
+
+    private volatile boolean open = false;
+
+    private long openNanos;
+
+    //Sample frames handed out so far.
+    private long produced;
+
+    /**
+     * @param frequency Pitch of the tone, in hertz.
+     */
+    public SyntheticAudioSource(double frequency) {
+        this.frequency = frequency;
+    }
+
+    @Override
+    public String getName() {
+        return "Synthetic";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public void open() throws IOException {
+        openNanos = System.nanoTime();
+        produced = 0;
+        open = true;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        float rate = FORMAT.getFrameRate();
+        int frameSize = FORMAT.getFrameSize();
+
+        //Wait until there's at least 10ms of sound "recorded".
+        long due;
+        while (true) {
+            if (!open) {
+                return -1;
+            }
+
+            due = (long) ((System.nanoTime() - openNanos) * (double) rate
+                          / 1000000000L) - produced;
+
+            if (due >= rate / 100) {
+                break;
+            }
+
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ie) {
+                throw new IOException("Interrupted.", ie);
+            }
+        }
+
+        int frames = (int) Math.min(due, length / frameSize);
+
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (Math.sin(2 * Math.PI * frequency
+                                             * (produced + i) / rate)
+                                    * Short.MAX_VALUE / 4);
+            buffer[offset + i * 2] = (byte) sample;
+            buffer[offset + i * 2 + 1] = (byte) (sample >> 8);
+        }
+
+        produced += frames;
+        return frames * frameSize;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
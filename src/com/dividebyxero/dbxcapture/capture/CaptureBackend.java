@@ -0,0 +1,97 @@
+/*
+ Project: dbx-capture
+ File: CaptureBackend.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.awt.Rectangle;
+
+/**
+ * Something that can fill a CaptureBuffer with the contents of the screen. The
+ * native library is the preferred implementation, but having this as an
+ * interface lets the rest of the program (and anybody poking at it without a
+ * compiled libcapture) run against java.awt.Robot or a synthetic stand-in.
+ * CaptureBackendSelector decides which one gets used at startup.
+ *
+ * Coordinates are virtual desktop coordinates (see DisplayTopology), so on
+ * multi-monitor setups they can be negative.
+ *
+ * @author Alex Kersten
+ */
+public interface CaptureBackend {
+
+    /**
+     * @return A short user-friendly name for log output.
+     */
+    String getName();
+
+    /**
+     * Checks whether this backend can work at all on this machine (native
+     * library loaded, display present, etc). Cheap - doesn't do a capture.
+     *
+     * @return True if grab() has a chance of succeeding.
+     */
+    boolean isAvailable();
+
+    /**
+     * @return The pixel format grab() writes - whatever the screen is in
+     * already, so grabbing never converts anything (PixelConverter does that
+     * later, if and when somebody wants the pixels). Regions may come back in
+     * a different format if the backend has to fall back on something else to
+     * grab them, so always go by the buffer's header.
+     */
+    PixelFormat getNativeFormat();
+
+    /**
+     * @return How many bytes of pixel data a grab of the current screen needs,
+     * not counting the CaptureBuffer header.
+     */
+    int getRequiredCapacity();
+
+    /**
+     * Captures the screen into the given buffer, writing the header and the
+     * pixel rows. The caller should have made sure the buffer is big enough
+     * via getRequiredCapacity().
+     *
+     * Has to be safe to call from several threads at once, as long as each has
+     * its own buffer - a running recorder and the replay buffer both grab
+     * through the one backend the runtime picked. Backends that can't grab
+     * concurrently (the native library, for one) serialize grabs themselves.
+     *
+     * @param target The buffer to fill.
+     * @return True if the grab succeeded, false if the buffer was too small or
+     * the capture failed.
+     */
+    boolean grab(CaptureBuffer target);
+
+    /**
+     * @return Where the displays this backend captures are. grab() covers
+     * the virtual bounds of this.
+     */
+    DisplayTopology getTopology();
+
+    /**
+     * @param region A rectangle of the virtual desktop.
+     * @return How many bytes of pixel data a grabRegion() of it needs, not
+     * counting the CaptureBuffer header.
+     */
+    int getRequiredCapacity(Rectangle region);
+
+    /**
+     * Captures just one rectangle of the screen, which can be a whole display
+     * or part of one. The header gets the size of the rectangle.
+     *
+     * Like grab(), this can be called from several threads at once, as long
+     * as each has its own buffer - DisplayGrabber grabs every display in
+     * parallel that way. Whether the grabs actually overlap is up to the
+     * backend.
+     *
+     * @param target The buffer to fill.
+     * @param region What to capture. Has to be on the virtual desktop (see
+     * DisplayTopology.isValidRegion()).
+     * @return True if the grab succeeded, false if the buffer was too small,
+     * the region was off the screen, or the capture failed.
+     */
+    boolean grabRegion(CaptureBuffer target, Rectangle region);
+}
@@ -0,0 +1,226 @@
+/*
+ Project: dbx-capture
+ File: CaptureBackendSelector.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
+import java.awt.Toolkit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the CaptureBackend to use at startup. The candidates are tried in
+ * order (native library, then Robot), each one that's available gets timed
+ * over a few grabs, and the fastest one wins. If none of them work - no native
+ * library and no display - we fall back to the synthetic backend so the rest
+ * of the program still runs (headless CI, mostly).
+ *
+ * Setting the system property dbxc.capture.backend to native, robot or
+ * synthetic skips the race and forces that backend, which is handy when
+ * comparing capture paths against each other on the same machine.
+ * dbxc.capture.format picks the pixel format of the synthetic backend (any
+ * PixelFormat name), to exercise the conversions from formats the screen here
+ * isn't in.
+ *
+ * @author Alex Kersten
+ */
+public abstract class CaptureBackendSelector {
+
+    //System property that forces a particular backend.
+    public static final String BACKEND_PROPERTY = "dbxc.capture.backend";
+
+    //System property that sets the synthetic backend's pixel format.
+    public static final String FORMAT_PROPERTY = "dbxc.capture.format";
+
+    //Grabs thrown away before timing starts, so lazy initialization and JIT
+    //warm-up don't count against a backend.
+    private static final int WARMUP_GRABS = 1;
+
+    //Grabs averaged to get the latency figure.
+    private static final int TIMED_GRABS = 3;
+
+    //Size of the fake screen when there's no real one to copy the size from.
+    private static final int SYNTHETIC_WIDTH = 1920;
+
+    private static final int SYNTHETIC_HEIGHT = 1080;
+
+    /**
+     * The result of timing a single backend.
+     */
+    public static class Measurement {
+
+        private final CaptureBackend backend;
+
+        //Average nanoseconds per grab, or -1 if the backend didn't work.
+        private final long latencyNanos;
+
+        Measurement(CaptureBackend backend, long latencyNanos) {
+            this.backend = backend;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public CaptureBackend getBackend() {
+            return backend;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        public boolean isWorking() {
+            return latencyNanos >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return backend.getName() + ": "
+                   + (isWorking()
+                      ? String.format("%.2f ms", latencyNanos / 1e6) + ", "
+                        + backend.getNativeFormat()
+                      : "unavailable");
+        }
+    }
+
+    /**
+     * @return The real (non-synthetic) backends, in order of preference.
+     */
+    public static List<CaptureBackend> getCandidates() {
+        List<CaptureBackend> candidates = new ArrayList<>();
+        candidates.add(new NativeCaptureBackend());
+        candidates.add(new RobotCaptureBackend());
+        return candidates;
+    }
+
+    /**
+     * @return A synthetic backend the size of the real screen if there is
+     * one, otherwise 1080p.
+     */
+    public static CaptureBackend createSyntheticBackend() {
+        PixelFormat format = PixelFormat.BGRA_8888;
+        String forced = System.getProperty(FORMAT_PROPERTY);
+
+        if (forced != null) {
+            try {
+                format = PixelFormat.valueOf(forced.toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Unknown pixel format \"" + forced
+                                   + "\", using " + format + "...");
+            }
+        }
+
+        if (!GraphicsEnvironment.isHeadless()) {
+            Dimension d = Toolkit.getDefaultToolkit().getScreenSize();
+            return new SyntheticCaptureBackend(d.width, d.height, format);
+        }
+
+        return new SyntheticCaptureBackend(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT,
+                                           format);
+    }
+
+    /**
+     * Times a backend over a few grabs into a scratch buffer.
+     *
+     * @param backend The backend to time.
+     * @return The measurement - not working if the backend isn't available or
+     * any of the grabs failed (or threw).
+     */
+    public static Measurement measure(CaptureBackend backend) {
+        try {
+            if (!backend.isAvailable()) {
+                return new Measurement(backend, -1);
+            }
+
+            CaptureBuffer scratch =
+                          new CaptureBuffer(backend.getRequiredCapacity());
+
+            for (int i = 0; i < WARMUP_GRABS; i++) {
+                if (!backend.grab(scratch)) {
+                    return new Measurement(backend, -1);
+                }
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_GRABS; i++) {
+                if (!backend.grab(scratch)) {
+                    return new Measurement(backend, -1);
+                }
+            }
+
+            return new Measurement(backend,
+                                   (System.nanoTime() - start) / TIMED_GRABS);
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            //Broken native library or AWT weirdness - just count it as not
+            //working and move on to the next one.
+            System.err.println("Capture backend " + backend.getName()
+                               + " failed: " + e);
+            return new Measurement(backend, -1);
+        }
+    }
+
+    /**
+     * Measures every candidate.
+     *
+     * @return One measurement per candidate, in candidate order.
+     */
+    public static List<Measurement> measureAll() {
+        List<Measurement> results = new ArrayList<>();
+
+        for (CaptureBackend backend : getCandidates()) {
+            results.add(measure(backend));
+        }
+
+        return results;
+    }
+
+    /**
+     * Chooses the backend to use for this run - see the class description.
+     *
+     * @return The selected backend, never null.
+     */
+    public static CaptureBackend select() {
+        String forced = System.getProperty(BACKEND_PROPERTY);
+
+        if (forced != null) {
+            if (forced.equalsIgnoreCase("synthetic")) {
+                return createSyntheticBackend();
+            }
+
+            for (CaptureBackend backend : getCandidates()) {
+                if ((forced.equalsIgnoreCase("native")
+                     && backend instanceof NativeCaptureBackend)
+                    || (forced.equalsIgnoreCase("robot")
+                        && backend instanceof RobotCaptureBackend)) {
+                    return backend;
+                }
+            }
+
+            System.err.println("Unknown capture backend \"" + forced
+                               + "\", selecting automatically...");
+        }
+
+        Measurement fastest = null;
+
+        for (Measurement m : measureAll()) {
+            System.out.println("Capture backend " + m);
+
+            if (m.isWorking() && (fastest == null
+                                  || m.getLatencyNanos()
+                                     < fastest.getLatencyNanos())) {
+                fastest = m;
+            }
+        }
+
+        if (fastest == null) {
+            System.out.println(
+                    "No working capture backend, using synthetic frames...");
+            return createSyntheticBackend();
+        }
+
+        System.out.println("Using capture backend "
+                           + fastest.getBackend().getName());
+        return fastest.getBackend();
+    }
+}
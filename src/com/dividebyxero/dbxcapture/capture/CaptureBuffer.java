@@ -0,0 +1,231 @@
+/*
+ Project: dbx-capture
+ File: CaptureBuffer.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A reusable, caller-owned direct buffer that a CaptureBackend fills with the
+ * pixels of the screen. Keep one of these around and hand it to every grab -
+ * the whole point is that we don't allocate anything per capture, and the
+ * native side can write straight into the memory without copying anything
+ * across JNI.
+ *
+ * The buffer starts with a small header of four ints in native byte order:
+ *
+ * <ul><li>width in pixels</li><li>height in pixels</li><li>stride (bytes per
+ * row, including any padding)</li><li>pixel format id (see
+ * PixelFormat)</li></ul>
+ *
+ * The pixel rows follow immediately after the header, top row first.
+ *
+ * @author Alex Kersten
+ */
+public class CaptureBuffer {
+
+    //Size of the header at the start of the buffer, in bytes.
+    public static final int HEADER_SIZE = 16;
+
+    //Offsets of the individual header fields.
+    public static final int WIDTH_OFFSET = 0;
+
+    public static final int HEIGHT_OFFSET = 4;
+
+    public static final int STRIDE_OFFSET = 8;
+
+    public static final int FORMAT_OFFSET = 12;
+
+    //The backing direct buffer, header included.
+    private ByteBuffer buffer;
+
+    /**
+     * Creates a buffer big enough to hold the given number of pixel bytes (the
+     * header is accounted for separately).
+     *
+     * @param pixelCapacity How many bytes of pixel data to reserve room for.
+     */
+    public CaptureBuffer(int pixelCapacity) {
+        buffer = allocate(pixelCapacity);
+    }
+
+    private static ByteBuffer allocate(int pixelCapacity) {
+        return ByteBuffer.allocateDirect(HEADER_SIZE + pixelCapacity).
+                order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Makes sure the buffer can hold at least the given number of pixel bytes,
+     * reallocating if it can't. Only ever grows - if the resolution shrinks we
+     * just keep the bigger buffer around.
+     *
+     * @param pixelCapacity How many bytes of pixel data need to fit.
+     * @return True if the buffer had to be reallocated (so any views previously
+     * obtained from getBuffer() or getPixels() are stale).
+     */
+    public boolean ensureCapacity(int pixelCapacity) {
+        if (getPixelCapacity() >= pixelCapacity) {
+            return false;
+        }
+
+        buffer = allocate(pixelCapacity);
+        return true;
+    }
+
+    /**
+     * @return How many bytes of pixel data this buffer can hold.
+     */
+    public int getPixelCapacity() {
+        return buffer.capacity() - HEADER_SIZE;
+    }
+
+    /**
+     * The raw direct buffer, header included. This is what gets passed down to
+     * the native library.
+     *
+     * @return The backing buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * A view of just the pixel data, starting at the top row. The view shares
+     * memory with this buffer.
+     *
+     * @return A native-ordered slice covering the pixel rows.
+     */
+    public ByteBuffer getPixels() {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(HEADER_SIZE);
+        dup.limit(HEADER_SIZE + getStride() * getHeight());
+        return dup.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Fills in the header. Native code writes the header itself, so this is
+     * only needed by the pure-Java backends.
+     */
+    public void writeHeader(int width, int height, int stride,
+                            PixelFormat format) {
+        buffer.putInt(WIDTH_OFFSET, width);
+        buffer.putInt(HEIGHT_OFFSET, height);
+        buffer.putInt(STRIDE_OFFSET, stride);
+        buffer.putInt(FORMAT_OFFSET, format.getId());
+    }
+
+    public int getWidth() {
+        return buffer.getInt(WIDTH_OFFSET);
+    }
+
+    public int getHeight() {
+        return buffer.getInt(HEIGHT_OFFSET);
+    }
+
+    public int getStride() {
+        return buffer.getInt(STRIDE_OFFSET);
+    }
+
+    /**
+     * @return The format of the pixel data, or null if the header holds an id
+     * we don't recognize (or hasn't been written yet).
+     */
+    public PixelFormat getPixelFormat() {
+        return PixelFormat.fromId(buffer.getInt(FORMAT_OFFSET));
+    }
+
+    /**
+     * Converts the captured pixels into a new TYPE_INT_RGB image, writing
+     * straight into the image's backing int array.
+     *
+     * @return The screen as an image.
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(getWidth(), getHeight(),
+                                                BufferedImage.TYPE_INT_RGB);
+        copyTo(((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
+    /**
+     * Converts the captured pixels into packed xRGB ints (the layout of a
+     * TYPE_INT_RGB image), one row after another with no padding. Lets
+     * callers that capture over and over (like video) reuse their arrays.
+     *
+     * @param data Where to put the pixels. Must hold at least width * height
+     * ints.
+     */
+    public void copyTo(int[] data) {
+        copyRegionTo(data, getWidth(), 0, 0, getWidth(), getHeight());
+    }
+
+    /**
+     * Converts one rectangle of the captured pixels into packed xRGB ints,
+     * whatever format they were captured in (see PixelConverter).
+     *
+     * @param data Where to put the pixels.
+     * @param dataWidth Row length of data, in pixels. Rows of the rectangle
+     * go at multiples of this.
+     * @param x Left edge of the rectangle.
+     * @param y Top edge of the rectangle.
+     * @param w Width of the rectangle.
+     * @param h Height of the rectangle.
+     */
+    public void copyRegionTo(int[] data, int dataWidth, int x, int y, int w,
+                             int h) {
+        PixelFormat format = getPixelFormat();
+
+        if (format == null) {
+            throw new IllegalStateException("Unknown pixel format in header.");
+        }
+
+        PixelConverter.toXRGB(getPixels(), format, getStride(), x, y, w, h,
+                              data, 0, dataWidth);
+    }
+
+    /**
+     * Copies the pixels out into one 8-bit RGB byte array per row, which is
+     * the layout the old dumpScreenBits() call returned. This allocates a lot,
+     * so it's only here for compatibility - new code should read the buffer
+     * directly.
+     *
+     * @return The screen as rows of packed R, G, B bytes.
+     */
+    public byte[][] toRGBRows() {
+        int width = getWidth();
+        int height = getHeight();
+        int stride = getStride();
+        PixelFormat format = getPixelFormat();
+
+        if (format == null) {
+            throw new IllegalStateException("Unknown pixel format in header.");
+        }
+
+        int[] row = new int[width];
+        byte[][] rows = new byte[height][];
+
+        ByteBuffer pixels = getPixels();
+
+        for (int y = 0; y < height; y++) {
+            PixelConverter.toXRGB(pixels, format, stride, 0, y, width, 1, row,
+                                  0, width);
+
+            byte[] out = new byte[width * 3];
+
+            for (int x = 0, o = 0; x < width; x++) {
+                out[o++] = (byte) (row[x] >> 16);
+                out[o++] = (byte) (row[x] >> 8);
+                out[o++] = (byte) row[x];
+            }
+
+            rows[y] = out;
+        }
+
+        return rows;
+    }
+}
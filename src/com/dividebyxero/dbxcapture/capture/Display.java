@@ -0,0 +1,95 @@
+/*
+ Project: dbx-capture
+ File: Display.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.awt.Rectangle;
+
+/**
+ * One monitor, as a rectangle of the virtual desktop. The virtual desktop is
+ * every monitor laid out the way the OS arranges them, so a display left of
+ * (or above) the primary one has a negative position.
+ *
+ * @author Alex Kersten
+ */
+public class Display {
+
+    private final int index;
+
+    private final String id;
+
+    private final Rectangle bounds;
+
+    private final boolean primary;
+
+    /**
+     * @param index Position in the DisplayTopology's list.
+     * @param id Whatever the OS calls the display, for log output.
+     * @param bounds Where it is on the virtual desktop.
+     * @param primary Whether it's the main display.
+     */
+    public Display(int index, String id, Rectangle bounds, boolean primary) {
+        if (bounds.isEmpty()) {
+            throw new IllegalArgumentException("Empty display bounds: "
+                                               + bounds);
+        }
+
+        this.index = index;
+        this.id = id;
+        this.bounds = new Rectangle(bounds);
+        this.primary = primary;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return A copy of the display's bounds on the virtual desktop.
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    public boolean isPrimary() {
+        return primary;
+    }
+
+    /**
+     * @return True if the point (in virtual desktop coordinates) is on this
+     * display.
+     */
+    public boolean contains(int x, int y) {
+        return bounds.contains(x, y);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Display)) {
+            return false;
+        }
+
+        Display other = (Display) o;
+        return index == other.index && primary == other.primary
+               && bounds.equals(other.bounds)
+               && (id == null ? other.id == null : id.equals(other.id));
+    }
+
+    @Override
+    public int hashCode() {
+        return index * 31 + bounds.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Display " + index + " (" + id + ") " + bounds.width + "x"
+               + bounds.height + " at " + bounds.x + "," + bounds.y
+               + (primary ? ", primary" : "");
+    }
+}
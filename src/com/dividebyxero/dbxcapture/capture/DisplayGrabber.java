@@ -0,0 +1,136 @@
+/*
+ Project: dbx-capture
+ File: DisplayGrabber.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Grabs every display at once, each into its own CaptureBuffer. Nothing ever
+ * gets stitched into one virtual desktop sized image - the crop overlay (or
+ * whoever) can work with the displays separately, and only needs as much
+ * memory as the displays actually cover instead of their bounding box.
+ *
+ * The first display is grabbed on the calling thread and the rest on a pool
+ * with a thread per extra display. The topology is fixed when this is made,
+ * so make a new one if the displays change.
+ *
+ * @author Alex Kersten
+ */
+public class DisplayGrabber {
+
+    private final CaptureBackend backend;
+
+    private final DisplayTopology topology;
+
+    private final CaptureBuffer[] buffers;
+
+    //Null with only one display, there's nothing to do in parallel.
+    private final ExecutorService pool;
+
+    /**
+     * @param backend Where to grab from.
+     * @param topology The displays to grab, usually backend.getTopology().
+     */
+    public DisplayGrabber(CaptureBackend backend, DisplayTopology topology) {
+        this.backend = backend;
+        this.topology = topology;
+
+        buffers = new CaptureBuffer[topology.getDisplayCount()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new CaptureBuffer(0);
+        }
+
+        if (buffers.length == 1) {
+            pool = null;
+            return;
+        }
+
+        pool = Executors.newFixedThreadPool(
+                buffers.length - 1, new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DBXC display grabber");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Grabs every display into its buffer.
+     *
+     * @return True if every display was grabbed. If not, the buffers of the
+     * ones that failed hold whatever they held before.
+     */
+    public boolean grab() {
+        List<Future<Boolean>> pending = new ArrayList<>();
+
+        for (int i = 1; i < buffers.length; i++) {
+            final int display = i;
+
+            pending.add(pool.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() {
+                    return grabDisplay(display);
+                }
+            }));
+        }
+
+        boolean grabbed = grabDisplay(0);
+
+        for (Future<Boolean> future : pending) {
+            try {
+                grabbed &= future.get();
+            } catch (ExecutionException ee) {
+                System.err.println("Display grab failed: " + ee.getCause());
+                grabbed = false;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                grabbed = false;
+            }
+        }
+
+        return grabbed;
+    }
+
+    private boolean grabDisplay(int index) {
+        Rectangle bounds = topology.getDisplay(index).getBounds();
+        buffers[index].ensureCapacity(backend.getRequiredCapacity(bounds));
+        return backend.grabRegion(buffers[index], bounds);
+    }
+
+    public DisplayTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * @param display Index of the display in the topology.
+     * @return The buffer that display is grabbed into. Only valid after a
+     * successful grab().
+     */
+    public CaptureBuffer getBuffer(int display) {
+        return buffers[display];
+    }
+
+    /**
+     * Stops the grabbing threads. Don't grab() after this.
+     */
+    public void dispose() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
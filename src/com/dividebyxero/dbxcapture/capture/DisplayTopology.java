@@ -0,0 +1,183 @@
+/*
+ Project: dbx-capture
+ File: DisplayTopology.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The monitors that make up the virtual desktop, at one point in time.
+ * Monitors come and go (and get rearranged), so ask the backend for a fresh
+ * one rather than holding on to it for the life of the program.
+ *
+ * Knowing where the displays are lets callers grab just the one they care
+ * about with CaptureBackend.grabRegion(), instead of the whole desktop in one
+ * huge buffer - on a three monitor desk that's a third of the memory.
+ *
+ * @author Alex Kersten
+ */
+public class DisplayTopology {
+
+    private final List<Display> displays;
+
+    private final Rectangle virtualBounds;
+
+    /**
+     * @param displays Every display, in index order. There has to be at least
+     * one.
+     */
+    public DisplayTopology(List<Display> displays) {
+        if (displays.isEmpty()) {
+            throw new IllegalArgumentException("No displays.");
+        }
+
+        Rectangle bounds = null;
+
+        for (Display display : displays) {
+            bounds = bounds == null
+                     ? display.getBounds()
+                     : bounds.union(display.getBounds());
+        }
+
+        this.displays = Collections.unmodifiableList(
+                new ArrayList<>(displays));
+        this.virtualBounds = bounds;
+    }
+
+    /**
+     * Asks AWT where the screens are.
+     *
+     * @return The current topology, or null on a headless box.
+     */
+    public static DisplayTopology query() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+
+        GraphicsEnvironment ge =
+                            GraphicsEnvironment.getLocalGraphicsEnvironment();
+        GraphicsDevice primary = ge.getDefaultScreenDevice();
+
+        List<Display> displays = new ArrayList<>();
+
+        for (GraphicsDevice device : ge.getScreenDevices()) {
+            Rectangle bounds = device.getDefaultConfiguration().getBounds();
+
+            if (!bounds.isEmpty()) {
+                displays.add(new Display(displays.size(), device.getIDstring(),
+                                         bounds, device == primary));
+            }
+        }
+
+        return displays.isEmpty() ? null : new DisplayTopology(displays);
+    }
+
+    /**
+     * @return A topology of one display at the origin.
+     */
+    public static DisplayTopology single(int width, int height) {
+        return new DisplayTopology(Collections.singletonList(
+                new Display(0, "single", new Rectangle(width, height), true)));
+    }
+
+    /**
+     * @return Every display, in index order. The list can't be modified.
+     */
+    public List<Display> getDisplays() {
+        return displays;
+    }
+
+    public int getDisplayCount() {
+        return displays.size();
+    }
+
+    public Display getDisplay(int index) {
+        return displays.get(index);
+    }
+
+    /**
+     * @return The main display, or the first one if none is marked primary.
+     */
+    public Display getPrimary() {
+        for (Display display : displays) {
+            if (display.isPrimary()) {
+                return display;
+            }
+        }
+
+        return displays.get(0);
+    }
+
+    /**
+     * @return The display the point is on, or null if it's in a gap between
+     * displays (or off the desktop entirely).
+     */
+    public Display getDisplayAt(int x, int y) {
+        for (Display display : displays) {
+            if (display.contains(x, y)) {
+                return display;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param region A rectangle of the virtual desktop.
+     * @return Every display the rectangle covers part of, in index order.
+     */
+    public List<Display> getDisplaysIn(Rectangle region) {
+        List<Display> covered = new ArrayList<>();
+
+        for (Display display : displays) {
+            if (display.getBounds().intersects(region)) {
+                covered.add(display);
+            }
+        }
+
+        return covered;
+    }
+
+    /**
+     * @return A copy of the smallest rectangle holding every display. This is
+     * what CaptureBackend.grab() captures.
+     */
+    public Rectangle getVirtualBounds() {
+        return new Rectangle(virtualBounds);
+    }
+
+    /**
+     * @return True if the region is non-empty and entirely on the virtual
+     * desktop, which is what grabRegion() needs.
+     */
+    public boolean isValidRegion(Rectangle region) {
+        return !region.isEmpty() && virtualBounds.contains(region);
+    }
+
+    /**
+     * @return True if the other topology has the same displays in the same
+     * places, so anything sized for one fits the other.
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DisplayTopology
+               && displays.equals(((DisplayTopology) o).displays);
+    }
+
+    @Override
+    public int hashCode() {
+        return displays.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return displays.toString();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ Project: dbx-capture
+ File: NativeCaptureBackend.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import com.dividebyxero.dbxcapture.Platforming;
+import com.dividebyxero.dbxcapture.jni.DBXCNativeInterface;
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+
+/**
+ * Capture backend that hands the buffer straight to libcapture. Only usable
+ * once the native library has been loaded by Platforming.
+ *
+ * Region grabs go through captureRegionToBuffer(), which only reads the pixels
+ * asked for. Builds of libcapture from before that existed don't have it, so
+ * the first UnsatisfiedLinkError switches region grabs over to Robot, or if
+ * there's no Robot either, to grabbing the whole screen into a scratch buffer
+ * and copying the rectangle out.
+ *
+ * Those builds don't have captureScreenToBuffer() either, so the same goes for
+ * whole screen grabs: the first UnsatisfiedLinkError switches them over to the
+ * old dumpScreenBits(), copied into the buffer as RGB_888. That allocates
+ * every row on every grab, so it's slow, but it works until the library is
+ * rebuilt.
+ *
+ * libcapture isn't safe to call from several threads at once, so whole screen
+ * grabs go through one lock, shared by every instance since the library is.
+ *
+ * @author Alex Kersten
+ */
+public class NativeCaptureBackend implements CaptureBackend {
+
+    private static final Object GRAB_LOCK = new Object();
+
+    //Full screen grabs for grabRegion() to copy out of, when neither the
+    //library nor Robot can grab a region.
+    private final CaptureBuffer scratch = new CaptureBuffer(0);
+
+    private final RobotCaptureBackend robot = new RobotCaptureBackend();
+
+    //Cleared when the library turns out not to have captureRegionToBuffer().
+    private volatile boolean nativeRegions = true;
+
+    //Cleared when the library turns out not to have captureScreenToBuffer()
+    //and queryScreenBufferSize().
+    private volatile boolean nativeBuffers = true;
+
+    @Override
+    public String getName() {
+        return "Native (libcapture)";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return Platforming.isNativeLibraryLoaded();
+    }
+
+    /**
+     * Asks libcapture what format the screen is in. Builds from before it
+     * could say only have dumpScreenBits(), which we copy in as RGB.
+     */
+    @Override
+    public PixelFormat getNativeFormat() {
+        try {
+            PixelFormat format = PixelFormat.fromId(
+                    DBXCNativeInterface.queryScreenPixelFormat());
+            return format == null ? PixelFormat.BGRA_8888 : format;
+        } catch (UnsatisfiedLinkError ule) {
+            return PixelFormat.RGB_888;
+        }
+    }
+
+    @Override
+    public DisplayTopology getTopology() {
+        return DisplayTopology.query();
+    }
+
+    @Override
+    public int getRequiredCapacity() {
+        if (nativeBuffers) {
+            try {
+                return DBXCNativeInterface.queryScreenBufferSize();
+            } catch (UnsatisfiedLinkError ule) {
+                noNativeBuffers();
+            }
+        }
+
+        //Enough for dumpScreenBits() rows, three bytes a pixel.
+        DisplayTopology topology = getTopology();
+        if (topology == null) {
+            return 0;
+        }
+
+        Rectangle virtual = topology.getVirtualBounds();
+        return virtual.width * virtual.height
+               * PixelFormat.RGB_888.getBytesPerPixel();
+    }
+
+    @Override
+    public int getRequiredCapacity(Rectangle region) {
+        //Four bytes a pixel is as big as any format libcapture hands back.
+        return region.width * region.height * 4;
+    }
+
+    @Override
+    public boolean grab(CaptureBuffer target) {
+        synchronized (GRAB_LOCK) {
+            if (nativeBuffers) {
+                try {
+                    return DBXCNativeInterface.captureScreenToBuffer(
+                            target.getBuffer());
+                } catch (UnsatisfiedLinkError ule) {
+                    noNativeBuffers();
+                }
+            }
+
+            return grabRows(target);
+        }
+    }
+
+    private void noNativeBuffers() {
+        if (nativeBuffers) {
+            nativeBuffers = false;
+            System.out.println("libcapture can't grab into buffers, using "
+                               + "dumpScreenBits() instead. Rebuild it!");
+        }
+    }
+
+    /**
+     * Grabs the screen the old way, one array per row, and copies the rows
+     * into the buffer.
+     */
+    private boolean grabRows(CaptureBuffer target) {
+        byte[][] rows = DBXCNativeInterface.dumpScreenBits();
+
+        if (rows == null || rows.length == 0 || rows[0] == null) {
+            return false;
+        }
+
+        int stride = rows[0].length;
+        int width = stride / PixelFormat.RGB_888.getBytesPerPixel();
+
+        if (width == 0 || target.getPixelCapacity() < stride * rows.length) {
+            return false;
+        }
+
+        target.writeHeader(width, rows.length, stride, PixelFormat.RGB_888);
+
+        ByteBuffer pixels = target.getPixels();
+        for (byte[] row : rows) {
+            if (row == null || row.length != stride) {
+                return false;
+            }
+
+            pixels.put(row);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean grabRegion(CaptureBuffer target, Rectangle region) {
+        DisplayTopology topology = getTopology();
+
+        if (topology == null || !topology.isValidRegion(region)
+            || target.getPixelCapacity() < getRequiredCapacity(region)) {
+            return false;
+        }
+
+        if (nativeRegions) {
+            try {
+                return DBXCNativeInterface.captureRegionToBuffer(
+                        target.getBuffer(), region.x, region.y, region.width,
+                        region.height);
+            } catch (UnsatisfiedLinkError ule) {
+                nativeRegions = false;
+                System.out.println("libcapture can't grab regions, using "
+                                   + (robot.isAvailable()
+                                      ? robot.getName()
+                                      : "full screen grabs")
+                                   + " for them instead.");
+            }
+        }
+
+        if (robot.isAvailable()) {
+            return robot.grabRegion(target, region);
+        }
+
+        return cropScreen(target, region, topology);
+    }
+
+    /**
+     * Grabs the whole screen and copies the region out of it.
+     */
+    private synchronized boolean cropScreen(CaptureBuffer target,
+                                            Rectangle region,
+                                            DisplayTopology topology) {
+        scratch.ensureCapacity(getRequiredCapacity());
+        if (!grab(scratch)) {
+            return false;
+        }
+
+        //The full grab starts at the top left of the virtual desktop.
+        Rectangle virtual = topology.getVirtualBounds();
+        int x = region.x - virtual.x;
+        int y = region.y - virtual.y;
+
+        PixelFormat format = scratch.getPixelFormat();
+
+        if (format == null || x + region.width > scratch.getWidth()
+            || y + region.height > scratch.getHeight()) {
+            //Screens changed between the query and the grab.
+            return false;
+        }
+
+        int bpp = format.getBytesPerPixel();
+        int rowBytes = region.width * bpp;
+
+        target.writeHeader(region.width, region.height, rowBytes, format);
+
+        ByteBuffer from = scratch.getPixels();
+        ByteBuffer to = target.getPixels();
+        int stride = scratch.getStride();
+
+        for (int row = 0; row < region.height; row++) {
+            from.limit((y + row) * stride + x * bpp + rowBytes);
+            from.position((y + row) * stride + x * bpp);
+            to.put(from);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ Project: dbx-capture
+ File: PixelConverter.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * The one place pixels get converted out of whatever format a backend
+ * captured them in. Backends write their native format as is (see
+ * CaptureBackend.getNativeFormat()) and nothing converts anything until
+ * somebody actually wants the pixels as packed xRGB ints - the layout of a
+ * TYPE_INT_RGB image - at which point this does it in one pass, straight
+ * into the destination array, with no intermediate copies.
+ *
+ * BGRA on a little-endian machine is already xRGB in memory, so that's a bulk
+ * copy per row. Everything else goes pixel by pixel with absolute reads out
+ * of the buffer. There are only 65536 RGB565 pixels, so those are looked up
+ * in a table rather than worked out, which is several times faster.
+ *
+ * @author Alex Kersten
+ */
+public abstract class PixelConverter {
+
+    private static final boolean LITTLE_ENDIAN =
+                                 ByteOrder.nativeOrder()
+                                 == ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * Only built the first time an RGB565 screen comes along, it's 256K.
+     */
+    private static class Rgb565Table {
+
+        private static final int[] XRGB = new int[1 << 16];
+
+        static {
+            for (int p = 0; p < XRGB.length; p++) {
+                int r = (p >> 11) & 0x1F;
+                int g = (p >> 5) & 0x3F;
+                int b = p & 0x1F;
+
+                //Copy the top bits into the bottom so full intensity stays
+                //full intensity (0x1F -> 0xFF, not 0xF8).
+                XRGB[p] = (((r << 3) | (r >> 2)) << 16)
+                          | (((g << 2) | (g >> 4)) << 8)
+                          | ((b << 3) | (b >> 2));
+            }
+        }
+    }
+
+    /**
+     * Converts a rectangle of pixels to packed xRGB ints.
+     *
+     * @param pixels The pixel rows, top row at position 0, in native byte
+     * order (like CaptureBuffer.getPixels()).
+     * @param format What format the pixels are in.
+     * @param stride Bytes from the start of one row to the next.
+     * @param x Left edge of the rectangle.
+     * @param y Top edge of the rectangle.
+     * @param w Width of the rectangle.
+     * @param h Height of the rectangle.
+     * @param data Where to put the converted pixels.
+     * @param offset Where in data the rectangle's top left pixel goes.
+     * @param dataWidth Row length of data, in pixels.
+     */
+    public static void toXRGB(ByteBuffer pixels, PixelFormat format,
+                              int stride, int x, int y, int w, int h,
+                              int[] data, int offset, int dataWidth) {
+        switch (format) {
+            case BGRA_8888:
+                if (LITTLE_ENDIAN && (stride & 3) == 0) {
+                    bulkBGRA(pixels, stride, x, y, w, h, data, offset,
+                             dataWidth);
+                } else {
+                    fromBGRA(pixels, stride, x, y, w, h, data, offset,
+                             dataWidth);
+                }
+                break;
+            case RGB_565:
+                from565(pixels, stride, x, y, w, h, data, offset, dataWidth);
+                break;
+            case RGB_888:
+                from888(pixels, stride, x, y, w, h, data, offset, dataWidth,
+                        false);
+                break;
+            case BGR_888:
+                from888(pixels, stride, x, y, w, h, data, offset, dataWidth,
+                        true);
+                break;
+        }
+    }
+
+    private static void bulkBGRA(ByteBuffer pixels, int stride, int x, int y,
+                                 int w, int h, int[] data, int offset,
+                                 int dataWidth) {
+        //BGRA read as a little-endian int is already xRGB. Like the other
+        //paths this goes by index, whatever the buffer's position is.
+        ByteBuffer whole = pixels.duplicate();
+        whole.clear();
+        IntBuffer ints = whole.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+        for (int row = 0; row < h; row++) {
+            ints.position((y + row) * (stride >> 2) + x);
+            ints.get(data, offset + row * dataWidth, w);
+        }
+    }
+
+    private static void fromBGRA(ByteBuffer pixels, int stride, int x, int y,
+                                 int w, int h, int[] data, int offset,
+                                 int dataWidth) {
+        for (int row = 0; row < h; row++) {
+            int i = (y + row) * stride + x * 4;
+            int o = offset + row * dataWidth;
+
+            for (int col = 0; col < w; col++, i += 4) {
+                int p = pixels.getInt(i);
+                data[o++] = LITTLE_ENDIAN ? p : Integer.reverseBytes(p);
+            }
+        }
+    }
+
+    private static void from565(ByteBuffer pixels, int stride, int x, int y,
+                                int w, int h, int[] data, int offset,
+                                int dataWidth) {
+        int[] table = Rgb565Table.XRGB;
+
+        for (int row = 0; row < h; row++) {
+            int i = (y + row) * stride + x * 2;
+            int o = offset + row * dataWidth;
+
+            for (int col = 0; col < w; col++, i += 2) {
+                data[o++] = table[pixels.getShort(i) & 0xFFFF];
+            }
+        }
+    }
+
+    private static void from888(ByteBuffer pixels, int stride, int x, int y,
+                                int w, int h, int[] data, int offset,
+                                int dataWidth, boolean bgr) {
+        //Whichever byte comes first in memory.
+        int firstShift = bgr ? 0 : 16;
+        int lastShift = bgr ? 16 : 0;
+
+        for (int row = 0; row < h; row++) {
+            int i = (y + row) * stride + x * 3;
+            int o = offset + row * dataWidth;
+
+            for (int col = 0; col < w; col++, i += 3) {
+                data[o++] = ((pixels.get(i) & 0xFF) << firstShift)
+                            | ((pixels.get(i + 1) & 0xFF) << 8)
+                            | ((pixels.get(i + 2) & 0xFF) << lastShift);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ Project: dbx-capture
+ File: PixelFormat.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+/**
+ * The layout of a single pixel inside of a CaptureBuffer. The id is what
+ * actually gets written into the buffer header (by the native library or one
+ * of the Java backends), so don't renumber these - the native side has the
+ * same values hardcoded.
+ *
+ * @author Alex Kersten
+ */
+public enum PixelFormat {
+
+    //Byte order in memory is B, G, R, A. This is what DirectX and GDI hand us
+    //natively, so it's what the Windows library should be writing. The alpha
+    //byte isn't used for anything and backends may leave it as garbage.
+    BGRA_8888(1, 4),
+    //Byte order in memory is R, G, B with no padding between pixels (rows may
+    //still be padded, see the stride in the header).
+    RGB_888(2, 3),
+    //One 16-bit value per pixel in native byte order: 5 bits of red at the
+    //top, 6 of green, 5 of blue. What 16-bit X servers and framebuffers
+    //hand out.
+    RGB_565(3, 2),
+    //Byte order in memory is B, G, R with no padding between pixels. GDI's
+    //24-bit DIBs.
+    BGR_888(4, 3);
+
+    private final int id, bytesPerPixel;
+
+    PixelFormat(int id, int bytesPerPixel) {
+        this.id = id;
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    /**
+     * @return The identifier stored in a CaptureBuffer header for this format.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return How many bytes a single pixel of this format takes up.
+     */
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * Looks up the format matching a header id.
+     *
+     * @param id The id read out of a CaptureBuffer header.
+     * @return The matching format, or null if the id isn't one we know about.
+     */
+    public static PixelFormat fromId(int id) {
+        for (PixelFormat f : values()) {
+            if (f.id == id) {
+                return f;
+            }
+        }
+
+        return null;
+    }
+}
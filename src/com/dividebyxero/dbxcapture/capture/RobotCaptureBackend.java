@@ -0,0 +1,145 @@
+/*
+ Project: dbx-capture
+ File: RobotCaptureBackend.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.awt.AWTException;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * In-process capture backend using java.awt.Robot. Slower than the native
+ * library (Robot allocates a fresh image every time), but it works anywhere
+ * there's a display, so nobody needs a hand-built libcapture just to run the
+ * program.
+ *
+ * @author Alex Kersten
+ */
+public class RobotCaptureBackend implements CaptureBackend {
+
+    //One Robot per thread, since createScreenCapture() is synchronized and
+    //DisplayGrabber grabs every display at once. Null if it couldn't be made.
+    private final ThreadLocal<Robot> robots = new ThreadLocal<Robot>() {
+
+        @Override
+        protected Robot initialValue() {
+            try {
+                return new Robot();
+            } catch (AWTException | SecurityException e) {
+                return null;
+            }
+        }
+    };
+
+    @Override
+    public String getName() {
+        return "java.awt.Robot";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        //Constructing a Robot on a headless box throws.
+        return !GraphicsEnvironment.isHeadless() && robots.get() != null;
+    }
+
+    /**
+     * Robot hands back xRGB ints, which are BGRA in memory on every machine
+     * this realistically runs on.
+     */
+    @Override
+    public PixelFormat getNativeFormat() {
+        return PixelFormat.BGRA_8888;
+    }
+
+    @Override
+    public DisplayTopology getTopology() {
+        return DisplayTopology.query();
+    }
+
+    @Override
+    public int getRequiredCapacity() {
+        DisplayTopology topology = getTopology();
+        return topology == null
+               ? 0 : getRequiredCapacity(topology.getVirtualBounds());
+    }
+
+    @Override
+    public int getRequiredCapacity(Rectangle region) {
+        return region.width * region.height
+               * PixelFormat.BGRA_8888.getBytesPerPixel();
+    }
+
+    @Override
+    public boolean grab(CaptureBuffer target) {
+        DisplayTopology topology = getTopology();
+        return topology != null
+               && grabRegion(target, topology.getVirtualBounds());
+    }
+
+    @Override
+    public boolean grabRegion(CaptureBuffer target, Rectangle region) {
+        if (!isAvailable()) {
+            return false;
+        }
+
+        DisplayTopology topology = getTopology();
+
+        if (topology == null || !topology.isValidRegion(region)
+            || target.getPixelCapacity() < getRequiredCapacity(region)) {
+            return false;
+        }
+
+        BufferedImage image = robots.get().createScreenCapture(region);
+        target.writeHeader(region.width, region.height,
+                           region.width * PixelFormat.BGRA_8888.
+                getBytesPerPixel(), PixelFormat.BGRA_8888);
+        copyInto(image, target.getPixels().asIntBuffer());
+
+        return true;
+    }
+
+    /**
+     * Copies an image into a BGRA pixel buffer. Robot hands back an xRGB
+     * DataBufferInt image on every JRE I've seen, which on a little-endian
+     * machine is already BGRA in memory, so that case is a single bulk put.
+     */
+    static void copyInto(BufferedImage image, IntBuffer pixels) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean little = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+        if (little
+            && image.getType() == BufferedImage.TYPE_INT_RGB
+            && image.getRaster().getDataBuffer() instanceof DataBufferInt
+            && image.getRaster().getSampleModel()
+               instanceof SinglePixelPackedSampleModel
+            && ((SinglePixelPackedSampleModel) image.getRaster().
+                getSampleModel()).getScanlineStride() == width) {
+
+            int[] data =
+                  ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            pixels.put(data, 0, width * height);
+            return;
+        }
+
+        //Slow path for anything unexpected: go row by row through getRGB().
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            if (!little) {
+                for (int x = 0; x < width; x++) {
+                    row[x] = Integer.reverseBytes(row[x]);
+                }
+            }
+            pixels.put(row);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ Project: dbx-capture
+ File: SyntheticCaptureBackend.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pure-Java capture backend that doesn't look at the screen at all - it just
+ * generates a deterministic test pattern. Useful for exercising the capture
+ * path without the native library (or without a display, for that matter), and
+ * it's the last resort CaptureBackendSelector falls back to on headless boxes.
+ *
+ * Every grab shifts the pattern by one pixel so consecutive frames differ.
+ *
+ * @author Alex Kersten
+ */
+public class SyntheticCaptureBackend implements CaptureBackend {
+
+    private final int width, height;
+
+    private final PixelFormat format;
+
+    //How many frames we've generated, used to animate the pattern.
+    private final AtomicInteger frameCount = new AtomicInteger();
+
+    /**
+     * @param width Width of the fake screen.
+     * @param height Height of the fake screen.
+     */
+    public SyntheticCaptureBackend(int width, int height) {
+        this(width, height, PixelFormat.BGRA_8888);
+    }
+
+    /**
+     * @param width Width of the fake screen.
+     * @param height Height of the fake screen.
+     * @param format The format to pretend the screen is in, to exercise the
+     * conversions from it.
+     */
+    public SyntheticCaptureBackend(int width, int height,
+                                   PixelFormat format) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad synthetic screen size: "
+                                               + width + "x" + height);
+        }
+
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+
+    @Override
+    public String getName() {
+        return "Synthetic " + width + "x" + height
+               + (format == PixelFormat.BGRA_8888 ? "" : " " + format);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public PixelFormat getNativeFormat() {
+        return format;
+    }
+
+    @Override
+    public DisplayTopology getTopology() {
+        return DisplayTopology.single(width, height);
+    }
+
+    @Override
+    public int getRequiredCapacity() {
+        return width * height * format.getBytesPerPixel();
+    }
+
+    @Override
+    public int getRequiredCapacity(Rectangle region) {
+        return region.width * region.height * format.getBytesPerPixel();
+    }
+
+    @Override
+    public boolean grab(CaptureBuffer target) {
+        if (target.getPixelCapacity() < getRequiredCapacity()) {
+            return false;
+        }
+
+        //Scratch row so we can bulk-put into the buffer. Not a field, since
+        //several threads can be grabbing at once.
+        fill(target, new Rectangle(width, height),
+             frameCount.getAndIncrement(), new int[width]);
+        return true;
+    }
+
+    /**
+     * Fills the buffer with part of the current frame's pattern, without
+     * moving on to the next frame.
+     */
+    @Override
+    public boolean grabRegion(CaptureBuffer target, Rectangle region) {
+        if (!getTopology().isValidRegion(region)
+            || target.getPixelCapacity() < getRequiredCapacity(region)) {
+            return false;
+        }
+
+        fill(target, region, frameCount.get(), new int[region.width]);
+        return true;
+    }
+
+    private void fill(CaptureBuffer target, Rectangle region, int shift,
+                      int[] row) {
+        int stride = region.width * format.getBytesPerPixel();
+        target.writeHeader(region.width, region.height, stride, format);
+
+        ByteBuffer pixels = target.getPixels();
+
+        for (int y = region.y; y < region.y + region.height; y++) {
+            //Diagonal gradient in red and green, blue steps every 64 pixels.
+            //Cheap to compute but still varied enough to not compress to
+            //nothing.
+            for (int i = 0; i < region.width; i++) {
+                int sx = region.x + i + shift;
+                int b = (((sx >> 6) + (y >> 6)) << 5) & 0xFF;
+                int g = y & 0xFF;
+                int r = sx & 0xFF;
+                row[i] = (r << 16) | (g << 8) | b;
+            }
+
+            pixels.position((y - region.y) * stride);
+            putRow(pixels, row, region.width);
+        }
+    }
+
+    /**
+     * Writes a row of xRGB ints at the buffer's position, in our format.
+     */
+    private void putRow(ByteBuffer pixels, int[] row, int length) {
+        switch (format) {
+            case BGRA_8888:
+                //BGRA in memory reads back as a different int depending on
+                //the byte order, so work out which way round to pack it.
+                boolean little =
+                        ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+                for (int i = 0; i < length; i++) {
+                    int p = 0xFF000000 | row[i];
+                    row[i] = little ? p : Integer.reverseBytes(p);
+                }
+                pixels.asIntBuffer().put(row, 0, length);
+                break;
+            case RGB_565:
+                for (int i = 0; i < length; i++) {
+                    int p = row[i];
+                    pixels.putShort((short) (((p >> 8) & 0xF800)
+                                             | ((p >> 5) & 0x07E0)
+                                             | ((p >> 3) & 0x001F)));
+                }
+                break;
+            case RGB_888:
+            case BGR_888:
+                boolean bgr = format == PixelFormat.BGR_888;
+                for (int i = 0; i < length; i++) {
+                    int p = row[i];
+                    pixels.put((byte) (bgr ? p : p >> 16));
+                    pixels.put((byte) (p >> 8));
+                    pixels.put((byte) (bgr ? p >> 16 : p));
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,755 @@
+/*
+ Project: dbx-capture
+ File: CaptureCatalog.java (com.dividebyxero.dbxcapture.catalog)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A record of every capture in the content directory - when it was taken, how
+ * big it is, what script it went to and what came back (usually the upload's
+ * URL) - so finding one doesn't mean listing and opening thousands of files.
+ *
+ * On disk it's a single append-only log in the content directory: a header,
+ * then one record per change, each with its length in front and a CRC32
+ * behind so a record torn by a crash is spotted and dropped on the next open.
+ * A record is always a whole entry (or the name of one that's been removed),
+ * and the last one for a file wins. The whole thing is read into memory on
+ * open and indexed by time and by file name, so queries never touch the disk.
+ * Once most of the log is outdated records it's rewritten with just the
+ * current ones.
+ *
+ * If the log is missing (or unreadable) it's rebuilt by scanning the
+ * directory's screenshots. Only what's in the files themselves comes back
+ * that way - which script they went to and what it said is lost.
+ *
+ * Thread safe.
+ *
+ * @author Alex Kersten
+ */
+public class CaptureCatalog {
+
+    public static final String CATALOG_FILE_NAME = "catalog.dbxc";
+
+    //What screenshots are called, and what a rebuild gets their time from.
+    public static final String FILE_NAME_FORMAT = "yyyy-MM-dd_HH-mm-ss-SSS";
+
+    //"DBXC"
+    private static final int MAGIC = 0x44425843;
+
+    //Version 2 added pixel hashes, version 3 compression levels and removals.
+    //Older logs are still read, and are rewritten as the current version when
+    //they're opened.
+    private static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte RECORD_PUT = 1;
+
+    private static final byte RECORD_REMOVE = 2;
+
+    //Nothing legitimate comes anywhere near this, so a bigger length means
+    //the record is garbage.
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    //Don't bother rewriting the log for fewer outdated records than this.
+    private static final int COMPACT_MIN_STALE = 256;
+
+    private final Path directory;
+
+    private final Path file;
+
+    private FileChannel channel;
+
+    //Where the next record goes.
+    private long end;
+
+    //Records in the log that a later one replaced, and removals.
+    private int staleRecords;
+
+    private final TreeMap<Long, CatalogEntry> byTime = new TreeMap<>();
+
+    private final TreeMap<String, CatalogEntry> byName = new TreeMap<>();
+
+    //The newest capture of each picture.
+    private final HashMap<String, CatalogEntry> byPixels = new HashMap<>();
+
+    //The version of the log as it was on disk.
+    private int fileVersion;
+
+    private CaptureCatalog(Path directory) {
+        this.directory = directory;
+        this.file = directory.resolve(CATALOG_FILE_NAME);
+    }
+
+    /**
+     * Opens the catalog of a directory, rebuilding it from the directory's
+     * screenshots if there isn't one.
+     *
+     * @param directory The content directory.
+     * @return The catalog, ready to use.
+     * @throws IOException If the catalog couldn't be read or written.
+     */
+    public static CaptureCatalog open(Path directory) throws IOException {
+        CaptureCatalog catalog = new CaptureCatalog(directory);
+        catalog.load();
+        return catalog;
+    }
+
+    private synchronized void load() throws IOException {
+        if (!Files.exists(file)) {
+            rebuild();
+            return;
+        }
+
+        long good;
+
+        try (InputStream in = new BufferedInputStream(
+                Files.newInputStream(file))) {
+            good = read(new DataInputStream(in));
+        }
+
+        if (good < 0) {
+            //Not ours, or from a newer version - keep it out of harm's way.
+            Path aside = directory.resolve(CATALOG_FILE_NAME + ".old");
+            System.err.println("Can't read " + file + ", moving it to "
+                               + aside + " and starting over.");
+            Files.move(file, aside, StandardCopyOption.REPLACE_EXISTING);
+            rebuild();
+            return;
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+
+        if (good < channel.size()) {
+            System.err.println("Dropping " + (channel.size() - good)
+                               + " bytes of unfinished records from " + file
+                               + ".");
+            channel.truncate(good);
+        }
+
+        end = good;
+
+        if (fileVersion < VERSION) {
+            System.out.println("Upgrading the capture catalog...");
+            writeSnapshot();
+        } else if (staleRecords > Math.max(COMPACT_MIN_STALE,
+                                           byName.size())) {
+            compact();
+        }
+    }
+
+    /**
+     * Reads the log into the indexes.
+     *
+     * @return How much of the log is good, or -1 if the header is wrong.
+     */
+    private long read(DataInputStream in) throws IOException {
+        try {
+            if (in.readInt() != MAGIC) {
+                return -1;
+            }
+
+            fileVersion = in.readInt();
+
+            if (fileVersion < 1 || fileVersion > VERSION) {
+                return -1;
+            }
+        } catch (EOFException eofe) {
+            return -1;
+        }
+
+        long good = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+
+        while (true) {
+            byte[] body;
+
+            try {
+                int length = in.readInt();
+
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    return good;
+                }
+
+                body = new byte[length];
+                in.readFully(body);
+
+                crc.reset();
+                crc.update(body);
+
+                if (in.readInt() != (int) crc.getValue()) {
+                    return good;
+                }
+            } catch (EOFException eofe) {
+                return good;
+            }
+
+            if (!apply(body, fileVersion)) {
+                return good;
+            }
+
+            //Length, body and CRC.
+            good += 4 + body.length + 4;
+        }
+    }
+
+    /**
+     * Adds a capture, or replaces what's known about it if it's already
+     * there (going by file name).
+     *
+     * @param entry The capture. If another capture already has its time, it's
+     * moved along a microsecond or so to keep times unique.
+     * @return The entry as stored.
+     * @throws IOException If it couldn't be written to the log. It's not in
+     * the catalog then.
+     */
+    public synchronized CatalogEntry add(CatalogEntry entry)
+            throws IOException {
+        checkOpen();
+
+        long time = entry.getTime();
+        CatalogEntry taken;
+
+        while ((taken = byTime.get(time)) != null
+               && !taken.getFileName().equals(entry.getFileName())) {
+            time++;
+        }
+
+        if (time != entry.getTime()) {
+            entry = entry.withTime(time);
+        }
+
+        append(encode(entry));
+        index(entry);
+        return entry;
+    }
+
+    /**
+     * Takes a capture out of the catalog. Its file is left alone.
+     *
+     * @param fileName The capture's file name.
+     * @return False if it wasn't in the catalog.
+     * @throws IOException If it couldn't be written to the log. It's still in
+     * the catalog then.
+     */
+    public synchronized boolean remove(String fileName) throws IOException {
+        checkOpen();
+
+        if (!byName.containsKey(fileName)) {
+            return false;
+        }
+
+        append(encodeRemove(fileName));
+        unindex(fileName);
+        return true;
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        long start = end;
+
+        try {
+            while (record.hasRemaining()) {
+                end += channel.write(record, end);
+            }
+        } catch (IOException ioe) {
+            //Don't leave half a record for the next one to be appended to.
+            end = start;
+
+            try {
+                channel.truncate(start);
+            } catch (IOException truncateProblem) {
+                //The next open drops it instead.
+            }
+
+            throw ioe;
+        }
+    }
+
+    /**
+     * Records what the script said about a capture.
+     *
+     * @param fileName The capture's file name.
+     * @param result What the script said, usually the upload's URL.
+     * @return False if the capture isn't in the catalog.
+     * @throws IOException If it couldn't be written to the log.
+     */
+    public synchronized boolean setResult(String fileName, String result)
+            throws IOException {
+        CatalogEntry entry = byName.get(fileName);
+
+        if (entry == null) {
+            return false;
+        }
+
+        add(entry.withResult(result));
+        return true;
+    }
+
+    private void index(CatalogEntry entry) {
+        CatalogEntry old = byName.put(entry.getFileName(), entry);
+
+        if (old != null) {
+            byTime.remove(old.getTime());
+            unindexPixels(old);
+            staleRecords++;
+        }
+
+        old = byTime.put(entry.getTime(), entry);
+
+        if (old != null && !old.getFileName().equals(entry.getFileName())) {
+            //Only a hand-edited log gets here.
+            byName.remove(old.getFileName());
+            unindexPixels(old);
+            staleRecords++;
+        }
+
+        if (entry.getPixelHash() != null) {
+            CatalogEntry newest = byPixels.get(entry.getPixelHash());
+
+            if (newest == null || newest.getTime() <= entry.getTime()) {
+                byPixels.put(entry.getPixelHash(), entry);
+            }
+        }
+    }
+
+    private void unindex(String fileName) {
+        CatalogEntry old = byName.remove(fileName);
+
+        if (old != null) {
+            byTime.remove(old.getTime());
+            unindexPixels(old);
+            //Both the entry's record and the removal are dead weight now.
+            staleRecords += 2;
+        }
+    }
+
+    private void unindexPixels(CatalogEntry old) {
+        if (old.getPixelHash() != null
+            && byPixels.get(old.getPixelHash()) == old) {
+            byPixels.remove(old.getPixelHash());
+        }
+    }
+
+    /**
+     * @param fileName A file name, relative to the content directory.
+     * @return What's known about it, or null if it's not in the catalog.
+     */
+    public synchronized CatalogEntry get(String fileName) {
+        return byName.get(fileName);
+    }
+
+    /**
+     * @param pixelHash A PixelHash.
+     * @return The newest capture of that picture, or null if there isn't
+     * one.
+     */
+    public synchronized CatalogEntry findByPixels(String pixelHash) {
+        return byPixels.get(pixelHash);
+    }
+
+    /**
+     * @param prefix The start of the file names wanted - screenshots are
+     * named by date, so "2014-03-07" is everything from that day.
+     * @return Every capture whose file name starts with it, by name.
+     */
+    public synchronized List<CatalogEntry> findByPrefix(String prefix) {
+        return new ArrayList<>(byName.subMap(
+                prefix, true, prefix + Character.MAX_VALUE, false).values());
+    }
+
+    /**
+     * @param from The earliest time wanted, microseconds since the epoch.
+     * @param to The time to stop before.
+     * @return Every capture taken in that time, oldest first.
+     */
+    public synchronized List<CatalogEntry> findBetween(long from, long to) {
+        if (to <= from) {
+            return new ArrayList<>();
+        }
+
+        return new ArrayList<>(byTime.subMap(from, to).values());
+    }
+
+    /**
+     * @param count The most captures wanted.
+     * @return The newest captures, newest first.
+     */
+    public synchronized List<CatalogEntry> findLatest(int count) {
+        List<CatalogEntry> latest = new ArrayList<>(
+                Math.min(count, byTime.size()));
+
+        for (CatalogEntry entry : byTime.descendingMap().values()) {
+            if (latest.size() == count) {
+                break;
+            }
+
+            latest.add(entry);
+        }
+
+        return latest;
+    }
+
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Throws the catalog away and makes it again from the screenshots in the
+     * directory. Anything not in the files themselves (scripts and results)
+     * is lost.
+     *
+     * @throws IOException If the new catalog couldn't be written.
+     */
+    public synchronized void rebuild() throws IOException {
+        System.out.println("Rebuilding the capture catalog for " + directory
+                           + "...");
+
+        List<CatalogEntry> found = scan();
+
+        byTime.clear();
+        byName.clear();
+        byPixels.clear();
+
+        for (CatalogEntry entry : found) {
+            long time = entry.getTime();
+
+            while (byTime.containsKey(time)) {
+                time++;
+            }
+
+            index(entry.withTime(time));
+        }
+
+        writeSnapshot();
+        System.out.println("Catalogued " + byName.size() + " captures.");
+    }
+
+    /**
+     * Rewrites the log with just the current entries.
+     */
+    private void compact() throws IOException {
+        System.out.println("Compacting the capture catalog (" + staleRecords
+                           + " outdated records)...");
+        writeSnapshot();
+    }
+
+    /**
+     * Replaces the log with one holding exactly what's in the indexes. It's
+     * written beside the old one and moved over it, so a crash part way
+     * leaves the old one alone.
+     */
+    private void writeSnapshot() throws IOException {
+        Path temp = directory.resolve(CATALOG_FILE_NAME + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            for (CatalogEntry entry : byTime.values()) {
+                out.write(encode(entry));
+            }
+        }
+
+        if (channel != null) {
+            channel.close();
+        }
+
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        end = channel.size();
+        staleRecords = 0;
+        fileVersion = VERSION;
+    }
+
+    /**
+     * Catalogues the screenshots in the directory from scratch.
+     */
+    private List<CatalogEntry> scan() throws IOException {
+        List<CatalogEntry> found = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream =
+                Files.newDirectoryStream(directory, "*.png")) {
+            for (Path capture : stream) {
+                try {
+                    CatalogEntry entry = describe(capture);
+
+                    if (entry != null) {
+                        found.add(entry);
+                    }
+                } catch (IOException ioe) {
+                    System.err.println("Skipping " + capture + ": "
+                                       + ioe.getMessage());
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Works out what can be known about a capture from the file alone. Only
+     * the image header is read, not the pixels.
+     *
+     * @return The entry, or null if the file isn't an image.
+     */
+    private static CatalogEntry describe(Path capture) throws IOException {
+        int width, height;
+
+        try (ImageInputStream iis = ImageIO.createImageInputStream(
+                capture.toFile())) {
+            if (iis == null) {
+                return null;
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+
+            try {
+                reader.setInput(iis, true, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        String name = capture.getFileName().toString();
+        long millis = Files.getLastModifiedTime(capture).toMillis();
+
+        SimpleDateFormat format = new SimpleDateFormat(FILE_NAME_FORMAT);
+        format.setLenient(false);
+        Date named = format.parse(name, new ParsePosition(0));
+
+        if (named != null) {
+            millis = named.getTime();
+        }
+
+        return new CatalogEntry(TimeUnit.MILLISECONDS.toMicros(millis), name,
+                                width, height, null, null, hashFile(capture),
+                                null, -1, -1);
+    }
+
+    private static byte[] encode(CatalogEntry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            //Room for the length.
+            out.writeInt(0);
+
+            out.writeByte(RECORD_PUT);
+            out.writeLong(entry.getTime());
+            out.writeUTF(entry.getFileName());
+            out.writeInt(entry.getWidth());
+            out.writeInt(entry.getHeight());
+            writeString(out, entry.getScript());
+            writeString(out, entry.getResult());
+            writeString(out, entry.getFileHash());
+            writeString(out, entry.getPixelHash());
+            out.writeLong(entry.getThumbnailOffset());
+            out.writeInt(entry.getCompression());
+            out.writeInt(0);
+        } catch (IOException ioe) {
+            //Can't happen writing to memory, but writeUTF can refuse
+            //strings over 64K.
+            throw new IllegalArgumentException("Can't store entry: "
+                                               + ioe.getMessage(), ioe);
+        }
+
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encodeRemove(String fileName) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(RECORD_REMOVE);
+            out.writeUTF(fileName);
+            out.writeInt(0);
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException("Can't store removal: "
+                                               + ioe.getMessage(), ioe);
+        }
+
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Fills in the length and CRC of a record written with room for them.
+     */
+    private static byte[] frame(byte[] bytes) {
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        int length = record.capacity() - 8;
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+
+        record.putInt(0, length);
+        record.putInt(4 + length, (int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Puts a record from the log into the indexes.
+     *
+     * @param version The version of the log the record's from.
+     * @return False if it's not a record this version understands.
+     */
+    private boolean apply(byte[] body, int version) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(body));
+
+        try {
+            switch (in.readByte()) {
+                case RECORD_PUT:
+                    index(new CatalogEntry(
+                            in.readLong(), in.readUTF(), in.readInt(),
+                            in.readInt(), readString(in), readString(in),
+                            readString(in),
+                            version >= 2 ? readString(in) : null,
+                            in.readLong(), version >= 3 ? in.readInt() : -1));
+                    return true;
+
+                case RECORD_REMOVE:
+                    unindex(in.readUTF());
+                    return true;
+
+                default:
+                    return false;
+            }
+        } catch (EOFException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * @return A fresh digest of the kind catalog file hashes use.
+     */
+    public static MessageDigest newFileDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            //Every JVM has to have SHA-1.
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * @return The file's hash, the way the catalog stores it.
+     */
+    public static String hashFile(Path path) throws IOException {
+        MessageDigest digest = newFileDigest();
+        byte[] buffer = new byte[64 * 1024];
+
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return The bytes as lower case hex, the way the catalog stores hashes.
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+
+    private void checkOpen() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            throw new IOException("Catalog is closed.");
+        }
+    }
+
+    /**
+     * Closes the log. Queries still work afterwards, adding doesn't.
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                System.err.println("Problem closing " + file + ": "
+                                   + ioe.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ Project: dbx-capture
+ File: CatalogEntry.java (com.dividebyxero.dbxcapture.catalog)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.catalog;
+
+/**
+ * What the CaptureCatalog knows about one saved capture. Immutable - changes
+ * (like the upload result coming in) make a new entry that replaces the old
+ * one.
+ *
+ * @author Alex Kersten
+ */
+public class CatalogEntry {
+
+    //Microseconds since the epoch. Unique within a catalog.
+    private final long time;
+
+    //Relative to the content directory.
+    private final String fileName;
+
+    private final int width, height;
+
+    //The scripts.cfg command line or plugin the capture was handed to, null
+    //if it isn't known.
+    private final String script;
+
+    //Whatever the script reported back (usually the upload's URL), null if
+    //it hasn't or won't.
+    private final String result;
+
+    //Hex SHA-1 of the file, null if it isn't known.
+    private final String fileHash;
+
+    //PixelHash of the image, null if it isn't known. Captures with the same
+    //one are the same picture.
+    private final String pixelHash;
+
+    //Where the capture's thumbnail is, or -1 if it hasn't got one.
+    private final long thumbnailOffset;
+
+    //The PNG compression level the file was written at, or -1 if it isn't
+    //known.
+    private final int compression;
+
+    public CatalogEntry(long time, String fileName, int width, int height,
+                        String script, String result, String fileHash,
+                        String pixelHash, long thumbnailOffset,
+                        int compression) {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new IllegalArgumentException("Entry needs a file name.");
+        }
+
+        this.time = time;
+        this.fileName = fileName;
+        this.width = width;
+        this.height = height;
+        this.script = script;
+        this.result = result;
+        this.fileHash = fileHash;
+        this.pixelHash = pixelHash;
+        this.thumbnailOffset = thumbnailOffset;
+        this.compression = compression;
+    }
+
+    /**
+     * @return A copy of this entry with a different time.
+     */
+    public CatalogEntry withTime(long newTime) {
+        return new CatalogEntry(newTime, fileName, width, height, script,
+                                result, fileHash, pixelHash,
+                                thumbnailOffset, compression);
+    }
+
+    /**
+     * @return A copy of this entry with the script's result filled in.
+     */
+    public CatalogEntry withResult(String newResult) {
+        return new CatalogEntry(time, fileName, width, height, script,
+                                newResult, fileHash, pixelHash,
+                                thumbnailOffset, compression);
+    }
+
+    /**
+     * @return A copy of this entry pointing at a different thumbnail.
+     */
+    public CatalogEntry withThumbnailOffset(long newOffset) {
+        return new CatalogEntry(time, fileName, width, height, script,
+                                result, fileHash, pixelHash, newOffset,
+                                compression);
+    }
+
+    /**
+     * @return A copy of this entry for its file having been rewritten at
+     * another compression level.
+     */
+    public CatalogEntry withCompression(int newCompression,
+                                        String newFileHash) {
+        return new CatalogEntry(time, fileName, width, height, script,
+                                result, newFileHash, pixelHash,
+                                thumbnailOffset, newCompression);
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public String getPixelHash() {
+        return pixelHash;
+    }
+
+    public long getThumbnailOffset() {
+        return thumbnailOffset;
+    }
+
+    public int getCompression() {
+        return compression;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (" + width + "x" + height + ")"
+               + (result == null ? "" : " -> " + result);
+    }
+}
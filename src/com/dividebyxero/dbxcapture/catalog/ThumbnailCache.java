@@ -0,0 +1,185 @@
+/*
+ Project: dbx-capture
+ File: ThumbnailCache.java (com.dividebyxero.dbxcapture.catalog)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.catalog;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Thumbnails that have been pulled out of the ThumbnailPack lately, so
+ * scrolling back and forth over the same captures doesn't inflate them again
+ * every time. Least recently used ones are dropped once they add up to more
+ * than the byte budget. Keyed by the capture's file name rather than pack
+ * offset, since compacting the pack moves thumbnails.
+ *
+ * Captures catalogued without a thumbnail (because the catalog was rebuilt)
+ * get one made from their file the first time they're asked for with
+ * getOrCreate(). That's the only time a full capture is ever decoded.
+ *
+ * Thread safe.
+ *
+ * @author Alex Kersten
+ */
+public class ThumbnailCache {
+
+    private final ThumbnailPack pack;
+
+    private final long budget;
+
+    //Access ordered, so iteration starts at the least recently used.
+    private final LinkedHashMap<String, BufferedImage> thumbnails =
+                  new LinkedHashMap<>(64, 0.75f, true);
+
+    private long bytes;
+
+    private long hits, misses;
+
+    /**
+     * @param pack Where thumbnails come from.
+     * @param budget How many bytes of thumbnails to keep.
+     */
+    public ThumbnailCache(ThumbnailPack pack, long budget) {
+        this.pack = pack;
+        this.budget = budget;
+    }
+
+    /**
+     * Gets a capture's thumbnail. Never decodes the capture itself, so it's
+     * cheap enough to call while painting.
+     *
+     * @param entry The capture.
+     * @return Its thumbnail, or null if it hasn't got one.
+     */
+    public BufferedImage get(CatalogEntry entry) {
+        long offset = entry.getThumbnailOffset();
+
+        if (offset < 0) {
+            return null;
+        }
+
+        synchronized (this) {
+            BufferedImage thumbnail = thumbnails.get(entry.getFileName());
+
+            if (thumbnail != null) {
+                hits++;
+                return thumbnail;
+            }
+
+            misses++;
+        }
+
+        BufferedImage thumbnail = pack.read(offset, entry.getFileName());
+
+        if (thumbnail != null) {
+            put(entry.getFileName(), thumbnail);
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Gets a capture's thumbnail, making one from the capture if it hasn't
+     * got one and recording it in the catalog. Can be slow - keep it off the
+     * event dispatch thread.
+     *
+     * @param catalog The catalog the capture's in.
+     * @param entry The capture.
+     * @return Its thumbnail, or null if its file couldn't be read.
+     */
+    public BufferedImage getOrCreate(CaptureCatalog catalog,
+                                     CatalogEntry entry) {
+        BufferedImage thumbnail = get(entry);
+
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        Path capture = catalog.getDirectory().resolve(entry.getFileName());
+
+        try {
+            BufferedImage image = ImageIO.read(capture.toFile());
+
+            if (image == null) {
+                return null;
+            }
+
+            thumbnail = ThumbnailPack.createThumbnail(image);
+            long offset = store(entry.getFileName(), thumbnail);
+
+            if (offset >= 0) {
+                catalog.add(entry.withThumbnailOffset(offset));
+            }
+        } catch (IOException ioe) {
+            System.err.println("Couldn't make a thumbnail of " + capture
+                               + ": " + ioe.getMessage());
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Adds a new thumbnail to the pack, and keeps it here too since new
+     * captures are the likeliest to be looked at.
+     *
+     * @param fileName The name of the capture it's a thumbnail of.
+     * @param thumbnail The thumbnail, from ThumbnailPack.createThumbnail().
+     * @return Its offset in the pack for the catalog, or -1 if the pack is
+     * full.
+     * @throws IOException If it couldn't be written.
+     */
+    public long store(String fileName, BufferedImage thumbnail)
+            throws IOException {
+        long offset = pack.append(fileName, thumbnail);
+
+        if (offset >= 0) {
+            put(fileName, thumbnail);
+        }
+
+        return offset;
+    }
+
+    private synchronized void put(String fileName, BufferedImage thumbnail) {
+        BufferedImage old = thumbnails.put(fileName, thumbnail);
+
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+
+        bytes += sizeOf(thumbnail);
+
+        Iterator<Map.Entry<String, BufferedImage>> itr =
+                thumbnails.entrySet().iterator();
+
+        //Always keep the newest, however big.
+        while (bytes > budget && thumbnails.size() > 1) {
+            bytes -= sizeOf(itr.next().getValue());
+            itr.remove();
+        }
+    }
+
+    private static long sizeOf(BufferedImage thumbnail) {
+        //TYPE_INT_RGB.
+        return 4L * thumbnail.getWidth() * thumbnail.getHeight();
+    }
+
+    public ThumbnailPack getPack() {
+        return pack;
+    }
+
+    /**
+     * @return How much the cache is holding for log output.
+     */
+    public synchronized String getStats() {
+        return thumbnails.size() + " thumbnails, " + bytes / 1024 + " of "
+               + budget / 1024 + " KB, " + hits + " hits, " + misses
+               + " misses";
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ Project: dbx-capture
+ File: ThumbnailPack.java (com.dividebyxero.dbxcapture.catalog)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.catalog;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Every capture's thumbnail, in one file, so showing past captures never
+ * means decoding their PNGs. Thumbnails are made when the capture is saved
+ * (fitted into THUMBNAIL_WIDTH x THUMBNAIL_HEIGHT by averaging, which is a lot
+ * kinder to screen text than just sampling) and appended to the pack as
+ * deflated RGB. The catalog entry keeps the offset it went to.
+ *
+ * The pack is memory mapped for reading, so pulling out a thumbnail is an
+ * inflate straight from the page cache with no read calls, and opening the
+ * pack costs nothing however big it is. The mapping grows (is remade) as
+ * thumbnails are appended.
+ *
+ * Each record carries the name of the file it's a thumbnail of, and reads
+ * check it, so an offset from a catalog that's out of step with the pack
+ * (the pack was deleted, say) just finds nothing rather than the wrong
+ * picture.
+ *
+ * Thumbnails of captures that have been deleted stay in the pack until
+ * compact() is run (retention passes run it), which slides the ones the
+ * catalog still points at down over the gaps and moves the entries with them.
+ * There's only one pack, whichever content directory is in use, so compacting
+ * drops the thumbnails of other directories' captures - they're made again
+ * when they're next looked at.
+ *
+ * Thread safe.
+ *
+ * @author Alex Kersten
+ */
+public class ThumbnailPack {
+
+    public static final int THUMBNAIL_WIDTH = 128;
+
+    public static final int THUMBNAIL_HEIGHT = 96;
+
+    //"DBXT"
+    private static final int MAGIC = 0x44425854;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    //Starts every record - "THMB".
+    private static final int RECORD_MAGIC = 0x54484d42;
+
+    //Magic and length.
+    private static final int RECORD_PREFIX_SIZE = 8;
+
+    //A record that claims to be bigger than this is garbage - a whole
+    //thumbnail stored uncompressed with a long name comes nowhere near it.
+    private static final int MAX_RECORD_SIZE =
+                             THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT * 3 + 64 * 1024;
+
+    //Compacting isn't worth it until this much of the pack is dead, and at
+    //least as much as is still alive.
+    private static final long MIN_COMPACT_WASTE = 1024 * 1024;
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer map;
+
+    //Where the next thumbnail goes.
+    private long end;
+
+    private ThumbnailPack(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a pack, making it if it doesn't exist. One that isn't a pack is
+     * started over.
+     *
+     * @param file The pack file.
+     * @return The pack.
+     * @throws IOException If it couldn't be opened.
+     */
+    public static ThumbnailPack open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+
+        ThumbnailPack pack = new ThumbnailPack(file, channel);
+
+        try {
+            pack.checkHeader();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        return pack;
+    }
+
+    private void checkHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC
+            || header.getInt() != VERSION) {
+            if (channel.size() > 0) {
+                System.err.println(file + " isn't a thumbnail pack this "
+                                   + "version can read, starting it over.");
+            }
+
+            channel.truncate(0);
+
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).flip();
+
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+
+        end = channel.size();
+    }
+
+    /**
+     * Stores a thumbnail.
+     *
+     * @param fileName The name of the capture it's a thumbnail of.
+     * @param thumbnail The thumbnail, from createThumbnail().
+     * @return Its offset in the pack, or -1 if the pack is full.
+     * @throws IOException If it couldn't be written.
+     */
+    public synchronized long append(String fileName, BufferedImage thumbnail)
+            throws IOException {
+        int width = thumbnail.getWidth();
+        int height = thumbnail.getHeight();
+
+        if (width > THUMBNAIL_WIDTH || height > THUMBNAIL_HEIGHT) {
+            throw new IllegalArgumentException("Thumbnail is " + width + "x"
+                                               + height + ".");
+        }
+
+        int[] pixels = new int[width * height];
+        thumbnail.getRGB(0, 0, width, height, pixels, 0, width);
+
+        byte[] rgb = new byte[pixels.length * 3];
+        for (int i = 0, j = 0; i < pixels.length; i++) {
+            rgb[j++] = (byte) (pixels[i] >> 16);
+            rgb[j++] = (byte) (pixels[i] >> 8);
+            rgb[j++] = (byte) pixels[i];
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(rgb.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(RECORD_MAGIC);
+        //Room for the length.
+        out.writeInt(0);
+        out.writeUTF(fileName);
+        out.writeShort(width);
+        out.writeShort(height);
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(rgb);
+        deflater.finish();
+
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(4, record.capacity() - RECORD_PREFIX_SIZE);
+
+        //Mappings can't go past 2GB, and the pack has to stay mappable.
+        if (end + record.capacity() > Integer.MAX_VALUE) {
+            return -1;
+        }
+
+        long offset = end;
+
+        try {
+            while (record.hasRemaining()) {
+                end += channel.write(record, end);
+            }
+        } catch (IOException ioe) {
+            //The next thumbnail goes over whatever got written.
+            end = offset;
+            throw ioe;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Reads a thumbnail back.
+     *
+     * @param offset Where it is, from append().
+     * @param fileName The name of the capture it should be a thumbnail of.
+     * @return The thumbnail, or null if there isn't one for that file there.
+     */
+    public BufferedImage read(long offset, String fileName) {
+        if (offset < HEADER_SIZE) {
+            return null;
+        }
+
+        byte[] record;
+
+        try {
+            record = getRecord(offset);
+        } catch (IOException ioe) {
+            System.err.println("Problem reading " + file + ": "
+                               + ioe.getMessage());
+            return null;
+        }
+
+        if (record == null) {
+            return null;
+        }
+
+        try {
+            return decode(ByteBuffer.wrap(record), fileName);
+        } catch (DataFormatException | RuntimeException e) {
+            //Torn or overwritten.
+            return null;
+        }
+    }
+
+    /**
+     * @return A copy of the record at the offset, with the magic and length
+     * checked and stripped, or null if there isn't one. It's a copy so that
+     * compacting can't move the record while it's being decoded.
+     */
+    private synchronized byte[] getRecord(long offset) throws IOException {
+        if (offset + RECORD_PREFIX_SIZE > end) {
+            return null;
+        }
+
+        if (map == null || offset + RECORD_PREFIX_SIZE > map.capacity()) {
+            remap();
+        }
+
+        ByteBuffer record = map.duplicate();
+        record.position((int) offset);
+
+        if (record.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+
+        int length = record.getInt();
+
+        if (length <= 0 || length > MAX_RECORD_SIZE
+            || record.position() + (long) length > end) {
+            return null;
+        }
+
+        if (record.position() + length > record.limit()) {
+            remap();
+            record = map.duplicate();
+            record.position((int) offset + RECORD_PREFIX_SIZE);
+        }
+
+        byte[] copy = new byte[length];
+        record.get(copy);
+        return copy;
+    }
+
+    private void remap() throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+    }
+
+    /**
+     * Rewrites the pack with just the thumbnails the catalog's entries point
+     * at, in the same order, and points the entries at where theirs went. Does
+     * nothing unless at least MIN_COMPACT_WASTE bytes, and half the pack, are
+     * thumbnails nothing points at.
+     *
+     * A thumbnail appended while this runs, but not yet in the catalog, can
+     * be lost; so can every thumbnail if it's interrupted. Their captures
+     * just get new ones made the next time they're looked at, the same as
+     * after a rebuild.
+     *
+     * @param catalog The catalog of the captures whose thumbnails to keep.
+     * @return How many bytes it got back.
+     * @throws IOException If the pack couldn't be rewritten.
+     */
+    public synchronized long compact(CaptureCatalog catalog)
+            throws IOException {
+        List<CatalogEntry> live = new ArrayList<>();
+        long liveBytes = 0;
+
+        for (CatalogEntry entry : catalog.findBetween(Long.MIN_VALUE,
+                                                      Long.MAX_VALUE)) {
+            long offset = entry.getThumbnailOffset();
+
+            if (offset < HEADER_SIZE) {
+                continue;
+            }
+
+            byte[] record = getRecord(offset);
+
+            if (record != null && entry.getFileName().equals(
+                    readName(ByteBuffer.wrap(record)))) {
+                live.add(entry);
+                liveBytes += RECORD_PREFIX_SIZE + record.length;
+            }
+        }
+
+        long waste = end - HEADER_SIZE - liveBytes;
+
+        if (waste < MIN_COMPACT_WASTE || waste < liveBytes) {
+            return 0;
+        }
+
+        //Each record only ever moves down, so going up from the bottom never
+        //writes over one that hasn't been moved yet.
+        Collections.sort(live, new Comparator<CatalogEntry>() {
+
+            @Override
+            public int compare(CatalogEntry a, CatalogEntry b) {
+                return Long.compare(a.getThumbnailOffset(),
+                                    b.getThumbnailOffset());
+            }
+        });
+
+        long oldEnd = end;
+        long position = HEADER_SIZE;
+        long[] offsets = new long[live.size()];
+
+        for (int i = 0; i < offsets.length; i++) {
+            byte[] body = getRecord(live.get(i).getThumbnailOffset());
+            ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX_SIZE
+                                                    + body.length);
+            record.putInt(RECORD_MAGIC).putInt(body.length).put(body).flip();
+
+            while (record.hasRemaining()) {
+                channel.write(record, position + record.position());
+            }
+
+            offsets[i] = position;
+            position += record.capacity();
+        }
+
+        end = position;
+        map = null;
+
+        try {
+            channel.truncate(end);
+        } catch (IOException ioe) {
+            //Windows won't while the old mapping's still about. The space is
+            //used by the next thumbnails anyway.
+            System.err.println("Couldn't shrink " + file + ": "
+                               + ioe.getMessage());
+        }
+
+        for (int i = 0; i < offsets.length; i++) {
+            CatalogEntry entry = live.get(i);
+            CatalogEntry current = catalog.get(entry.getFileName());
+
+            //Unless it's gone or had its thumbnail remade meanwhile.
+            if (offsets[i] != entry.getThumbnailOffset() && current != null
+                && current.getThumbnailOffset()
+                   == entry.getThumbnailOffset()) {
+                catalog.add(current.withThumbnailOffset(offsets[i]));
+            }
+        }
+
+        return oldEnd - end;
+    }
+
+    /**
+     * @return The name of the capture a record's a thumbnail of, leaving the
+     * record just after it.
+     */
+    private static String readName(ByteBuffer record) {
+        int nameLength = record.getShort() & 0xFFFF;
+        byte[] name = new byte[nameLength];
+        record.get(name);
+
+        //Only plain names are ever written, so modified UTF-8 and UTF-8 are
+        //the same thing here.
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static BufferedImage decode(ByteBuffer record, String fileName)
+            throws DataFormatException {
+        if (!fileName.equals(readName(record))) {
+            return null;
+        }
+
+        int width = record.getShort();
+        int height = record.getShort();
+
+        if (width <= 0 || height <= 0 || width > THUMBNAIL_WIDTH
+            || height > THUMBNAIL_HEIGHT) {
+            return null;
+        }
+
+        byte[] compressed = new byte[record.remaining()];
+        record.get(compressed);
+
+        byte[] rgb = new byte[width * height * 3];
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(compressed);
+
+            if (inflater.inflate(rgb) != rgb.length || !inflater.finished()) {
+                return null;
+            }
+        } finally {
+            inflater.end();
+        }
+
+        BufferedImage thumbnail = new BufferedImage(
+                width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) thumbnail.getRaster().
+                getDataBuffer()).getData();
+
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            pixels[i] = (rgb[j] & 0xFF) << 16 | (rgb[j + 1] & 0xFF) << 8
+                        | (rgb[j + 2] & 0xFF);
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Shrinks an image to fit in THUMBNAIL_WIDTH x THUMBNAIL_HEIGHT, keeping
+     * its shape. Every thumbnail pixel is the average of the block of image
+     * pixels it covers. Images that already fit are just copied.
+     *
+     * @param image The image.
+     * @return The thumbnail.
+     */
+    public static BufferedImage createThumbnail(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        double fit = Math.min(1, Math.min((double) THUMBNAIL_WIDTH / width,
+                                          (double) THUMBNAIL_HEIGHT / height));
+        int outWidth = Math.max(1, (int) Math.round(width * fit));
+        int outHeight = Math.max(1, (int) Math.round(height * fit));
+
+        BufferedImage thumbnail = new BufferedImage(
+                outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) thumbnail.getRaster().getDataBuffer()).
+                getData();
+
+        //Which thumbnail column each image column adds to.
+        int[] column = new int[width];
+        for (int x = 0; x < width; x++) {
+            column[x] = (int) ((long) x * outWidth / width);
+        }
+
+        long[] red = new long[outWidth];
+        long[] green = new long[outWidth];
+        long[] blue = new long[outWidth];
+        int[] counts = new int[outWidth];
+
+        int[] row = new int[width];
+        int outRow = 0;
+
+        for (int y = 0; y < height; y++) {
+            getRow(image, y, row);
+
+            for (int x = 0; x < width; x++) {
+                int c = column[x];
+                int p = row[x];
+                red[c] += (p >> 16) & 0xFF;
+                green[c] += (p >> 8) & 0xFF;
+                blue[c] += p & 0xFF;
+                counts[c]++;
+            }
+
+            int nextOutRow = (int) ((long) (y + 1) * outHeight / height);
+
+            if (nextOutRow != outRow || y == height - 1) {
+                for (int c = 0; c < outWidth; c++) {
+                    int n = Math.max(counts[c], 1);
+                    out[outRow * outWidth + c] =
+                    (int) (red[c] / n) << 16 | (int) (green[c] / n) << 8
+                    | (int) (blue[c] / n);
+
+                    red[c] = green[c] = blue[c] = counts[c] = 0;
+                }
+
+                outRow = nextOutRow;
+            }
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Reads one row of an image as xRGB. The image types captures come in
+     * are read straight out of the raster, which is far quicker than
+     * getRGB().
+     */
+    private static void getRow(BufferedImage image, int y, int[] row) {
+        int type = image.getType();
+
+        if (type == BufferedImage.TYPE_INT_RGB
+            || type == BufferedImage.TYPE_INT_ARGB) {
+            image.getRaster().getDataElements(0, y, row.length, 1, row);
+        } else {
+            image.getRGB(0, y, row.length, 1, row, 0, row.length);
+        }
+    }
+
+    /**
+     * @return How big the pack is, in bytes.
+     */
+    public synchronized long getSize() {
+        return end;
+    }
+
+    public synchronized void close() {
+        map = null;
+
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            System.err.println("Problem closing " + file + ": "
+                               + ioe.getMessage());
+        }
+    }
+}
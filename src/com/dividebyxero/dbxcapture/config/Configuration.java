@@ -6,23 +6,62 @@
 package com.dividebyxero.dbxcapture.config;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
 
 /**
  * This class will allow us to easily save program settings by writing/reading
  * key-value pairs to/from disk.
  *
  * Setting names are not case sensitive. A setting query will return null if it
- * is not set.
+ * is not set. Names follow a prefix convention for their type - b for
+ * booleans, i for ints, s for strings (and paths) - and the typed getters
+ * parse the value once and cache the result.
+ *
+ * Reads never lock: the settings live in a copy-on-write map that writers
+ * replace wholesale, so capture threads can read freely while the settings
+ * frame is saving changes. Writers, saves and reloads all go through one lock,
+ * so a reload can't slip in between a batch of changes and the save that
+ * writes them out, and put back what was on disk before.
+ *
+ * Anything that needs to react to a setting changing can register a
+ * ConfigurationListener, which hears about changes made through setSetting()
+ * and removeField() as well as those picked up by reloadSettings().
  *
  * @author Alex Kersten
  */
 public class Configuration {
 
-    private ArrayList<KeyValuePair> settings = new ArrayList<>();
+    //Keyed by the lower-cased setting name, in the order settings were first
+    //added (so the file on disk keeps a stable order). Never modified once
+    //published - writers copy it, change the copy and swap it in.
+    private volatile Map<String, KeyValuePair> settings =
+                                                Collections.emptyMap();
+
+    //Serializes writers so concurrent copy-and-swaps don't lose updates, and
+    //saves and reloads against them.
+    private final Object writeLock = new Object();
+
+    private static final short FILE_VERSION = 2;
 
-    private static final short FILE_VERSION = 1;
+    private final List<ConfigurationListener> listeners =
+                                              new CopyOnWriteArrayList<>();
 
     public Configuration() {
     }
@@ -31,124 +70,461 @@ public class Configuration {
         this.loadSettings(f);
     }
 
+    private static String normalize(String settingKey) {
+        return settingKey.toLowerCase(Locale.ENGLISH);
+    }
+
+    private KeyValuePair getPair(String settingKey) {
+        return settings.get(normalize(settingKey));
+    }
+
     public boolean isSettingSet(String settingKey) {
-        for (KeyValuePair s : settings) {
-            if (s.getKey().equalsIgnoreCase(settingKey)) {
-                return true;
-            }
-        }
-        return false;
+        return getPair(settingKey) != null;
     }
 
     public String getSetting(String settingKey) {
-        for (KeyValuePair s : settings) {
-            if (s.getKey().equalsIgnoreCase(settingKey)) {
-                return s.getValue();
-            }
+        KeyValuePair s = getPair(settingKey);
+        return s == null ? null : s.getValue();
+    }
+
+    /**
+     * @return The setting parsed as an int.
+     * @throws NumberFormatException If the setting isn't set or isn't an
+     * integer.
+     */
+    public int getIntSetting(String settingKey) {
+        KeyValuePair s = getPair(settingKey);
+
+        if (s == null) {
+            throw new NumberFormatException("Setting " + settingKey
+                                            + " is not set.");
         }
 
-        return null;
+        return s.getIntValue();
+    }
+
+    /**
+     * @return True if the setting is set to "true" (ignoring case), false if
+     * it's anything else or not set at all.
+     */
+    public boolean getBooleanSetting(String settingKey) {
+        KeyValuePair s = getPair(settingKey);
+        return s != null && s.getBooleanValue();
+    }
+
+    /**
+     * @return The setting as a path, or null if it isn't set.
+     * @throws java.nio.file.InvalidPathException If it isn't a valid path.
+     */
+    public Path getPathSetting(String settingKey) {
+        KeyValuePair s = getPair(settingKey);
+        return s == null ? null : s.getPathValue();
     }
 
     public void setSetting(String settingKey, String newValue) {
-        for (KeyValuePair s : settings) {
-            if (s.getKey().equalsIgnoreCase(settingKey)) {
-                s.setValue(newValue);
+        KeyValuePair old;
+        KeyValuePair pair;
+
+        synchronized (writeLock) {
+            Map<String, KeyValuePair> copy = new LinkedHashMap<>(settings);
+            String normalized = normalize(settingKey);
+            old = copy.get(normalized);
+
+            if (old != null && Objects.equals(old.getValue(), newValue)) {
                 return;
             }
+
+            //Keep the original capitalization of an existing key.
+            pair = new KeyValuePair(old == null ? settingKey : old.getKey(),
+                                    newValue);
+            copy.put(normalized, pair);
+            settings = copy;
         }
 
-        settings.add(new KeyValuePair(settingKey, newValue));
+        fireSettingChanged(pair.getKey(), old == null ? null : old.getValue(),
+                           newValue);
     }
 
-    public final boolean loadSettings(File f) {
-        settings.clear();
+    /**
+     * Changes a batch of settings together and saves them, all under the write
+     * lock: readers see either none of the changes or all of them, and a
+     * reload can't revert any of them before they're on disk. Listeners hear
+     * about the ones that actually changed afterwards, once the lock is
+     * released.
+     *
+     * @param changes New values, by setting name.
+     * @param f The settings file.
+     * @return True if saved successfully. The changes stay applied either
+     * way.
+     */
+    public boolean setAndSaveSettings(Map<String, String> changes, File f) {
+        //Old value, then new value, for every setting that changed.
+        List<KeyValuePair[]> changed = new ArrayList<>();
+        boolean saved;
+
+        synchronized (writeLock) {
+            Map<String, KeyValuePair> copy = new LinkedHashMap<>(settings);
+
+            for (Map.Entry<String, String> e : changes.entrySet()) {
+                String normalized = normalize(e.getKey());
+                KeyValuePair old = copy.get(normalized);
+
+                if (old != null
+                    && Objects.equals(old.getValue(), e.getValue())) {
+                    continue;
+                }
+
+                KeyValuePair pair = new KeyValuePair(
+                        old == null ? e.getKey() : old.getKey(), e.getValue());
+                copy.put(normalized, pair);
+                changed.add(new KeyValuePair[]{old, pair});
+            }
+
+            settings = copy;
+            saved = saveSettings(f);
+        }
+
+        fireSettingsChanged(changed);
+        return saved;
+    }
+
+    public void addConfigurationListener(ConfigurationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeConfigurationListener(ConfigurationListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireSettingChanged(String key, String oldValue,
+                                    String newValue) {
+        for (ConfigurationListener listener : listeners) {
+            try {
+                listener.settingChanged(key, oldValue, newValue);
+            } catch (RuntimeException re) {
+                System.err.println("Configuration listener failed for " + key
+                                   + ":\n" + re.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tells the listeners about a batch of changes.
+     *
+     * @param changes Old value, then new value, for every setting that
+     * changed. Either can be null.
+     */
+    private void fireSettingsChanged(List<KeyValuePair[]> changes) {
+        for (KeyValuePair[] change : changes) {
+            KeyValuePair named = change[1] == null ? change[0] : change[1];
+            fireSettingChanged(named.getKey(),
+                               change[0] == null ? null : change[0].getValue(),
+                               change[1] == null ? null : change[1].getValue());
+        }
+    }
+
+    /**
+     * Re-reads the settings file after it's been changed on disk, and tells
+     * the listeners about whichever settings actually ended up different.
+     * Unlike loadSettings(), a file that's missing or can't be parsed (maybe
+     * it's still being written) leaves the current settings alone.
+     *
+     * The file is read under the write lock, so a batch from
+     * setAndSaveSettings() is either entirely before the read (and saved in
+     * the file we read) or entirely after it.
+     *
+     * @param f The settings file.
+     * @return False if the file couldn't be loaded.
+     */
+    public boolean reloadSettings(File f) {
+        Configuration fresh = new Configuration();
+
+        //Old value, then new value, for every setting that changed.
+        List<KeyValuePair[]> changes = new ArrayList<>();
+
+        synchronized (writeLock) {
+            if (!fresh.loadSettings(f)) {
+                return false;
+            }
+
+            Map<String, KeyValuePair> current = settings;
+
+            for (Map.Entry<String, KeyValuePair> e : current.entrySet()) {
+                KeyValuePair now = fresh.settings.get(e.getKey());
+                if (now == null || !Objects.equals(now.getValue(),
+                                                   e.getValue().getValue())) {
+                    changes.add(new KeyValuePair[]{e.getValue(), now});
+                }
+            }
+
+            for (Map.Entry<String, KeyValuePair> e :
+                 fresh.settings.entrySet()) {
+                if (!current.containsKey(e.getKey())) {
+                    changes.add(new KeyValuePair[]{null, e.getValue()});
+                }
+            }
+
+            settings = fresh.settings;
+        }
+
+        fireSettingsChanged(changes);
+        return true;
+    }
 
+    /**
+     * Loads settings from a file, replacing whatever was loaded before. The
+     * whole file is parsed from one buffer (memory-mapped where we can), and
+     * the checksum is verified before anything is published. Version 1 files
+     * are read too, and immediately rewritten in the current format.
+     *
+     * @param f The settings file.
+     * @return False if the file doesn't exist or couldn't be parsed, in which
+     * case the settings are left as they were.
+     */
+    public final boolean loadSettings(File f) {
         if (!f.exists()) {
             return false;
         }
 
-        DataInputStream dIn = null;
+        //Built up privately and published in one go, so readers never see a
+        //half-loaded file.
+        Map<String, KeyValuePair> loaded = new LinkedHashMap<>();
         short settingsCount;
         short version;
 
         try {
-            dIn = new DataInputStream(new FileInputStream(f));
+            ByteBuffer buf = readWholeFile(f);
+
             byte[] headerBuffer = new byte[settingsFileHeader.length];
-            dIn.read(headerBuffer);
+            buf.get(headerBuffer);
             if (!Arrays.equals(headerBuffer, settingsFileHeader)) {
                 throw new RuntimeException("File was not a settings file.");
             }
 
-            settingsCount = dIn.readShort();
+            settingsCount = buf.getShort();
 
             if (settingsCount < 0) {
                 throw new RuntimeException("Negative number of settings.");
             }
 
-            version = dIn.readShort();
+            version = buf.getShort();
 
-            if (version != FILE_VERSION) {
+            if (version == FILE_VERSION) {
+                int payloadLength = buf.getInt();
+                int checksum = buf.getInt();
+
+                if (payloadLength != buf.remaining()) {
+                    throw new RuntimeException("Settings file truncated.");
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(buf.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    throw new RuntimeException("Settings file checksum "
+                                               + "mismatch.");
+                }
+
+                for (int i = 0; i < settingsCount; i++) {
+                    String keyData = readString(buf, buf.getShort() & 0xFFFF);
+                    String valueData = readString(buf, buf.getInt());
+                    loaded.put(normalize(keyData),
+                               new KeyValuePair(keyData, valueData));
+                }
+            } else if (version == 1) {
+                //Version 1 was written with DataOutputStream.writeUTF() and had
+                //no checksum.
+                for (int i = 0; i < settingsCount; i++) {
+                    String keyData = readModifiedUTF(buf);
+                    String valueData = readModifiedUTF(buf);
+                    loaded.put(normalize(keyData),
+                               new KeyValuePair(keyData, valueData));
+                }
+            } else {
                 throw new RuntimeException("Settings file version mismatch.\n"
                                            + "\tCurrent version: "
                                            + FILE_VERSION + "\tFile version: "
                                            + version);
             }
 
-
-            for (int i = 0; i < settingsCount; i++) {
-                String keyData = dIn.readUTF();
-                String valueData = dIn.readUTF();
-                setSetting(keyData, valueData);
+            synchronized (writeLock) {
+                settings = loaded;
             }
 
         } catch (IOException | RuntimeException e) {
             System.err.println("Problem loading settings:\n" + e.getMessage());
             return false;
-        } finally {
-            if (dIn != null) {
-                try {
-                    dIn.close();
-                } catch (IOException ex) {
-                    //No consequences
+        }
+
+        if (version != FILE_VERSION) {
+            System.out.println("Migrating settings file to version "
+                               + FILE_VERSION + "...");
+            saveSettings(f);
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the entire file into a buffer in one go. Normally that's a
+     * read-only memory mapping, but Windows won't let us rename over a file
+     * that still has a mapping open (and there's no way to unmap on demand),
+     * so there we just do one bulk read instead.
+     */
+    private static ByteBuffer readWholeFile(File f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(),
+                                                    StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Settings file is too large.");
+            }
+
+            if (!System.getProperty("os.name").toLowerCase(Locale.ENGLISH).
+                    startsWith("win")) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    throw new IOException("Settings file shrank while "
+                                          + "reading.");
                 }
             }
+            buf.flip();
+            return buf;
         }
+    }
 
-        return true;
+    private static String readString(ByteBuffer buf, int length) {
+        if (length < 0 || length > buf.remaining()) {
+            throw new RuntimeException("Bad string length in settings file.");
+        }
+
+        ByteBuffer slice = buf.slice();
+        slice.limit(length);
+        buf.position(buf.position() + length);
+
+        return StandardCharsets.UTF_8.decode(slice).toString();
     }
+
+    /**
+     * Reads a string in the format DataOutputStream.writeUTF() produces
+     * (unsigned short length, then modified UTF-8).
+     */
+    private static String readModifiedUTF(ByteBuffer buf) throws IOException {
+        int length = buf.getShort(buf.position()) & 0xFFFF;
+
+        if (length + 2 > buf.remaining()) {
+            throw new IOException("Bad string length in settings file.");
+        }
+
+        byte[] encoded = new byte[length + 2];
+        buf.get(encoded);
+
+        return DataInputStream.readUTF(
+                new DataInputStream(new ByteArrayInputStream(encoded)));
+    }
+
     private static final byte[] settingsFileHeader = {
         "D".getBytes()[0], "B".getBytes()[0], "X".getBytes()[0],
         "S".getBytes()[0], "F".getBytes()[0], "i".getBytes()[0],
         "l".getBytes()[0], "e".getBytes()[0], 1, 3, 3, 7
     };
 
+    /**
+     * Saves the settings. The file is written to a temporary file next to the
+     * real one, synced to disk and then renamed over it, so a crash at any
+     * point leaves either the old file or the new one - never half of each.
+     *
+     * Format (version 2, big-endian): the 12 byte header, the setting count
+     * and version as shorts, the payload length and CRC-32 as ints, then the
+     * payload - each setting as a short key length, the UTF-8 key, an int
+     * value length and the UTF-8 value.
+     *
+     * @param f The settings file.
+     * @return True if saved successfully.
+     */
     public boolean saveSettings(File f) {
-        if (settings.size() > (Math.pow(2, 16) / 2) - 1) {
+        synchronized (writeLock) {
+            return writeSettings(f, settings);
+        }
+    }
+
+    /**
+     * @param snapshot One snapshot of the settings, used throughout so the
+     * count matches the entries.
+     */
+    private static boolean writeSettings(File f,
+                                         Map<String, KeyValuePair> snapshot) {
+        if (snapshot.size() > (Math.pow(2, 16) / 2) - 1) {
             System.err.println("Couldn't save settings file: "
                     + "settings array too large.");
             
             return false;
         }
 
-        DataOutputStream dOut;
+        Path target = f.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
 
         try {
-            dOut = new DataOutputStream(new FileOutputStream(f));
-            dOut.write(settingsFileHeader);
-            dOut.writeShort(settings.size());
-            dOut.writeShort(FILE_VERSION);
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+
+            for (KeyValuePair s : snapshot.values()) {
+                byte[] key = s.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = s.getValue().getBytes(StandardCharsets.UTF_8);
+
+                if (key.length > 0xFFFF) {
+                    throw new IOException("Setting name too long: "
+                                          + s.getKey());
+                }
+
+                payload.writeShort(key.length);
+                payload.write(key);
+                payload.writeInt(value.length);
+                payload.write(value);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(payloadBytes.toByteArray());
 
-            for (int i = 0; i < settings.size(); i++) {
-                KeyValuePair s = settings.get(i);
-                dOut.writeUTF(s.getKey());
-                dOut.writeUTF(s.getValue());
+            ByteBuffer out = ByteBuffer.allocate(
+                    settingsFileHeader.length + 12 + payloadBytes.size());
+            out.put(settingsFileHeader);
+            out.putShort((short) snapshot.size());
+            out.putShort(FILE_VERSION);
+            out.putInt(payloadBytes.size());
+            out.putInt((int) crc.getValue());
+            out.put(payloadBytes.toByteArray());
+            out.flip();
+
+            try (FileChannel channel = FileChannel.open(
+                    temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+
+                channel.force(true);
             }
 
-            dOut.flush();
-            dOut.close();
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (Exception e) {
             System.err.println("Problem saving settings:\n" + e.getMessage());
+
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ioe) {
+                //Nothing more we can do, it'll get overwritten next time.
+            }
+
             return false;
         }
 
@@ -156,19 +532,31 @@ public class Configuration {
     }
 
     public String[] getFieldList() {
-        String[] t = new String[settings.size()];
-        for (int i = 0; i < t.length; i++) {
-            t[i] = settings.get(i).getKey();
+        Map<String, KeyValuePair> snapshot = settings;
+        String[] t = new String[snapshot.size()];
+        int i = 0;
+        for (KeyValuePair s : snapshot.values()) {
+            t[i++] = s.getKey();
         }
         return t;
     }
 
     public void removeField(String s) {
-        for (int i = 0; i < settings.size(); i++) {
-            if (settings.get(i).getKey().equalsIgnoreCase(s)) {
-                settings.remove(i);
-                break;
+        KeyValuePair old;
+
+        synchronized (writeLock) {
+            String normalized = normalize(s);
+            old = settings.get(normalized);
+
+            if (old == null) {
+                return;
             }
+
+            Map<String, KeyValuePair> copy = new LinkedHashMap<>(settings);
+            copy.remove(normalized);
+            settings = copy;
         }
+
+        fireSettingChanged(old.getKey(), old.getValue(), null);
     }
 }
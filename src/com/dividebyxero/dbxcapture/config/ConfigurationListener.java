@@ -0,0 +1,27 @@
+/*
+ Project: dbx-capture
+ File: ConfigurationListener.java (com.dividebyxero.dbxcapture.config)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.config;
+
+/**
+ * Gets told about every setting that changes value in a Configuration, whether
+ * that's from the settings frame or from the settings file being edited on
+ * disk and reloaded.
+ *
+ * Runs on whatever thread made the change (the Swing thread for the settings
+ * frame, the watcher thread for reloads), so anything touching the GUI needs
+ * to hop over with SwingUtilities.invokeLater().
+ *
+ * @author Alex Kersten
+ */
+public interface ConfigurationListener {
+
+    /**
+     * @param key The setting name, as capitalized in the configuration.
+     * @param oldValue The previous value, or null if it wasn't set.
+     * @param newValue The new value, or null if it was removed.
+     */
+    void settingChanged(String key, String oldValue, String newValue);
+}
@@ -0,0 +1,194 @@
+/*
+ Project: dbx-capture
+ File: ConfigurationWatcher.java (com.dividebyxero.dbxcapture.config)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.config;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the program directory for changes to particular files (settings.cfg,
+ * scripts.cfg) and runs a handler for whichever one changed, so edits made
+ * outside the program take effect without a restart.
+ *
+ * Saving a file usually shows up as a burst of events (create, a few modifies,
+ * or a rename from a temp file), so a file's handler only runs once things
+ * have been quiet for DEBOUNCE_MILLIS. Files nobody registered for - like the
+ * settings.cfg.tmp that Configuration writes before renaming - are ignored.
+ *
+ * Handlers run one at a time on the watcher thread.
+ *
+ * @author Alex Kersten
+ */
+public class ConfigurationWatcher {
+
+    //How long a file has to go without changing before we act on it.
+    public static final long DEBOUNCE_MILLIS = 250;
+
+    private final Path directory;
+
+    private final WatchService watchService;
+
+    //File name (no directory) to what should happen when it changes.
+    private final Map<String, Runnable> handlers = new ConcurrentHashMap<>();
+
+    private final Thread watchThread;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a watcher for a directory. Nothing is watched until start().
+     *
+     * @param directory The directory the files live in.
+     * @throws IOException If the platform can't watch the directory.
+     */
+    public ConfigurationWatcher(Path directory) throws IOException {
+        this.directory = directory;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService,
+                           StandardWatchEventKinds.ENTRY_CREATE,
+                           StandardWatchEventKinds.ENTRY_MODIFY,
+                           StandardWatchEventKinds.ENTRY_DELETE);
+
+        watchThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                watchLoop();
+            }
+        }, "DBXC configuration watcher");
+
+        watchThread.setDaemon(true);
+    }
+
+    /**
+     * Registers (or replaces) what to do when a file in the directory changes.
+     *
+     * @param fileName The name of the file, without any directory.
+     * @param onChange Run on the watcher thread after the file settles down.
+     */
+    public void watch(String fileName, Runnable onChange) {
+        handlers.put(fileName, onChange);
+    }
+
+    public void start() {
+        watchThread.start();
+    }
+
+    /**
+     * Stops watching. Pending changes that haven't settled yet are dropped.
+     */
+    public void stop() {
+        running = false;
+
+        try {
+            watchService.close();
+        } catch (IOException ioe) {
+            System.err.println("Problem closing watch service:\n"
+                               + ioe.getMessage());
+        }
+    }
+
+    private void watchLoop() {
+        //File name to the time (in ms) its handler is due to run.
+        Map<String, Long> pending = new HashMap<>();
+
+        while (running) {
+            WatchKey key;
+
+            try {
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long wait = nextDeadline(pending)
+                                - System.currentTimeMillis();
+                    key = watchService.poll(Math.max(wait, 0),
+                                            TimeUnit.MILLISECONDS);
+                }
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                break;
+            }
+
+            if (key != null) {
+                long due = System.currentTimeMillis() + DEBOUNCE_MILLIS;
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        //Lost track of what happened - recheck everything.
+                        for (String name : handlers.keySet()) {
+                            pending.put(name, due);
+                        }
+                        continue;
+                    }
+
+                    String name = ((Path) event.context()).toString();
+
+                    if (handlers.containsKey(name)) {
+                        pending.put(name, due);
+                    }
+                }
+
+                if (!key.reset()) {
+                    System.err.println("Stopped watching " + directory
+                                       + " (directory went away?)");
+                    break;
+                }
+            }
+
+            runDueHandlers(pending);
+        }
+    }
+
+    private static long nextDeadline(Map<String, Long> pending) {
+        long next = Long.MAX_VALUE;
+
+        for (long due : pending.values()) {
+            next = Math.min(next, due);
+        }
+
+        return next;
+    }
+
+    private void runDueHandlers(Map<String, Long> pending) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> itr = pending.entrySet().iterator();
+
+        while (itr.hasNext()) {
+            Map.Entry<String, Long> entry = itr.next();
+
+            if (entry.getValue() > now) {
+                continue;
+            }
+
+            itr.remove();
+            Runnable handler = handlers.get(entry.getKey());
+
+            if (handler == null || !running) {
+                continue;
+            }
+
+            System.out.println(entry.getKey() + " changed, reloading...");
+
+            try {
+                handler.run();
+            } catch (RuntimeException re) {
+                System.err.println("Problem reloading " + entry.getKey()
+                                   + ":\n" + re.getMessage());
+            }
+        }
+    }
+}
@@ -5,32 +5,89 @@
  */
 package com.dividebyxero.dbxcapture.config;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * Key-Value object for Configuration class.
- * 
+ *
+ * Immutable - changing a setting replaces its pair - which is what lets the
+ * typed values be parsed once and cached here, and lets Configuration hand
+ * pairs to reader threads without locking.
+ *
  * @author Alex Kersten
  */
 class KeyValuePair {
 
-    private String key, value;
+    private final String key, value;
+
+    //Typed views of the value, parsed on first use. Racing threads might both
+    //parse, but they'll store equal immutable results, so no locking needed.
+    private Integer intValue;
+
+    private Boolean booleanValue;
+
+    private Path pathValue;
 
     public String getKey() {
         return key;
     }
 
-    public void setKey(String key) {
-        this.key = key;
-    }
-
     public String getValue() {
         return value;
     }
 
-    public void setValue(String value) {
-        this.value = value;
+    /**
+     * @return The value parsed as an int (for i-prefixed settings).
+     * @throws NumberFormatException If the value isn't an integer.
+     */
+    public int getIntValue() {
+        Integer i = intValue;
+
+        if (i == null) {
+            i = Integer.valueOf(value.trim());
+            intValue = i;
+        }
+
+        return i;
+    }
+
+    /**
+     * @return The value parsed as a boolean (for b-prefixed settings) - true
+     * only if it's "true", ignoring case.
+     */
+    public boolean getBooleanValue() {
+        Boolean b = booleanValue;
+
+        if (b == null) {
+            b = Boolean.valueOf(value.trim());
+            booleanValue = b;
+        }
+
+        return b;
+    }
+
+    /**
+     * @return The value as a filesystem path (for s-prefixed settings holding
+     * a path).
+     * @throws java.nio.file.InvalidPathException If it isn't a valid path.
+     */
+    public Path getPathValue() {
+        Path p = pathValue;
+
+        if (p == null) {
+            p = Paths.get(value);
+            pathValue = p;
+        }
+
+        return p;
     }
 
     public KeyValuePair(String key, String value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Null setting key or value.");
+        }
+
         this.key = key;
         this.value = value;
     }
@@ -0,0 +1,539 @@
+/*
+ Project: dbx-capture
+ File: ParallelPngEncoder.java (com.dividebyxero.dbxcapture.encode)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.encode;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder that splits the image into bands of rows and deflates the bands
+ * in parallel. ImageIO does the whole image on one thread, which is by far the
+ * slowest part of saving a big multi-monitor screenshot.
+ *
+ * The output is a completely standard 8-bit RGB PNG. Each band is compressed
+ * independently as raw deflate data ending on a byte boundary (a sync flush),
+ * so the bands can simply be concatenated into one zlib stream. The zlib
+ * Adler-32 is stitched together from the per-band checksums, and every band
+ * goes into its own IDAT chunk so the chunk CRCs are computed in parallel too.
+ *
+ * Compression levels are the usual Deflater ones. Level 0 stores the data
+ * uncompressed, and FAST (level 1, no filtering) is meant for local-mode saves
+ * where the file just needs to hit the disk quickly. Filtering can also be
+ * turned off at any level: on screen content (large flat areas, text) a high
+ * level without filtering often comes out smaller than adaptive filtering,
+ * but not always, so it's for when there's time to try both.
+ *
+ * @author Alex Kersten
+ */
+public class ParallelPngEncoder {
+
+    //Presets.
+    public static final int STORE = Deflater.NO_COMPRESSION;
+
+    public static final int FAST = Deflater.BEST_SPEED;
+
+    public static final int DEFAULT = 6;
+
+    public static final int BEST = Deflater.BEST_COMPRESSION;
+
+    //Bands smaller than this cost more compression ratio than they gain in
+    //parallelism.
+    private static final int MIN_BAND_ROWS = 16;
+
+    //How many bands to aim for per available thread, so one slow band doesn't
+    //leave the other threads idle at the end.
+    private static final int BANDS_PER_THREAD = 4;
+
+    private static final byte[] PNG_SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+    //PNG row filter types.
+    private static final int FILTER_NONE = 0;
+
+    private static final int FILTER_SUB = 1;
+
+    private static final int FILTER_UP = 2;
+
+    private static final int FILTER_AVERAGE = 3;
+
+    private static final int FILTER_PAETH = 4;
+
+    //Largest prime below 2^16, the Adler-32 modulus.
+    private static final int ADLER_BASE = 65521;
+
+    //Shared by every encoder that isn't given a pool of its own.
+    private static ForkJoinPool sharedPool;
+
+    private final int level;
+
+    private final ForkJoinPool pool;
+
+    private final boolean unfiltered;
+
+    /**
+     * Creates an encoder running on a pool shared with other encoders.
+     *
+     * @param level Deflater compression level, 0-9.
+     */
+    public ParallelPngEncoder(int level) {
+        this(level, getSharedPool());
+    }
+
+    /**
+     * @param level Deflater compression level, 0-9.
+     * @param pool Where to run the band compression.
+     */
+    public ParallelPngEncoder(int level, ForkJoinPool pool) {
+        this(level, pool, false);
+    }
+
+    /**
+     * @param level Deflater compression level, 0-9.
+     * @param pool Where to run the band compression.
+     * @param unfiltered True to leave every row unfiltered, rather than
+     * filtering the way the level normally does.
+     */
+    public ParallelPngEncoder(int level, ForkJoinPool pool,
+                              boolean unfiltered) {
+        if (level < Deflater.NO_COMPRESSION
+            || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Bad compression level: "
+                                               + level);
+        }
+
+        this.level = level;
+        this.pool = pool;
+        this.unfiltered = unfiltered;
+    }
+
+    private static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new ForkJoinPool();
+        }
+
+        return sharedPool;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Encodes an image to a file.
+     */
+    public void write(BufferedImage image, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(file))) {
+            write(image, out);
+        }
+    }
+
+    /**
+     * Encodes an image. Alpha, if there is any, is dropped.
+     *
+     * @param image The image to encode.
+     * @param out Where to write the PNG. Not closed.
+     * @throws IOException If writing fails.
+     */
+    public void write(BufferedImage image, OutputStream out)
+            throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        int threads = Math.max(1, pool.getParallelism());
+        int bandRows = Math.max(MIN_BAND_ROWS,
+                                (height + threads * BANDS_PER_THREAD - 1)
+                                / (threads * BANDS_PER_THREAD));
+
+        List<Callable<Band>> tasks = new ArrayList<>();
+
+        for (int y = 0; y < height; y += bandRows) {
+            tasks.add(new BandTask(image, y, Math.min(height, y + bandRows),
+                                   y + bandRows >= height));
+        }
+
+        List<Band> bands = new ArrayList<>(tasks.size());
+
+        try {
+            for (Future<Band> f : pool.invokeAll(tasks)) {
+                bands.add(f.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding.", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Band compression failed.", ee.getCause());
+        }
+
+        DataOutputStream dOut = new DataOutputStream(out);
+        dOut.write(PNG_SIGNATURE);
+
+        //IHDR: size, 8 bits per channel, truecolor, deflate, adaptive
+        //filtering, no interlace.
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream ihdrOut = new DataOutputStream(ihdr);
+        ihdrOut.writeInt(width);
+        ihdrOut.writeInt(height);
+        ihdrOut.writeByte(8);
+        ihdrOut.writeByte(2);
+        ihdrOut.writeByte(0);
+        ihdrOut.writeByte(0);
+        ihdrOut.writeByte(0);
+        writeChunk(dOut, IHDR, ihdr.toByteArray(), 0, ihdr.size(),
+                   chunkCrc(IHDR, ihdr.toByteArray(), 0, ihdr.size()));
+
+        //zlib header in a chunk of its own, then one chunk per band.
+        byte[] zlibHeader = zlibHeader(level);
+        writeChunk(dOut, IDAT, zlibHeader, 0, zlibHeader.length,
+                   chunkCrc(IDAT, zlibHeader, 0, zlibHeader.length));
+
+        long adler = 1;
+        for (Band band : bands) {
+            if (band.length > 0) {
+                writeChunk(dOut, IDAT, band.data, 0, band.length, band.crc);
+            }
+            adler = combineAdler32(adler, band.adler, band.rawLength);
+        }
+
+        //The zlib trailer is the Adler-32 of all the uncompressed data.
+        byte[] trailer = {
+            (byte) (adler >>> 24), (byte) (adler >>> 16),
+            (byte) (adler >>> 8), (byte) adler
+        };
+        writeChunk(dOut, IDAT, trailer, 0, trailer.length,
+                   chunkCrc(IDAT, trailer, 0, trailer.length));
+
+        writeChunk(dOut, IEND, new byte[0], 0, 0,
+                   chunkCrc(IEND, new byte[0], 0, 0));
+
+        dOut.flush();
+    }
+
+    private static byte[] zlibHeader(int level) {
+        //CMF 0x78 is deflate with a 32K window; FLG carries the level hint and
+        //is picked so (CMF * 256 + FLG) is a multiple of 31.
+        if (level <= Deflater.BEST_SPEED) {
+            return new byte[]{0x78, 0x01};
+        } else if (level < DEFAULT) {
+            return new byte[]{0x78, 0x5E};
+        } else if (level < 8) {
+            return new byte[]{0x78, (byte) 0x9C};
+        }
+
+        return new byte[]{0x78, (byte) 0xDA};
+    }
+
+    private static long chunkCrc(byte[] type, byte[] data, int off,
+                                 int len) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data, off, len);
+        return crc.getValue();
+    }
+
+    private static void writeChunk(DataOutputStream out, byte[] type,
+                                   byte[] data, int off, int len, long crc)
+            throws IOException {
+        out.writeInt(len);
+        out.write(type);
+        out.write(data, off, len);
+        out.writeInt((int) crc);
+    }
+
+    /**
+     * Computes the Adler-32 of two pieces of data concatenated, given the
+     * checksum of each piece and the length of the second. Same as zlib's
+     * adler32_combine().
+     *
+     * @param adler1 Checksum of the first piece.
+     * @param adler2 Checksum of the second piece.
+     * @param len2 Length of the second piece.
+     * @return Checksum of both pieces together.
+     */
+    static long combineAdler32(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF)
+                + ADLER_BASE - rem;
+
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ((long) ADLER_BASE << 1)) {
+            sum2 -= ((long) ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * The compressed result of one band.
+     */
+    private static class Band {
+
+        byte[] data;
+
+        int length;
+
+        //CRC of the IDAT chunk holding this band (type included).
+        long crc;
+
+        //Adler-32 and length of the uncompressed, filtered rows.
+        long adler;
+
+        long rawLength;
+    }
+
+    /**
+     * Filters and compresses the rows [startRow, endRow).
+     */
+    private class BandTask implements Callable<Band> {
+
+        private final BufferedImage image;
+
+        private final int startRow, endRow;
+
+        private final boolean last;
+
+        //Scratch row for trying out filters, only allocated when adaptive
+        //filtering is in use.
+        private byte[] scratch;
+
+        BandTask(BufferedImage image, int startRow, int endRow,
+                 boolean last) {
+            this.image = image;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.last = last;
+        }
+
+        @Override
+        public Band call() {
+            int width = image.getWidth();
+            int rowBytes = width * 3;
+
+            int[] argb = new int[width];
+            byte[] previous = new byte[rowBytes];
+            byte[] current = new byte[rowBytes];
+            byte[] filtered = new byte[(rowBytes + 1) * (endRow - startRow)];
+
+            //Filters look at the row above, which for our first row belongs
+            //to the previous band - just read it again.
+            if (startRow > 0) {
+                readRow(startRow - 1, argb, previous);
+            }
+
+            int o = 0;
+            for (int y = startRow; y < endRow; y++) {
+                readRow(y, argb, current);
+                o = filterRow(current, previous, filtered, o);
+
+                byte[] t = previous;
+                previous = current;
+                current = t;
+            }
+
+            Adler32 adler = new Adler32();
+            adler.update(filtered, 0, filtered.length);
+
+            Band band = new Band();
+            band.adler = adler.getValue();
+            band.rawLength = filtered.length;
+
+            Deflater deflater = new Deflater(level, true);
+            deflater.setInput(filtered);
+
+            ByteArrayOutputStream compressed =
+                                  new ByteArrayOutputStream(
+                    Math.max(64, filtered.length / 4));
+            byte[] buf = new byte[64 * 1024];
+
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    compressed.write(buf, 0, n);
+                }
+            } else {
+                //A sync flush ends the band on a byte boundary without marking
+                //the end of the stream, so the next band can follow directly.
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length,
+                                         Deflater.SYNC_FLUSH);
+                    compressed.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+
+            deflater.end();
+
+            band.data = compressed.toByteArray();
+            band.length = band.data.length;
+            band.crc = chunkCrc(IDAT, band.data, 0, band.length);
+
+            return band;
+        }
+
+        /**
+         * Reads one row of the image as packed R, G, B bytes.
+         */
+        private void readRow(int y, int[] argb, byte[] out) {
+            int width = image.getWidth();
+            int[] src;
+            int off;
+
+            if ((image.getType() == BufferedImage.TYPE_INT_RGB
+                 || image.getType() == BufferedImage.TYPE_INT_ARGB)
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && image.getRaster().getSampleModel()
+                   instanceof SinglePixelPackedSampleModel
+                && image.getRaster().getParent() == null) {
+                //Straight out of the backing array, no copying.
+                src = ((DataBufferInt) image.getRaster().getDataBuffer()).
+                        getData();
+                off = y * ((SinglePixelPackedSampleModel) image.getRaster().
+                        getSampleModel()).getScanlineStride();
+            } else {
+                image.getRGB(0, y, width, 1, argb, 0, width);
+                src = argb;
+                off = 0;
+            }
+
+            for (int x = 0, o = 0; x < width; x++) {
+                int p = src[off + x];
+                out[o++] = (byte) (p >> 16);
+                out[o++] = (byte) (p >> 8);
+                out[o++] = (byte) p;
+            }
+        }
+
+        /**
+         * Writes the filter type byte and the filtered row into out.
+         *
+         * @return The offset just past what was written.
+         */
+        private int filterRow(byte[] row, byte[] prior, byte[] out, int o) {
+            int type;
+
+            if (unfiltered || level <= Deflater.BEST_SPEED) {
+                type = FILTER_NONE;
+            } else if (level < 7) {
+                type = FILTER_UP;
+            } else {
+                type = chooseFilter(row, prior);
+            }
+
+            out[o++] = (byte) type;
+            applyFilter(type, row, prior, out, o);
+            return o + row.length;
+        }
+
+        /**
+         * The usual heuristic: pick whichever filter gives the smallest sum of
+         * absolute (signed) output bytes.
+         */
+        private int chooseFilter(byte[] row, byte[] prior) {
+            if (scratch == null) {
+                scratch = new byte[row.length];
+            }
+
+            int best = FILTER_NONE;
+            long bestSum = Long.MAX_VALUE;
+
+            for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+                applyFilter(type, row, prior, scratch, 0);
+
+                long sum = 0;
+                for (int i = 0; i < scratch.length && sum < bestSum; i++) {
+                    sum += Math.abs(scratch[i]);
+                }
+
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = type;
+                }
+            }
+
+            return best;
+        }
+
+        private void applyFilter(int type, byte[] row, byte[] prior,
+                                 byte[] out, int o) {
+            int n = row.length;
+
+            switch (type) {
+                case FILTER_NONE:
+                    System.arraycopy(row, 0, out, o, n);
+                    break;
+                case FILTER_SUB:
+                    for (int i = 0; i < n; i++) {
+                        int left = i >= 3 ? row[i - 3] & 0xFF : 0;
+                        out[o + i] = (byte) (row[i] - left);
+                    }
+                    break;
+                case FILTER_UP:
+                    for (int i = 0; i < n; i++) {
+                        out[o + i] = (byte) (row[i] - prior[i]);
+                    }
+                    break;
+                case FILTER_AVERAGE:
+                    for (int i = 0; i < n; i++) {
+                        int left = i >= 3 ? row[i - 3] & 0xFF : 0;
+                        out[o + i] = (byte) (row[i]
+                                             - ((left + (prior[i] & 0xFF))
+                                                >> 1));
+                    }
+                    break;
+                case FILTER_PAETH:
+                    for (int i = 0; i < n; i++) {
+                        int a = i >= 3 ? row[i - 3] & 0xFF : 0;
+                        int b = prior[i] & 0xFF;
+                        int c = i >= 3 ? prior[i - 3] & 0xFF : 0;
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a);
+                        int pb = Math.abs(p - b);
+                        int pc = Math.abs(p - c);
+                        int pred = (pa <= pb && pa <= pc) ? a
+                                   : (pb <= pc ? b : c);
+                        out[o + i] = (byte) (row[i] - pred);
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ Project: dbx-capture
+ File: CropOverlay.java (com.dividebyxero.dbxcapture.gui)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.gui;
+
+import java.awt.Cursor;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.concurrent.CountDownLatch;
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+/**
+ * The fullscreen crop overlay: covers the whole virtual desktop with a
+ * ScreenPreview of it, dimmed, and lets the user drag out the area they want.
+ * Escape or a right click cancels. The drawing itself is OverlayRenderer's
+ * job - this just handles the window and the mouse, and repaints only the
+ * parts of the overlay the selection moved over.
+ *
+ * Only the area that comes back from select() gets grabbed at full resolution,
+ * after the overlay's gone, so what's saved is what's on the screen then and
+ * not necessarily exactly what the preview showed.
+ *
+ * @author Alex Kersten
+ */
+@SuppressWarnings("serial")
+public class CropOverlay extends JComponent {
+
+    private final OverlayRenderer renderer;
+
+    //Where the overlay is on the virtual desktop. Component coordinates are
+    //relative to this.
+    private final Rectangle virtual;
+
+    //Component coordinates, null until the user starts dragging.
+    private Point anchor;
+
+    private Rectangle selection;
+
+    private JFrame frame;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    //Written on the EDT before done is counted down.
+    private Rectangle result;
+
+    private CropOverlay(ScreenPreview preview) {
+        this.renderer = new OverlayRenderer(preview);
+        this.virtual = preview.getTopology().getVirtualBounds();
+
+        //Everything gets painted, so Swing needn't paint anything beneath.
+        setOpaque(true);
+        setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+        setFocusable(true);
+
+        MouseAdapter mouse = new MouseAdapter() {
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if (SwingUtilities.isRightMouseButton(e)) {
+                    finish(null);
+                    return;
+                }
+
+                anchor = e.getPoint();
+                setSelection(null);
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (anchor == null) {
+                    return;
+                }
+
+                Point p = e.getPoint();
+                setSelection(new Rectangle(Math.min(anchor.x, p.x),
+                                           Math.min(anchor.y, p.y),
+                                           Math.abs(p.x - anchor.x),
+                                           Math.abs(p.y - anchor.y)));
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (anchor == null) {
+                    return;
+                }
+
+                anchor = null;
+
+                if (selection == null || selection.isEmpty()) {
+                    //Just a click, let them try again.
+                    setSelection(null);
+                    return;
+                }
+
+                Rectangle area = new Rectangle(selection);
+                area.translate(virtual.x, virtual.y);
+                finish(area);
+            }
+        };
+
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+
+        addKeyListener(new KeyAdapter() {
+
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+                    finish(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows the overlay and waits for the user to pick an area. Don't call
+     * this on the event dispatch thread.
+     *
+     * @param preview What to show.
+     * @return The area picked, in virtual desktop coordinates and clipped to
+     * the desktop, or null if the user cancelled.
+     * @throws InterruptedException If interrupted while waiting - the overlay
+     * is closed.
+     */
+    public static Rectangle select(ScreenPreview preview)
+            throws InterruptedException {
+        final CropOverlay overlay = new CropOverlay(preview);
+
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    overlay.open();
+                } catch (RuntimeException re) {
+                    System.err.println("Couldn't show the crop overlay: "
+                                       + re);
+                    overlay.finish(null);
+                }
+            }
+        });
+
+        try {
+            overlay.done.await();
+        } catch (InterruptedException ie) {
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    overlay.finish(null);
+                }
+            });
+            throw ie;
+        }
+
+        return overlay.result;
+    }
+
+    private void open() {
+        frame = new JFrame("DBXCapture - Crop");
+        frame.setUndecorated(true);
+        frame.setAlwaysOnTop(true);
+        frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        frame.setContentPane(this);
+        frame.setBounds(virtual);
+        frame.setVisible(true);
+        frame.toFront();
+        requestFocusInWindow();
+    }
+
+    /**
+     * Closes the overlay and hands the area back to select(). Only the first
+     * call counts.
+     */
+    private void finish(Rectangle area) {
+        if (done.getCount() == 0) {
+            return;
+        }
+
+        result = area == null ? null : area.intersection(virtual);
+
+        if (result != null && result.isEmpty()) {
+            result = null;
+        }
+
+        if (frame != null) {
+            frame.dispose();
+        }
+
+        renderer.dispose();
+        System.out.println("Crop overlay: " + renderer.getStats());
+
+        done.countDown();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        renderer.paint((Graphics2D) g, g.getClipBounds(), selection);
+    }
+
+    /**
+     * Changes the selection, repainting just what it covered before and what
+     * it covers now.
+     */
+    private void setSelection(Rectangle newSelection) {
+        Rectangle damage = renderer.getDamage(selection).union(
+                renderer.getDamage(newSelection));
+        selection = newSelection;
+
+        if (!damage.isEmpty()) {
+            repaint(damage);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ Project: dbx-capture
+ File: CropWindow.java (com.dividebyxero.dbxcapture.gui)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Cursor;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+/**
+ * A window of its own for cropping one screenshot (or one display of it), for
+ * the dedicated windows crop mode. Any number can be open at once, and they
+ * don't get in each other's way or the way of new screenshots.
+ *
+ * The window only ever holds a shrunken preview. The full resolution pixels
+ * stay in the SharedFrame until the crop is saved, and only the picked area
+ * is copied out then. The window releases its view of the frame when it
+ * closes, however it closes.
+ *
+ * @author Alex Kersten
+ */
+@SuppressWarnings("serial")
+public class CropWindow extends JFrame {
+
+    /**
+     * Gets told about saved crops. Called on the event dispatch thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param image The cropped area at full resolution.
+         */
+        void cropped(BufferedImage image);
+    }
+
+    private static final Color DIM_COLOR = new Color(0, 0, 0, 128);
+
+    private static final Color SELECTION_COLOR = new Color(64, 160, 255);
+
+    private final SharedFrame frame;
+
+    private final BufferedImage preview;
+
+    private final Listener listener;
+
+    //Preview coordinates, null until the user starts dragging.
+    private Point anchor;
+
+    private Rectangle selection;
+
+    /**
+     * Opens a window. Call on the event dispatch thread.
+     *
+     * @param frame The view to crop. The window owns it from now on and
+     * releases it when it closes.
+     * @param title What to call the window.
+     * @param listener Gets the crop if one's saved.
+     */
+    public CropWindow(SharedFrame frame, String title, Listener listener) {
+        super(title);
+
+        this.frame = frame;
+        this.listener = listener;
+        this.preview = frame.createPreview();
+
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        final JComponent canvas = new JComponent() {
+
+            @Override
+            protected void paintComponent(Graphics g) {
+                paintCanvas((Graphics2D) g);
+            }
+        };
+
+        canvas.setPreferredSize(new Dimension(preview.getWidth(),
+                                              preview.getHeight()));
+        canvas.setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+
+        MouseAdapter mouse = new MouseAdapter() {
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                anchor = e.getPoint();
+                selection = null;
+                canvas.repaint();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (anchor == null) {
+                    return;
+                }
+
+                Point p = e.getPoint();
+                selection = new Rectangle(Math.min(anchor.x, p.x),
+                                          Math.min(anchor.y, p.y),
+                                          Math.abs(p.x - anchor.x),
+                                          Math.abs(p.y - anchor.y)).
+                        intersection(new Rectangle(preview.getWidth(),
+                                                   preview.getHeight()));
+                canvas.repaint();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                anchor = null;
+
+                if (selection != null && selection.isEmpty()) {
+                    selection = null;
+                    canvas.repaint();
+                }
+            }
+        };
+
+        canvas.addMouseListener(mouse);
+        canvas.addMouseMotionListener(mouse);
+
+        JButton saveButton = new JButton("Save");
+        saveButton.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                save();
+            }
+        });
+
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(saveButton);
+        buttons.add(cancelButton);
+
+        getContentPane().add(canvas, BorderLayout.CENTER);
+        getContentPane().add(buttons, BorderLayout.SOUTH);
+        getRootPane().setDefaultButton(saveButton);
+
+        addWindowListener(new WindowAdapter() {
+
+            @Override
+            public void windowClosed(WindowEvent e) {
+                CropWindow.this.frame.release();
+            }
+        });
+
+        pack();
+        setResizable(false);
+        setLocationByPlatform(true);
+    }
+
+    /**
+     * Copies the selected area (or everything, with nothing selected) out at
+     * full resolution, hands it to the listener and closes.
+     */
+    private void save() {
+        Rectangle area = new Rectangle(frame.getWidth(), frame.getHeight());
+
+        if (selection != null) {
+            //The preview's shrunk by a whole number, so this maps exactly.
+            int scale = frame.getWidth() / preview.getWidth();
+            area = new Rectangle(selection.x * scale, selection.y * scale,
+                                 selection.width * scale,
+                                 selection.height * scale);
+        }
+
+        BufferedImage image = frame.copyRegion(area);
+        dispose();
+
+        if (image != null) {
+            listener.cropped(image);
+        }
+    }
+
+    private void paintCanvas(Graphics2D g) {
+        g.drawImage(preview, 0, 0, null);
+
+        if (selection == null) {
+            return;
+        }
+
+        //Dim everything outside the selection.
+        Rectangle all = new Rectangle(preview.getWidth(), preview.getHeight());
+        Graphics2D outside = (Graphics2D) g.create();
+        outside.setColor(DIM_COLOR);
+        outside.fillRect(all.x, all.y, all.width, selection.y);
+        outside.fillRect(all.x, selection.y + selection.height, all.width,
+                         all.height - selection.y - selection.height);
+        outside.fillRect(all.x, selection.y, selection.x, selection.height);
+        outside.fillRect(selection.x + selection.width, selection.y,
+                         all.width - selection.x - selection.width,
+                         selection.height);
+        outside.dispose();
+
+        g.setColor(SELECTION_COLOR);
+        g.drawRect(selection.x, selection.y, selection.width - 1,
+                   selection.height - 1);
+    }
+
+    /**
+     * Opens a window from any thread.
+     */
+    public static void open(final SharedFrame frame, final String title,
+                            final Listener listener) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                CropWindow window;
+
+                try {
+                    window = new CropWindow(frame, title, listener);
+                } catch (RuntimeException re) {
+                    System.err.println("Couldn't open a crop window: " + re);
+                    frame.release();
+                    return;
+                }
+
+                window.setVisible(true);
+            }
+        });
+    }
+}
@@ -7,6 +7,9 @@ package com.dividebyxero.dbxcapture.gui;
 
 import com.dividebyxero.dbxcapture.DBXCRuntime;
 import com.dividebyxero.dbxcapture.DBXCapture;
+import com.dividebyxero.dbxcapture.catalog.CaptureCatalog;
+import com.dividebyxero.dbxcapture.config.ConfigurationListener;
+import com.dividebyxero.dbxcapture.runners.VideoRunner;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -26,6 +29,8 @@ public class DBXCTrayComponent {
 
     private PopupMenu trayMenu;
 
+    //The last one opened, reused while it's open and on the same catalog.
+    private RecentCapturesFrame recentCapturesFrame;
 
     public static final String[] DISABLE_STRINGS = {"Temporarily disable dbxc",
                                                     "Re-enable dbxc"};
@@ -58,7 +63,7 @@ public class DBXCTrayComponent {
         try {
             trayIcon = new TrayIcon(ImageIO.read(
                     this.getClass().getResource("icon16.png")),
-                                    "DBXCapture " + DBXCapture.VERSION);
+                                    getTooltip());
 
         } catch (IOException ioe) {
             JOptionPane.showMessageDialog(
@@ -81,8 +86,8 @@ public class DBXCTrayComponent {
 
                     @Override
                     public void actionPerformed(ActionEvent e) {
-                        if (contextRef.getSettings().getSetting(
-                                "bConfirmExit").equalsIgnoreCase("true")) {
+                        if (contextRef.getSettings().getBooleanSetting(
+                                "bConfirmExit")) {
 
                             int response = JOptionPane.showConfirmDialog(
                                     null,
@@ -120,6 +125,88 @@ public class DBXCTrayComponent {
 
 
 
+        //Browse what's been captured so far.
+        trayMenu.insert(new MenuItem("Recent captures"), 0);
+        trayMenu.getItem(0).addActionListener(
+                new ActionListener() {
+
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        showRecentCaptures();
+                    }
+                });
+
+
+
+        //Take a screenshot without the trigger key (the only way to do it if
+        //the native keyboard hook isn't available).
+        trayMenu.insert(new MenuItem("Take screenshot"), 0);
+        trayMenu.getItem(0).addActionListener(
+                new ActionListener() {
+
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        if (contextRef.getScreenshotRunner() != null) {
+                            contextRef.getScreenshotRunner().
+                                    triggerScreenshot();
+                        }
+                    }
+                });
+
+
+
+        //Start or stop a video recording without the video key.
+        trayMenu.insert(new MenuItem("Start/stop recording"), 0);
+        trayMenu.getItem(0).addActionListener(
+                new ActionListener() {
+
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        final VideoRunner runner = contextRef.getVideoRunner();
+
+                        if (runner == null) {
+                            return;
+                        }
+
+                        //Stopping waits for the encoder to catch up, which
+                        //shouldn't hang the menu.
+                        new Thread(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                runner.toggleRecording();
+                            }
+                        }, "DBXC recording toggle").start();
+                    }
+                });
+
+
+
+        //Save the replay buffer without the replay key.
+        trayMenu.insert(new MenuItem("Save replay"), 0);
+        trayMenu.getItem(0).addActionListener(
+                new ActionListener() {
+
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        final VideoRunner runner = contextRef.getVideoRunner();
+
+                        if (runner == null) {
+                            return;
+                        }
+
+                        new Thread(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                runner.saveReplay();
+                            }
+                        }, "DBXC replay save").start();
+                    }
+                });
+
+
+
         //Temporary disable toggle button
         final MenuItem toggleDisabledMenuItem = new MenuItem(DISABLE_STRINGS[0]);
 
@@ -158,6 +245,62 @@ public class DBXCTrayComponent {
                     "DBXCapture - Warning",
                     JOptionPane.WARNING_MESSAGE);
         }
+
+        //Keep the tooltip's local mode note current, whether it's toggled in
+        //the settings frame or in the settings file.
+        context.getSettings().addConfigurationListener(
+                new ConfigurationListener() {
+
+                    @Override
+                    public void settingChanged(String key, String oldValue,
+                                               String newValue) {
+                        if (key.equalsIgnoreCase("bLocalMode")) {
+                            trayIcon.setToolTip(getTooltip());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Brings up the recent captures, reusing the window if it's still open.
+     * Called on the event dispatch thread.
+     */
+    private void showRecentCaptures() {
+        CaptureCatalog catalog = context.getCatalog();
+
+        if (catalog == null) {
+            JOptionPane.showMessageDialog(
+                    null,
+                    "There's no capture catalog - see the log for why.",
+                    "DBXCapture - Recent captures",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        if (recentCapturesFrame != null
+            && recentCapturesFrame.isDisplayable()
+            && recentCapturesFrame.getCatalog() == catalog) {
+            recentCapturesFrame.refresh();
+        } else {
+            if (recentCapturesFrame != null) {
+                recentCapturesFrame.dispose();
+            }
+
+            recentCapturesFrame = new RecentCapturesFrame(
+                    catalog, context.getThumbnails());
+        }
+
+        recentCapturesFrame.setVisible(true);
+        recentCapturesFrame.toFront();
+    }
+
+    /**
+     * @return The tray icon's tooltip text for the current settings.
+     */
+    private String getTooltip() {
+        return "DBXCapture " + DBXCapture.VERSION
+               + (context.getSettings().getBooleanSetting("bLocalMode")
+                  ? " (local mode)" : "");
     }
 
     /**
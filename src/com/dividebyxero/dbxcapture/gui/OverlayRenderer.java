@@ -0,0 +1,260 @@
+/*
+ Project: dbx-capture
+ File: OverlayRenderer.java (com.dividebyxero.dbxcapture.gui)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.gui;
+
+import com.dividebyxero.dbxcapture.capture.DisplayTopology;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.image.VolatileImage;
+
+/**
+ * Draws the crop overlay. Stretching the preview over a 4K desktop and
+ * dimming it is far too slow to do on every mouse move, so it's done once into
+ * two VolatileImages - the screen as is, and dimmed - and a repaint is then
+ * just copying the damaged part of each across (which stays on the graphics
+ * card where there is one) plus the outline.
+ *
+ * Volatile images can lose their contents whenever the OS feels like it (a
+ * display mode change, the screen locking), so they're checked before every
+ * paint and redrawn from the preview when that happens.
+ *
+ * Keeps track of how long paints take, which is what the overlay lives or
+ * dies by. None of this needs a window, so it can be timed headlessly by
+ * painting into a BufferedImage.
+ *
+ * @author Alex Kersten
+ */
+public class OverlayRenderer {
+
+    private static final Color DIM_COLOR = new Color(0, 0, 0, 128);
+
+    private static final Color SELECTION_COLOR = new Color(64, 160, 255);
+
+    private static final Font LABEL_FONT =
+                              new Font(Font.SANS_SERIF, Font.BOLD, 12);
+
+    //Space between the selection and its size label.
+    private static final int LABEL_GAP = 4;
+
+    private final ScreenPreview preview;
+
+    //Where the overlay is on the virtual desktop. Overlay coordinates are
+    //relative to this.
+    private final Rectangle virtual;
+
+    private VolatileImage screen, dimmed;
+
+    private long paintCount, totalPaintNanos, worstPaintNanos,
+            lastPaintNanos;
+
+    public OverlayRenderer(ScreenPreview preview) {
+        this.preview = preview;
+        this.virtual = preview.getTopology().getVirtualBounds();
+    }
+
+    /**
+     * Paints part of the overlay.
+     *
+     * @param g Where to paint, in overlay coordinates.
+     * @param clip What needs painting, or null for everything.
+     * @param selection The area picked so far, or null.
+     */
+    public void paint(Graphics2D g, Rectangle clip, Rectangle selection) {
+        long start = System.nanoTime();
+
+        Rectangle area = new Rectangle(0, 0, virtual.width, virtual.height);
+        if (clip != null) {
+            area = area.intersection(clip);
+        }
+
+        if (!area.isEmpty()) {
+            GraphicsConfiguration gc = g.getDeviceConfiguration();
+
+            //Contents can be lost again while being drawn from, in which case
+            //go round until a paint makes it through intact.
+            do {
+                validate(gc);
+
+                copy(g, dimmed, area);
+
+                if (selection != null) {
+                    Rectangle inside = selection.intersection(area);
+                    if (!inside.isEmpty()) {
+                        copy(g, screen, inside);
+                    }
+                }
+            } while (screen.contentsLost() || dimmed.contentsLost());
+
+            if (selection != null) {
+                paintDecoration(g, selection);
+            }
+        }
+
+        lastPaintNanos = System.nanoTime() - start;
+        worstPaintNanos = Math.max(worstPaintNanos, lastPaintNanos);
+        totalPaintNanos += lastPaintNanos;
+        paintCount++;
+    }
+
+    private static void copy(Graphics2D g, VolatileImage from,
+                             Rectangle area) {
+        g.drawImage(from, area.x, area.y, area.x + area.width,
+                    area.y + area.height, area.x, area.y,
+                    area.x + area.width, area.y + area.height, null);
+    }
+
+    /**
+     * Makes sure both cached images exist, suit the graphics configuration
+     * and still have their contents.
+     */
+    private void validate(GraphicsConfiguration gc) {
+        screen = validate(gc, screen, false);
+        dimmed = validate(gc, dimmed, true);
+    }
+
+    private VolatileImage validate(GraphicsConfiguration gc,
+                                   VolatileImage image, boolean dim) {
+        int state = image == null ? VolatileImage.IMAGE_INCOMPATIBLE
+                    : image.validate(gc);
+
+        if (state == VolatileImage.IMAGE_INCOMPATIBLE) {
+            if (image != null) {
+                image.flush();
+            }
+
+            image = gc.createCompatibleVolatileImage(virtual.width,
+                                                     virtual.height);
+            image.validate(gc);
+            state = VolatileImage.IMAGE_RESTORED;
+        }
+
+        if (state == VolatileImage.IMAGE_RESTORED) {
+            Graphics2D ig = image.createGraphics();
+            renderScreen(ig, dim);
+            ig.dispose();
+        }
+
+        return image;
+    }
+
+    private void renderScreen(Graphics2D g, boolean dim) {
+        //Gaps between displays that don't line up.
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, virtual.width, virtual.height);
+
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        DisplayTopology topology = preview.getTopology();
+
+        for (int i = 0; i < topology.getDisplayCount(); i++) {
+            Rectangle bounds = topology.getDisplay(i).getBounds();
+            g.drawImage(preview.getImage(i), bounds.x - virtual.x,
+                        bounds.y - virtual.y, bounds.width, bounds.height,
+                        null);
+        }
+
+        if (dim) {
+            g.setColor(DIM_COLOR);
+            g.fillRect(0, 0, virtual.width, virtual.height);
+        }
+    }
+
+    private void paintDecoration(Graphics2D g, Rectangle selection) {
+        g.setColor(SELECTION_COLOR);
+        g.drawRect(selection.x, selection.y, selection.width - 1,
+                   selection.height - 1);
+
+        Rectangle label = getLabelBounds(selection);
+        g.setFont(LABEL_FONT);
+        g.drawString(getLabel(selection), label.x,
+                     label.y + label.height - LABEL_FONT.getSize() / 4);
+    }
+
+    private static String getLabel(Rectangle selection) {
+        return selection.width + " x " + selection.height;
+    }
+
+    /**
+     * The size label goes above the selection, or just inside it when the
+     * selection's at the top of the screen.
+     */
+    private static Rectangle getLabelBounds(Rectangle selection) {
+        Rectangle text = LABEL_FONT.getStringBounds(
+                getLabel(selection),
+                new FontRenderContext(null, true, true)).getBounds();
+
+        int y = selection.y - LABEL_GAP - text.height;
+        if (y < 0) {
+            y = selection.y + LABEL_GAP;
+        }
+
+        return new Rectangle(selection.x + LABEL_GAP, y, text.width + 2,
+                             text.height + 2);
+    }
+
+    /**
+     * @param selection A selection, or null.
+     * @return Everything painting the selection touches - the area, its
+     * outline and its size label.
+     */
+    public Rectangle getDamage(Rectangle selection) {
+        if (selection == null) {
+            return new Rectangle();
+        }
+
+        Rectangle damage = new Rectangle(selection);
+        damage.add(getLabelBounds(selection));
+        damage.grow(1, 1);
+        return damage;
+    }
+
+    /**
+     * Lets go of the cached images.
+     */
+    public void dispose() {
+        if (screen != null) {
+            screen.flush();
+        }
+
+        if (dimmed != null) {
+            dimmed.flush();
+        }
+
+        screen = dimmed = null;
+    }
+
+    public long getPaintCount() {
+        return paintCount;
+    }
+
+    public long getLastPaintNanos() {
+        return lastPaintNanos;
+    }
+
+    public long getWorstPaintNanos() {
+        return worstPaintNanos;
+    }
+
+    public long getAveragePaintNanos() {
+        return paintCount == 0 ? 0 : totalPaintNanos / paintCount;
+    }
+
+    /**
+     * @return The paint timings for log output.
+     */
+    public String getStats() {
+        return paintCount + " paints, "
+               + String.format("%.2f ms average, %.2f ms worst",
+                               getAveragePaintNanos() / 1e6,
+                               worstPaintNanos / 1e6);
+    }
+}
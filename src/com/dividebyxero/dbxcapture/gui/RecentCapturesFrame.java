@@ -0,0 +1,253 @@
+/*
+ Project: dbx-capture
+ File: RecentCapturesFrame.java (com.dividebyxero.dbxcapture.gui)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.gui;
+
+import com.dividebyxero.dbxcapture.catalog.CaptureCatalog;
+import com.dividebyxero.dbxcapture.catalog.CatalogEntry;
+import com.dividebyxero.dbxcapture.catalog.ThumbnailCache;
+import com.dividebyxero.dbxcapture.catalog.ThumbnailPack;
+import java.awt.Component;
+import java.awt.Desktop;
+import java.awt.Dimension;
+import java.awt.Toolkit;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.ImageIcon;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+
+/**
+ * Lists what's in the capture catalog, newest first, with thumbnails. Double
+ * clicking a capture copies what its script reported (its URL) to the
+ * clipboard, or opens the file if there's nothing to copy.
+ *
+ * Rows are all the same height, so the list never has to look at captures
+ * that aren't scrolled into view - only visible rows get their thumbnails
+ * pulled out of the ThumbnailCache. Opening it on a catalog of thousands of
+ * captures costs about as much as opening it on ten. Captures without a
+ * thumbnail get one made in the background, and show up without one until
+ * it's done.
+ *
+ * @author Alex Kersten
+ */
+@SuppressWarnings("serial")
+public class RecentCapturesFrame extends JFrame {
+
+    private static final int ROW_GAP = 4;
+
+    private final CaptureCatalog catalog;
+
+    private final ThumbnailCache thumbnails;
+
+    private DefaultListModel<CatalogEntry> model = new DefaultListModel<>();
+
+    private final JList<CatalogEntry> list = new JList<>(model);
+
+    //Makes missing thumbnails, one at a time.
+    private final ExecutorService thumbnailer;
+
+    //Captures queued for a thumbnail. EDT only.
+    private final Set<String> pending = new HashSet<>();
+
+    /**
+     * @param catalog The catalog to show.
+     * @param thumbnails Where the thumbnails come from. May be null, for no
+     * thumbnails.
+     */
+    public RecentCapturesFrame(CaptureCatalog catalog,
+                               ThumbnailCache thumbnails) {
+        super("DBXCapture - Recent captures");
+
+        this.catalog = catalog;
+        this.thumbnails = thumbnails;
+
+        thumbnailer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DBXC thumbnails");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        //Without both of these the list measures every row up front.
+        list.setFixedCellHeight(ThumbnailPack.THUMBNAIL_HEIGHT + ROW_GAP * 2);
+        list.setFixedCellWidth(ThumbnailPack.THUMBNAIL_WIDTH * 4);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+
+            private final SimpleDateFormat format =
+                    new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+            @Override
+            public Component getListCellRendererComponent(
+                    JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                CatalogEntry entry = (CatalogEntry) value;
+                JLabel label = (JLabel) super.getListCellRendererComponent(
+                        list, describe(entry), index, isSelected,
+                        cellHasFocus);
+
+                label.setIcon(getThumbnailIcon(entry));
+                label.setIconTextGap(ROW_GAP * 2);
+                label.setVerticalAlignment(SwingConstants.CENTER);
+                return label;
+            }
+
+            private String describe(CatalogEntry entry) {
+                return "<html><b>" + format.format(new Date(
+                        TimeUnit.MICROSECONDS.toMillis(entry.getTime())))
+                       + "</b><br>" + entry.getWidth() + " x "
+                       + entry.getHeight() + "<br>"
+                       + (entry.getResult() == null ? entry.getFileName()
+                          : entry.getResult()) + "</html>";
+            }
+        });
+
+        list.addMouseListener(new MouseAdapter() {
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    CatalogEntry entry = list.getSelectedValue();
+
+                    if (entry != null) {
+                        use(entry);
+                    }
+                }
+            }
+        });
+
+        JScrollPane scroll = new JScrollPane(list);
+        scroll.setPreferredSize(new Dimension(
+                ThumbnailPack.THUMBNAIL_WIDTH * 4 + ROW_GAP * 8,
+                (ThumbnailPack.THUMBNAIL_HEIGHT + ROW_GAP * 2) * 5));
+        getContentPane().add(scroll);
+
+        pack();
+        setLocationByPlatform(true);
+        refresh();
+    }
+
+    /**
+     * Reloads the list from the catalog.
+     */
+    public final void refresh() {
+        List<CatalogEntry> entries = catalog.findLatest(Integer.MAX_VALUE);
+
+        //Filled before the list sees it, so it's one change rather than one
+        //per capture.
+        DefaultListModel<CatalogEntry> newModel = new DefaultListModel<>();
+        newModel.ensureCapacity(entries.size());
+
+        for (CatalogEntry entry : entries) {
+            newModel.addElement(entry);
+        }
+
+        model = newModel;
+        list.setModel(model);
+    }
+
+    private ImageIcon getThumbnailIcon(CatalogEntry entry) {
+        if (thumbnails == null) {
+            return null;
+        }
+
+        BufferedImage thumbnail = thumbnails.get(entry);
+
+        if (thumbnail == null) {
+            queueThumbnail(entry);
+            return null;
+        }
+
+        return new ImageIcon(thumbnail);
+    }
+
+    /**
+     * Makes a thumbnail for a capture that hasn't got one, and puts the
+     * updated entry into the list when it's done.
+     */
+    private void queueThumbnail(final CatalogEntry entry) {
+        if (!pending.add(entry.getFileName())) {
+            return;
+        }
+
+        thumbnailer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (thumbnails.getOrCreate(catalog, entry) == null) {
+                    //Leave it in pending, so it isn't tried again.
+                    return;
+                }
+
+                final CatalogEntry updated = catalog.get(entry.getFileName());
+
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        pending.remove(entry.getFileName());
+
+                        int index = model.indexOf(entry);
+
+                        if (index >= 0 && updated != null) {
+                            model.set(index, updated);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void use(CatalogEntry entry) {
+        if (entry.getResult() != null) {
+            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(
+                    new StringSelection(entry.getResult()), null);
+            return;
+        }
+
+        try {
+            Desktop.getDesktop().open(
+                    catalog.getDirectory().resolve(entry.getFileName()).
+                    toFile());
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Couldn't open " + entry.getFileName() + ": "
+                               + e.getMessage());
+        }
+    }
+
+    public CaptureCatalog getCatalog() {
+        return catalog;
+    }
+
+    @Override
+    public void dispose() {
+        thumbnailer.shutdownNow();
+        super.dispose();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ Project: dbx-capture
+ File: ScreenPreview.java (com.dividebyxero.dbxcapture.gui)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.gui;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import com.dividebyxero.dbxcapture.capture.DisplayGrabber;
+import com.dividebyxero.dbxcapture.capture.DisplayTopology;
+import com.dividebyxero.dbxcapture.video.FrameScaler;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * A shrunken copy of every display, for the crop overlay to show while the
+ * user picks an area. The full resolution pixels are only grabbed afterwards,
+ * and only for the area that was picked, so a small crop of a big desk never
+ * needs a full size image of the whole thing.
+ *
+ * Each display is shrunk on its own (nothing is stitched together), a few
+ * rows at a time straight out of its capture buffer.
+ *
+ * @author Alex Kersten
+ */
+public class ScreenPreview {
+
+    //Displays are shrunk by powers of two until they're at most this wide.
+    public static final int MAX_PREVIEW_WIDTH = 960;
+
+    private final DisplayTopology topology;
+
+    private final BufferedImage[] images;
+
+    /**
+     * Shrinks whatever the grabber grabbed last.
+     *
+     * @param grabber A grabber that has just grabbed successfully.
+     */
+    public ScreenPreview(DisplayGrabber grabber) {
+        topology = grabber.getTopology();
+        images = new BufferedImage[topology.getDisplayCount()];
+
+        for (int i = 0; i < images.length; i++) {
+            CaptureBuffer buffer = grabber.getBuffer(i);
+            images[i] = shrink(buffer, new Rectangle(buffer.getWidth(),
+                                                     buffer.getHeight()));
+        }
+    }
+
+    /**
+     * Shrinks part of a capture buffer by whatever power of two gets it down
+     * to MAX_PREVIEW_WIDTH.
+     *
+     * @param buffer What to shrink.
+     * @param area The part of it to shrink, in buffer pixels.
+     * @return The shrunken area.
+     */
+    static BufferedImage shrink(CaptureBuffer buffer, Rectangle area) {
+        int width = area.width;
+        int height = area.height;
+
+        int scale = 1;
+        while (scale < 8 && width / scale > MAX_PREVIEW_WIDTH) {
+            scale *= 2;
+        }
+
+        int outWidth = width / scale;
+        int outHeight = height / scale;
+
+        BufferedImage image = new BufferedImage(
+                outWidth, Math.max(outHeight, 1), BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) image.getRaster().getDataBuffer()).
+                getData();
+
+        //One row of output at a time, from scale rows of input.
+        int[] band = new int[width * scale];
+
+        for (int row = 0; row < outHeight; row++) {
+            buffer.copyRegionTo(band, width, area.x, area.y + row * scale,
+                                width, scale);
+            FrameScaler.downscale(band, width, scale, scale);
+            System.arraycopy(band, 0, out, row * outWidth, outWidth);
+        }
+
+        return image;
+    }
+
+    public DisplayTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * @param display Index of the display in the topology.
+     * @return The shrunken display. Draw it stretched over the display's
+     * bounds.
+     */
+    public BufferedImage getImage(int display) {
+        return images[display];
+    }
+}
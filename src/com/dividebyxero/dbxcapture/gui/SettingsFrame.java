@@ -13,6 +13,10 @@ package com.dividebyxero.dbxcapture.gui;
 
 import com.dividebyxero.dbxcapture.DBXCRuntime;
 import com.dividebyxero.dbxcapture.DBXCapture;
+import com.dividebyxero.dbxcapture.config.ConfigurationListener;
+import com.dividebyxero.dbxcapture.runners.CapturePipeline;
+import com.dividebyxero.dbxcapture.scripts.ScriptRegistry;
+import com.dividebyxero.dbxcapture.scripts.ScriptRegistryListener;
 import java.awt.Color;
 import java.awt.Desktop;
 import java.awt.event.WindowAdapter;
@@ -24,9 +28,15 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.imageio.ImageIO;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 /**
  * Frame for modifying configuration of DBXCapture. Create it once at the
@@ -38,6 +48,12 @@ import javax.swing.JOptionPane;
 @SuppressWarnings("serial")
 public class SettingsFrame extends javax.swing.JFrame {
 
+    //Highest capture or playback rate we'll accept.
+    private static final int MAX_VIDEO_FPS = 120;
+
+    //Longest time between time-lapse frames we'll accept, in seconds.
+    private static final int MAX_TIME_LAPSE_INTERVAL = 3600;
+
     private DBXCRuntime context;
 
     /**
@@ -70,6 +86,28 @@ public class SettingsFrame extends javax.swing.JFrame {
 
         this.setLocationRelativeTo(null);
 
+        //Keep the time scale up to date as the rates are typed in.
+        DocumentListener rateListener = new DocumentListener() {
+
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                updateTimeScaleLabel();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                updateTimeScaleLabel();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                updateTimeScaleLabel();
+            }
+        };
+
+        jTextField1.getDocument().addDocumentListener(rateListener);
+        jTextField2.getDocument().addDocumentListener(rateListener);
+
         setupFromLoadedSettings();
         versionLabel.setText(DBXCapture.VERSION);
 
@@ -82,6 +120,42 @@ public class SettingsFrame extends javax.swing.JFrame {
                 setToLastKnown();
             }
         });
+
+        //Settings and scripts can change underneath us (the files are watched
+        //for edits). Pick the changes up, but not while the frame is showing -
+        //we don't want to clobber whatever the user is in the middle of.
+        context.getSettings().addConfigurationListener(
+                new ConfigurationListener() {
+
+                    @Override
+                    public void settingChanged(String key, String oldValue,
+                                               String newValue) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                if (!isVisible()) {
+                                    setToLastKnown();
+                                }
+                            }
+                        });
+                    }
+                });
+
+        context.getScriptRegistry().addScriptRegistryListener(
+                new ScriptRegistryListener() {
+
+                    @Override
+                    public void scriptsChanged(ScriptRegistry registry) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                setupFromLoadedSettings();
+                            }
+                        });
+                    }
+                });
     }
 
     /**
@@ -96,8 +170,10 @@ public class SettingsFrame extends javax.swing.JFrame {
         //Create model for script dropdown and set its index to the proper one.
         DefaultComboBoxModel<String> newModel = new DefaultComboBoxModel<>();
 
-        for (int i = 0; i < context.getPostProcessScripts().length; i++) {
-            newModel.addElement(context.getPostProcessScripts()[i]);
+        //Command lines and in-process plugins side by side, in the order the
+        //script setting indexes them.
+        for (String name : context.getScriptRegistry().getDisplayNames()) {
+            newModel.addElement(name);
         }
 
         currentScriptComboBox.setModel(newModel);
@@ -113,35 +189,137 @@ public class SettingsFrame extends javax.swing.JFrame {
     private void setToLastKnown() {
         //Populate fields based on current settings.
         confirmExitCheckBox.setSelected(context.getSettings().
-                getSetting("bConfirmExit").equalsIgnoreCase("true"));
+                getBooleanSetting("bConfirmExit"));
 
         contentDirectoryTextField.setText(context.getSettings().
                 getSetting("sContentDirectory"));
 
-        //We already know this index is within range - it was checked when the
-        //settings were loaded.
-        currentScriptComboBox.setSelectedIndex(
-                Integer.parseInt(
-                context.getSettings().getSetting("iUploadScript")));
+        //The runtime keeps the selected script one that exists, but the
+        //scripts file may have changed since the dropdown was populated.
+        int script = context.getScriptRegistry().indexOf(
+                context.getSettings().getSetting("sUploadScript"));
+        if (script >= 0 && script < currentScriptComboBox.getItemCount()) {
+            currentScriptComboBox.setSelectedIndex(script);
+        }
 
         localmodeCheckBox.setSelected(context.getSettings().
-                getSetting("bLocalMode").equalsIgnoreCase("true"));
+                getBooleanSetting("bLocalMode"));
 
         triggerTextField.setText(
                 context.getSettings().getSetting("iScreenshotKey"));
 
+        videoTriggerTextField.setText(
+                context.getSettings().getSetting("iVideoKey"));
+
+        switch (context.getSettings().getIntSetting("iVideoScale")) {
+            case 2:
+                jRadioButton2.setSelected(true);
+                break;
+            case 4:
+                jRadioButton3.setSelected(true);
+                break;
+            default:
+                jRadioButton1.setSelected(true);
+                break;
+        }
+
+        //Synthetic isn't offered here, so it shows up as no button at all.
+        String audio = context.getSettings().getSetting("sAudioSource");
+        audioSourceButtonGroup.clearSelection();
+        if ("none".equalsIgnoreCase(audio)) {
+            jRadioButton4.setSelected(true);
+        } else if ("device".equalsIgnoreCase(audio)) {
+            jRadioButton5.setSelected(true);
+        }
+
+        switch (context.getSettings().getIntSetting("iCropMode")) {
+            case CapturePipeline.CROP_FULLSCREEN:
+                fullscreenCropRadioButton.setSelected(true);
+                break;
+            case CapturePipeline.CROP_DEDICATED:
+                dedicatedCropRadioButton.setSelected(true);
+                break;
+            default:
+                noCropRadioButton.setSelected(true);
+                break;
+        }
+
+        timeLapseCheckBox.setSelected(
+                context.getSettings().getBooleanSetting("bTimeLapse"));
+        setCaptureRateMode(timeLapseCheckBox.isSelected());
+        jTextField2.setText(
+                context.getSettings().getSetting("iVideoPlaybackFps"));
+
+        updateTimeScaleLabel();
+    }
+
+    /**
+     * Switches the capture rate field between frames per second and, for
+     * time-lapses, seconds per frame, filling in the saved value for that
+     * mode.
+     */
+    private void setCaptureRateMode(boolean timeLapse) {
+        jLabel2.setText(timeLapse ? "spf" : "fps");
+        jTextField1.setText(context.getSettings().getSetting(
+                timeLapse ? "iTimeLapseInterval" : "iVideoFps"));
+    }
+
+    /**
+     * Shows how much the capture and playback rates speed things up, e.g.
+     * capturing at 1 fps and playing back at 24 is a 24x time-lapse.
+     */
+    private void updateTimeScaleLabel() {
+        int captureRate, playbackFps;
+        boolean timeLapse = timeLapseCheckBox.isSelected();
+
+        try {
+            captureRate = Integer.parseInt(jTextField1.getText().trim());
+            playbackFps = Integer.parseInt(jTextField2.getText().trim());
+        } catch (NumberFormatException nfe) {
+            jLabel4.setText("Enter whole numbers for the rates.");
+            return;
+        }
+
+        if (playbackFps < 1 || playbackFps > MAX_VIDEO_FPS) {
+            jLabel4.setText("Rates must be between 1 and " + MAX_VIDEO_FPS
+                            + " fps.");
+            return;
+        }
+
+        if (captureRate < 1 || captureRate > (timeLapse
+                                              ? MAX_TIME_LAPSE_INTERVAL
+                                              : MAX_VIDEO_FPS)) {
+            jLabel4.setText(timeLapse
+                            ? "Time-lapse frames must be between 1 and "
+                              + MAX_TIME_LAPSE_INTERVAL + " seconds apart."
+                            : "Rates must be between 1 and " + MAX_VIDEO_FPS
+                              + " fps.");
+            return;
+        }
+
+        DecimalFormat format = new DecimalFormat("0.##");
+        double speed = timeLapse
+                       ? (double) playbackFps * captureRate
+                       : (double) playbackFps / captureRate;
+
+        jLabel4.setText(format.format(speed) + "x: 15 seconds elapsed -> "
+                        + format.format(15 / speed) + " second video");
     }
 
     /**
-     * Verify and apply settings changes.
+     * Verify and apply settings changes. Every field is checked before any of
+     * them are applied, and then they're all applied and saved in one go - so
+     * a bad field doesn't leave the settings half changed, and listeners
+     * don't react to a mix of old and new values.
      *
      * @return True if settings applied and saved successfully, false if there
      * was a problem parsing one of the new settings or saving them.
      */
     private boolean setAndSaveSettings() {
-        context.getSettings().setSetting("bConfirmExit",
-                                         confirmExitCheckBox.isSelected()
-                                         ? "true" : "false");
+        Map<String, String> changes = new LinkedHashMap<>();
+
+        changes.put("bConfirmExit",
+                    confirmExitCheckBox.isSelected() ? "true" : "false");
 
         //Verify that the content directory is actually a directory.
         Path testp = Paths.get(contentDirectoryTextField.getText());
@@ -149,15 +327,18 @@ public class SettingsFrame extends javax.swing.JFrame {
             return false;
         }
 
-        context.getSettings().setSetting("sContentDirectory",
-                                         contentDirectoryTextField.getText());
+        changes.put("sContentDirectory", contentDirectoryTextField.getText());
 
-        context.getSettings().setSetting(
-                "iUploadScript", "" + currentScriptComboBox.getSelectedIndex());
+        //Stored by key, so the selection survives scripts being added or
+        //removed around it.
+        String script = context.getScriptRegistry().getKey(
+                currentScriptComboBox.getSelectedIndex());
+        if (script != null) {
+            changes.put("sUploadScript", script);
+        }
 
-        context.getSettings().setSetting("bLocalMode",
-                                         localmodeCheckBox.isSelected()
-                                         ? "true" : "false");
+        changes.put("bLocalMode",
+                    localmodeCheckBox.isSelected() ? "true" : "false");
 
         int testssk;
         try {
@@ -166,10 +347,48 @@ public class SettingsFrame extends javax.swing.JFrame {
             return false;
         }
 
-        context.getSettings().setSetting("iScreenshotKey", "" + testssk);
+        changes.put("iScreenshotKey", "" + testssk);
+
+        changes.put("iCropMode", "" + (fullscreenCropRadioButton.isSelected()
+                                       ? CapturePipeline.CROP_FULLSCREEN
+                                       : dedicatedCropRadioButton.isSelected()
+                                         ? CapturePipeline.CROP_DEDICATED
+                                         : CapturePipeline.CROP_NONE));
+
+        int videoKey, captureRate, playbackFps;
+        boolean timeLapse = timeLapseCheckBox.isSelected();
+        try {
+            videoKey = Integer.parseInt(videoTriggerTextField.getText());
+            captureRate = Integer.parseInt(jTextField1.getText().trim());
+            playbackFps = Integer.parseInt(jTextField2.getText().trim());
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+
+        //One key can't do both, and the rates have to be sane.
+        if (videoKey == testssk || captureRate < 1
+            || captureRate > (timeLapse ? MAX_TIME_LAPSE_INTERVAL
+                              : MAX_VIDEO_FPS)
+            || playbackFps < 1 || playbackFps > MAX_VIDEO_FPS) {
+            return false;
+        }
+
+        changes.put("iVideoKey", "" + videoKey);
+        changes.put("bTimeLapse", timeLapse ? "true" : "false");
+        changes.put(timeLapse ? "iTimeLapseInterval" : "iVideoFps",
+                    "" + captureRate);
+        changes.put("iVideoPlaybackFps", "" + playbackFps);
+        if (jRadioButton4.isSelected()) {
+            changes.put("sAudioSource", "none");
+        } else if (jRadioButton5.isSelected()) {
+            changes.put("sAudioSource", "device");
+        }
 
-        return context.getSettings().
-                saveSettings(new File(DBXCRuntime.SETTINGS_FILE_NAME));
+        changes.put("iVideoScale", jRadioButton3.isSelected() ? "4"
+                                   : jRadioButton2.isSelected() ? "2" : "1");
+
+        return context.getSettings().setAndSaveSettings(
+                changes, new File(DBXCRuntime.SETTINGS_FILE_NAME));
     }
 
     /**
@@ -184,6 +403,7 @@ public class SettingsFrame extends javax.swing.JFrame {
         captureMethodButtonGroup = new javax.swing.ButtonGroup();
         editingModeButtonGroup = new javax.swing.ButtonGroup();
         videoResolutionButtonGroup = new javax.swing.ButtonGroup();
+        audioSourceButtonGroup = new javax.swing.ButtonGroup();
         settingsTabbedPane = new javax.swing.JTabbedPane();
         dbxcSettingsPanel = new javax.swing.JPanel();
         generalSettingsPanel = new javax.swing.JPanel();
@@ -227,6 +447,7 @@ public class SettingsFrame extends javax.swing.JFrame {
         jPanel5 = new javax.swing.JPanel();
         jTextField1 = new javax.swing.JTextField();
         jLabel2 = new javax.swing.JLabel();
+        timeLapseCheckBox = new javax.swing.JCheckBox();
         jPanel6 = new javax.swing.JPanel();
         jLabel3 = new javax.swing.JLabel();
         jTextField2 = new javax.swing.JTextField();
@@ -235,7 +456,6 @@ public class SettingsFrame extends javax.swing.JFrame {
         jPanel8 = new javax.swing.JPanel();
         jRadioButton4 = new javax.swing.JRadioButton();
         jRadioButton5 = new javax.swing.JRadioButton();
-        jLabel1 = new javax.swing.JLabel();
         aboutPanel = new javax.swing.JPanel();
         iconLabel = new javax.swing.JLabel();
         dbxcaptureLabel = new javax.swing.JLabel();
@@ -312,7 +532,7 @@ public class SettingsFrame extends javax.swing.JFrame {
         croppingModePanel.setBorder(javax.swing.BorderFactory.createTitledBorder("Cropping Mode"));
 
         editingModeButtonGroup.add(fullscreenCropRadioButton);
-        fullscreenCropRadioButton.setText("Fullscreen Overlay (Freeze entire screen after capture)");
+        fullscreenCropRadioButton.setText("Fullscreen Overlay (Pick an area, then capture just that)");
 
         editingModeButtonGroup.add(dedicatedCropRadioButton);
         dedicatedCropRadioButton.setText("Dedicated Windows (Every screenshot has an individual window for cropping)");
@@ -367,7 +587,7 @@ public class SettingsFrame extends javax.swing.JFrame {
             }
         });
 
-        trigger3Label.setText("Change will go into effect after next screenshot or program restart.");
+        trigger3Label.setText("Change takes effect as soon as it is applied.");
 
         javax.swing.GroupLayout jPanel1Layout = new javax.swing.GroupLayout(jPanel1);
         jPanel1.setLayout(jPanel1Layout);
@@ -556,7 +776,7 @@ public class SettingsFrame extends javax.swing.JFrame {
             }
         });
 
-        videoTriggerLabel.setText("Change effective after next video or program restart.");
+        videoTriggerLabel.setText("Change takes effect as soon as it is applied.");
 
         javax.swing.GroupLayout videoTriggerPanelLayout = new javax.swing.GroupLayout(videoTriggerPanel);
         videoTriggerPanel.setLayout(videoTriggerPanelLayout);
@@ -623,6 +843,13 @@ public class SettingsFrame extends javax.swing.JFrame {
 
         jLabel2.setText("fps");
 
+        timeLapseCheckBox.setText("Time-lapse (seconds per frame)");
+        timeLapseCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                timeLapseCheckBoxActionPerformed(evt);
+            }
+        });
+
         javax.swing.GroupLayout jPanel5Layout = new javax.swing.GroupLayout(jPanel5);
         jPanel5.setLayout(jPanel5Layout);
         jPanel5Layout.setHorizontalGroup(
@@ -631,12 +858,16 @@ public class SettingsFrame extends javax.swing.JFrame {
                 .addComponent(jTextField1)
                 .addGap(18, 18, 18)
                 .addComponent(jLabel2))
+            .addComponent(timeLapseCheckBox)
         );
         jPanel5Layout.setVerticalGroup(
             jPanel5Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
-            .addGroup(jPanel5Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
-                .addComponent(jTextField1, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
-                .addComponent(jLabel2))
+            .addGroup(jPanel5Layout.createSequentialGroup()
+                .addGroup(jPanel5Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(jTextField1, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(jLabel2))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(timeLapseCheckBox))
         );
 
         jPanel6.setBorder(javax.swing.BorderFactory.createTitledBorder("Encode (Playback) Rate"));
@@ -682,9 +913,11 @@ public class SettingsFrame extends javax.swing.JFrame {
 
         jPanel8.setBorder(javax.swing.BorderFactory.createTitledBorder("Audio Capture"));
 
+        audioSourceButtonGroup.add(jRadioButton4);
         jRadioButton4.setText("None");
 
-        jRadioButton5.setText("WASAPI");
+        audioSourceButtonGroup.add(jRadioButton5);
+        jRadioButton5.setText("Recording device");
 
         javax.swing.GroupLayout jPanel8Layout = new javax.swing.GroupLayout(jPanel8);
         jPanel8.setLayout(jPanel8Layout);
@@ -731,9 +964,6 @@ public class SettingsFrame extends javax.swing.JFrame {
                 .addComponent(jPanel8, javax.swing.GroupLayout.DEFAULT_SIZE, 0, Short.MAX_VALUE))
         );
 
-        jLabel1.setForeground(new java.awt.Color(255, 0, 0));
-        jLabel1.setText("Video capture not implemented yet!");
-
         javax.swing.GroupLayout videoPanelLayout = new javax.swing.GroupLayout(videoPanel);
         videoPanel.setLayout(videoPanelLayout);
         videoPanelLayout.setHorizontalGroup(
@@ -745,8 +975,7 @@ public class SettingsFrame extends javax.swing.JFrame {
                         .addComponent(videoTriggerPanel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(jPanel2, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
-                    .addComponent(jPanel3, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
-                    .addComponent(jLabel1, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+                    .addComponent(jPanel3, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                 .addContainerGap())
         );
         videoPanelLayout.setVerticalGroup(
@@ -758,9 +987,7 @@ public class SettingsFrame extends javax.swing.JFrame {
                     .addComponent(jPanel2, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(jPanel3, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
-                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, 38, Short.MAX_VALUE)
-                .addComponent(jLabel1)
-                .addContainerGap())
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
 
         settingsTabbedPane.addTab("Video Options", videoPanel);
@@ -998,11 +1225,16 @@ public class SettingsFrame extends javax.swing.JFrame {
     private void videoTriggerResetButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_videoTriggerResetButtonActionPerformed
         videoTriggerTextField.setText("19");
     }//GEN-LAST:event_videoTriggerResetButtonActionPerformed
+
+    private void timeLapseCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_timeLapseCheckBoxActionPerformed
+        setCaptureRateMode(timeLapseCheckBox.isSelected());
+    }//GEN-LAST:event_timeLapseCheckBoxActionPerformed
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JPanel aboutPanel;
     private javax.swing.JButton alexkerstenButton;
     private javax.swing.JLabel alexkerstenLabel;
     private javax.swing.JButton applyButton;
+    private javax.swing.ButtonGroup audioSourceButtonGroup;
     private javax.swing.JLabel authorLabel;
     private javax.swing.JLabel byLabel;
     private javax.swing.JButton cancelButton;
@@ -1028,7 +1260,6 @@ public class SettingsFrame extends javax.swing.JFrame {
     private javax.swing.JLabel iconLabel;
     private javax.swing.JLabel imagepath1Label;
     private javax.swing.JLabel imagepath2Label;
-    private javax.swing.JLabel jLabel1;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel3;
     private javax.swing.JLabel jLabel4;
@@ -1057,6 +1288,7 @@ public class SettingsFrame extends javax.swing.JFrame {
     private javax.swing.JLabel scriptinfo3Label;
     private javax.swing.JPanel scriptsSettingsPanel;
     private javax.swing.JTabbedPane settingsTabbedPane;
+    private javax.swing.JCheckBox timeLapseCheckBox;
     private javax.swing.JLabel trigger3Label;
     private javax.swing.JButton triggerFinishedButton;
     private javax.swing.JTextField triggerTextField;
@@ -0,0 +1,205 @@
+/*
+ Project: dbx-capture
+ File: SharedFrame.java (com.dividebyxero.dbxcapture.gui)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.gui;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read-only view of part of a captured screen, for the dedicated crop
+ * windows. The pixels stay in the (off-heap) CaptureBuffer they were grabbed
+ * into - windows only get a shrunken preview of their part, and the only full
+ * resolution copy ever made is of the area that's finally picked, by
+ * copyRegion().
+ *
+ * Several views can share one capture (a window per display, say). The
+ * capture is reference counted: every view holds a reference until it's
+ * released, and once the last one goes the buffer is handed back for the
+ * next screenshot to grab into.
+ *
+ * @author Alex Kersten
+ */
+public class SharedFrame {
+
+    /**
+     * The capture all the views of it share.
+     */
+    private static class Pixels {
+
+        private CaptureBuffer buffer;
+
+        private final Queue<CaptureBuffer> recycle;
+
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Pixels(CaptureBuffer buffer, Queue<CaptureBuffer> recycle) {
+            this.buffer = buffer;
+            this.recycle = recycle;
+        }
+
+        private void retain() {
+            //Can't bring it back once it's gone.
+            while (true) {
+                int current = references.get();
+
+                if (current == 0) {
+                    throw new IllegalStateException("Frame already released.");
+                }
+
+                if (references.compareAndSet(current, current + 1)) {
+                    return;
+                }
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                CaptureBuffer spare = buffer;
+                buffer = null;
+
+                if (recycle != null) {
+                    //If there are already enough spares it's just garbage.
+                    recycle.offer(spare);
+                }
+            }
+        }
+    }
+
+    private final Pixels pixels;
+
+    //The part of the buffer this view covers, in buffer pixels.
+    private final Rectangle area;
+
+    //Where the buffer's top left corner was on the virtual desktop.
+    private final Point origin;
+
+    private boolean released = false;
+
+    /**
+     * Makes the first view of a capture, covering all of it. The caller owns
+     * the reference it comes with.
+     *
+     * @param buffer A buffer that's just been grabbed into. It mustn't be
+     * touched by anything else from now on.
+     * @param origin Where the grab's top left corner is on the virtual
+     * desktop.
+     * @param recycle Where to put the buffer once every view is released, or
+     * null to just let go of it.
+     */
+    public SharedFrame(CaptureBuffer buffer, Point origin,
+                       Queue<CaptureBuffer> recycle) {
+        this(new Pixels(buffer, recycle),
+             new Rectangle(buffer.getWidth(), buffer.getHeight()),
+             new Point(origin));
+    }
+
+    private SharedFrame(Pixels pixels, Rectangle area, Point origin) {
+        this.pixels = pixels;
+        this.area = area;
+        this.origin = origin;
+    }
+
+    /**
+     * Makes another view of part of the same capture. It holds its own
+     * reference, which has to be released separately.
+     *
+     * @param desktopArea The part to view, in virtual desktop coordinates.
+     * @return The view, or null if the area isn't part of this one.
+     */
+    public synchronized SharedFrame view(Rectangle desktopArea) {
+        checkReleased();
+
+        Rectangle part = new Rectangle(desktopArea);
+        part.translate(-origin.x, -origin.y);
+        part = part.intersection(area);
+
+        if (part.isEmpty()) {
+            return null;
+        }
+
+        pixels.retain();
+        return new SharedFrame(pixels, part, origin);
+    }
+
+    /**
+     * Lets go of this view's reference. Does nothing the second time.
+     */
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            pixels.release();
+        }
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("View already released.");
+        }
+    }
+
+    public int getWidth() {
+        return area.width;
+    }
+
+    public int getHeight() {
+        return area.height;
+    }
+
+    /**
+     * @return Where this view is on the virtual desktop.
+     */
+    public Rectangle getDesktopBounds() {
+        Rectangle bounds = new Rectangle(area);
+        bounds.translate(origin.x, origin.y);
+        return bounds;
+    }
+
+    /**
+     * @return A shrunken copy of the view to show while cropping (see
+     * ScreenPreview).
+     */
+    public synchronized BufferedImage createPreview() {
+        checkReleased();
+        return ScreenPreview.shrink(pixels.buffer, area);
+    }
+
+    /**
+     * Copies part of the view out at full resolution.
+     *
+     * @param region What to copy, relative to the view. Clipped to it.
+     * @return The pixels, or null if the region is entirely outside the view.
+     */
+    public synchronized BufferedImage copyRegion(Rectangle region) {
+        checkReleased();
+
+        Rectangle part = new Rectangle(region);
+        part.translate(area.x, area.y);
+        part = part.intersection(area);
+
+        if (part.isEmpty()) {
+            return null;
+        }
+
+        BufferedImage image = new BufferedImage(part.width, part.height,
+                                                BufferedImage.TYPE_INT_RGB);
+        pixels.buffer.copyRegionTo(
+                ((DataBufferInt) image.getRaster().getDataBuffer()).getData(),
+                part.width, part.x, part.y, part.width, part.height);
+        return image;
+    }
+
+    /**
+     * @return How many views of the capture haven't been released yet.
+     */
+    public int getReferenceCount() {
+        return pixels.references.get();
+    }
+}
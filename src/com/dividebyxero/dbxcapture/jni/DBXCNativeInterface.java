@@ -5,6 +5,8 @@
  */
 package com.dividebyxero.dbxcapture.jni;
 
+import java.nio.ByteBuffer;
+
 /**
  * The interface providing methods that get executed in native code.
  *
@@ -29,10 +31,69 @@ public abstract class DBXCNativeInterface {
      */
     public static native void blockUntilKeypress(int vk);
 
+    /**
+     * Returns how many bytes of pixel data captureScreenToBuffer() needs to be
+     * able to write for the current screen (stride * height), not including
+     * the CaptureBuffer header.
+     *
+     * @return Required pixel capacity in bytes.
+     */
+    public static native int queryScreenBufferSize();
+
+    /**
+     * Returns the pixel format captureScreenToBuffer() writes, which should be
+     * whatever the framebuffer is in already - the library doesn't convert
+     * anything, Java does that only where it's needed.
+     *
+     * @return A PixelFormat id.
+     */
+    public static native int queryScreenPixelFormat();
+
+    /**
+     * Captures the entire visible screen into a caller-owned direct buffer.
+     * The buffer must be allocated with ByteBuffer.allocateDirect() so the
+     * native side can get at its address - nothing is allocated or copied
+     * across JNI. The first CaptureBuffer.HEADER_SIZE bytes receive the width,
+     * height, stride and pixel format id (as native-order ints), followed by
+     * the pixel rows. See CaptureBuffer for the exact layout.
+     *
+     * @param buffer Direct buffer with room for the header plus
+     * queryScreenBufferSize() bytes.
+     * @return True if the screen was captured, false if the buffer was too
+     * small, not direct, or the capture failed.
+     */
+    public static native boolean captureScreenToBuffer(ByteBuffer buffer);
+
+    /**
+     * Captures one rectangle of the screen, reading only the pixels inside
+     * it. Same buffer layout as captureScreenToBuffer(), with the header
+     * holding the rectangle's width and height. Coordinates are on the
+     * virtual desktop, the same ones GraphicsEnvironment uses, so they can
+     * be negative on multi-monitor setups.
+     *
+     * @param buffer Direct buffer with room for the header plus width *
+     * height * 4 bytes (more than enough for any format).
+     * @param x Left edge of the rectangle.
+     * @param y Top edge of the rectangle.
+     * @param width Width of the rectangle.
+     * @param height Height of the rectangle.
+     * @return True if the rectangle was captured, false if the buffer was too
+     * small, not direct, the rectangle wasn't on the screen or the capture
+     * failed.
+     */
+    public static native boolean captureRegionToBuffer(ByteBuffer buffer,
+                                                       int x, int y,
+                                                       int width, int height);
+
     /**
      * Returns the bitmap of the entire visible screen as a 2d byte array, 8-bit
      * RGB encoded.
      *
+     * Allocates a Java array per row on every call, which is slow on big
+     * screens - prefer captureScreenToBuffer(). This is what builds of the
+     * library from before that existed have, so NativeCaptureBackend falls
+     * back on it.
+     *
      * @return 8-bit RGB array of the screen.
      */
     public static native byte[][] dumpScreenBits();
@@ -0,0 +1,24 @@
+/*
+ Project: dbx-capture
+ File: BackpressurePolicy.java (com.dividebyxero.dbxcapture.pipeline)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.pipeline;
+
+/**
+ * What a PipelineStage does when something is submitted to it while its queue
+ * is full.
+ *
+ * @author Alex Kersten
+ */
+public enum BackpressurePolicy {
+
+    //Make the submitting stage wait until there's room. Nothing gets lost, but
+    //the slowness propagates upstream.
+    BLOCK,
+    //Throw away the oldest waiting item to make room for the new one.
+    DROP_OLDEST,
+    //Throw away everything waiting so only the newest item is pending. Good
+    //for things where only the latest request matters.
+    COALESCE
+}
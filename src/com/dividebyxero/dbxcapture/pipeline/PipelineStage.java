@@ -0,0 +1,212 @@
+/*
+ Project: dbx-capture
+ File: PipelineStage.java (com.dividebyxero.dbxcapture.pipeline)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One step of a pipeline: a bounded input queue, a dedicated thread draining
+ * it through a StageProcessor, and an optional next stage that receives the
+ * results. What happens when the queue is full is up to the stage's
+ * BackpressurePolicy.
+ *
+ * Chain stages with then(), and start() every one of them.
+ *
+ * @author Alex Kersten
+ */
+public class PipelineStage<I, O> {
+
+    private final String name;
+
+    private final BlockingQueue<I> queue;
+
+    private final BackpressurePolicy policy;
+
+    private final StageProcessor<I, O> processor;
+
+    //Each stage gets its own thread so a slow stage only holds up itself.
+    private final ExecutorService executor;
+
+    private volatile PipelineStage<O, ?> next;
+
+    private volatile boolean running = false;
+
+    private final AtomicLong processed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param name Name for the thread and log messages.
+     * @param capacity How many items can wait in the queue.
+     * @param policy What to do when the queue is full.
+     * @param processor The work this stage does.
+     */
+    public PipelineStage(final String name, int capacity,
+                         BackpressurePolicy policy,
+                         StageProcessor<I, O> processor) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.processor = processor;
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DBXC pipeline: " + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Sets the stage results get passed on to.
+     *
+     * @param next The next stage.
+     * @return The next stage, so calls can be chained.
+     */
+    public <N> PipelineStage<O, N> then(PipelineStage<O, N> next) {
+        this.next = next;
+        return next;
+    }
+
+    /**
+     * Starts the stage's thread.
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Stops the stage. Anything still queued is thrown away and the current
+     * item is interrupted.
+     */
+    public void shutdown() {
+        running = false;
+        queue.clear();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Hands an item to this stage, applying the backpressure policy if the
+     * queue is full.
+     *
+     * @param item The item.
+     * @return False if the stage isn't running or we were interrupted while
+     * blocked.
+     */
+    public boolean submit(I item) {
+        if (!running) {
+            return false;
+        }
+
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(item);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(item)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                break;
+            case COALESCE:
+                synchronized (queue) {
+                    int pending = queue.size();
+                    queue.clear();
+                    dropped.addAndGet(pending);
+                    queue.offer(item);
+                }
+                break;
+        }
+
+        return true;
+    }
+
+    private void drain() {
+        while (running) {
+            I item;
+
+            try {
+                item = queue.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+
+            O result;
+
+            try {
+                result = processor.process(item);
+            } catch (Throwable t) {
+                //Errors too - an OutOfMemoryError on one huge capture, or a
+                //plugin that won't link, mustn't kill the thread and leave
+                //everyone submitting to us blocked forever.
+                failed.incrementAndGet();
+                System.err.println("Pipeline stage " + name + " failed:\n"
+                                   + t);
+                continue;
+            }
+
+            processed.incrementAndGet();
+
+            PipelineStage<O, ?> n = next;
+            if (result != null && n != null) {
+                n.submit(result);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return How many items are waiting in the queue right now.
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * @return How many items the backpressure policy threw away.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ Project: dbx-capture
+ File: StageProcessor.java (com.dividebyxero.dbxcapture.pipeline)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.pipeline;
+
+/**
+ * The work done by a single PipelineStage.
+ *
+ * @author Alex Kersten
+ */
+public interface StageProcessor<I, O> {
+
+    /**
+     * Processes one item.
+     *
+     * @param input The item taken off the stage's queue.
+     * @return What to hand to the next stage, or null to stop this item here.
+     * @throws Exception Anything thrown is logged and the item is discarded;
+     * the stage keeps running.
+     */
+    O process(I input) throws Exception;
+}
@@ -0,0 +1,142 @@
+/*
+ Project: dbx-capture
+ File: CaptureJob.java (com.dividebyxero.dbxcapture.runners)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.runners;
+
+import com.dividebyxero.dbxcapture.catalog.CatalogEntry;
+import com.dividebyxero.dbxcapture.gui.ScreenPreview;
+import com.dividebyxero.dbxcapture.gui.SharedFrame;
+import com.dividebyxero.dbxcapture.scripts.PostProcessor;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+/**
+ * A single screenshot on its way through the CapturePipeline. Each stage fills
+ * in a bit more of it. Only one stage touches a job at a time, so there's no
+ * locking.
+ *
+ * @author Alex Kersten
+ */
+public class CaptureJob {
+
+    //System.nanoTime() of the key press that started this job.
+    private final long triggerTime;
+
+    //Script settings as of the key press, so changing them while a job is in
+    //flight doesn't affect it. Exactly one of commandLine and postProcessor
+    //is set.
+    private final String commandLine;
+
+    private final PostProcessor postProcessor;
+
+    private final boolean localMode;
+
+    //Set by the grab stage, replaced by the crop stage.
+    private BufferedImage image;
+
+    //Set by the grab stage instead of the image when the crop overlay is
+    //going to pick what to grab. The crop stage grabs the image then.
+    private ScreenPreview preview;
+
+    //Set by the grab stage instead of the image in the dedicated windows crop
+    //mode. The crop windows make the image from it.
+    private SharedFrame frame;
+
+    //Set by the encode stage, unless the job is for a plugin.
+    private File imageFile;
+
+    //Set by the encode stage when the image is the same as one already in
+    //the catalog.
+    private CatalogEntry original;
+
+    /**
+     * A job whose image gets saved and handed to a scripts.cfg command line.
+     */
+    public CaptureJob(long triggerTime, String commandLine, boolean localMode) {
+        this.triggerTime = triggerTime;
+        this.commandLine = commandLine;
+        this.postProcessor = null;
+        this.localMode = localMode;
+    }
+
+    /**
+     * A job whose image goes straight to an in-process plugin, without being
+     * saved.
+     */
+    public CaptureJob(long triggerTime, PostProcessor postProcessor,
+                      boolean localMode) {
+        this.triggerTime = triggerTime;
+        this.commandLine = null;
+        this.postProcessor = postProcessor;
+        this.localMode = localMode;
+    }
+
+    /**
+     * A job for another image from the same screenshot, with the same
+     * settings as the original and nothing else filled in.
+     */
+    public CaptureJob(CaptureJob original) {
+        this.triggerTime = original.triggerTime;
+        this.commandLine = original.commandLine;
+        this.postProcessor = original.postProcessor;
+        this.localMode = original.localMode;
+    }
+
+    public long getTriggerTime() {
+        return triggerTime;
+    }
+
+    public String getCommandLine() {
+        return commandLine;
+    }
+
+    public PostProcessor getPostProcessor() {
+        return postProcessor;
+    }
+
+    public boolean isLocalMode() {
+        return localMode;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public void setImage(BufferedImage image) {
+        this.image = image;
+    }
+
+    public ScreenPreview getPreview() {
+        return preview;
+    }
+
+    public void setPreview(ScreenPreview preview) {
+        this.preview = preview;
+    }
+
+    public SharedFrame getFrame() {
+        return frame;
+    }
+
+    public void setFrame(SharedFrame frame) {
+        this.frame = frame;
+    }
+
+    public File getImageFile() {
+        return imageFile;
+    }
+
+    public void setImageFile(File imageFile) {
+        this.imageFile = imageFile;
+    }
+
+    public CatalogEntry getOriginal() {
+        return original;
+    }
+
+    public void setOriginal(CatalogEntry original) {
+        this.original = original;
+    }
+}
@@ -0,0 +1,746 @@
+/*
+ Project: dbx-capture
+ File: CapturePipeline.java (com.dividebyxero.dbxcapture.runners)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.runners;
+
+import com.dividebyxero.dbxcapture.DBXCRuntime;
+import com.dividebyxero.dbxcapture.capture.CaptureBackend;
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import com.dividebyxero.dbxcapture.capture.Display;
+import com.dividebyxero.dbxcapture.capture.DisplayGrabber;
+import com.dividebyxero.dbxcapture.capture.DisplayTopology;
+import com.dividebyxero.dbxcapture.catalog.CaptureCatalog;
+import com.dividebyxero.dbxcapture.catalog.CatalogEntry;
+import com.dividebyxero.dbxcapture.catalog.PixelHash;
+import com.dividebyxero.dbxcapture.catalog.ThumbnailCache;
+import com.dividebyxero.dbxcapture.catalog.ThumbnailPack;
+import com.dividebyxero.dbxcapture.encode.ParallelPngEncoder;
+import com.dividebyxero.dbxcapture.gui.CropOverlay;
+import com.dividebyxero.dbxcapture.gui.CropWindow;
+import com.dividebyxero.dbxcapture.gui.ScreenPreview;
+import com.dividebyxero.dbxcapture.gui.SharedFrame;
+import com.dividebyxero.dbxcapture.pipeline.BackpressurePolicy;
+import com.dividebyxero.dbxcapture.pipeline.PipelineStage;
+import com.dividebyxero.dbxcapture.pipeline.StageProcessor;
+import com.dividebyxero.dbxcapture.scripts.ScriptResultListener;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.MouseInfo;
+import java.awt.Point;
+import java.awt.PointerInfo;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.datatransfer.StringSelection;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The screenshot pipeline: grab, crop, encode, post-process. Every step is its
+ * own PipelineStage with its own thread, so grabbing the next screenshot never
+ * waits on the previous one being saved or uploaded.
+ *
+ * Queue sizes and policies:
+ *
+ * <ul><li>grab - coalesces, since presses that arrive while a grab is already
+ * pending would capture the same screen anyway</li><li>crop - blocks, we never
+ * want to lose a capture the user asked for</li><li>encode - blocks</li>
+ * <li>post-process - blocks, with a deep queue so a slow upload only backs up
+ * the uploads</li></ul>
+ *
+ * Jobs for an in-process PostProcessor skip the encode step entirely - the
+ * plugin gets the image itself in the post-process stage.
+ *
+ * In the fullscreen crop mode the grab stage only grabs a ScreenPreview, and
+ * the crop stage shows it in a CropOverlay and then grabs just the area the
+ * user picked at full resolution. The full screen is never turned into an
+ * image, let alone encoded.
+ *
+ * In the dedicated windows crop mode the grab stage grabs into a buffer of its
+ * own and wraps it in a SharedFrame, and the crop stage opens a CropWindow for
+ * each display it covers and moves on without waiting. Every saved crop goes
+ * back into the crop stage as a job of its own, with its image set.
+ *
+ * Every saved screenshot goes into the content directory's CaptureCatalog,
+ * along with a thumbnail made while the full image is still in memory, and
+ * whatever its script reports back (the upload's URL, say) is added to its
+ * entry when it comes in.
+ *
+ * Screenshots of a screen that hasn't changed since one already in the
+ * catalog (same PixelHash) aren't encoded again - the new file is a hard link
+ * to the old one, or where links aren't possible the job just uses the old
+ * file. If the same script already reported a result for the old one, that's
+ * reused (and put on the clipboard) rather than running the script again.
+ *
+ * @author Alex Kersten
+ */
+public class CapturePipeline {
+
+    private static final int CROP_QUEUE_CAPACITY = 16;
+
+    private static final int ENCODE_QUEUE_CAPACITY = 16;
+
+    private static final int POST_PROCESS_QUEUE_CAPACITY = 64;
+
+    //Values of iCropMode.
+    public static final int CROP_FULLSCREEN = 0;
+
+    public static final int CROP_DEDICATED = 1;
+
+    public static final int CROP_NONE = 2;
+
+    //How long to give the crop overlay to actually leave the screen before
+    //grabbing what was under it.
+    private static final int OVERLAY_HIDE_MILLIS = 100;
+
+    //How many buffers from closed crop windows to keep for reuse.
+    private static final int SPARE_FRAME_BUFFERS = 2;
+
+    private final DBXCRuntime context;
+
+    private final PipelineStage<CaptureJob, CaptureJob> grabStage, cropStage,
+            encodeStage, postProcessStage;
+
+    //Only the grab stage touches these, and it's single threaded.
+    private final CaptureBuffer captureBuffer = new CaptureBuffer(0);
+
+    //Kept between screenshots so its buffers get reused, until the displays
+    //change.
+    private DisplayGrabber previewGrabber;
+
+    //Only the crop stage touches this.
+    private final CaptureBuffer regionBuffer = new CaptureBuffer(0);
+
+    //Buffers released by every crop window that was looking at them.
+    private final BlockingQueue<CaptureBuffer> spareFrameBuffers =
+                  new ArrayBlockingQueue<>(SPARE_FRAME_BUFFERS);
+
+    //Hands crops from the crop windows to the crop stage. The windows call
+    //back on the event thread, which mustn't wait for room in the queue -
+    //the crop stage itself waits whenever encoding falls behind.
+    private final ExecutorService cropSubmitter =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DBXC crop hand-off");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    //Puts what scripts report into the catalog, and logs what they don't.
+    private final ScriptResultListener resultListener =
+                                       new ScriptResultListener() {
+
+        @Override
+        public void resultReported(File image, String result) {
+            CaptureCatalog catalog = context.getCatalog();
+
+            if (catalog == null
+                || !catalog.getDirectory().equals(
+                    image.getParentFile().toPath())) {
+                return;
+            }
+
+            try {
+                catalog.setResult(image.getName(), result);
+            } catch (IOException ioe) {
+                System.err.println("Couldn't catalog the result for "
+                                   + image.getName() + ": "
+                                   + ioe.getMessage());
+            }
+        }
+
+        @Override
+        public void processingFailed(File image, String reason) {
+            System.err.println("Post-processing " + image.getName()
+                               + " failed: " + reason);
+        }
+    };
+
+    public CapturePipeline(DBXCRuntime context) {
+        this.context = context;
+
+        grabStage = new PipelineStage<>(
+                "grab", 1, BackpressurePolicy.COALESCE,
+                new StageProcessor<CaptureJob, CaptureJob>() {
+
+                    @Override
+                    public CaptureJob process(CaptureJob job) {
+                        return grab(job);
+                    }
+                });
+
+        cropStage = new PipelineStage<>(
+                "crop", CROP_QUEUE_CAPACITY, BackpressurePolicy.BLOCK,
+                new StageProcessor<CaptureJob, CaptureJob>() {
+
+                    @Override
+                    public CaptureJob process(CaptureJob job)
+                            throws Exception {
+                        return crop(job);
+                    }
+                });
+
+        encodeStage = new PipelineStage<>(
+                "encode", ENCODE_QUEUE_CAPACITY, BackpressurePolicy.BLOCK,
+                new StageProcessor<CaptureJob, CaptureJob>() {
+
+                    @Override
+                    public CaptureJob process(CaptureJob job) throws Exception {
+                        return encode(job);
+                    }
+                });
+
+        postProcessStage = new PipelineStage<>(
+                "post-process", POST_PROCESS_QUEUE_CAPACITY,
+                BackpressurePolicy.BLOCK,
+                new StageProcessor<CaptureJob, CaptureJob>() {
+
+                    @Override
+                    public CaptureJob process(CaptureJob job) throws Exception {
+                        return postProcess(job);
+                    }
+                });
+
+        grabStage.then(cropStage).then(encodeStage).then(postProcessStage);
+
+        postProcessStage.start();
+        encodeStage.start();
+        cropStage.start();
+        grabStage.start();
+    }
+
+    /**
+     * Starts a new screenshot. Returns immediately.
+     *
+     * @param job The job, with the trigger time and script settings filled in.
+     * @return False if the pipeline has been shut down.
+     */
+    public boolean submit(CaptureJob job) {
+        return grabStage.submit(job);
+    }
+
+    /**
+     * Stops every stage, discarding anything in flight.
+     */
+    public void shutdown() {
+        grabStage.shutdown();
+        cropStage.shutdown();
+        encodeStage.shutdown();
+        postProcessStage.shutdown();
+        cropSubmitter.shutdownNow();
+
+        if (previewGrabber != null) {
+            previewGrabber.dispose();
+        }
+    }
+
+    private CaptureJob grab(CaptureJob job) {
+        CaptureBackend backend = context.getCaptureBackend();
+        int cropMode = context.getSettings().getIntSetting("iCropMode");
+
+        if (cropMode == CROP_FULLSCREEN) {
+            ScreenPreview preview = grabPreview(backend);
+
+            if (preview != null) {
+                job.setPreview(preview);
+                return job;
+            }
+
+            //No displays to put an overlay on, so no cropping.
+        }
+
+        Rectangle region = getScreenshotRegion(backend);
+
+        if (cropMode == CROP_DEDICATED && !GraphicsEnvironment.isHeadless()) {
+            //The buffer goes with the job, and comes back once the windows
+            //are done with it.
+            CaptureBuffer buffer = spareFrameBuffers.poll();
+            if (buffer == null) {
+                buffer = new CaptureBuffer(0);
+            }
+
+            if (!grabInto(backend, buffer, region)) {
+                spareFrameBuffers.offer(buffer);
+                return null;
+            }
+
+            Point origin = new Point();
+            if (region != null) {
+                origin = region.getLocation();
+            } else if (backend.getTopology() != null) {
+                origin = backend.getTopology().getVirtualBounds().
+                        getLocation();
+            }
+
+            job.setFrame(new SharedFrame(buffer, origin, spareFrameBuffers));
+            return job;
+        }
+
+        if (!grabInto(backend, captureBuffer, region)) {
+            return null;
+        }
+
+        job.setImage(captureBuffer.toImage());
+        return job;
+    }
+
+    /**
+     * @param region What to grab, or null for the whole desktop.
+     * @return False if the grab failed.
+     */
+    private static boolean grabInto(CaptureBackend backend,
+                                    CaptureBuffer buffer, Rectangle region) {
+        boolean grabbed;
+
+        if (region == null) {
+            buffer.ensureCapacity(backend.getRequiredCapacity());
+            grabbed = backend.grab(buffer);
+        } else {
+            buffer.ensureCapacity(backend.getRequiredCapacity(region));
+            grabbed = backend.grabRegion(buffer, region);
+        }
+
+        if (!grabbed) {
+            System.err.println("Screen capture failed.");
+        }
+
+        return grabbed;
+    }
+
+    /**
+     * Grabs every display and shrinks them for the crop overlay.
+     *
+     * @return The preview, or null if it couldn't be grabbed.
+     */
+    private ScreenPreview grabPreview(CaptureBackend backend) {
+        DisplayTopology topology = backend.getTopology();
+
+        if (topology == null || GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+
+        if (previewGrabber == null
+            || !previewGrabber.getTopology().equals(topology)) {
+            if (previewGrabber != null) {
+                previewGrabber.dispose();
+            }
+
+            previewGrabber = new DisplayGrabber(backend, topology);
+        }
+
+        if (!previewGrabber.grab()) {
+            return null;
+        }
+
+        return new ScreenPreview(previewGrabber);
+    }
+
+    /**
+     * Works out what a screenshot covers. With sScreenshotArea set to
+     * "display" that's the display the mouse is on, otherwise the whole
+     * desktop.
+     *
+     * @return The display's bounds, or null for the whole desktop.
+     */
+    private Rectangle getScreenshotRegion(CaptureBackend backend) {
+        if (!"display".equalsIgnoreCase(
+                context.getSettings().getSetting("sScreenshotArea"))) {
+            return null;
+        }
+
+        DisplayTopology topology = backend.getTopology();
+
+        if (topology == null || topology.getDisplayCount() == 1) {
+            //Only one display, so it is the whole desktop.
+            return null;
+        }
+
+        Display display = null;
+
+        try {
+            PointerInfo pointer = MouseInfo.getPointerInfo();
+
+            if (pointer != null) {
+                Point p = pointer.getLocation();
+                display = topology.getDisplayAt(p.x, p.y);
+            }
+        } catch (HeadlessException | SecurityException e) {
+            //No mouse to go by.
+        }
+
+        return (display == null ? topology.getPrimary() : display).
+                getBounds();
+    }
+
+    private CaptureJob crop(CaptureJob job) throws InterruptedException {
+        if (job.getFrame() != null) {
+            openCropWindows(job);
+            return null;
+        }
+
+        if (job.getPreview() == null) {
+            //Not cropping, or already cropped in a window.
+            return job;
+        }
+
+        Rectangle area = CropOverlay.select(job.getPreview());
+        job.setPreview(null);
+
+        if (area == null) {
+            System.out.println("Screenshot cancelled.");
+            return null;
+        }
+
+        Thread.sleep(OVERLAY_HIDE_MILLIS);
+
+        CaptureBackend backend = context.getCaptureBackend();
+        regionBuffer.ensureCapacity(backend.getRequiredCapacity(area));
+
+        if (!backend.grabRegion(regionBuffer, area)) {
+            System.err.println("Screen capture failed.");
+            return null;
+        }
+
+        job.setImage(regionBuffer.toImage());
+        return job;
+    }
+
+    /**
+     * Opens a crop window for every display the job's frame covers, each
+     * with its own view of the frame. The job's own reference is let go, so
+     * the frame's buffer is free again once the last window closes.
+     */
+    private void openCropWindows(final CaptureJob job) {
+        SharedFrame frame = job.getFrame();
+        job.setFrame(null);
+
+        List<SharedFrame> views = new ArrayList<>();
+        DisplayTopology topology = context.getCaptureBackend().getTopology();
+
+        if (topology != null) {
+            for (Display display : topology.getDisplaysIn(
+                    frame.getDesktopBounds())) {
+                SharedFrame view = frame.view(display.getBounds());
+                if (view != null) {
+                    views.add(view);
+                }
+            }
+        }
+
+        if (views.isEmpty()) {
+            views.add(frame.view(frame.getDesktopBounds()));
+        }
+
+        frame.release();
+
+        CropWindow.Listener listener = new CropWindow.Listener() {
+
+            @Override
+            public void cropped(BufferedImage image) {
+                final CaptureJob cropped = new CaptureJob(job);
+                cropped.setImage(image);
+
+                try {
+                    cropSubmitter.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            cropStage.submit(cropped);
+                        }
+                    });
+                } catch (RejectedExecutionException ree) {
+                    //Shut down with the window still open, so there's
+                    //nowhere for the crop to go.
+                }
+            }
+        };
+
+        for (int i = 0; i < views.size(); i++) {
+            CropWindow.open(views.get(i), "DBXCapture - Crop"
+                                          + (views.size() > 1
+                                             ? " (display " + (i + 1) + ")"
+                                             : ""), listener);
+        }
+    }
+
+    private CaptureJob encode(CaptureJob job) throws Exception {
+        if (job.getPostProcessor() != null) {
+            return job;
+        }
+
+        long now = System.currentTimeMillis();
+        File imageFile = new File(
+                context.getSettings().getPathSetting("sContentDirectory").
+                toFile(),
+                new SimpleDateFormat(CaptureCatalog.FILE_NAME_FORMAT).
+                format(new Date(now)) + ".png");
+
+        String pixelHash = PixelHash.hash(job.getImage());
+        CatalogEntry original = findOriginal(imageFile, pixelHash,
+                                             job.getImage());
+
+        if (original != null) {
+            job.setOriginal(original);
+            File originalFile = new File(imageFile.getParentFile(),
+                                         original.getFileName());
+
+            if (link(originalFile, imageFile)) {
+                job.setImageFile(imageFile);
+                catalog(job, TimeUnit.MILLISECONDS.toMicros(now),
+                        original.getFileHash(), pixelHash,
+                        original.getCompression());
+            } else {
+                //No links here (FAT, say), so the repeat just is the
+                //original as far as anything after this is concerned.
+                job.setImageFile(originalFile);
+            }
+
+            System.out.println("Screenshot is the same as "
+                               + original.getFileName() + ", not saving it "
+                               + "again.");
+
+            job.setImage(null);
+            return job;
+        }
+
+        //Local mode just drops the file on the desktop, so favor speed over
+        //size there.
+        int level = job.isLocalMode()
+                    ? ParallelPngEncoder.FAST
+                    : context.getSettings().getIntSetting("iPngCompression");
+
+        //Hash it on the way out for the catalog, rather than reading it back.
+        MessageDigest digest = CaptureCatalog.newFileDigest();
+
+        try (OutputStream out = new DigestOutputStream(
+                new BufferedOutputStream(new FileOutputStream(imageFile)),
+                digest)) {
+            new ParallelPngEncoder(level).write(job.getImage(), out);
+        }
+
+        job.setImageFile(imageFile);
+        catalog(job, TimeUnit.MILLISECONDS.toMicros(now),
+                CaptureCatalog.toHex(digest.digest()), pixelHash, level);
+
+        //Nothing after this needs the pixels, let them go.
+        job.setImage(null);
+        return job;
+    }
+
+    /**
+     * @return The catalog for a file in the content directory, or null if
+     * there isn't one (or it's for another directory).
+     */
+    private CaptureCatalog getCatalog(File file) {
+        CaptureCatalog catalog = context.getCatalog();
+
+        if (catalog == null || !catalog.getDirectory().equals(
+                file.getParentFile().toPath())) {
+            return null;
+        }
+
+        return catalog;
+    }
+
+    /**
+     * Looks for an earlier capture of exactly the same picture whose file is
+     * still there.
+     *
+     * @param imageFile Where the new capture would go.
+     * @return The earlier capture, or null if there isn't one.
+     */
+    private CatalogEntry findOriginal(File imageFile, String pixelHash,
+                                      BufferedImage image) {
+        CaptureCatalog catalog = getCatalog(imageFile);
+
+        if (catalog == null) {
+            return null;
+        }
+
+        CatalogEntry original = catalog.findByPixels(pixelHash);
+
+        if (original == null || original.getWidth() != image.getWidth()
+            || original.getHeight() != image.getHeight()
+            || !Files.isRegularFile(catalog.getDirectory().resolve(
+                original.getFileName()))) {
+            return null;
+        }
+
+        return original;
+    }
+
+    /**
+     * Makes a hard link to an existing capture.
+     *
+     * @return False if the file system or OS doesn't do links.
+     */
+    private static boolean link(File existing, File link) {
+        try {
+            Files.createLink(link.toPath(), existing.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException
+                 | SecurityException e) {
+            System.err.println("Couldn't link " + link.getName() + " to "
+                               + existing.getName() + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Adds a freshly saved screenshot to the catalog, if its file is in the
+     * catalog's directory. Screenshots still get processed if this fails.
+     */
+    private void catalog(CaptureJob job, long time, String fileHash,
+                         String pixelHash, int compression) {
+        File imageFile = job.getImageFile();
+        CaptureCatalog catalog = getCatalog(imageFile);
+
+        if (catalog == null) {
+            return;
+        }
+
+        try {
+            catalog.add(new CatalogEntry(time, imageFile.getName(),
+                                         job.getImage().getWidth(),
+                                         job.getImage().getHeight(),
+                                         job.getCommandLine(), null, fileHash,
+                                         pixelHash, storeThumbnail(job),
+                                         compression));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Couldn't catalog " + imageFile.getName()
+                               + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Where the job's thumbnail went, or -1 if it hasn't got one.
+     */
+    private long storeThumbnail(CaptureJob job) {
+        ThumbnailCache thumbnails = context.getThumbnails();
+
+        if (thumbnails == null) {
+            return -1;
+        }
+
+        try {
+            return thumbnails.store(
+                    job.getImageFile().getName(),
+                    ThumbnailPack.createThumbnail(job.getImage()));
+        } catch (IOException ioe) {
+            System.err.println("Couldn't store a thumbnail of "
+                               + job.getImageFile().getName() + ": "
+                               + ioe.getMessage());
+            return -1;
+        }
+    }
+
+    private CaptureJob postProcess(CaptureJob job) throws Exception {
+        if (job.getPostProcessor() != null) {
+            job.getPostProcessor().process(job.getImage(), job.isLocalMode());
+            job.setImage(null);
+            return null;
+        }
+
+        if (reuseResult(job)) {
+            return null;
+        }
+
+        //Execute processing on this path (usually upload or desktop copy)
+        //by invoking the specified script in the scripts directory, or
+        //handing it to the script's workers if it's a persistent one.
+        context.getScriptExecutor().execute(job.getCommandLine(),
+                                            job.getImageFile(),
+                                            job.isLocalMode(),
+                                            resultListener);
+        return null;
+    }
+
+    /**
+     * Gives a repeat of an earlier screenshot the result the earlier one got
+     * from the same script, if it got one. Local mode always runs the script,
+     * since it's cheap and its result (a file on the desktop) isn't something
+     * that can be reused.
+     *
+     * @return False if the script has to run after all.
+     */
+    private boolean reuseResult(CaptureJob job) {
+        CatalogEntry original = job.getOriginal();
+        CaptureCatalog catalog = getCatalog(job.getImageFile());
+
+        if (original == null || catalog == null || job.isLocalMode()) {
+            return false;
+        }
+
+        //The result may have come in since the encode stage looked.
+        original = catalog.get(original.getFileName());
+
+        if (original == null || original.getResult() == null
+            || !job.getCommandLine().equals(original.getScript())) {
+            return false;
+        }
+
+        String result = original.getResult();
+        String name = job.getImageFile().getName();
+
+        if (!name.equals(original.getFileName())) {
+            try {
+                catalog.setResult(name, result);
+            } catch (IOException ioe) {
+                System.err.println("Couldn't catalog the result for " + name
+                                   + ": " + ioe.getMessage());
+            }
+        }
+
+        System.out.println("Reusing the result for " + original.getFileName()
+                           + ": " + result);
+
+        if (!GraphicsEnvironment.isHeadless()) {
+            try {
+                Toolkit.getDefaultToolkit().getSystemClipboard().setContents(
+                        new StringSelection(result), null);
+            } catch (IllegalStateException ise) {
+                //Someone else has the clipboard open, it's in the log anyway.
+            }
+        }
+
+        return true;
+    }
+
+    public PipelineStage<CaptureJob, CaptureJob> getGrabStage() {
+        return grabStage;
+    }
+
+    public PipelineStage<CaptureJob, CaptureJob> getCropStage() {
+        return cropStage;
+    }
+
+    public PipelineStage<CaptureJob, CaptureJob> getEncodeStage() {
+        return encodeStage;
+    }
+
+    public PipelineStage<CaptureJob, CaptureJob> getPostProcessStage() {
+        return postProcessStage;
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ Project: dbx-capture
+ File: RetentionRunner.java (com.dividebyxero.dbxcapture.runners)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.runners;
+
+import com.dividebyxero.dbxcapture.DBXCRuntime;
+import com.dividebyxero.dbxcapture.catalog.CaptureCatalog;
+import com.dividebyxero.dbxcapture.catalog.CatalogEntry;
+import com.dividebyxero.dbxcapture.catalog.ThumbnailCache;
+import com.dividebyxero.dbxcapture.config.Configuration;
+import com.dividebyxero.dbxcapture.config.ConfigurationListener;
+import com.dividebyxero.dbxcapture.encode.ParallelPngEncoder;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps the content directory from filling the disk. Every so often it goes
+ * over the capture catalog, oldest first, and deletes captures that are older
+ * than iRetentionDays, beyond the newest iRetentionCount, or past
+ * iRetentionMegabytes in all (whichever are set - 0 turns a policy off). It
+ * can also rewrite captures older than iRecompressDays at the best PNG
+ * compression, which is too slow to do while taking them. Once deleted
+ * captures' thumbnails are taking up enough of the thumbnail pack, it's
+ * compacted too.
+ *
+ * Everything goes by the catalog, so a pass never lists the directory: file
+ * sizes are remembered between passes and only captures it hasn't seen
+ * before are looked at on disk. Screenshots linked to each other count once
+ * towards the size, since they share their storage. Videos and anything else
+ * that isn't catalogued are left alone. The one exception is the first pass
+ * over a directory, which clears out recompressions a crash left unfinished.
+ *
+ * All of it happens on one low priority thread, and passes are skipped
+ * entirely while bRetention and bRecompressOld are both off.
+ *
+ * @author Alex Kersten
+ */
+public class RetentionRunner {
+
+    //Minutes between passes.
+    private static final long INTERVAL = 15;
+
+    //Leave startup alone for a bit before the first pass.
+    private static final long INITIAL_DELAY = 1;
+
+    //Captures younger than this are never touched, whatever the policies
+    //say - their script may still be working on them.
+    private static final long MIN_AGE = TimeUnit.MINUTES.toMicros(10);
+
+    //Most captures recompressed in one pass, so a pass over a big backlog
+    //doesn't hold the thread for hours.
+    private static final int RECOMPRESS_PER_PASS = 32;
+
+    private final DBXCRuntime context;
+
+    private final ScheduledExecutorService scheduler;
+
+    //Recompression's encoder gets a single thread of its own, so it doesn't
+    //compete with screenshots for the shared pool.
+    private final ForkJoinPool encoderPool;
+
+    //Everything below is only touched by the scheduler thread, apart from the
+    //stats.
+
+    //The catalog the sizes are for. Starting over on a different one.
+    private CaptureCatalog scanned;
+
+    //Size of each capture's file, by name.
+    private final Map<String, Long> sizes = new HashMap<>();
+
+    //What each capture's file has in common with the captures linked to it,
+    //by name. See getStorageKey().
+    private final Map<String, Object> storage = new HashMap<>();
+
+    //Captures that can't be recompressed without losing something, or
+    //couldn't be read.
+    private final Set<String> skipped = new HashSet<>();
+
+    private volatile long passes, deletedFiles, reclaimedBytes,
+                          recompressedFiles, savedBytes, usedBytes,
+                          lastPassMillis;
+
+    private volatile int trackedFiles;
+
+    public RetentionRunner(DBXCRuntime context) {
+        this(context, true);
+    }
+
+    /**
+     * @param schedule False to leave passes to whoever calls pass(), which is
+     * how the tests run them.
+     */
+    RetentionRunner(DBXCRuntime context, boolean schedule) {
+        this.context = context;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DBXC retention");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+
+        encoderPool = new ForkJoinPool(
+                1, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread t = ForkJoinPool.
+                                defaultForkJoinWorkerThreadFactory.
+                                newThread(pool);
+                        t.setName("DBXC recompress");
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                }, null, false);
+
+        if (!schedule) {
+            return;
+        }
+
+        final Runnable pass = new Runnable() {
+
+            @Override
+            public void run() {
+                pass();
+            }
+        };
+
+        scheduler.scheduleWithFixedDelay(pass, INITIAL_DELAY, INTERVAL,
+                                         TimeUnit.MINUTES);
+
+        //Tightening a policy shouldn't take until the next pass.
+        context.getSettings().addConfigurationListener(
+                new ConfigurationListener() {
+
+                    @Override
+                    public void settingChanged(String key, String oldValue,
+                                               String newValue) {
+                        if (newValue != null && !scheduler.isShutdown()
+                            && (key.equalsIgnoreCase("bRetention")
+                                || key.equalsIgnoreCase("iRetentionDays")
+                                || key.equalsIgnoreCase("iRetentionCount")
+                                || key.equalsIgnoreCase("iRetentionMegabytes")
+                                || key.equalsIgnoreCase("bRecompressOld"))) {
+                            scheduler.execute(pass);
+                        }
+                    }
+                });
+    }
+
+    private void pass() {
+        pass(context.getCatalog(), context.getSettings());
+    }
+
+    /**
+     * Goes over a catalog once, deleting and recompressing whatever the
+     * settings say to.
+     */
+    void pass(CaptureCatalog catalog, Configuration settings) {
+        boolean retain = settings.getBooleanSetting("bRetention");
+        boolean recompress = settings.getBooleanSetting("bRecompressOld");
+
+        if (catalog == null || (!retain && !recompress)) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        if (catalog != scanned) {
+            sizes.clear();
+            storage.clear();
+            skipped.clear();
+            scanned = catalog;
+            deleteLeftovers(catalog);
+        }
+
+        try {
+            //Oldest first.
+            List<CatalogEntry> entries = catalog.findBetween(Long.MIN_VALUE,
+                                                             Long.MAX_VALUE);
+            Map<Object, Integer> copies = new HashMap<>();
+            measure(catalog, entries, copies);
+
+            int deleted = retain
+                          ? deleteOld(catalog, entries, copies, settings) : 0;
+
+            if (recompress) {
+                recompressOld(catalog,
+                              entries.subList(deleted, entries.size()),
+                              copies, settings);
+            }
+
+            compactThumbnails(catalog);
+        } catch (IOException | RuntimeException e) {
+            //Don't let it stop the scheduler, the next pass can try again.
+            System.err.println("Retention pass over " + catalog.getDirectory()
+                               + " failed: " + e);
+        }
+
+        passes++;
+        lastPassMillis = System.currentTimeMillis() - start;
+        System.out.println("Retention: " + getStats());
+    }
+
+    /**
+     * Gets back the room the thumbnails of deleted captures took up in the
+     * pack, once there's enough of it.
+     */
+    private void compactThumbnails(CaptureCatalog catalog)
+            throws IOException {
+        ThumbnailCache thumbnails = context == null ? null
+                                    : context.getThumbnails();
+
+        if (thumbnails == null) {
+            return;
+        }
+
+        long saved = thumbnails.getPack().compact(catalog);
+
+        if (saved > 0) {
+            System.out.println("Compacted the thumbnail pack, "
+                               + saved / 1024 + " KB back.");
+        }
+    }
+
+    /**
+     * Deletes the temporary files of recompressions that never finished. Only
+     * a crash leaves them behind, so looking once per directory is enough.
+     */
+    private void deleteLeftovers(CaptureCatalog catalog) {
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(
+                catalog.getDirectory(), "*.png.tmp")) {
+            for (Path temp : temps) {
+                System.out.println("Deleting unfinished recompression "
+                                   + temp.getFileName() + "...");
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException ioe) {
+            //They'll be looked for again next time we start.
+            System.err.println("Couldn't clean up "
+                               + catalog.getDirectory() + ": "
+                               + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Works out how much the catalogued captures take up, looking at the files
+     * of only the ones that are new since the last pass. Captures whose files
+     * have gone are taken out of the catalog.
+     *
+     * @param entries Every capture, oldest first. Ones whose files have gone
+     * are taken out.
+     * @param copies Filled in with how many captures share each file.
+     */
+    private void measure(CaptureCatalog catalog, List<CatalogEntry> entries,
+                         Map<Object, Integer> copies) throws IOException {
+        Set<String> current = new HashSet<>();
+        long bytes = 0;
+
+        Iterator<CatalogEntry> itr = entries.iterator();
+
+        while (itr.hasNext()) {
+            CatalogEntry entry = itr.next();
+            Long size = sizes.get(entry.getFileName());
+
+            if (size == null) {
+                BasicFileAttributes attributes;
+
+                try {
+                    attributes = Files.readAttributes(
+                            catalog.getDirectory().resolve(
+                                    entry.getFileName()),
+                            BasicFileAttributes.class);
+                } catch (NoSuchFileException nsfe) {
+                    //Deleted by hand.
+                    catalog.remove(entry.getFileName());
+                    itr.remove();
+                    continue;
+                }
+
+                size = attributes.size();
+                sizes.put(entry.getFileName(), size);
+                storage.put(entry.getFileName(),
+                            getStorageKey(entry, attributes));
+            }
+
+            current.add(entry.getFileName());
+
+            Object key = storage.get(entry.getFileName());
+            Integer count = copies.get(key);
+            copies.put(key, count == null ? 1 : count + 1);
+
+            if (count == null) {
+                bytes += size;
+            }
+        }
+
+        //Forget captures that have left the catalog.
+        sizes.keySet().retainAll(current);
+        storage.keySet().retainAll(current);
+
+        usedBytes = bytes;
+        trackedFiles = entries.size();
+    }
+
+    /**
+     * Deletes the oldest captures until every policy is satisfied.
+     *
+     * @return How many captures (from the start of the list) were deleted.
+     */
+    private int deleteOld(CaptureCatalog catalog, List<CatalogEntry> entries,
+                          Map<Object, Integer> copies, Configuration settings)
+            throws IOException {
+        int days = settings.getIntSetting("iRetentionDays");
+        int maxCount = settings.getIntSetting("iRetentionCount");
+        int megabytes = settings.getIntSetting("iRetentionMegabytes");
+
+        long maxAge = days > 0 ? TimeUnit.DAYS.toMicros(days)
+                      : Long.MAX_VALUE;
+        long budget = megabytes > 0 ? megabytes * 1024L * 1024L
+                      : Long.MAX_VALUE;
+
+        long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        int count = entries.size();
+        long bytes = usedBytes;
+        int deleted = 0;
+
+        for (CatalogEntry entry : entries) {
+            long age = now - entry.getTime();
+
+            //The rest are newer, so they're fine too.
+            if (age < MIN_AGE
+                || (age <= maxAge && (maxCount <= 0 || count <= maxCount)
+                    && bytes <= budget)) {
+                break;
+            }
+
+            try {
+                Files.deleteIfExists(catalog.getDirectory().resolve(
+                        entry.getFileName()));
+            } catch (IOException ioe) {
+                //Probably open somewhere. Stop here rather than delete
+                //newer captures in its place.
+                System.err.println("Couldn't delete " + entry.getFileName()
+                                   + ": " + ioe.getMessage());
+                break;
+            }
+
+            catalog.remove(entry.getFileName());
+            count--;
+            deleted++;
+            deletedFiles++;
+
+            //The storage only comes back with the last link to it.
+            long size = sizes.remove(entry.getFileName());
+            Object key = storage.remove(entry.getFileName());
+            int left = copies.get(key) - 1;
+
+            if (left == 0) {
+                copies.remove(key);
+                bytes -= size;
+                reclaimedBytes += size;
+            } else {
+                copies.put(key, left);
+            }
+        }
+
+        usedBytes = bytes;
+        trackedFiles = count;
+        return deleted;
+    }
+
+    /**
+     * Rewrites captures older than iRecompressDays at the best compression,
+     * oldest first, a limited number each pass.
+     */
+    private void recompressOld(CaptureCatalog catalog,
+                               List<CatalogEntry> entries,
+                               Map<Object, Integer> copies,
+                               Configuration settings) {
+        long age = Math.max(MIN_AGE, TimeUnit.DAYS.toMicros(
+                settings.getIntSetting("iRecompressDays")));
+        long cutoff = TimeUnit.MILLISECONDS.toMicros(
+                System.currentTimeMillis()) - age;
+        int done = 0;
+
+        for (CatalogEntry entry : entries) {
+            if (entry.getTime() > cutoff || done == RECOMPRESS_PER_PASS
+                || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            //Rewriting one of a set of links would split it from the others.
+            if (entry.getCompression() >= ParallelPngEncoder.BEST
+                || skipped.contains(entry.getFileName())
+                || copies.get(storage.get(entry.getFileName())) > 1) {
+                continue;
+            }
+
+            recompress(catalog, entry);
+            done++;
+        }
+    }
+
+    private void recompress(CaptureCatalog catalog, CatalogEntry entry) {
+        Path file = catalog.getDirectory().resolve(entry.getFileName());
+        Path temp = catalog.getDirectory().resolve(entry.getFileName()
+                                                   + ".tmp");
+
+        try {
+            BufferedImage image = ImageIO.read(file.toFile());
+
+            //The encoder writes 8-bit RGB, so anything else would come out
+            //different.
+            ColorModel model = image == null ? null : image.getColorModel();
+
+            if (model == null || model.hasAlpha()
+                || model.getNumComponents() != 3
+                || model.getPixelSize() != 24) {
+                skipped.add(entry.getFileName());
+                return;
+            }
+
+            //Which of these is smaller depends on what's on the screen.
+            byte[] png = encode(image, false);
+            byte[] unfiltered = encode(image, true);
+
+            if (unfiltered.length < png.length) {
+                png = unfiltered;
+            }
+
+            long before = sizes.get(entry.getFileName());
+            String fileHash = entry.getFileHash();
+
+            if (png.length < before) {
+                //Written beside it and moved over it, so a crash part way
+                //leaves the old one alone.
+                Files.write(temp, png);
+
+                try {
+                    Files.move(temp, file,
+                               StandardCopyOption.REPLACE_EXISTING,
+                               StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException amnse) {
+                    Files.move(temp, file,
+                               StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                MessageDigest digest = CaptureCatalog.newFileDigest();
+                fileHash = CaptureCatalog.toHex(digest.digest(png));
+
+                //It's a different file now, so it's looked at on disk again
+                //next pass.
+                sizes.remove(entry.getFileName());
+                storage.remove(entry.getFileName());
+
+                usedBytes -= before - png.length;
+                savedBytes += before - png.length;
+                recompressedFiles++;
+            }
+
+            //Recorded either way, so it isn't tried again.
+            CatalogEntry current = catalog.get(entry.getFileName());
+
+            if (current != null) {
+                catalog.add(current.withCompression(ParallelPngEncoder.BEST,
+                                                    fileHash));
+            }
+        } catch (IOException ioe) {
+            System.err.println("Couldn't recompress " + entry.getFileName()
+                               + ": " + ioe.getMessage());
+            skipped.add(entry.getFileName());
+
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException cleanupProblem) {
+                //Not a capture, so it's harmless.
+            }
+        }
+    }
+
+    private byte[] encode(BufferedImage image, boolean unfiltered)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ParallelPngEncoder(ParallelPngEncoder.BEST, encoderPool,
+                               unfiltered).write(image, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return What captures sharing a file have in common: the file system's
+     * own identity for the file, so links match and copies don't. Where there
+     * isn't one (on Windows, for one), links have the same file hash, which
+     * a copy made by hand would too.
+     */
+    private static Object getStorageKey(CatalogEntry entry,
+                                        BasicFileAttributes attributes) {
+        if (attributes.fileKey() != null) {
+            return attributes.fileKey();
+        }
+
+        return entry.getFileHash() != null ? entry.getFileHash()
+               : entry.getFileName();
+    }
+
+    /**
+     * Stops any pass that's going, and doesn't start any more.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        encoderPool.shutdownNow();
+
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    public long getRecompressedFiles() {
+        return recompressedFiles;
+    }
+
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * @return How much the catalogued captures took up after the last pass.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return What's been reclaimed so far, for log output.
+     */
+    public String getStats() {
+        return trackedFiles + " captures in " + usedBytes / 1024 + " KB, "
+               + deletedFiles + " deleted (" + reclaimedBytes / 1024
+               + " KB), " + recompressedFiles + " recompressed ("
+               + savedBytes / 1024 + " KB saved) over " + passes
+               + " passes, last one took " + lastPassMillis + " ms";
+    }
+}
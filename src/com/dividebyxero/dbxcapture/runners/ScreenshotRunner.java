@@ -6,72 +6,218 @@
 package com.dividebyxero.dbxcapture.runners;
 
 import com.dividebyxero.dbxcapture.DBXCRuntime;
+import com.dividebyxero.dbxcapture.Platforming;
+import com.dividebyxero.dbxcapture.config.ConfigurationListener;
+import com.dividebyxero.dbxcapture.scripts.PostProcessor;
+import com.dividebyxero.dbxcapture.scripts.ScriptRegistry;
+import com.dividebyxero.dbxcapture.trigger.ManualTriggerSource;
+import com.dividebyxero.dbxcapture.trigger.NativeTriggerSource;
+import com.dividebyxero.dbxcapture.trigger.TriggerDispatcher;
+import com.dividebyxero.dbxcapture.trigger.TriggerEvent;
+import com.dividebyxero.dbxcapture.trigger.TriggerHandler;
+import com.dividebyxero.dbxcapture.trigger.TriggerSource;
 
 /**
- * Class which triggers the native key listening and screenshot action, then
- * executes the selected script on it.
+ * Class which hooks the screenshot key up to the trigger dispatcher, and on
+ * every press sends a job down the CapturePipeline, which captures the screen,
+ * saves it and executes the selected script on it.
+ *
+ * Nothing here waits around: key presses arrive as events from the trigger
+ * sources, and the pipeline stages each run on their own thread.
+ *
+ * Changing the trigger key in the settings takes effect right away - the
+ * runner listens for it and re-registers the handler (and the native hook)
+ * under the new key.
  *
  * @author Alex Kersten
  */
-public class ScreenshotRunner implements Runnable {
+public class ScreenshotRunner {
 
     //The runtime context.
     private DBXCRuntime context;
 
-    //If the program should process screenshots.
-    private boolean running = true;
+    //Routes key presses from the sources to our capture handler.
+    private TriggerDispatcher dispatcher;
+
+    //Java-side trigger, used by the tray menu (and anything else that wants to
+    //take a screenshot without a keyboard hook).
+    private final ManualTriggerSource manualTrigger = new ManualTriggerSource();
+
+    //Where key presses come from besides the manual trigger. Replaced when
+    //the trigger key changes if it's the native hook, which only knows about
+    //one key per thread.
+    private TriggerSource source;
+
+    //Key code the capture handler is registered under.
+    private volatile int screenshotKey;
+
+    private final TriggerHandler captureHandler = new TriggerHandler() {
+
+        @Override
+        public void triggered(TriggerEvent event) {
+            takeScreenshot(event);
+        }
+    };
 
-    //Local thread
-    private Thread thisThread;
+    //Re-registers the handler when the trigger key setting changes.
+    private final ConfigurationListener settingsListener =
+                                        new ConfigurationListener() {
+
+        @Override
+        public void settingChanged(String key, String oldValue,
+                                   String newValue) {
+            if (key.equalsIgnoreCase("iScreenshotKey") && newValue != null) {
+                try {
+                    setScreenshotKey(Integer.parseInt(newValue));
+                } catch (NumberFormatException nfe) {
+                    System.err.println("Ignoring bad trigger key: "
+                                       + newValue);
+                }
+            }
+        }
+    };
+
+    //Does the actual work of every screenshot, off the trigger threads.
+    private CapturePipeline pipeline;
 
     /**
-     * Constructs the screenshot runner and starts it listening for a screenshot
-     * keypress and then executes the selected script. Does this automatically
-     * and indefinitely until stop() is invoked.
+     * Constructs the screenshot runner listening to the native keyboard hook
+     * if the native library is loaded, and otherwise only to the manual
+     * trigger.
      *
      * @param context
      */
     public ScreenshotRunner(DBXCRuntime context) {
+        this(context, Platforming.isNativeLibraryLoaded()
+                      ? new NativeTriggerSource(context.getSettings().
+                getIntSetting("iScreenshotKey"))
+                      : null);
+    }
+
+    /**
+     * Constructs the screenshot runner with a specific trigger source - pass a
+     * ManualTriggerSource to drive it with simulated key presses. Starts
+     * listening immediately, until stop() is invoked.
+     *
+     * @param context
+     * @param source Where key presses come from, in addition to the manual
+     * trigger. May be null.
+     */
+    public ScreenshotRunner(DBXCRuntime context, TriggerSource source) {
         if (context == null) {
             return;
         }
 
         this.context = context;
 
-        thisThread = new Thread(this);
-        thisThread.start();
+        screenshotKey = context.getSettings().getIntSetting("iScreenshotKey");
+
+        pipeline = new CapturePipeline(context);
+
+        dispatcher = new TriggerDispatcher();
+        dispatcher.setHandler(screenshotKey, captureHandler);
+
+        dispatcher.addSource(manualTrigger);
+
+        this.source = source;
+        if (source != null) {
+            dispatcher.addSource(source);
+        }
+
+        context.getSettings().addConfigurationListener(settingsListener);
+    }
+
+    /**
+     * Moves the capture handler over to a new key. If we're listening to the
+     * native hook, it's swapped for one watching the new key. The old key's
+     * hook thread stays parked without posting anything, and is reused if the
+     * key is ever bound again.
+     *
+     * @param keyCode The new virtual key code.
+     */
+    private synchronized void setScreenshotKey(int keyCode) {
+        if (keyCode == screenshotKey) {
+            return;
+        }
+
+        System.out.println("Trigger key changed from " + screenshotKey
+                           + " to " + keyCode + ".");
+
+        dispatcher.removeHandler(screenshotKey);
+        dispatcher.setHandler(keyCode, captureHandler);
+        screenshotKey = keyCode;
+
+        if (source instanceof NativeTriggerSource) {
+            dispatcher.removeSource(source);
+            source = new NativeTriggerSource(keyCode);
+            dispatcher.addSource(source);
+        }
     }
 
+    /**
+     * Stops listening for key presses. Captures already underway get a moment
+     * to finish.
+     */
     public void stop() {
-        running = false;
+        if (context != null) {
+            context.getSettings().removeConfigurationListener(
+                    settingsListener);
+        }
+
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
     }
 
-    @Override
-    public void run() {
-        while (running) {
-            //Wait on native implementation. Be careful if you comment out the
-            //native call to put a wait in here manually or we'll just 100% CPU
-            //spin.
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ie) {
-            }
+    /**
+     * Takes a screenshot as if the trigger key had been pressed.
+     */
+    public void triggerScreenshot() {
+        manualTrigger.fire(screenshotKey);
+    }
 
-//             TODO: Uncomment this and switch to the non-debug native method
-//            String unprocessedPath =
-//                   DBXCNativeInterface.waitForScreenshotActionAndReturnPath(
-//                    context.getSettings().getSetting("sContentDirectory"),
-//                    Integer.parseInt(
-//                    context.getSettings().getSetting("iScreenshotKey")));
-//            
-            //Check if we stopped running while waiting for C++ to return
-            if (!running) {
-                break;
-            }
+    /**
+     * @return The dispatcher, for latency statistics.
+     */
+    public TriggerDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return The pipeline, for queue statistics.
+     */
+    public CapturePipeline getPipeline() {
+        return pipeline;
+    }
 
-            //Execute processing on this path (usually upload or desktop copy)
-            //by invoking the specified script in the scripts directory.
+    /**
+     * Starts a screenshot through the pipeline, snapshotting the script
+     * settings as of the key press.
+     */
+    private void takeScreenshot(TriggerEvent event) {
+        ScriptRegistry scripts = context.getScriptRegistry();
+        String selected = context.getSettings().getSetting("sUploadScript");
+        boolean localMode = context.getSettings().getBooleanSetting(
+                "bLocalMode");
+
+        String commandLine = scripts.getCommandLine(selected);
+        PostProcessor processor = scripts.getPostProcessor(selected);
 
+        if (commandLine == null && processor == null) {
+            //The selected script was just taken out of the scripts file and
+            //the selection hasn't caught up yet - the runtime resets it to the
+            //first script.
+            commandLine = scripts.getCommandLine(0);
         }
+
+        pipeline.submit(processor != null
+                        ? new CaptureJob(event.getTimestamp(), processor,
+                                         localMode)
+                        : new CaptureJob(event.getTimestamp(), commandLine,
+                                         localMode));
     }
 }
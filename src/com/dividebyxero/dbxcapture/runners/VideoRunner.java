@@ -0,0 +1,496 @@
+/*
+ Project: dbx-capture
+ File: VideoRunner.java (com.dividebyxero.dbxcapture.runners)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.runners;
+
+import com.dividebyxero.dbxcapture.DBXCRuntime;
+import com.dividebyxero.dbxcapture.Platforming;
+import com.dividebyxero.dbxcapture.audio.AudioSourceSelector;
+import com.dividebyxero.dbxcapture.config.ConfigurationListener;
+import com.dividebyxero.dbxcapture.trigger.NativeTriggerSource;
+import com.dividebyxero.dbxcapture.trigger.TriggerDispatcher;
+import com.dividebyxero.dbxcapture.trigger.TriggerEvent;
+import com.dividebyxero.dbxcapture.trigger.TriggerHandler;
+import com.dividebyxero.dbxcapture.trigger.TriggerSource;
+import com.dividebyxero.dbxcapture.video.ReplayBuffer;
+import com.dividebyxero.dbxcapture.video.TimeLapseRecorder;
+import com.dividebyxero.dbxcapture.video.VideoRecorder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Starts and stops video recordings when the video key is pressed. Shares
+ * the screenshot runner's trigger dispatcher, adding its own key to it.
+ *
+ * If the replay buffer is turned on, it also keeps the last stretch of the
+ * screen in memory all the time, and saves it as a video when the replay key
+ * is pressed.
+ *
+ * Recordings are written into the temporary directory while they're going,
+ * and only moved into the content directory once they're finished, so a
+ * half-written video never shows up there.
+ *
+ * Time-lapses are recorded as segments into their own directory under the
+ * temporary directory and exported to a video when they're stopped. If the
+ * program dies in the middle of one, the next time-lapse picks up where it
+ * left off (or, if the settings have changed since, the old one is exported
+ * on its own first).
+ *
+ * @author Alex Kersten
+ */
+public class VideoRunner {
+
+    //Where time-lapse segments go until they're exported.
+    private static final File TIME_LAPSE_DIRECTORY =
+                        new File(DBXCRuntime.TEMP_DIRECTORY, "timelapse");
+
+    //Biggest replay buffer we'll allocate, in megabytes.
+    private static final int MAX_REPLAY_BUFFER_SIZE = 1024;
+
+    private final DBXCRuntime context;
+
+    private final TriggerDispatcher dispatcher;
+
+    //The native hook for the video key, or null without the native library.
+    private TriggerSource source;
+
+    private volatile int videoKey;
+
+    //The recording in progress, or null.
+    private VideoRecorder recorder;
+
+    private File recordingFile;
+
+    //The time-lapse in progress, or null.
+    private TimeLapseRecorder timeLapse;
+
+    //Native hook for the replay key, same as the video key's.
+    private TriggerSource replaySource;
+
+    private volatile int replayKey;
+
+    //Null unless the replay buffer is turned on.
+    private ReplayBuffer replay;
+
+    private final TriggerHandler toggleHandler = new TriggerHandler() {
+
+        @Override
+        public void triggered(TriggerEvent event) {
+            toggleRecording();
+        }
+    };
+
+    private final TriggerHandler replayHandler = new TriggerHandler() {
+
+        @Override
+        public void triggered(TriggerEvent event) {
+            saveReplay();
+        }
+    };
+
+    private final ConfigurationListener settingsListener =
+                                        new ConfigurationListener() {
+
+        @Override
+        public void settingChanged(String key, String oldValue,
+                                   String newValue) {
+            if (key.equalsIgnoreCase("iVideoKey") && newValue != null) {
+                try {
+                    setVideoKey(Integer.parseInt(newValue));
+                } catch (NumberFormatException nfe) {
+                    System.err.println("Ignoring bad video key: " + newValue);
+                }
+            } else if (key.equalsIgnoreCase("iReplayKey")
+                       && newValue != null) {
+                try {
+                    setReplayKey(Integer.parseInt(newValue));
+                } catch (NumberFormatException nfe) {
+                    System.err.println("Ignoring bad replay key: "
+                                       + newValue);
+                }
+            } else if (key.equalsIgnoreCase("bReplayBuffer")
+                       || key.equalsIgnoreCase("iReplayFps")
+                       || key.equalsIgnoreCase("iReplayBufferSize")
+                       || key.equalsIgnoreCase("iVideoScale")) {
+                restartReplay();
+            }
+        }
+    };
+
+    /**
+     * @param context The runtime context.
+     * @param dispatcher The dispatcher to register the video key with.
+     */
+    public VideoRunner(DBXCRuntime context, TriggerDispatcher dispatcher) {
+        this.context = context;
+        this.dispatcher = dispatcher;
+
+        videoKey = context.getSettings().getIntSetting("iVideoKey");
+        dispatcher.setHandler(videoKey, toggleHandler);
+
+        replayKey = context.getSettings().getIntSetting("iReplayKey");
+        dispatcher.setHandler(replayKey, replayHandler);
+
+        if (Platforming.isNativeLibraryLoaded()) {
+            source = new NativeTriggerSource(videoKey);
+            dispatcher.addSource(source);
+            replaySource = new NativeTriggerSource(replayKey);
+            dispatcher.addSource(replaySource);
+        }
+
+        context.getSettings().addConfigurationListener(settingsListener);
+
+        restartReplay();
+    }
+
+    private synchronized void setVideoKey(int keyCode) {
+        if (keyCode == videoKey) {
+            return;
+        }
+
+        System.out.println("Video key changed from " + videoKey + " to "
+                           + keyCode + ".");
+
+        source = rebind(videoKey, keyCode, toggleHandler, source);
+        videoKey = keyCode;
+    }
+
+    private synchronized void setReplayKey(int keyCode) {
+        if (keyCode == replayKey) {
+            return;
+        }
+
+        System.out.println("Replay key changed from " + replayKey + " to "
+                           + keyCode + ".");
+
+        replaySource = rebind(replayKey, keyCode, replayHandler,
+                              replaySource);
+        replayKey = keyCode;
+    }
+
+    /**
+     * Moves a handler from one key to another, replacing the native hook if
+     * there is one.
+     *
+     * @return The new hook, or null if there wasn't one before.
+     */
+    private TriggerSource rebind(int oldKey, int newKey,
+                                 TriggerHandler handler,
+                                 TriggerSource oldSource) {
+        dispatcher.removeHandler(oldKey);
+        dispatcher.setHandler(newKey, handler);
+
+        if (oldSource == null) {
+            return null;
+        }
+
+        dispatcher.removeSource(oldSource);
+        TriggerSource newSource = new NativeTriggerSource(newKey);
+        dispatcher.addSource(newSource);
+        return newSource;
+    }
+
+    /**
+     * Stops the replay buffer if it's running, and starts it again with the
+     * current settings if it's turned on. Whatever was in it is lost.
+     */
+    private synchronized void restartReplay() {
+        if (replay != null) {
+            replay.stop();
+            replay = null;
+        }
+
+        if (!context.getSettings().getBooleanSetting("bReplayBuffer")) {
+            return;
+        }
+
+        ReplayBuffer r;
+
+        try {
+            r = new ReplayBuffer(
+                    context.getCaptureBackend(),
+                    context.getSettings().getIntSetting("iReplayFps"),
+                    context.getSettings().getIntSetting("iVideoScale"),
+                    Math.min(context.getSettings().getIntSetting(
+                            "iReplayBufferSize"), MAX_REPLAY_BUFFER_SIZE)
+                    << 20);
+            r.start();
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Couldn't start the replay buffer:\n"
+                               + e.getMessage());
+            return;
+        } catch (OutOfMemoryError oome) {
+            System.err.println("Not enough memory for the replay buffer, try "
+                               + "a smaller iReplayBufferSize.");
+            return;
+        }
+
+        replay = r;
+    }
+
+    /**
+     * Saves what's in the replay buffer, as far back as iReplaySeconds, to a
+     * video in the content directory. Does nothing if the replay buffer is
+     * off.
+     */
+    public void saveReplay() {
+        ReplayBuffer r;
+
+        synchronized (this) {
+            r = replay;
+        }
+
+        if (r == null) {
+            System.out.println("The replay buffer is turned off.");
+            return;
+        }
+
+        File file = newVideoFile();
+        int frames;
+
+        try {
+            frames = r.save(file,
+                            context.getSettings().getIntSetting(
+                                    "iReplaySeconds"));
+        } catch (IOException ioe) {
+            System.err.println("Couldn't save replay:\n" + ioe.getMessage());
+            file.delete();
+            return;
+        }
+
+        System.out.println("Saved a " + frames + " frame replay.");
+        moveToContentDirectory(file);
+    }
+
+    /**
+     * Starts recording if we aren't, stops if we are.
+     */
+    public synchronized void toggleRecording() {
+        if (recorder == null && timeLapse == null) {
+            startRecording();
+        } else {
+            stopRecording();
+        }
+    }
+
+    /**
+     * Starts a recording with the current video settings.
+     */
+    public synchronized void startRecording() {
+        if (recorder != null || timeLapse != null) {
+            return;
+        }
+
+        if (context.getSettings().getBooleanSetting("bTimeLapse")) {
+            startTimeLapse();
+            return;
+        }
+
+        VideoRecorder r = new VideoRecorder(
+                context.getCaptureBackend(),
+                context.getSettings().getIntSetting("iVideoFps"),
+                context.getSettings().getIntSetting("iVideoPlaybackFps"),
+                context.getSettings().getIntSetting("iVideoScale"));
+
+        r.setAudioSource(AudioSourceSelector.forSetting(
+                context.getSettings().getSetting("sAudioSource")));
+
+        File file = newVideoFile();
+
+        try {
+            r.start(file);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't start recording:\n"
+                               + ioe.getMessage());
+            return;
+        }
+
+        System.out.println("Recording to " + file + "...");
+
+        recorder = r;
+        recordingFile = file;
+    }
+
+    private static File newVideoFile() {
+        return new File(DBXCRuntime.TEMP_DIRECTORY,
+                        new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").
+                format(new Date()) + ".avi");
+    }
+
+    private void startTimeLapse() {
+        TimeLapseRecorder r = new TimeLapseRecorder(
+                context.getCaptureBackend(),
+                context.getSettings().getIntSetting("iTimeLapseInterval")
+                * 1000,
+                context.getSettings().getIntSetting("iVideoPlaybackFps"),
+                context.getSettings().getIntSetting("iVideoScale"));
+
+        boolean resumed;
+
+        try {
+            resumed = r.start(TIME_LAPSE_DIRECTORY);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't start time-lapse:\n"
+                               + ioe.getMessage());
+
+            if (!TimeLapseRecorder.hasSegments(TIME_LAPSE_DIRECTORY)) {
+                return;
+            }
+
+            //Most likely an unfinished one recorded with other settings.
+            //Save it as it is and start over.
+            System.out.println("Exporting the unfinished time-lapse...");
+            if (!exportTimeLapse()) {
+                return;
+            }
+
+            try {
+                resumed = r.start(TIME_LAPSE_DIRECTORY);
+            } catch (IOException ioe2) {
+                System.err.println("Couldn't start time-lapse:\n"
+                                   + ioe2.getMessage());
+                return;
+            }
+        }
+
+        System.out.println((resumed ? "Resumed" : "Started")
+                           + " time-lapse in " + TIME_LAPSE_DIRECTORY
+                           + "...");
+
+        timeLapse = r;
+    }
+
+    /**
+     * Turns the time-lapse segments into a video in the content directory
+     * and deletes them.
+     *
+     * @return False if it didn't work out, in which case the segments are
+     * left where they are.
+     */
+    private boolean exportTimeLapse() {
+        File file = newVideoFile();
+        int frames;
+
+        try {
+            frames = TimeLapseRecorder.export(TIME_LAPSE_DIRECTORY, file);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't export time-lapse, segments left in "
+                               + TIME_LAPSE_DIRECTORY + ":\n"
+                               + ioe.getMessage());
+            file.delete();
+            return false;
+        }
+
+        System.out.println("Exported a " + frames + " frame time-lapse.");
+
+        TimeLapseRecorder.discard(TIME_LAPSE_DIRECTORY);
+        moveToContentDirectory(file);
+        return true;
+    }
+
+    /**
+     * Stops the recording in progress and moves it into the content
+     * directory.
+     */
+    public synchronized void stopRecording() {
+        if (timeLapse != null) {
+            TimeLapseRecorder r = timeLapse;
+            timeLapse = null;
+
+            try {
+                r.stop();
+            } catch (IOException ioe) {
+                System.err.println("Time-lapse failed, exporting what was "
+                                   + "recorded:\n" + ioe.getMessage());
+            }
+
+            System.out.println("Recorded " + r.getCapturedCount()
+                               + " time-lapse frames, "
+                               + r.getUnchangedCount() + " unchanged.");
+
+            exportTimeLapse();
+            return;
+        }
+
+        if (recorder == null) {
+            return;
+        }
+
+        VideoRecorder r = recorder;
+        File file = recordingFile;
+        recorder = null;
+        recordingFile = null;
+
+        try {
+            r.stop();
+        } catch (IOException ioe) {
+            System.err.println("Recording failed, partial video left at "
+                               + file + ":\n" + ioe.getMessage());
+            return;
+        }
+
+        System.out.println("Recorded " + r.getWrittenCount() + " frames, "
+                           + r.getDroppedCount() + " dropped.");
+
+        moveToContentDirectory(file);
+    }
+
+    /**
+     * Moves a finished video into the content directory, leaving it where it
+     * is if that doesn't work.
+     */
+    private void moveToContentDirectory(File file) {
+        Path destination = context.getSettings().
+                getPathSetting("sContentDirectory").resolve(file.getName());
+
+        try {
+            Files.move(file.toPath(), destination);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't move recording to " + destination
+                               + ", it's still at " + file + ":\n"
+                               + ioe.getMessage());
+        }
+    }
+
+    /**
+     * @return True if a recording is in progress.
+     */
+    public synchronized boolean isRecording() {
+        return recorder != null || timeLapse != null;
+    }
+
+    /**
+     * Finishes any recording in progress, turns off the replay buffer and
+     * stops listening for the video and replay keys.
+     */
+    public void stop() {
+        context.getSettings().removeConfigurationListener(settingsListener);
+        stopRecording();
+
+        synchronized (this) {
+            dispatcher.removeHandler(videoKey);
+            dispatcher.removeHandler(replayKey);
+
+            if (source != null) {
+                dispatcher.removeSource(source);
+                source = null;
+            }
+
+            if (replaySource != null) {
+                dispatcher.removeSource(replaySource);
+                replaySource = null;
+            }
+
+            if (replay != null) {
+                replay.stop();
+                replay = null;
+            }
+        }
+    }
+}
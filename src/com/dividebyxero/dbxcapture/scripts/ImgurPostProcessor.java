@@ -0,0 +1,49 @@
+/*
+ Project: dbx-capture
+ File: ImgurPostProcessor.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import java.awt.image.BufferedImage;
+import javax.swing.JDialog;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * The built-in, in-process version of the default ImgurScript - uploads the
+ * image to Imgur, or copies it to the desktop in local mode. Always available,
+ * whether or not there are any plugin jars.
+ *
+ * @author Alex Kersten
+ */
+public class ImgurPostProcessor implements PostProcessor {
+
+    @Override
+    public String getName() {
+        return "Imgur (built-in)";
+    }
+
+    @Override
+    public void process(BufferedImage image, boolean localMode) {
+        //TODO: Same as ImgurScript, the upload isn't written yet.
+        final String message =
+                "DEBUG: Hello from the built-in Imgur plugin!\nImage size was: "
+                + image.getWidth() + "x" + image.getHeight()
+                + "\nLocalmode is " + localMode;
+
+        //We're on the post-process thread, and a modal dialog here would hold
+        //up every screenshot after this one until somebody clicked OK. So the
+        //dialog goes up on the event thread, without waiting for it.
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                JOptionPane pane = new JOptionPane(
+                        message, JOptionPane.INFORMATION_MESSAGE);
+                JDialog dialog = pane.createDialog(null, "Upload script");
+                dialog.setModal(false);
+                dialog.setVisible(true);
+            }
+        });
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ Project: dbx-capture
+ File: PostProcessor.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A post-processing step that runs inside DBXCapture itself, instead of as a
+ * command line from scripts.cfg. It gets the captured image straight out of
+ * memory - nothing is written to disk and no process is started, so it's the
+ * cheapest way to handle a screenshot.
+ *
+ * Plugins are found with java.util.ServiceLoader in any jar in the scripts
+ * directory: put the implementing class in the jar along with a
+ * META-INF/services/com.dividebyxero.dbxcapture.scripts.PostProcessor file
+ * naming it. Implementations need a public no-argument constructor. Jars are
+ * only looked at when the program starts.
+ *
+ * @author Alex Kersten
+ */
+public interface PostProcessor {
+
+    /**
+     * @return What to call this processor in the settings frame. Should be
+     * unique.
+     */
+    String getName();
+
+    /**
+     * Handles one screenshot. Runs on the pipeline's post-process thread, so
+     * anything slow here holds up the screenshots after this one (just like
+     * a one-shot script would).
+     *
+     * @param image The captured image. Don't hold on to it or modify it.
+     * @param localMode Whether local mode is on.
+     * @throws Exception If processing failed - it's logged and the screenshot
+     * is dropped.
+     */
+    void process(BufferedImage image, boolean localMode) throws Exception;
+}
@@ -0,0 +1,119 @@
+/*
+ Project: dbx-capture
+ File: PostProcessorLoader.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * Finds the in-process PostProcessor plugins: the built-in ones, plus any that
+ * jars in the scripts directory provide through ServiceLoader.
+ *
+ * @author Alex Kersten
+ */
+public abstract class PostProcessorLoader {
+
+    /**
+     * Loads every available plugin. Built-in plugins come first, then the
+     * ones from jars in the order the jars sort in. A plugin that fails to
+     * load (or has the same name as one we already have) is skipped with a
+     * message, rather than taking the others down with it.
+     *
+     * @param scriptsDirectory Where to look for plugin jars.
+     * @return The plugins.
+     */
+    public static List<PostProcessor> load(Path scriptsDirectory) {
+        List<PostProcessor> processors = new ArrayList<>();
+        processors.add(new ImgurPostProcessor());
+
+        List<URL> jars = findJars(scriptsDirectory);
+
+        if (jars.isEmpty()) {
+            return processors;
+        }
+
+        //Never closed - the plugins' classes live as long as we do.
+        ClassLoader loader = new URLClassLoader(
+                jars.toArray(new URL[jars.size()]),
+                PostProcessor.class.getClassLoader());
+
+        Set<String> names = new HashSet<>();
+        for (PostProcessor p : processors) {
+            names.add(p.getName());
+        }
+
+        Iterator<PostProcessor> itr =
+                ServiceLoader.load(PostProcessor.class, loader).iterator();
+
+        while (true) {
+            PostProcessor p;
+
+            try {
+                if (!itr.hasNext()) {
+                    break;
+                }
+                p = itr.next();
+            } catch (ServiceConfigurationError sce) {
+                System.err.println("Couldn't load a post-processor plugin:\n"
+                                   + sce.getMessage());
+                continue;
+            }
+
+            if (!names.add(p.getName())) {
+                System.err.println("Skipping duplicate post-processor plugin "
+                                   + p.getName());
+                continue;
+            }
+
+            System.out.println("Loaded post-processor plugin " + p.getName());
+            processors.add(p);
+        }
+
+        return processors;
+    }
+
+    private static List<URL> findJars(Path scriptsDirectory) {
+        List<Path> paths = new ArrayList<>();
+
+        if (Files.isDirectory(scriptsDirectory)) {
+            try (DirectoryStream<Path> stream =
+                 Files.newDirectoryStream(scriptsDirectory, "*.jar")) {
+                for (Path jar : stream) {
+                    paths.add(jar);
+                }
+            } catch (IOException ioe) {
+                System.err.println("Couldn't list plugin jars:\n"
+                                   + ioe.getMessage());
+            }
+        }
+
+        Collections.sort(paths);
+
+        List<URL> urls = new ArrayList<>();
+        for (Path jar : paths) {
+            try {
+                urls.add(jar.toUri().toURL());
+            } catch (MalformedURLException mue) {
+                System.err.println("Bad plugin jar path: " + jar);
+            }
+        }
+
+        return urls;
+    }
+}
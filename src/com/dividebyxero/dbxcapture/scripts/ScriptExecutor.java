@@ -0,0 +1,138 @@
+/*
+ Project: dbx-capture
+ File: ScriptExecutor.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the post-process script for an image, however it needs to be run:
+ * plain command lines are started fresh through ScriptLauncher and waited
+ * for, while worker command lines go to a ScriptWorkerPool (one per command
+ * line, created the first time it's used) and are processed in the
+ * background.
+ *
+ * @author Alex Kersten
+ */
+public class ScriptExecutor {
+
+    //How many workers each worker command line gets.
+    private int workersPerScript;
+
+    private final Map<String, ScriptWorkerPool> pools = new HashMap<>();
+
+    private boolean shutdown = false;
+
+    /**
+     * @param workersPerScript How many workers to run for each worker command
+     * line.
+     */
+    public ScriptExecutor(int workersPerScript) {
+        this.workersPerScript = workersPerScript;
+    }
+
+    /**
+     * Processes an image with a command line from scripts.cfg. One-shot
+     * scripts are finished by the time this returns; workers probably aren't.
+     *
+     * @param commandLine The command line.
+     * @param image The image to process.
+     * @param localMode Whether local mode is on.
+     * @param listener Told what the script reported, if it's a worker and
+     * reports anything. One-shot scripts' output goes straight to ours, so
+     * they never do. May be null.
+     * @throws IOException If a one-shot script couldn't be started.
+     * @throws InterruptedException If we were interrupted while waiting on a
+     * one-shot script.
+     */
+    public void execute(String commandLine, File image, boolean localMode,
+                        ScriptResultListener listener)
+            throws IOException, InterruptedException {
+        if (!ScriptLauncher.isWorker(commandLine)) {
+            ScriptLauncher.run(commandLine, image, localMode);
+            return;
+        }
+
+        ScriptWorkerPool pool = getPool(commandLine);
+
+        if (pool == null || !pool.submit(image, localMode, listener)) {
+            throw new IOException("Script executor is shut down.");
+        }
+    }
+
+    private synchronized ScriptWorkerPool getPool(String commandLine) {
+        if (shutdown) {
+            return null;
+        }
+
+        ScriptWorkerPool pool = pools.get(commandLine);
+
+        if (pool == null) {
+            pool = new ScriptWorkerPool(commandLine, workersPerScript);
+            pools.put(commandLine, pool);
+        }
+
+        return pool;
+    }
+
+    /**
+     * Changes how many workers each worker command line gets. Existing pools
+     * are shut down (letting busy workers finish) and replaced on next use.
+     *
+     * @param workersPerScript The new pool size.
+     */
+    public synchronized void setWorkersPerScript(int workersPerScript) {
+        if (workersPerScript == this.workersPerScript) {
+            return;
+        }
+
+        this.workersPerScript = workersPerScript;
+
+        for (ScriptWorkerPool pool : pools.values()) {
+            pool.shutdown();
+        }
+        pools.clear();
+    }
+
+    /**
+     * Shuts down the workers for any command line that isn't in the given
+     * list anymore (because scripts.cfg changed).
+     *
+     * @param commandLines The current command lines.
+     */
+    public synchronized void retain(String[] commandLines) {
+        List<String> current = Arrays.asList(commandLines);
+        Iterator<Map.Entry<String, ScriptWorkerPool>> itr =
+                pools.entrySet().iterator();
+
+        while (itr.hasNext()) {
+            Map.Entry<String, ScriptWorkerPool> entry = itr.next();
+
+            if (!current.contains(entry.getKey())) {
+                entry.getValue().shutdown();
+                itr.remove();
+            }
+        }
+    }
+
+    /**
+     * Shuts down every worker pool. One-shot scripts still run after this,
+     * worker command lines don't.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+
+        for (ScriptWorkerPool pool : pools.values()) {
+            pool.shutdown();
+        }
+        pools.clear();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ Project: dbx-capture
+ File: ScriptLauncher.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import com.dividebyxero.dbxcapture.DBXCRuntime;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a post-processing command line from scripts.cfg on a saved image. The
+ * command line is split into arguments the way a shell would (whitespace
+ * separated, double quotes group), and then %imagepath% and %localmode% are
+ * substituted inside each argument. The process runs in the scripts directory
+ * with its output going to ours.
+ *
+ * Command lines starting with WORKER_PREFIX aren't run here - they're
+ * persistent workers, see ScriptWorker.
+ *
+ * @author Alex Kersten
+ */
+public abstract class ScriptLauncher {
+
+    public static final String IMAGEPATH_VARIABLE = "%imagepath%";
+
+    public static final String LOCALMODE_VARIABLE = "%localmode%";
+
+    //Marks a scripts.cfg line as a persistent worker rather than a command to
+    //run once per image.
+    public static final String WORKER_PREFIX = "worker:";
+
+    /**
+     * @param commandLine A command line from scripts.cfg.
+     * @return True if it's a persistent worker.
+     */
+    public static boolean isWorker(String commandLine) {
+        return commandLine.startsWith(WORKER_PREFIX);
+    }
+
+    /**
+     * Builds the argument list to start a worker with. Workers are told about
+     * each image over stdin, so the variables aren't substituted.
+     *
+     * @param commandLine A worker command line from scripts.cfg.
+     * @return The arguments to start the worker with.
+     */
+    public static List<String> buildWorkerCommand(String commandLine) {
+        return tokenize(commandLine.substring(WORKER_PREFIX.length()));
+    }
+
+    /**
+     * Splits a command line into arguments. Double quotes group words
+     * together and are removed; there's no escaping beyond that.
+     *
+     * @param commandLine The command line.
+     * @return The individual arguments.
+     */
+    public static List<String> tokenize(String commandLine) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false, inToken = false;
+
+        for (int i = 0; i < commandLine.length(); i++) {
+            char c = commandLine.charAt(i);
+
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inToken) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                current.append(c);
+                inToken = true;
+            }
+        }
+
+        if (inToken) {
+            tokens.add(current.toString());
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Builds the argument list for a command line with the variables filled
+     * in.
+     *
+     * @param commandLine The command line from scripts.cfg.
+     * @param image The image being processed.
+     * @param localMode Whether local mode is on.
+     * @return The arguments to start the process with.
+     */
+    public static List<String> buildCommand(String commandLine, File image,
+                                            boolean localMode) {
+        List<String> command = new ArrayList<>();
+
+        for (String token : tokenize(commandLine)) {
+            command.add(token.replace(IMAGEPATH_VARIABLE,
+                                      image.getAbsolutePath()).
+                    replace(LOCALMODE_VARIABLE, localMode ? "true" : "false"));
+        }
+
+        return command;
+    }
+
+    /**
+     * Runs a command line on an image and waits for it to finish.
+     *
+     * @param commandLine The command line from scripts.cfg.
+     * @param image The image to process.
+     * @param localMode Whether local mode is on.
+     * @return The exit code of the script.
+     * @throws IOException If the script couldn't be started.
+     * @throws InterruptedException If we were interrupted while waiting.
+     */
+    public static int run(String commandLine, File image, boolean localMode)
+            throws IOException, InterruptedException {
+        List<String> command = buildCommand(commandLine, image, localMode);
+
+        if (command.isEmpty()) {
+            throw new IOException("Empty script command line.");
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(new File(DBXCRuntime.SCRIPTS_DIRECTORY));
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+
+        return pb.start().waitFor();
+    }
+}
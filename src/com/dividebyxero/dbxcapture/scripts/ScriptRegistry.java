@@ -0,0 +1,242 @@
+/*
+ Project: dbx-capture
+ File: ScriptRegistry.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The post-process command lines from scripts.cfg, one per line, followed by
+ * the in-process PostProcessor plugins. The file can be reloaded at any point
+ * (it's watched for changes while the program runs), and listeners are told
+ * whenever the list actually changes. Since positions in the list shift when
+ * that happens, the script setting stores an entry's key instead.
+ *
+ * @author Alex Kersten
+ */
+public class ScriptRegistry {
+
+    //Starts the key of a plugin, followed by its name. Command lines are
+    //their own keys.
+    private static final String PLUGIN_KEY_PREFIX = "plugin:";
+
+    private final Path scriptsFile;
+
+    //What goes into a new scripts file, and what we use if it's empty.
+    private final String defaultCommandLine;
+
+    //Never modified once published - load() swaps in a new array.
+    private volatile String[] commandLines = new String[0];
+
+    //Same here, setPostProcessors() swaps in a new list.
+    private volatile List<PostProcessor> postProcessors =
+                                         Collections.emptyList();
+
+    private final List<ScriptRegistryListener> listeners =
+                                               new CopyOnWriteArrayList<>();
+
+    /**
+     * @param scriptsFile Where the command lines are stored.
+     * @param defaultCommandLine The command line to fall back on.
+     */
+    public ScriptRegistry(Path scriptsFile, String defaultCommandLine) {
+        this.scriptsFile = scriptsFile;
+        this.defaultCommandLine = defaultCommandLine;
+    }
+
+    /**
+     * (Re)loads the command lines from the scripts file. If the file doesn't
+     * exist it's created with the default command line; if it's empty it gets
+     * deleted (the default file will be re-created next time) and the default
+     * is used.
+     *
+     * @throws IOException If the file couldn't be read or created.
+     */
+    public synchronized void load() throws IOException {
+        if (!Files.exists(scriptsFile)) {
+            System.out.println(
+                    "Scripts file does not exist, making with defaults...");
+
+            //Create the file and dump the defualt command line into it.
+            Files.createFile(scriptsFile);
+
+            if (!Files.exists(scriptsFile)) {
+                //The file still doesn't exist despite creation attempt
+                throw new IOException("Couldn't create scripts.cfg file.\n"
+                                      + "Check working directory permissions.");
+            }
+
+            Files.write(scriptsFile, defaultCommandLine.getBytes());
+        }
+
+        List<String> lines =
+                     Files.readAllLines(scriptsFile, Charset.defaultCharset());
+
+        String[] loaded;
+
+        if (lines.isEmpty()) {
+            System.out.println(
+                    "Scripts file empty, deleting and using default...");
+
+            Files.delete(scriptsFile);
+            loaded = new String[]{defaultCommandLine};
+        } else {
+            loaded = lines.toArray(new String[lines.size()]);
+        }
+
+        if (Arrays.equals(loaded, commandLines)) {
+            return;
+        }
+
+        commandLines = loaded;
+        fireScriptsChanged();
+    }
+
+    /**
+     * Sets the in-process plugins, which come after the command lines.
+     *
+     * @param processors The plugins, in the order they should be listed.
+     */
+    public void setPostProcessors(List<PostProcessor> processors) {
+        postProcessors = Collections.unmodifiableList(
+                new ArrayList<>(processors));
+        fireScriptsChanged();
+    }
+
+    private void fireScriptsChanged() {
+        for (ScriptRegistryListener listener : listeners) {
+            listener.scriptsChanged(this);
+        }
+    }
+
+    public void addScriptRegistryListener(ScriptRegistryListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeScriptRegistryListener(ScriptRegistryListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return Every command line, in file order. Don't modify the array.
+     */
+    public String[] getCommandLines() {
+        return commandLines;
+    }
+
+    /**
+     * @param index Position in the scripts file.
+     * @return The command line, or null if there's no script at that index
+     * (anymore, or it's a plugin's index).
+     */
+    public String getCommandLine(int index) {
+        String[] current = commandLines;
+        return index < 0 || index >= current.length ? null : current[index];
+    }
+
+    /**
+     * @param key A key from getKey().
+     * @return The command line, or null if the key isn't for a command line
+     * in the scripts file (anymore).
+     */
+    public String getCommandLine(String key) {
+        return Arrays.asList(commandLines).contains(key) ? key : null;
+    }
+
+    /**
+     * @param key A key from getKey().
+     * @return The plugin, or null if the key isn't for a plugin we have.
+     */
+    public PostProcessor getPostProcessor(String key) {
+        if (key == null || !key.startsWith(PLUGIN_KEY_PREFIX)) {
+            return null;
+        }
+
+        String name = key.substring(PLUGIN_KEY_PREFIX.length());
+        for (PostProcessor p : postProcessors) {
+            if (p.getName().equals(name)) {
+                return p;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param index Position in the whole list, command lines included.
+     * @return What the script setting should store to select that entry: the
+     * command line itself, or "plugin:" and the plugin's name. Null if
+     * there's no entry at that index.
+     */
+    public String getKey(int index) {
+        String[] lines = commandLines;
+        List<PostProcessor> processors = postProcessors;
+
+        if (index >= 0 && index < lines.length) {
+            return lines[index];
+        }
+
+        int i = index - lines.length;
+        return i < 0 || i >= processors.size()
+               ? null : PLUGIN_KEY_PREFIX + processors.get(i).getName();
+    }
+
+    /**
+     * @param key A key from getKey().
+     * @return Where that entry is in the list now, or -1 if it's gone.
+     */
+    public int indexOf(String key) {
+        String[] lines = commandLines;
+        List<PostProcessor> processors = postProcessors;
+
+        if (key == null) {
+            return -1;
+        }
+
+        if (key.startsWith(PLUGIN_KEY_PREFIX)) {
+            String name = key.substring(PLUGIN_KEY_PREFIX.length());
+            for (int i = 0; i < processors.size(); i++) {
+                if (processors.get(i).getName().equals(name)) {
+                    return lines.length + i;
+                }
+            }
+        }
+
+        return Arrays.asList(lines).indexOf(key);
+    }
+
+    /**
+     * @return How to describe every entry in the list to the user: command
+     * lines as they are, plugins by name.
+     */
+    public String[] getDisplayNames() {
+        String[] lines = commandLines;
+        List<PostProcessor> processors = postProcessors;
+        String[] names = new String[lines.length + processors.size()];
+
+        System.arraycopy(lines, 0, names, 0, lines.length);
+        for (int i = 0; i < processors.size(); i++) {
+            names[lines.length + i] = "Plugin: "
+                                      + processors.get(i).getName();
+        }
+
+        return names;
+    }
+
+    /**
+     * @return How many command lines and plugins there are.
+     */
+    public int size() {
+        return commandLines.length + postProcessors.size();
+    }
+}
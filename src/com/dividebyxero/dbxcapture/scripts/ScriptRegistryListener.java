@@ -0,0 +1,17 @@
+/*
+ Project: dbx-capture
+ File: ScriptRegistryListener.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+/**
+ * Gets told when the list of post-process scripts changes. Runs on whatever
+ * thread reloaded the registry.
+ *
+ * @author Alex Kersten
+ */
+public interface ScriptRegistryListener {
+
+    void scriptsChanged(ScriptRegistry registry);
+}
@@ -0,0 +1,26 @@
+/*
+ Project: dbx-capture
+ File: ScriptResultListener.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import java.io.File;
+
+/**
+ * Gets told what a script reported back for an image - for an upload script,
+ * the image's URL - or that it failed. Only worker scripts can report anything
+ * (see ScriptWorker). Runs on the thread that ran the script.
+ *
+ * @author Alex Kersten
+ */
+public interface ScriptResultListener {
+
+    void resultReported(File image, String result);
+
+    /**
+     * @param image The image the script failed on.
+     * @param reason What went wrong, for the user.
+     */
+    void processingFailed(File image, String reason);
+}
@@ -0,0 +1,170 @@
+/*
+ Project: dbx-capture
+ File: ScriptWorker.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import com.dividebyxero.dbxcapture.DBXCRuntime;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A post-process script that's started once and then kept running, so we
+ * don't pay for starting a whole new process (usually a whole new JVM) on
+ * every screenshot.
+ *
+ * The protocol is one line per image in each direction, UTF-8:
+ *
+ * <ul><li>We write the absolute image path, a tab, and true or false for
+ * local mode.</li><li>The worker processes it and answers with a line starting
+ * with OK, optionally followed by a space and its result (like the URL it
+ * uploaded the image to), or with ERR followed by whatever went
+ * wrong.</li></ul>
+ *
+ * Any other lines the worker prints are passed through to our output, but
+ * workers should really log to stderr (which goes straight to ours). Closing
+ * the worker's stdin tells it to exit.
+ *
+ * Not thread safe - a worker handles one image at a time, and the
+ * ScriptWorkerPool makes sure only one thread uses it. The exception is
+ * kill(), which is for other threads to stop one that's hung.
+ *
+ * @author Alex Kersten
+ */
+public class ScriptWorker {
+
+    private final Process process;
+
+    private final BufferedWriter toWorker;
+
+    private final BufferedReader fromWorker;
+
+    private volatile boolean killed = false;
+
+    //What the worker said after ERR last time.
+    private String lastError;
+
+    /**
+     * Starts a worker in the scripts directory.
+     *
+     * @param command The arguments to start it with.
+     * @throws IOException If it couldn't be started.
+     */
+    public ScriptWorker(List<String> command) throws IOException {
+        if (command.isEmpty()) {
+            throw new IOException("Empty worker command line.");
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(new File(DBXCRuntime.SCRIPTS_DIRECTORY));
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+        process = pb.start();
+
+        toWorker = new BufferedWriter(new OutputStreamWriter(
+                process.getOutputStream(), StandardCharsets.UTF_8));
+        fromWorker = new BufferedReader(new InputStreamReader(
+                process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Hands an image to the worker and waits for its answer.
+     *
+     * @param image The image to process.
+     * @param localMode Whether local mode is on.
+     * @return What the worker put after OK (empty if nothing), or null if it
+     * answered ERR.
+     * @throws IOException If the worker went away - it's no good anymore and
+     * should be closed.
+     */
+    public String process(File image, boolean localMode) throws IOException {
+        toWorker.write(image.getAbsolutePath() + "\t" + localMode + "\n");
+        toWorker.flush();
+
+        String line;
+        while ((line = fromWorker.readLine()) != null) {
+            if (line.startsWith("OK")) {
+                return line.substring(2).trim();
+            }
+
+            if (line.startsWith("ERR")) {
+                lastError = line.substring(3).trim();
+                System.err.println("Script worker failed on "
+                                   + image.getName() + ": " + lastError);
+                return null;
+            }
+
+            System.out.println(line);
+        }
+
+        throw new IOException(killed ? "Script worker was killed."
+                              : "Script worker exited.");
+    }
+
+    /**
+     * @return What the worker said was wrong the last time it answered ERR,
+     * or null if it never has.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Kills the worker outright, without asking. A process() waiting on it
+     * throws. Safe to call from any thread.
+     */
+    public void kill() {
+        killed = true;
+        process.destroyForcibly();
+    }
+
+    /**
+     * @return True if kill() has been called.
+     */
+    public boolean isKilled() {
+        return killed;
+    }
+
+    /**
+     * @return True if the process hasn't exited yet.
+     */
+    public boolean isAlive() {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException itse) {
+            return true;
+        }
+    }
+
+    /**
+     * Asks the worker to exit by closing its stdin. A worker that ignores
+     * that gets killed.
+     */
+    public void close() {
+        try {
+            toWorker.close();
+        } catch (IOException ioe) {
+            //Already gone.
+        }
+
+        if (isAlive()) {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (isAlive()) {
+                process.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ Project: dbx-capture
+ File: ScriptWorkerPool.java (com.dividebyxero.dbxcapture.scripts)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.scripts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Up to a fixed number of ScriptWorkers for one worker command line. Workers
+ * are started the first time they're needed and then kept around, so after
+ * the first few screenshots every image goes to an already-warm process.
+ *
+ * Images are handed over with submit(), which returns right away; there's one
+ * thread per worker, so that many images can be processed at once and the
+ * rest wait their turn. A worker that dies is replaced, and the image it was
+ * working on is retried once on the replacement. One that doesn't answer
+ * within the timeout is killed and replaced straight away, but its image
+ * isn't retried, since it would most likely just hang again. Either way the
+ * listener hears about images that fail.
+ *
+ * @author Alex Kersten
+ */
+public class ScriptWorkerPool {
+
+    //How long a worker gets to answer for one image. Generous, since uploads
+    //over a slow connection really can take a while.
+    private static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    //Talks to the workers, for every pool, while the pool's own threads wait
+    //with a timeout. Killing a worker doesn't always end a read from it -
+    //anything the worker started can still have its stdout open - so a thread
+    //stuck on a hung worker's read is left here rather than taking one of the
+    //pool's with it.
+    private static final ExecutorService TALKERS =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DBXC script I/O "
+                                             + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final String commandLine;
+
+    private final List<String> command;
+
+    private final int size;
+
+    private final long timeout;
+
+    private final ExecutorService executor;
+
+    //Workers that are started and not busy.
+    private final BlockingQueue<ScriptWorker> idle =
+                                              new LinkedBlockingQueue<>();
+
+    private final AtomicLong processed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param commandLine The worker command line from scripts.cfg.
+     * @param size The most workers to run at once.
+     */
+    public ScriptWorkerPool(String commandLine, int size) {
+        this(commandLine, size, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout Milliseconds a worker gets to answer for each image.
+     */
+    ScriptWorkerPool(String commandLine, int size, long timeout) {
+        this.commandLine = commandLine;
+        this.command = ScriptLauncher.buildWorkerCommand(commandLine);
+        this.size = Math.max(size, 1);
+        this.timeout = timeout;
+
+        executor = Executors.newFixedThreadPool(this.size, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DBXC script worker "
+                                         + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues an image for a worker. Never blocks.
+     *
+     * @param image The image to process.
+     * @param localMode Whether local mode is on.
+     * @param listener Told what the worker reported, if it reports anything.
+     * May be null.
+     * @return False if the pool has been shut down.
+     */
+    public boolean submit(final File image, final boolean localMode,
+                          final ScriptResultListener listener) {
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    process(image, localMode, listener);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private void process(File image, boolean localMode,
+                         ScriptResultListener listener) {
+        String reason = null;
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ScriptWorker worker = idle.poll();
+
+            try {
+                if (worker == null || !worker.isAlive()) {
+                    if (worker != null) {
+                        worker.close();
+                    }
+                    worker = new ScriptWorker(command);
+                }
+
+                String result = process(worker, image, localMode);
+
+                if (result != null) {
+                    processed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+
+                if (executor.isShutdown()) {
+                    worker.close();
+                } else {
+                    idle.offer(worker);
+                }
+
+                if (listener == null) {
+                    return;
+                }
+
+                if (result == null) {
+                    listener.processingFailed(image,
+                                              "The script said \""
+                                              + worker.getLastError()
+                                              + "\".");
+                } else if (!result.isEmpty()) {
+                    listener.resultReported(image, result);
+                }
+
+                return;
+            } catch (IOException ioe) {
+                System.err.println("Script worker problem (" + commandLine
+                                   + "):\n" + ioe.getMessage());
+                reason = ioe.getMessage();
+
+                if (worker != null) {
+                    worker.close();
+
+                    if (worker.isKilled()) {
+                        reason = "The script didn't finish within "
+                                 + timeout / 1000 + " seconds.";
+                        replaceWorker();
+                        break;
+                    }
+                }
+            }
+        }
+
+        failed.incrementAndGet();
+
+        if (listener != null) {
+            listener.processingFailed(image, reason);
+        }
+    }
+
+    /**
+     * Hands an image to a worker, killing it if it doesn't answer in time.
+     */
+    private String process(final ScriptWorker worker, final File image,
+                           final boolean localMode) throws IOException {
+        Future<String> answer = TALKERS.submit(new Callable<String>() {
+
+            @Override
+            public String call() throws IOException {
+                return worker.process(image, localMode);
+            }
+        });
+
+        try {
+            return answer.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            worker.kill();
+            throw new IOException("No answer for " + image.getName()
+                                  + " in " + timeout + " ms, killed the "
+                                  + "worker.");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+
+            throw new IOException(ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            worker.kill();
+            throw new IOException("Interrupted waiting for the worker.");
+        }
+    }
+
+    /**
+     * Starts a worker in place of one that was killed, so the next image
+     * doesn't have to wait for it to start.
+     */
+    private void replaceWorker() {
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        try {
+            idle.offer(new ScriptWorker(command));
+        } catch (IOException ioe) {
+            //The next image will try again.
+            System.err.println("Couldn't restart script worker ("
+                               + commandLine + "):\n" + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Stops taking images and closes the idle workers. Workers that are busy
+     * finish their current image and are closed after.
+     */
+    public void shutdown() {
+        executor.shutdown();
+
+        List<ScriptWorker> workers = new ArrayList<>();
+        idle.drainTo(workers);
+
+        for (ScriptWorker worker : workers) {
+            worker.close();
+        }
+    }
+
+    public String getCommandLine() {
+        return commandLine;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return How many images workers have answered OK for.
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * @return How many images failed, whether the worker said ERR or died.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
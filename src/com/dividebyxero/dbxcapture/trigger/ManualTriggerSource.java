@@ -0,0 +1,45 @@
+/*
+ Project: dbx-capture
+ File: ManualTriggerSource.java (com.dividebyxero.dbxcapture.trigger)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.trigger;
+
+/**
+ * Pure-Java trigger source that only fires when told to. The tray menu uses
+ * this to take screenshots without a keyboard hook, and it's also the way to
+ * feed a simulated key stream into the dispatcher when measuring latency.
+ *
+ * @author Alex Kersten
+ */
+public class ManualTriggerSource implements TriggerSource {
+
+    private volatile TriggerDispatcher dispatcher;
+
+    @Override
+    public void start(TriggerDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void stop() {
+        dispatcher = null;
+    }
+
+    /**
+     * Pretends the given key was just pressed.
+     *
+     * @param keyCode The key to report.
+     * @return False if the source isn't started or the dispatcher's queue was
+     * full and the press got dropped.
+     */
+    public boolean fire(int keyCode) {
+        TriggerDispatcher d = dispatcher;
+
+        if (d == null) {
+            return false;
+        }
+
+        return d.post(new TriggerEvent(keyCode, System.nanoTime()));
+    }
+}
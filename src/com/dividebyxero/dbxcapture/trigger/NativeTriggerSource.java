@@ -0,0 +1,111 @@
+/*
+ Project: dbx-capture
+ File: NativeTriggerSource.java (com.dividebyxero.dbxcapture.trigger)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.trigger;
+
+import com.dividebyxero.dbxcapture.jni.DBXCNativeInterface;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Trigger source backed by the native global keyboard hook. The native call
+ * only knows how to block until one particular key is pressed, so every key
+ * we care about gets a daemon thread parked in blockUntilKeypress().
+ *
+ * Those threads can't be interrupted out of native code, so there's only ever
+ * one per key, shared by every source watching that key, and it's kept for
+ * good once started. stop() just takes the source off the threads it was
+ * listening to. Binding a key again (after the user changes it back, say)
+ * picks the key's thread back up rather than parking another one beside it.
+ *
+ * @author Alex Kersten
+ */
+public class NativeTriggerSource implements TriggerSource {
+
+    //The thread for each key that's ever been watched, by key code.
+    private static final Map<Integer, KeyHook> HOOKS = new HashMap<>();
+
+    private final int[] keyCodes;
+
+    private volatile TriggerDispatcher dispatcher;
+
+    /**
+     * @param keyCodes The virtual key codes to listen for.
+     */
+    public NativeTriggerSource(int... keyCodes) {
+        this.keyCodes = keyCodes.clone();
+    }
+
+    @Override
+    public void start(TriggerDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+
+        for (int vk : keyCodes) {
+            getHook(vk).sources.addIfAbsent(this);
+        }
+    }
+
+    @Override
+    public void stop() {
+        dispatcher = null;
+
+        for (int vk : keyCodes) {
+            getHook(vk).sources.remove(this);
+        }
+    }
+
+    /**
+     * @return The key's thread, started if this is the first time the key's
+     * been watched.
+     */
+    private static KeyHook getHook(int vk) {
+        synchronized (HOOKS) {
+            KeyHook hook = HOOKS.get(vk);
+
+            if (hook == null) {
+                hook = new KeyHook(vk);
+                HOOKS.put(vk, hook);
+                hook.start();
+            }
+
+            return hook;
+        }
+    }
+
+    /**
+     * Waits on one key forever, posting each press to whichever sources are
+     * watching the key at the time. Presses nothing is watching are ignored.
+     */
+    private static class KeyHook extends Thread {
+
+        private final int vk;
+
+        private final CopyOnWriteArrayList<NativeTriggerSource> sources =
+                new CopyOnWriteArrayList<>();
+
+        KeyHook(int vk) {
+            super("DBXC native key hook (" + vk + ")");
+            this.vk = vk;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                DBXCNativeInterface.blockUntilKeypress(vk);
+                long now = System.nanoTime();
+
+                for (NativeTriggerSource source : sources) {
+                    TriggerDispatcher d = source.dispatcher;
+
+                    if (d != null) {
+                        d.post(new TriggerEvent(vk, now));
+                    }
+                }
+            }
+        }
+    }
+}
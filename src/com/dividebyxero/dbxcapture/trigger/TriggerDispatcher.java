@@ -0,0 +1,246 @@
+/*
+ Project: dbx-capture
+ File: TriggerDispatcher.java (com.dividebyxero.dbxcapture.trigger)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.trigger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes key presses from any number of TriggerSources through a bounded queue
+ * and starts the matching TriggerHandler for each one on a worker thread.
+ *
+ * Sources only ever post() into the queue, which never blocks, so a slow
+ * capture can't hold up the keyboard hook. If the queue fills up (somebody
+ * leaning on PrintScreen while every capture is stuck) new presses are dropped
+ * and counted rather than piling up forever.
+ *
+ * @author Alex Kersten
+ */
+public class TriggerDispatcher {
+
+    //How many undispatched presses we'll hold on to.
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    //Posted to wake the dispatcher thread up when stopping.
+    private static final TriggerEvent STOP_EVENT = new TriggerEvent(-1, 0);
+
+    private final BlockingQueue<TriggerEvent> queue;
+
+    private final ConcurrentHashMap<Integer, TriggerHandler> handlers =
+                                                     new ConcurrentHashMap<>();
+
+    private final List<TriggerSource> sources = new ArrayList<>();
+
+    //Runs the handlers. Threads are created on demand and go away when idle.
+    private final ExecutorService workers;
+
+    private final Thread dispatchThread;
+
+    private volatile boolean running = true;
+
+    //Statistics, mostly for measuring keypress-to-handler latency.
+    private final AtomicLong dispatched = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile long lastLatencyNanos = -1;
+
+    public TriggerDispatcher() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates and starts a dispatcher.
+     *
+     * @param queueCapacity How many presses can wait to be dispatched before
+     * new ones get dropped.
+     */
+    public TriggerDispatcher(int queueCapacity) {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        workers = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DBXC trigger worker "
+                                         + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        dispatchThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, "DBXC trigger dispatcher");
+
+        dispatchThread.setDaemon(true);
+        dispatchThread.start();
+    }
+
+    /**
+     * Registers (or replaces) the handler for a key.
+     *
+     * @param keyCode The virtual key code.
+     * @param handler What to run when it's pressed.
+     */
+    public void setHandler(int keyCode, TriggerHandler handler) {
+        handlers.put(keyCode, handler);
+    }
+
+    /**
+     * Removes the handler for a key, if there was one.
+     */
+    public void removeHandler(int keyCode) {
+        handlers.remove(keyCode);
+    }
+
+    /**
+     * Adds and starts a source of key presses.
+     */
+    public void addSource(TriggerSource source) {
+        synchronized (sources) {
+            sources.add(source);
+        }
+
+        source.start(this);
+    }
+
+    /**
+     * Stops and removes a source.
+     */
+    public void removeSource(TriggerSource source) {
+        synchronized (sources) {
+            sources.remove(source);
+        }
+
+        source.stop();
+    }
+
+    /**
+     * Queues a key press for dispatch. Never blocks.
+     *
+     * @param event The press.
+     * @return False if we're stopped or the queue was full and the press was
+     * dropped.
+     */
+    public boolean post(TriggerEvent event) {
+        if (!running) {
+            return false;
+        }
+
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            final TriggerEvent event;
+
+            try {
+                event = queue.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+
+            if (event == STOP_EVENT) {
+                break;
+            }
+
+            final TriggerHandler handler = handlers.get(event.getKeyCode());
+
+            if (handler == null) {
+                continue;
+            }
+
+            try {
+                workers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        lastLatencyNanos = event.getAge();
+                        dispatched.incrementAndGet();
+                        handler.triggered(event);
+                    }
+                });
+            } catch (RuntimeException re) {
+                //Rejected because we're shutting down - nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Stops all sources and the dispatcher. Presses still in the queue are
+     * discarded; handlers already running are allowed to finish for a short
+     * while before being interrupted.
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        synchronized (sources) {
+            for (TriggerSource source : sources) {
+                source.stop();
+            }
+            sources.clear();
+        }
+
+        queue.clear();
+        queue.offer(STOP_EVENT);
+
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(2, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException ie) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return How many presses have been handed to a handler so far.
+     */
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    /**
+     * @return How many presses were dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Nanoseconds between the most recent handled key press and its
+     * handler starting to run, or -1 if nothing has been handled yet.
+     */
+    public long getLastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ Project: dbx-capture
+ File: TriggerEvent.java (com.dividebyxero.dbxcapture.trigger)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.trigger;
+
+/**
+ * A single key press reported by a TriggerSource. Carries the System.nanoTime()
+ * of when the source saw it so we can tell how long it took to get handled.
+ *
+ * @author Alex Kersten
+ */
+public class TriggerEvent {
+
+    private final int keyCode;
+
+    private final long timestamp;
+
+    /**
+     * @param keyCode The virtual key code that was pressed.
+     * @param timestamp System.nanoTime() at the moment of the press.
+     */
+    public TriggerEvent(int keyCode, long timestamp) {
+        this.keyCode = keyCode;
+        this.timestamp = timestamp;
+    }
+
+    public int getKeyCode() {
+        return keyCode;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return Nanoseconds between the key press and now.
+     */
+    public long getAge() {
+        return System.nanoTime() - timestamp;
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ Project: dbx-capture
+ File: TriggerHandler.java (com.dividebyxero.dbxcapture.trigger)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.trigger;
+
+/**
+ * Gets run by the TriggerDispatcher when the key it's registered for is
+ * pressed. Runs on a worker thread, never on the dispatcher itself, so it's
+ * fine to do slow things in here.
+ *
+ * @author Alex Kersten
+ */
+public interface TriggerHandler {
+
+    void triggered(TriggerEvent event);
+}
@@ -0,0 +1,29 @@
+/*
+ Project: dbx-capture
+ File: TriggerSource.java (com.dividebyxero.dbxcapture.trigger)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.trigger;
+
+/**
+ * Something that notices key presses and posts them to a TriggerDispatcher -
+ * the native keyboard hook, or a Java stand-in. Sources should never block the
+ * dispatcher; they just post() and go back to waiting.
+ *
+ * @author Alex Kersten
+ */
+public interface TriggerSource {
+
+    /**
+     * Starts delivering events to the dispatcher. Called once by the
+     * dispatcher when the source is added.
+     *
+     * @param dispatcher Where to post key presses.
+     */
+    void start(TriggerDispatcher dispatcher);
+
+    /**
+     * Stops delivering events. Must not block.
+     */
+    void stop();
+}
@@ -0,0 +1,140 @@
+/*
+ Project: dbx-capture
+ File: AudioTrack.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import com.dividebyxero.dbxcapture.audio.AudioCapture;
+import com.dividebyxero.dbxcapture.audio.AudioRingBuffer;
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Moves sound from an AudioCapture into a video as it's being written,
+ * keeping it lined up with the frames.
+ *
+ * After each frame the encoder asks for sound up to that frame's end. How
+ * much is due comes from the video's timeline; where the sound waiting in the
+ * ring belongs on that timeline comes from the capture's timestamps. When the
+ * two disagree by more than MAX_DRIFT_MILLIS - the sound started late, some
+ * was dropped, or the device's clock runs at a slightly different speed than
+ * ours - silence is put in or sound is skipped to bring them back together.
+ *
+ * Only ever reads what's already in the ring, so nothing here waits on the
+ * capture thread either.
+ *
+ * @author Alex Kersten
+ */
+class AudioTrack {
+
+    private static final int MAX_DRIFT_MILLIS = 40;
+
+    private final AudioCapture capture;
+
+    private final AudioRingBuffer ring;
+
+    private final long videoStartNanos;
+
+    private final double bytesPerNano;
+
+    private final int frameSize;
+
+    private final long maxDrift;
+
+    private final byte[] chunk;
+
+    //Zeroes, for writing silence.
+    private final byte[] silence;
+
+    //Bytes put in the video, and taken out of the ring.
+    private long written = 0, consumed = 0;
+
+    /**
+     * @param capture Where the sound comes from. Should already be started.
+     * @param videoStartNanos When the video's first frame was due, in
+     * System.nanoTime() terms.
+     */
+    AudioTrack(AudioCapture capture, long videoStartNanos) {
+        this.capture = capture;
+        this.videoStartNanos = videoStartNanos;
+
+        ring = capture.getBuffer();
+
+        AudioFormat format = capture.getFormat();
+        frameSize = format.getFrameSize();
+        bytesPerNano = format.getFrameRate() * frameSize / 1e9;
+        maxDrift = align((long) (bytesPerNano * MAX_DRIFT_MILLIS * 1000000L));
+
+        chunk = new byte[ring.getCapacity()];
+        silence = new byte[(int) align((long) (bytesPerNano * 1e9 / 10))];
+    }
+
+    private long align(long bytes) {
+        return bytes - bytes % frameSize;
+    }
+
+    /**
+     * Writes sound into the video up to a point on its timeline.
+     *
+     * @param writer The video.
+     * @param videoNanos How far into the video to go.
+     */
+    void writeUpTo(AviWriter writer, long videoNanos) throws IOException {
+        long due = align((long) (videoNanos * bytesPerNano)) - written;
+
+        if (due <= 0) {
+            return;
+        }
+
+        AudioCapture.Timestamp stamp = capture.getTimestamp();
+
+        if (stamp != null) {
+            //Where the next byte in the ring belongs in the video. Dropped
+            //bytes were the newest ones at the time, so counting them here
+            //is only roughly right, but that's what the drift check is for.
+            long next = align((long) ((stamp.getNanos() - videoStartNanos)
+                                      * bytesPerNano))
+                        - (stamp.getPosition()
+                           - (consumed + stamp.getDroppedBytes()));
+
+            long drift = next - written;
+
+            if (drift > maxDrift) {
+                //Sound is behind - fill in with silence.
+                long gap = Math.min(drift, due);
+                writeSilence(writer, gap);
+                due -= gap;
+            } else if (drift < -maxDrift) {
+                //Sound is ahead - throw the extra away.
+                consumed += ring.skip((int) Math.min(-drift,
+                                                     Integer.MAX_VALUE));
+            }
+        }
+
+        while (due > 0) {
+            int n = ring.read(chunk, 0, (int) Math.min(due, chunk.length));
+
+            if (n == 0) {
+                //Not recorded yet. It'll go in next time, and if it never
+                //shows up the drift check makes up for it.
+                break;
+            }
+
+            writer.writeAudio(chunk, 0, n);
+            written += n;
+            consumed += n;
+            due -= n;
+        }
+    }
+
+    private void writeSilence(AviWriter writer, long length)
+            throws IOException {
+        while (length > 0) {
+            int n = (int) Math.min(length, silence.length);
+            writer.writeAudio(silence, 0, n);
+            written += n;
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ Project: dbx-capture
+ File: AviWriter.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Writes a Motion JPEG AVI file, one JPEG per frame, streaming straight to
+ * disk. Every player worth using handles these, and each frame is a plain
+ * JPEG so there's no inter-frame state to keep track of.
+ *
+ * Layout is a classic AVI 1.0 file: the header list, the movi list with a
+ * 00dc chunk per frame, and an idx1 index at the end. The header is written
+ * with placeholder sizes up front and rewritten with the real ones on close().
+ *
+ * A frame can also be written empty (a zero-length chunk), which players show
+ * as a repeat of the previous frame. That's how we keep the timeline right
+ * when a frame didn't make it.
+ *
+ * Optionally there's a second stream of 16-bit PCM sound, written in 01wb
+ * chunks in between the frames. Players go by how much sound there's been,
+ * not where the chunks are, so it's up to the caller to keep the amount of
+ * sound in step with the number of frames.
+ *
+ * Since AVI 1.0 sizes are 32-bit, a file stops taking frames a little before
+ * 2GB - writeFrame() throws once that's reached.
+ *
+ * @author Alex Kersten
+ */
+public class AviWriter implements Closeable {
+
+    //Flags from the AVI spec.
+    private static final int AVIF_HASINDEX = 0x10;
+
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    //Everything before the first frame: RIFF, hdrl list and movi list
+    //headers (see writeHeader()), without and with the audio stream.
+    private static final int HEADER_SIZE = 224;
+
+    private static final int AUDIO_HEADER_SIZE = 326;
+
+    //Size of the audio stream's strl list, header included.
+    private static final int AUDIO_STRL_SIZE = AUDIO_HEADER_SIZE - HEADER_SIZE;
+
+    //Leave some room for the index under the 2GB RIFF limit.
+    private static final long MAX_DATA_SIZE = 0x7F000000L;
+
+    private static final byte[] VIDEO_CHUNK_ID = fourcc("00dc");
+
+    private static final byte[] AUDIO_CHUNK_ID = fourcc("01wb");
+
+    private final FileChannel channel;
+
+    private final int width, height, fps;
+
+    //Null if there's no sound.
+    private final AudioFormat audio;
+
+    private final int headerSize;
+
+    //Where the 'movi' fourcc is. Index offsets are relative to it.
+    private final int moviOffset;
+
+    //Reused for chunk headers.
+    private final ByteBuffer chunkHeader =
+            ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+    //Four ints per chunk: offset from 'movi', size, flags and stream.
+    private int[] index = new int[4 * 1024];
+
+    private int chunks = 0;
+
+    private int frames = 0;
+
+    private int maxFrameSize = 0;
+
+    private long audioBytes = 0;
+
+    private int maxAudioChunkSize = 0;
+
+    //File position the next chunk goes at.
+    private long position;
+
+    private boolean closed = false;
+
+    /**
+     * Creates (or truncates) the file and writes a placeholder header.
+     *
+     * @param file Where to write the video.
+     * @param width Width of every frame.
+     * @param height Height of every frame.
+     * @param fps Playback rate.
+     * @throws IOException If the file couldn't be created.
+     */
+    public AviWriter(File file, int width, int height, int fps)
+            throws IOException {
+        this(file, width, height, fps, null);
+    }
+
+    /**
+     * Creates (or truncates) the file and writes a placeholder header.
+     *
+     * @param file Where to write the video.
+     * @param width Width of every frame.
+     * @param height Height of every frame.
+     * @param fps Playback rate.
+     * @param audio Format of the sound, which has to be signed 16-bit
+     * little-endian PCM, or null for a silent video.
+     * @throws IOException If the file couldn't be created.
+     */
+    public AviWriter(File file, int width, int height, int fps,
+                     AudioFormat audio) throws IOException {
+        if (width <= 0 || height <= 0 || fps <= 0) {
+            throw new IllegalArgumentException("Bad video format: " + width
+                                               + "x" + height + " at " + fps
+                                               + " fps");
+        }
+
+        if (audio != null
+            && (audio.getEncoding() != AudioFormat.Encoding.PCM_SIGNED
+                || audio.getSampleSizeInBits() != 16
+                || audio.isBigEndian())) {
+            throw new IllegalArgumentException("Bad audio format: " + audio);
+        }
+
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.audio = audio;
+
+        headerSize = audio == null ? HEADER_SIZE : AUDIO_HEADER_SIZE;
+        moviOffset = headerSize - 4;
+        position = headerSize;
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+
+        try {
+            writeHeader();
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    private static byte[] fourcc(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes one JPEG as the next frame.
+     *
+     * @param jpeg Buffer holding the JPEG data.
+     * @param length How many bytes of the buffer are used.
+     * @throws IOException If writing failed or the file is full.
+     */
+    public void writeFrame(byte[] jpeg, int length) throws IOException {
+        writeChunk(VIDEO_CHUNK_ID, ByteBuffer.wrap(jpeg, 0, length),
+                   AVIIF_KEYFRAME);
+    }
+
+    /**
+     * Writes one JPEG as the next frame, straight out of a buffer (direct or
+     * not).
+     *
+     * @param jpeg The JPEG data, from its position to its limit. The position
+     * is moved to the limit.
+     * @throws IOException If writing failed or the file is full.
+     */
+    public void writeFrame(ByteBuffer jpeg) throws IOException {
+        writeChunk(VIDEO_CHUNK_ID, jpeg, AVIIF_KEYFRAME);
+    }
+
+    /**
+     * Writes a zero-length frame, which repeats the previous one.
+     *
+     * @throws IOException If writing failed or the file is full.
+     */
+    public void writeEmptyFrame() throws IOException {
+        writeChunk(VIDEO_CHUNK_ID, ByteBuffer.allocate(0), 0);
+    }
+
+    /**
+     * Writes a run of sound. Only whole sample frames, please.
+     *
+     * @param pcm Buffer holding the sound.
+     * @param offset Where in the buffer it starts.
+     * @param length How many bytes of it there are.
+     * @throws IOException If writing failed or the file is full.
+     */
+    public void writeAudio(byte[] pcm, int offset, int length)
+            throws IOException {
+        if (audio == null) {
+            throw new IllegalStateException("This video has no sound.");
+        }
+
+        if (length == 0) {
+            return;
+        }
+
+        writeChunk(AUDIO_CHUNK_ID, ByteBuffer.wrap(pcm, offset, length),
+                   AVIIF_KEYFRAME);
+    }
+
+    private void writeChunk(byte[] id, ByteBuffer data, int flags)
+            throws IOException {
+        int length = data.remaining();
+
+        if (position + length + 8 > MAX_DATA_SIZE) {
+            throw new IOException("Video file is full.");
+        }
+
+        chunkHeader.clear();
+        chunkHeader.put(id).putInt(length).flip();
+        writeFully(chunkHeader, position);
+        writeFully(data, position + 8);
+
+        if ((length & 1) != 0) {
+            //Chunks are padded to an even length.
+            writeFully(ByteBuffer.allocate(1), position + 8 + length);
+        }
+
+        if (chunks * 4 == index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+
+        boolean video = id == VIDEO_CHUNK_ID;
+
+        index[chunks * 4] = (int) (position - moviOffset);
+        index[chunks * 4 + 1] = length;
+        index[chunks * 4 + 2] = flags;
+        index[chunks * 4 + 3] = video ? 0 : 1;
+        chunks++;
+
+        if (video) {
+            frames++;
+            maxFrameSize = Math.max(maxFrameSize, length);
+        } else {
+            audioBytes += length;
+            maxAudioChunkSize = Math.max(maxAudioChunkSize, length);
+        }
+
+        position += 8 + length + (length & 1);
+    }
+
+    private void writeFully(ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining()) {
+            at += channel.write(buf, at);
+        }
+    }
+
+    /**
+     * @return How many frames (empty ones included) have been written.
+     */
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return How many bytes the file takes up so far, not counting the
+     * index.
+     */
+    public long getSize() {
+        return position;
+    }
+
+    /**
+     * Writes the index and the real header, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            ByteBuffer idx = ByteBuffer.allocate(8 + chunks * 16).
+                    order(ByteOrder.LITTLE_ENDIAN);
+            idx.put(fourcc("idx1")).putInt(chunks * 16);
+
+            for (int i = 0; i < chunks; i++) {
+                idx.put(index[i * 4 + 3] == 0 ? VIDEO_CHUNK_ID
+                        : AUDIO_CHUNK_ID).
+                        putInt(index[i * 4 + 2]).putInt(index[i * 4]).
+                        putInt(index[i * 4 + 1]);
+            }
+
+            idx.flip();
+            writeFully(idx, position);
+
+            writeHeader();
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes everything up to the first frame, with sizes and counts as of
+     * now.
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(headerSize).
+                order(ByteOrder.LITTLE_ENDIAN);
+
+        int moviSize = (int) (position - moviOffset);
+        int riffSize = (int) (position + 8 + chunks * 16 - 8);
+        int audioByteRate = audio == null ? 0
+                            : (int) audio.getFrameRate() * audio.getFrameSize();
+
+        h.put(fourcc("RIFF")).putInt(riffSize).put(fourcc("AVI "));
+
+        h.put(fourcc("LIST")).putInt(headerSize - 32).put(fourcc("hdrl"));
+
+        //Main header.
+        h.put(fourcc("avih")).putInt(56);
+        h.putInt(1000000 / fps);
+        h.putInt(maxFrameSize * fps + audioByteRate);
+        h.putInt(0);
+        h.putInt(AVIF_HASINDEX);
+        h.putInt(frames);
+        h.putInt(0);
+        h.putInt(audio == null ? 1 : 2);
+        h.putInt(Math.max(maxFrameSize, maxAudioChunkSize) + 8);
+        h.putInt(width);
+        h.putInt(height);
+        h.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        h.put(fourcc("LIST")).putInt(116).put(fourcc("strl"));
+
+        //Stream header.
+        h.put(fourcc("strh")).putInt(56);
+        h.put(fourcc("vids"));
+        h.put(fourcc("MJPG"));
+        h.putInt(0);
+        h.putShort((short) 0).putShort((short) 0);
+        h.putInt(0);
+        h.putInt(1);
+        h.putInt(fps);
+        h.putInt(0);
+        h.putInt(frames);
+        h.putInt(maxFrameSize + 8);
+        h.putInt(-1);
+        h.putInt(0);
+        h.putShort((short) 0).putShort((short) 0);
+        h.putShort((short) width).putShort((short) height);
+
+        //Stream format, a BITMAPINFOHEADER.
+        h.put(fourcc("strf")).putInt(40);
+        h.putInt(40);
+        h.putInt(width);
+        h.putInt(height);
+        h.putShort((short) 1);
+        h.putShort((short) 24);
+        h.put(fourcc("MJPG"));
+        h.putInt(width * height * 3);
+        h.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        if (audio != null) {
+            int blockAlign = audio.getFrameSize();
+
+            h.put(fourcc("LIST")).putInt(AUDIO_STRL_SIZE - 8).
+                    put(fourcc("strl"));
+
+            //Stream header. Each "sample" is one sample frame.
+            h.put(fourcc("strh")).putInt(56);
+            h.put(fourcc("auds"));
+            h.putInt(0);
+            h.putInt(0);
+            h.putShort((short) 0).putShort((short) 0);
+            h.putInt(0);
+            h.putInt(blockAlign);
+            h.putInt(audioByteRate);
+            h.putInt(0);
+            h.putInt((int) (audioBytes / blockAlign));
+            h.putInt(maxAudioChunkSize);
+            h.putInt(-1);
+            h.putInt(blockAlign);
+            h.putShort((short) 0).putShort((short) 0);
+            h.putShort((short) 0).putShort((short) 0);
+
+            //Stream format, a WAVEFORMATEX.
+            h.put(fourcc("strf")).putInt(18);
+            h.putShort((short) 1);
+            h.putShort((short) audio.getChannels());
+            h.putInt((int) audio.getSampleRate());
+            h.putInt(audioByteRate);
+            h.putShort((short) blockAlign);
+            h.putShort((short) 16);
+            h.putShort((short) 0);
+        }
+
+        h.put(fourcc("LIST")).putInt(moviSize).put(fourcc("movi"));
+
+        h.flip();
+        writeFully(h, 0);
+    }
+}
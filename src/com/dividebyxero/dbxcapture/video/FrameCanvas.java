@@ -0,0 +1,108 @@
+/*
+ Project: dbx-capture
+ File: FrameCanvas.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+
+/**
+ * The picture a recording is currently showing, at the output size. Each
+ * grabbed frame is run through a FrameDiffer, and only the tiles that changed
+ * get converted and shrunk into the canvas.
+ *
+ * Tile sizes are a multiple of every scale, so doing it a tile at a time gives
+ * exactly the same picture as doing the whole screen.
+ *
+ * @author Alex Kersten
+ */
+class FrameCanvas {
+
+    private final int captureWidth, captureHeight, outWidth, outHeight;
+
+    private final int scale;
+
+    private final FrameDiffer differ = new FrameDiffer();
+
+    //Packed xRGB at the output size.
+    private final int[] pixels;
+
+    //One tile's worth of pixels on its way into the canvas.
+    private final int[] tile = new int[FrameDiffer.TILE_WIDTH
+                                       * FrameDiffer.TILE_HEIGHT];
+
+    /**
+     * @param captureWidth Width frames are grabbed at.
+     * @param captureHeight Height frames are grabbed at.
+     * @param scale What to divide the resolution by.
+     */
+    FrameCanvas(int captureWidth, int captureHeight, int scale) {
+        this.captureWidth = captureWidth;
+        this.captureHeight = captureHeight;
+        this.scale = scale;
+
+        outWidth = captureWidth / scale;
+        outHeight = captureHeight / scale;
+        pixels = new int[outWidth * outHeight];
+    }
+
+    /**
+     * Brings the canvas up to date with a new frame. The frame has to be the
+     * size given to the constructor.
+     *
+     * @param frame The freshly grabbed frame.
+     * @return How many tiles changed - zero means the canvas is untouched.
+     */
+    int update(CaptureBuffer frame) {
+        int changed = differ.diff(frame);
+
+        if (changed == 0) {
+            return 0;
+        }
+
+        int tileWidth = FrameDiffer.TILE_WIDTH;
+        int tileHeight = FrameDiffer.TILE_HEIGHT;
+
+        for (int ty = 0; ty < differ.getTilesDown(); ty++) {
+            for (int tx = 0; tx < differ.getTilesAcross(); tx++) {
+                if (!differ.isDirty(tx, ty)) {
+                    continue;
+                }
+
+                int x = tx * tileWidth;
+                int y = ty * tileHeight;
+                int w = Math.min(tileWidth, captureWidth - x);
+                int h = Math.min(tileHeight, captureHeight - y);
+
+                frame.copyRegionTo(tile, w, x, y, w, h);
+                FrameScaler.downscale(tile, w, h, scale);
+
+                int sw = w / scale;
+                int sh = h / scale;
+                for (int row = 0; row < sh; row++) {
+                    System.arraycopy(tile, row * sw, pixels,
+                                     (y / scale + row) * outWidth + x / scale,
+                                     sw);
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * @return The canvas pixels, packed xRGB, outWidth per row.
+     */
+    int[] getPixels() {
+        return pixels;
+    }
+
+    int getOutWidth() {
+        return outWidth;
+    }
+
+    int getOutHeight() {
+        return outHeight;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ Project: dbx-capture
+ File: FrameDiffer.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import com.dividebyxero.dbxcapture.capture.PixelFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Works out which parts of the screen changed since the last frame, so a
+ * recording of a mostly idle desktop doesn't redo the same work over and over.
+ *
+ * The frame is split into TILE_WIDTH x TILE_HEIGHT tiles and each one is
+ * compared against our copy of the previous frame, straight out of the
+ * capture buffer before any conversion. Rows are compared eight bytes at a
+ * time as longs, and a tile stops being compared at its first difference
+ * (from there on its rows are just copied over, to become the new previous
+ * frame). Tiles that didn't change aren't touched at all.
+ *
+ * The alpha byte of BGRA pixels is ignored, since backends are allowed to
+ * leave garbage in it.
+ *
+ * @author Alex Kersten
+ */
+public class FrameDiffer {
+
+    //Multiples of 8, so tiles scale down evenly by any supported factor.
+    public static final int TILE_WIDTH = 64;
+
+    public static final int TILE_HEIGHT = 32;
+
+    //Copy of the previous frame's pixels, laid out like the capture buffer.
+    private ByteBuffer previous;
+
+    private int width, height, stride;
+
+    private PixelFormat format;
+
+    private int tilesAcross, tilesDown;
+
+    private boolean[] dirty;
+
+    /**
+     * Compares a frame against the previous one, marks the tiles that changed
+     * and remembers the frame for next time. The first frame (or the first
+     * after the size or format changes) is entirely dirty.
+     *
+     * @param frame The freshly grabbed frame.
+     * @return How many tiles changed - zero means the frame is identical to
+     * the last one.
+     */
+    public int diff(CaptureBuffer frame) {
+        ByteBuffer current = frame.getPixels();
+        ByteBuffer source = current.duplicate();
+
+        if (previous == null || frame.getWidth() != width
+            || frame.getHeight() != height || frame.getStride() != stride
+            || frame.getPixelFormat() != format) {
+            reset(frame);
+            copy(source, previous, 0, stride * height);
+            Arrays.fill(dirty, true);
+            return dirty.length;
+        }
+
+        int bpp = format.getBytesPerPixel();
+        long mask = alphaMask();
+        int changed = 0;
+
+        for (int ty = 0, t = 0; ty < tilesDown; ty++) {
+            int firstRow = ty * TILE_HEIGHT;
+            int lastRow = Math.min(firstRow + TILE_HEIGHT, height);
+
+            for (int tx = 0; tx < tilesAcross; tx++, t++) {
+                int x = tx * TILE_WIDTH * bpp;
+                int length = Math.min(TILE_WIDTH * bpp, width * bpp - x);
+                boolean d = false;
+
+                for (int row = firstRow; row < lastRow; row++) {
+                    int offset = row * stride + x;
+
+                    if (d || !equal(current, previous, offset, length,
+                                    mask)) {
+                        d = true;
+                        copy(source, previous, offset, length);
+                    }
+                }
+
+                dirty[t] = d;
+                if (d) {
+                    changed++;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    private void reset(CaptureBuffer frame) {
+        width = frame.getWidth();
+        height = frame.getHeight();
+        stride = frame.getStride();
+        format = frame.getPixelFormat();
+
+        if (format == null) {
+            throw new IllegalStateException("Unknown pixel format in header.");
+        }
+
+        previous = ByteBuffer.allocateDirect(stride * height).
+                order(ByteOrder.nativeOrder());
+
+        tilesAcross = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+        tilesDown = (height + TILE_HEIGHT - 1) / TILE_HEIGHT;
+        dirty = new boolean[tilesAcross * tilesDown];
+    }
+
+    /**
+     * @return Which bits of a long read out of the pixels are worth comparing.
+     * Every pixel run we compare starts on a pixel boundary, so for BGRA the
+     * alpha bytes are always the 4th and 8th.
+     */
+    private long alphaMask() {
+        if (format != PixelFormat.BGRA_8888) {
+            return -1L;
+        }
+
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+               ? 0x00FFFFFF00FFFFFFL
+               : 0xFFFFFF00FFFFFF00L;
+    }
+
+    private boolean equal(ByteBuffer a, ByteBuffer b, int offset, int length,
+                          long mask) {
+        int i = offset;
+        int end = offset + length;
+
+        for (; i + 8 <= end; i += 8) {
+            if (((a.getLong(i) ^ b.getLong(i)) & mask) != 0) {
+                return false;
+            }
+        }
+
+        boolean skipAlpha = format == PixelFormat.BGRA_8888;
+
+        for (; i < end; i++) {
+            if (skipAlpha && ((i - offset) & 3) == 3) {
+                continue;
+            }
+
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Bulk copy between the direct buffers, which comes down to a memcpy - a
+     * long at a time through getLong/putLong was a tenth of a full motion
+     * recording. Moves both buffers' positions, so from has to be a
+     * duplicate nobody else is reading through.
+     */
+    private static void copy(ByteBuffer from, ByteBuffer to, int offset,
+                             int length) {
+        from.limit(offset + length).position(offset);
+        to.position(offset);
+        to.put(from);
+    }
+
+    public int getTilesAcross() {
+        return tilesAcross;
+    }
+
+    public int getTilesDown() {
+        return tilesDown;
+    }
+
+    /**
+     * @return Whether a tile changed in the last diff().
+     */
+    public boolean isDirty(int tileX, int tileY) {
+        return dirty[tileY * tilesAcross + tileX];
+    }
+}
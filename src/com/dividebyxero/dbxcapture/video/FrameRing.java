@@ -0,0 +1,192 @@
+/*
+ Project: dbx-capture
+ File: FrameRing.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fixed-size ring of encoded frames in one direct buffer, for keeping the
+ * last however-many seconds of video around without touching the heap. Once
+ * it's full, every new frame pushes out as many of the oldest ones as it
+ * needs room for - so how much is kept depends on how big the frames are, not
+ * on a frame count.
+ *
+ * Each entry is an int length, an int timeline index and then the data, and
+ * entries are never split across the end of the buffer: when one doesn't fit
+ * in what's left, a length of WRAP is written (if there's room for it) and
+ * the entry goes at the start instead. Anything under ENTRY_HEADER_SIZE bytes
+ * left at the end is skipped without a marker.
+ *
+ * All methods are synchronized on the ring.
+ *
+ * @author Alex Kersten
+ */
+class FrameRing {
+
+    private static final int ENTRY_HEADER_SIZE = 8;
+
+    private static final int WRAP = -1;
+
+    /**
+     * Gets each frame in the ring, oldest first.
+     */
+    interface Visitor {
+
+        /**
+         * @param index The frame's timeline index.
+         * @param data A view of the frame's data. Only valid until forEach()
+         * returns.
+         */
+        void frame(int index, ByteBuffer data) throws IOException;
+    }
+
+    private final ByteBuffer ring;
+
+    private final int capacity;
+
+    //Where the next entry goes, and where the oldest one is.
+    private int head = 0, tail = 0;
+
+    private int count = 0;
+
+    private int newest = -1;
+
+    /**
+     * @param capacity How many bytes to set aside, headers included.
+     */
+    FrameRing(int capacity) {
+        this.capacity = capacity;
+        ring = ByteBuffer.allocateDirect(capacity).
+                order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Adds a frame, pushing out old ones until it fits.
+     *
+     * @param index The frame's timeline index.
+     * @param data Buffer holding the frame. Can be null if length is zero.
+     * @param length How many bytes of the buffer are used.
+     * @return False if the frame is too big to ever fit.
+     */
+    synchronized boolean put(int index, byte[] data, int length) {
+        int need = ENTRY_HEADER_SIZE + length;
+
+        if (need > capacity) {
+            return false;
+        }
+
+        while (true) {
+            if (count == 0) {
+                head = tail = 0;
+                break;
+            }
+
+            if (head > tail) {
+                //Free space is the end of the buffer, then up to the tail.
+                if (capacity - head >= need) {
+                    break;
+                }
+
+                if (capacity - head >= 4) {
+                    ring.putInt(head, WRAP);
+                }
+                head = 0;
+            } else {
+                //Free space is between the head and the tail.
+                if (tail - head >= need) {
+                    break;
+                }
+
+                evictOldest();
+            }
+        }
+
+        ring.putInt(head, length);
+        ring.putInt(head + 4, index);
+
+        if (length > 0) {
+            ByteBuffer dup = ring.duplicate();
+            dup.position(head + ENTRY_HEADER_SIZE);
+            dup.put(data, 0, length);
+        }
+
+        head += need;
+        count++;
+        newest = index;
+        return true;
+    }
+
+    private void evictOldest() {
+        tail += ENTRY_HEADER_SIZE + ring.getInt(tail);
+        count--;
+
+        if (count == 0) {
+            head = tail = 0;
+        } else {
+            tail = unwrap(tail);
+        }
+    }
+
+    /**
+     * @return Where the entry at a position really is, taking wrapping into
+     * account.
+     */
+    private int unwrap(int position) {
+        if (capacity - position < ENTRY_HEADER_SIZE
+            || ring.getInt(position) == WRAP) {
+            return 0;
+        }
+
+        return position;
+    }
+
+    /**
+     * Hands every frame in the ring to a visitor, oldest first. Nothing can
+     * be added while this is going.
+     */
+    synchronized void forEach(Visitor visitor) throws IOException {
+        int position = tail;
+
+        for (int i = 0; i < count; i++) {
+            position = unwrap(position);
+
+            int length = ring.getInt(position);
+            int index = ring.getInt(position + 4);
+
+            ByteBuffer data = ring.duplicate();
+            data.limit(position + ENTRY_HEADER_SIZE + length);
+            data.position(position + ENTRY_HEADER_SIZE);
+
+            visitor.frame(index, data);
+
+            position += ENTRY_HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * @return How many frames are in the ring.
+     */
+    synchronized int getFrameCount() {
+        return count;
+    }
+
+    /**
+     * @return Timeline index of the newest frame, or -1 if there aren't any.
+     */
+    synchronized int getNewestIndex() {
+        return count == 0 ? -1 : newest;
+    }
+
+    /**
+     * Drops every frame.
+     */
+    synchronized void clear() {
+        head = tail = count = 0;
+        newest = -1;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ Project: dbx-capture
+ File: FrameScaler.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+/**
+ * Shrinks packed xRGB frames by a power of two, in place, averaging each
+ * scale x scale block of pixels into one (a box filter - plenty for screen
+ * content, and cheap).
+ *
+ * Working in place is safe because every output pixel lands at or before the
+ * first input pixel it's computed from, so nothing is overwritten before it's
+ * read. The red and blue channels are summed together in one int (they're far
+ * enough apart that the sums can't run into each other) and green on its own,
+ * so it's two adds per source pixel rather than three.
+ *
+ * @author Alex Kersten
+ */
+public abstract class FrameScaler {
+
+    /**
+     * @param scale A scale factor.
+     * @return True if it's one we can do: 1, 2, 4 or 8.
+     */
+    public static boolean isSupported(int scale) {
+        return scale == 1 || scale == 2 || scale == 4 || scale == 8;
+    }
+
+    /**
+     * Downscales a frame in place. Afterwards the first (width / scale) *
+     * (height / scale) ints of the array hold the smaller frame, rows packed
+     * with no padding. Leftover columns or rows that don't fill a whole block
+     * are dropped.
+     *
+     * @param pixels The frame, width * height packed xRGB ints.
+     * @param width Width of the frame.
+     * @param height Height of the frame.
+     * @param scale 1, 2, 4 or 8.
+     */
+    public static void downscale(int[] pixels, int width, int height,
+                                 int scale) {
+        if (!isSupported(scale)) {
+            throw new IllegalArgumentException("Unsupported scale: " + scale);
+        }
+
+        if (scale == 1) {
+            return;
+        }
+
+        int shift = 2 * Integer.numberOfTrailingZeros(scale);
+        int outWidth = width / scale;
+        int outHeight = height / scale;
+        int o = 0;
+
+        for (int y = 0; y < outHeight; y++) {
+            int rowStart = y * scale * width;
+
+            for (int x = 0; x < outWidth; x++) {
+                int redBlue = 0, green = 0;
+                int blockStart = rowStart + x * scale;
+
+                for (int by = 0; by < scale; by++) {
+                    int i = blockStart + by * width;
+                    for (int bx = 0; bx < scale; bx++, i++) {
+                        int p = pixels[i];
+                        redBlue += p & 0xFF00FF;
+                        green += p & 0x00FF00;
+                    }
+                }
+
+                pixels[o++] = ((redBlue >>> shift) & 0xFF00FF)
+                              | ((green >>> shift) & 0x00FF00);
+            }
+        }
+    }
+}
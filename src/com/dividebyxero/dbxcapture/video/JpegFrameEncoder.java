@@ -0,0 +1,559 @@
+/*
+ Project: dbx-capture
+ File: JpegFrameEncoder.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+import javax.imageio.plugins.jpeg.JPEGQTable;
+
+/**
+ * Compresses video frames to baseline JPEG into one reused buffer. Only one
+ * thread should use an instance at a time.
+ *
+ * This used to go through ImageIO, which spends about a third of its time
+ * copying the image a sample at a time into rows for libjpeg, and the rest in
+ * libjpeg's exact integer DCT. Neither is needed here: the frames are packed
+ * xRGB already, and video frames don't need a bit exact DCT. So the colour
+ * conversion reads the ints directly, the DCT is the fast floating point one
+ * (AAN, as in libjpeg's jfdctflt.c) with the quantization folded into one
+ * multiply per coefficient, and the output goes straight into the buffer.
+ * About 20 ms a 1080p frame on one core, against 30 to 45 through ImageIO.
+ *
+ * The output is an ordinary JFIF file - 4:2:0, the standard tables from the
+ * JPEG spec scaled to the same quality ImageIO would use, one scan - so any
+ * MJPEG player reads it.
+ *
+ * @author Alex Kersten
+ */
+class JpegFrameEncoder {
+
+    //JPEG quality, 0 to 1, same scale as ImageIO's.
+    static final float JPEG_QUALITY = 0.75f;
+
+    //Natural (row by row) index of each coefficient in zig-zag order.
+    private static final int[] ZIGZAG = {
+        0, 1, 8, 16, 9, 2, 3, 10,
+        17, 24, 32, 25, 18, 11, 4, 5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13, 6, 7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    //What the AAN DCT leaves each row and column of coefficients scaled by.
+    private static final double[] AAN_SCALE = {
+        1.0, 1.387039845, 1.306562965, 1.175875602,
+        1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    //Six blocks per MCU, and a block can't take more than 64 codes of 26
+    //bits, doubled in case every byte needs stuffing.
+    private static final int MAX_MCU_BYTES = 6 * 64 * 26 / 8 * 2;
+
+    private static final float FIXED_ONE = 1f / 65536;
+
+    private static final float[] LUMA_DIVISORS =
+                                     divisors(JPEGQTable.K1Luminance);
+
+    private static final float[] CHROMA_DIVISORS =
+                                     divisors(JPEGQTable.K2Chrominance);
+
+    private static final HuffmanCodes LUMA_DC =
+            new HuffmanCodes(JPEGHuffmanTable.StdDCLuminance);
+
+    private static final HuffmanCodes LUMA_AC =
+            new HuffmanCodes(JPEGHuffmanTable.StdACLuminance);
+
+    private static final HuffmanCodes CHROMA_DC =
+            new HuffmanCodes(JPEGHuffmanTable.StdDCChrominance);
+
+    private static final HuffmanCodes CHROMA_AC =
+            new HuffmanCodes(JPEGHuffmanTable.StdACChrominance);
+
+    private byte[] out = new byte[1 << 20];
+
+    private int length;
+
+    //Bits waiting to be written, and how many of them there are.
+    private long bits;
+
+    private int bitCount;
+
+    //Header for the size last encoded.
+    private byte[] header;
+
+    private int headerWidth, headerHeight;
+
+    //One MCU's blocks: four of luma, then Cb and Cr.
+    private final float[] blocks = new float[6 * 64];
+
+    //An MCU hanging over the edge of the frame, filled out to 16x16.
+    private final int[] edge = new int[16 * 16];
+
+    /**
+     * Encodes a frame. The result is in getBuffer() until the next call.
+     *
+     * @param pixels The frame, packed xRGB.
+     * @param width Width of the frame.
+     * @param height Height of the frame.
+     * @return How many bytes of getBuffer() the JPEG takes up.
+     */
+    int encode(int[] pixels, int width, int height) {
+        if (header == null || width != headerWidth
+            || height != headerHeight) {
+            header = header(width, height);
+            headerWidth = width;
+            headerHeight = height;
+        }
+
+        System.arraycopy(header, 0, out, 0, header.length);
+        length = header.length;
+        bits = 0;
+        bitCount = 0;
+
+        int mcusAcross = (width + 15) / 16;
+        int lastY = 0, lastCb = 0, lastCr = 0;
+
+        for (int top = 0; top < height; top += 16) {
+            ensureCapacity(length + mcusAcross * MAX_MCU_BYTES + 2);
+
+            for (int left = 0; left < width; left += 16) {
+                if (left + 16 <= width && top + 16 <= height) {
+                    convert(pixels, top * width + left, width);
+                } else {
+                    fillEdge(pixels, width, height, left, top);
+                    convert(edge, 0, 16);
+                }
+
+                lastY = encodeBlock(0, LUMA_DIVISORS, lastY, LUMA_DC,
+                                    LUMA_AC);
+                lastY = encodeBlock(64, LUMA_DIVISORS, lastY, LUMA_DC,
+                                    LUMA_AC);
+                lastY = encodeBlock(128, LUMA_DIVISORS, lastY, LUMA_DC,
+                                    LUMA_AC);
+                lastY = encodeBlock(192, LUMA_DIVISORS, lastY, LUMA_DC,
+                                    LUMA_AC);
+                lastCb = encodeBlock(256, CHROMA_DIVISORS, lastCb, CHROMA_DC,
+                                     CHROMA_AC);
+                lastCr = encodeBlock(320, CHROMA_DIVISORS, lastCr, CHROMA_DC,
+                                     CHROMA_AC);
+            }
+        }
+
+        //Pad the last byte with ones, then the end of image marker.
+        if (bitCount % 8 != 0) {
+            int pad = 8 - bitCount % 8;
+            writeBits((1 << pad) - 1, pad);
+        }
+        flushBits();
+        out[length++] = (byte) 0xFF;
+        out[length++] = (byte) 0xD9;
+
+        return length;
+    }
+
+    /**
+     * @return The buffer the last JPEG was encoded into.
+     */
+    byte[] getBuffer() {
+        return out;
+    }
+
+    /**
+     * Copies an MCU that runs off the right or bottom of the frame, repeating
+     * the last column and row to fill it out - that compresses best.
+     */
+    private void fillEdge(int[] pixels, int width, int height, int left,
+                          int top) {
+        for (int r = 0; r < 16; r++) {
+            int row = Math.min(top + r, height - 1) * width;
+
+            for (int c = 0; c < 16; c++) {
+                edge[r * 16 + c] = pixels[row + Math.min(left + c,
+                                                          width - 1)];
+            }
+        }
+    }
+
+    /**
+     * Converts a 16x16 MCU to level shifted YCbCr in blocks, the chroma
+     * averaged over 2x2 pixels. Fixed point with 16 fraction bits, since
+     * turning every channel into a float separately costs more than the
+     * arithmetic.
+     */
+    private void convert(int[] pixels, int offset, int stride) {
+        float[] b = blocks;
+        int k = 0;
+
+        //The four luma blocks, one after the other.
+        for (int block = 0; block < 4; block++) {
+            int corner = offset + (block >> 1) * 8 * stride + (block & 1) * 8;
+
+            for (int r = 0; r < 8; r++) {
+                int row = corner + r * stride;
+
+                for (int c = 0; c < 8; c++) {
+                    b[k++] = luma(pixels[row + c]);
+                }
+            }
+        }
+
+        for (int r = 0; r < 16; r += 2) {
+            int row0 = offset + r * stride;
+            int row1 = row0 + stride;
+
+            for (int c = 0; c < 16; c += 2, k++) {
+                int p00 = pixels[row0 + c], p01 = pixels[row0 + c + 1];
+                int p10 = pixels[row1 + c], p11 = pixels[row1 + c + 1];
+
+                //Red and blue sums fit side by side in one int, green in
+                //another.
+                int rb = (p00 & 0xFF00FF) + (p01 & 0xFF00FF)
+                         + (p10 & 0xFF00FF) + (p11 & 0xFF00FF);
+                int g = ((p00 & 0xFF00) + (p01 & 0xFF00) + (p10 & 0xFF00)
+                         + (p11 & 0xFF00)) >> 8;
+                int red = rb >> 16, blue = rb & 0x3FF;
+
+                //Quarters of the usual coefficients, for sums of four.
+                b[k] = (-2765 * red - 5427 * g + 8192 * blue) * FIXED_ONE;
+                b[k + 64] = (8192 * red - 6860 * g - 1332 * blue)
+                            * FIXED_ONE;
+            }
+        }
+    }
+
+    private static float luma(int p) {
+        return (19595 * ((p >> 16) & 0xFF) + 38470 * ((p >> 8) & 0xFF)
+                + 7471 * (p & 0xFF)) * FIXED_ONE - 128;
+    }
+
+    /**
+     * Transforms, quantizes and writes out one 8x8 block of the MCU.
+     *
+     * @param offset Where the block starts in blocks.
+     * @param lastDc The previous block of this component's DC value.
+     * @return This block's DC value.
+     */
+    private int encodeBlock(int offset, float[] divisors, int lastDc,
+                            HuffmanCodes dc, HuffmanCodes ac) {
+        float[] b = blocks;
+
+        forwardDct(b, offset);
+
+        int dcValue = quantize(b[offset], divisors[0]);
+        int diff = dcValue - lastDc;
+        int size = bitSize(diff);
+        writeBits((dc.codes[size] << size) | valueBits(diff, size),
+                  dc.sizes[size] + size);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int n = ZIGZAG[k];
+            int v = quantize(b[offset + n], divisors[n]);
+
+            if (v == 0) {
+                run++;
+                continue;
+            }
+
+            while (run > 15) {
+                writeBits(ac.codes[0xF0], ac.sizes[0xF0]);
+                run -= 16;
+            }
+
+            size = bitSize(v);
+            int symbol = (run << 4) | size;
+            writeBits((ac.codes[symbol] << size) | valueBits(v, size),
+                      ac.sizes[symbol] + size);
+            run = 0;
+        }
+
+        if (run > 0) {
+            writeBits(ac.codes[0x00], ac.sizes[0x00]);
+        }
+
+        return dcValue;
+    }
+
+    /**
+     * Rounds to nearest without Math.round's slow path.
+     */
+    private static int quantize(float coefficient, float divisor) {
+        return (int) (coefficient * divisor + 16384.5f) - 16384;
+    }
+
+    private static int bitSize(int v) {
+        return 32 - Integer.numberOfLeadingZeros(v < 0 ? -v : v);
+    }
+
+    /**
+     * Negative values are written as one less than themselves, in the low
+     * bits.
+     */
+    private static int valueBits(int v, int size) {
+        return (v < 0 ? v - 1 : v) & ((1 << size) - 1);
+    }
+
+    private void writeBits(int code, int size) {
+        bits = (bits << size) | code;
+        bitCount += size;
+
+        if (bitCount >= 32) {
+            flushBits();
+        }
+    }
+
+    /**
+     * Writes out every whole byte waiting, stuffing a zero after each 0xFF.
+     */
+    private void flushBits() {
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            int b = (int) (bits >>> bitCount) & 0xFF;
+            out[length++] = (byte) b;
+
+            if (b == 0xFF) {
+                out[length++] = 0;
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > out.length) {
+            byte[] bigger = new byte[Math.max(capacity, out.length * 2)];
+            System.arraycopy(out, 0, bigger, 0, length);
+            out = bigger;
+        }
+    }
+
+    /**
+     * AAN forward DCT, rows then columns, in place. The results come out
+     * scaled by AAN_SCALE, which the quantization divisors take out again.
+     */
+    private static void forwardDct(float[] b, int offset) {
+        for (int i = offset; i < offset + 64; i += 8) {
+            float tmp0 = b[i] + b[i + 7], tmp7 = b[i] - b[i + 7];
+            float tmp1 = b[i + 1] + b[i + 6], tmp6 = b[i + 1] - b[i + 6];
+            float tmp2 = b[i + 2] + b[i + 5], tmp5 = b[i + 2] - b[i + 5];
+            float tmp3 = b[i + 3] + b[i + 4], tmp4 = b[i + 3] - b[i + 4];
+
+            float tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+            float tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+
+            b[i] = tmp10 + tmp11;
+            b[i + 4] = tmp10 - tmp11;
+
+            float z1 = (tmp12 + tmp13) * 0.707106781f;
+            b[i + 2] = tmp13 + z1;
+            b[i + 6] = tmp13 - z1;
+
+            tmp10 = tmp4 + tmp5;
+            tmp11 = tmp5 + tmp6;
+            tmp12 = tmp6 + tmp7;
+
+            float z5 = (tmp10 - tmp12) * 0.382683433f;
+            float z2 = 0.541196100f * tmp10 + z5;
+            float z4 = 1.306562965f * tmp12 + z5;
+            float z3 = tmp11 * 0.707106781f;
+            float z11 = tmp7 + z3, z13 = tmp7 - z3;
+
+            b[i + 5] = z13 + z2;
+            b[i + 3] = z13 - z2;
+            b[i + 1] = z11 + z4;
+            b[i + 7] = z11 - z4;
+        }
+
+        for (int i = offset; i < offset + 8; i++) {
+            float tmp0 = b[i] + b[i + 56], tmp7 = b[i] - b[i + 56];
+            float tmp1 = b[i + 8] + b[i + 48], tmp6 = b[i + 8] - b[i + 48];
+            float tmp2 = b[i + 16] + b[i + 40], tmp5 = b[i + 16] - b[i + 40];
+            float tmp3 = b[i + 24] + b[i + 32], tmp4 = b[i + 24] - b[i + 32];
+
+            float tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+            float tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+
+            b[i] = tmp10 + tmp11;
+            b[i + 32] = tmp10 - tmp11;
+
+            float z1 = (tmp12 + tmp13) * 0.707106781f;
+            b[i + 16] = tmp13 + z1;
+            b[i + 48] = tmp13 - z1;
+
+            tmp10 = tmp4 + tmp5;
+            tmp11 = tmp5 + tmp6;
+            tmp12 = tmp6 + tmp7;
+
+            float z5 = (tmp10 - tmp12) * 0.382683433f;
+            float z2 = 0.541196100f * tmp10 + z5;
+            float z4 = 1.306562965f * tmp12 + z5;
+            float z3 = tmp11 * 0.707106781f;
+            float z11 = tmp7 + z3, z13 = tmp7 - z3;
+
+            b[i + 40] = z13 + z2;
+            b[i + 24] = z13 - z2;
+            b[i + 8] = z11 + z4;
+            b[i + 56] = z11 - z4;
+        }
+    }
+
+    /**
+     * The spec's table scaled to our quality the way ImageIO scales it.
+     */
+    private static JPEGQTable scaled(JPEGQTable table) {
+        float q = JPEG_QUALITY < 0.5f ? 0.5f / JPEG_QUALITY
+                  : 2 - 2 * JPEG_QUALITY;
+        return table.getScaledInstance(q, true);
+    }
+
+    /**
+     * @return What to multiply each DCT output by to quantize it, in natural
+     * order.
+     */
+    private static float[] divisors(JPEGQTable table) {
+        int[] q = scaled(table).getTable();
+        float[] divisors = new float[64];
+
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                divisors[row * 8 + col] = (float) (1 / (q[row * 8 + col]
+                                                   * AAN_SCALE[row]
+                                                   * AAN_SCALE[col] * 8));
+            }
+        }
+
+        return divisors;
+    }
+
+    /**
+     * Everything before the entropy coded data: JFIF marker, quantization
+     * and Huffman tables, frame and scan headers.
+     */
+    private static byte[] header(int width, int height) {
+        ByteWriter w = new ByteWriter();
+
+        //Start of image, and a JFIF marker with no thumbnail.
+        w.marker(0xD8);
+        w.marker(0xE0);
+        w.short16(16);
+        w.bytes('J', 'F', 'I', 'F', 0, 1, 1, 0);
+        w.short16(1);
+        w.short16(1);
+        w.bytes(0, 0);
+
+        w.marker(0xDB);
+        w.short16(2 + 2 * 65);
+        quantTable(w, 0, JPEGQTable.K1Luminance);
+        quantTable(w, 1, JPEGQTable.K2Chrominance);
+
+        //Baseline frame: Y sampled 2x2, Cb and Cr 1x1.
+        w.marker(0xC0);
+        w.short16(8 + 3 * 3);
+        w.bytes(8);
+        w.short16(height);
+        w.short16(width);
+        w.bytes(3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1);
+
+        w.marker(0xC4);
+        w.short16(2 + huffmanLength(JPEGHuffmanTable.StdDCLuminance)
+                  + huffmanLength(JPEGHuffmanTable.StdACLuminance)
+                  + huffmanLength(JPEGHuffmanTable.StdDCChrominance)
+                  + huffmanLength(JPEGHuffmanTable.StdACChrominance));
+        huffmanTable(w, 0x00, JPEGHuffmanTable.StdDCLuminance);
+        huffmanTable(w, 0x10, JPEGHuffmanTable.StdACLuminance);
+        huffmanTable(w, 0x01, JPEGHuffmanTable.StdDCChrominance);
+        huffmanTable(w, 0x11, JPEGHuffmanTable.StdACChrominance);
+
+        w.marker(0xDA);
+        w.short16(6 + 2 * 3);
+        w.bytes(3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0);
+
+        return w.toByteArray();
+    }
+
+    private static void quantTable(ByteWriter w, int id, JPEGQTable table) {
+        int[] q = scaled(table).getTable();
+
+        w.bytes(id);
+        for (int k = 0; k < 64; k++) {
+            w.bytes(q[ZIGZAG[k]]);
+        }
+    }
+
+    private static int huffmanLength(JPEGHuffmanTable table) {
+        return 1 + 16 + table.getValues().length;
+    }
+
+    private static void huffmanTable(ByteWriter w, int id,
+                                     JPEGHuffmanTable table) {
+        w.bytes(id);
+
+        for (short length : table.getLengths()) {
+            w.bytes(length);
+        }
+
+        for (short value : table.getValues()) {
+            w.bytes(value);
+        }
+    }
+
+    /**
+     * Code and length for each symbol of a Huffman table, worked out as in
+     * annex C of the spec.
+     */
+    private static class HuffmanCodes {
+
+        final int[] codes = new int[256];
+
+        final int[] sizes = new int[256];
+
+        HuffmanCodes(JPEGHuffmanTable table) {
+            short[] lengths = table.getLengths();
+            short[] values = table.getValues();
+            int code = 0, k = 0;
+
+            for (int size = 1; size <= 16; size++) {
+                for (int i = 0; i < lengths[size - 1]; i++) {
+                    codes[values[k]] = code++;
+                    sizes[values[k]] = size;
+                    k++;
+                }
+
+                code <<= 1;
+            }
+        }
+    }
+
+    /**
+     * Just enough of a byte stream to build the header with.
+     */
+    private static class ByteWriter {
+
+        private byte[] bytes = new byte[1024];
+
+        private int length;
+
+        void bytes(int... values) {
+            for (int v : values) {
+                bytes[length++] = (byte) v;
+            }
+        }
+
+        void short16(int v) {
+            bytes(v >> 8, v);
+        }
+
+        void marker(int type) {
+            bytes(0xFF, type);
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[length];
+            System.arraycopy(bytes, 0, result, 0, length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ Project: dbx-capture
+ File: ReplayBuffer.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBackend;
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recording the screen into memory, so that the last however-many
+ * seconds can be saved after the fact.
+ *
+ * Frames are grabbed at a low rate on one thread, run through a FrameCanvas,
+ * JPEG-encoded and put in a FrameRing - a direct buffer of a fixed number of
+ * bytes - so the heap never sees them and memory use is exactly the budget
+ * it's given. Frames that didn't change take up only their header. How many
+ * seconds actually fit depends on how busy the screen is.
+ *
+ * save() writes frames straight from the ring into an AVI. Grabbing waits
+ * while that's going on, which leaves a short gap in what's kept.
+ *
+ * @author Alex Kersten
+ */
+public class ReplayBuffer {
+
+    private final CaptureBackend backend;
+
+    private final int fps, scale;
+
+    private final FrameRing ring;
+
+    //Everything below is only touched by the grabber thread while running.
+    private final CaptureBuffer captureBuffer = new CaptureBuffer(0);
+
+    private int captureWidth, captureHeight;
+
+    private FrameCanvas canvas;
+
+    private JpegFrameEncoder jpeg;
+
+    private long startNanos;
+
+    private int lastIndex;
+
+    //The canvas has changes the newest frame in the ring doesn't have,
+    //because the frame they came in wasn't stored.
+    private boolean canvasAhead;
+
+    private ScheduledExecutorService grabber;
+
+    private volatile boolean running = false;
+
+    private final AtomicLong captured = new AtomicLong();
+
+    private final AtomicLong oversized = new AtomicLong();
+
+    /**
+     * @param backend Where frames come from.
+     * @param fps How many frames to grab per second.
+     * @param scale Divide the resolution by this: 1, 2 or 4 (or 8).
+     * @param budget How many bytes of memory to keep frames in.
+     */
+    public ReplayBuffer(CaptureBackend backend, int fps, int scale,
+                        int budget) {
+        if (fps <= 0 || !FrameScaler.isSupported(scale) || budget <= 0) {
+            throw new IllegalArgumentException("Bad replay settings: " + fps
+                                               + " fps, scale " + scale
+                                               + ", " + budget + " bytes");
+        }
+
+        this.backend = backend;
+        this.fps = fps;
+        this.scale = scale;
+        ring = new FrameRing(budget);
+    }
+
+    /**
+     * Starts filling the buffer. Anything left from before is dropped.
+     *
+     * @throws IOException If the screen couldn't be grabbed.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        captureBuffer.ensureCapacity(backend.getRequiredCapacity());
+        if (!backend.grab(captureBuffer)) {
+            throw new IOException("Couldn't grab the screen.");
+        }
+
+        captureWidth = captureBuffer.getWidth();
+        captureHeight = captureBuffer.getHeight();
+
+        canvas = new FrameCanvas(captureWidth, captureHeight, scale);
+        jpeg = new JpegFrameEncoder();
+
+        ring.clear();
+        captured.set(0);
+        oversized.set(0);
+        lastIndex = -1;
+        canvasAhead = false;
+
+        grabber = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DBXC replay buffer");
+                        t.setDaemon(true);
+                        //Runs all the time, so stay out of the way.
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+
+        startNanos = System.nanoTime();
+        running = true;
+
+        grabber.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                grabFrame();
+            }
+        }, 0, 1000000000L / fps, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops filling the buffer. What's in it can still be saved.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        grabber.shutdown();
+        try {
+            grabber.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        jpeg = null;
+        canvas = null;
+    }
+
+    private void grabFrame() {
+        if (!running) {
+            return;
+        }
+
+        long periodNanos = 1000000000L / fps;
+        int index = (int) ((System.nanoTime() - startNanos + periodNanos / 2)
+                           / periodNanos);
+
+        if (index <= lastIndex) {
+            return;
+        }
+
+        if (!backend.grab(captureBuffer)
+            || captureBuffer.getWidth() != captureWidth
+            || captureBuffer.getHeight() != captureHeight) {
+            return;
+        }
+
+        //A repeat is only right if the ring's newest frame has everything
+        //in the canvas.
+        if (canvas.update(captureBuffer) == 0 && !canvasAhead) {
+            ring.put(index, null, 0);
+        } else {
+            int length = jpeg.encode(canvas.getPixels(),
+                                     canvas.getOutWidth(),
+                                     canvas.getOutHeight());
+
+            //Not stored, so the next frame has to be a whole one even if
+            //nothing else changes.
+            canvasAhead = !ring.put(index, jpeg.getBuffer(), length);
+
+            if (canvasAhead) {
+                oversized.incrementAndGet();
+            }
+        }
+
+        lastIndex = index;
+        captured.incrementAndGet();
+    }
+
+    /**
+     * Writes the most recent part of the buffer to an AVI that plays back in
+     * real time.
+     *
+     * @param file Where to write the video.
+     * @param seconds How far back to go, at most.
+     * @return How many frames the video has.
+     * @throws IOException If there's nothing to save or the video couldn't
+     * be written.
+     */
+    public int save(File file, int seconds) throws IOException {
+        final int newest = ring.getNewestIndex();
+
+        if (newest < 0) {
+            throw new IOException("The replay buffer is empty.");
+        }
+
+        //Not synchronized, but it's set before the first frame goes in and
+        //only ever by start().
+        final int width = captureWidth / scale;
+        final int height = captureHeight / scale;
+        final int first = newest - seconds * fps + 1;
+
+        try (final AviWriter writer = new AviWriter(file, width, height,
+                                                    fps)) {
+            ring.forEach(new FrameRing.Visitor() {
+
+                //The last whole frame before the part being saved, in case
+                //that starts with repeats of it.
+                private ByteBuffer base;
+
+                private int next = -1;
+
+                @Override
+                public void frame(int index, ByteBuffer data)
+                        throws IOException {
+                    if (index < first || index > newest) {
+                        if (data.hasRemaining() && index < first) {
+                            base = data;
+                        }
+                        return;
+                    }
+
+                    if (next < 0) {
+                        next = index;
+
+                        if (!data.hasRemaining()) {
+                            if (base == null) {
+                                //Nothing to repeat, so this can't be the
+                                //start.
+                                next = -1;
+                                return;
+                            }
+                            data = base;
+                        }
+                    }
+
+                    while (next < index) {
+                        writer.writeEmptyFrame();
+                        next++;
+                    }
+
+                    if (data.hasRemaining()) {
+                        writer.writeFrame(data);
+                    } else {
+                        writer.writeEmptyFrame();
+                    }
+
+                    next++;
+                }
+            });
+
+            return writer.getFrameCount();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return How many frames have been put in the buffer.
+     */
+    public long getCapturedCount() {
+        return captured.get();
+    }
+
+    /**
+     * @return How many frames were too big for the buffer at all.
+     */
+    public long getOversizedCount() {
+        return oversized.get();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ Project: dbx-capture
+ File: SegmentReader.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads back the frames of a time-lapse segment written by SegmentWriter, one
+ * record at a time into a buffer that's reused for every frame.
+ *
+ * Segments that were never finished (no valid footer) are read up to the
+ * first record that's cut off or doesn't match its CRC.
+ *
+ * @author Alex Kersten
+ */
+class SegmentReader implements Closeable {
+
+    private final FileChannel channel;
+
+    private final int width, height, playbackFps, intervalMillis, sequence;
+
+    //Set from the footer if the segment was finished, otherwise -1.
+    private final long recordsEnd;
+
+    private final int footerRecords, footerFirstIndex, footerLastIndex;
+
+    private final ByteBuffer recordHeader =
+            ByteBuffer.allocate(SegmentWriter.RECORD_HEADER_SIZE).
+            order(ByteOrder.LITTLE_ENDIAN);
+
+    private final CRC32 crc = new CRC32();
+
+    private long position = SegmentWriter.HEADER_SIZE;
+
+    private byte[] data = new byte[64 * 1024];
+
+    private int index = -1, length = 0;
+
+    /**
+     * Opens a segment and reads its header and footer.
+     *
+     * @param file The segment.
+     * @throws IOException If it couldn't be read or isn't a segment at all.
+     */
+    SegmentReader(File file) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ), file);
+    }
+
+    private SegmentReader(FileChannel channel, File file) throws IOException {
+        this.channel = channel;
+
+        try {
+            ByteBuffer h = read(0, SegmentWriter.HEADER_SIZE);
+
+            if (h == null || h.getInt(0) != SegmentWriter.MAGIC
+                || h.getInt(SegmentWriter.HEADER_SIZE - 4)
+                   != SegmentWriter.checksum(h.array(), 0,
+                                             SegmentWriter.HEADER_SIZE - 4)) {
+                throw new IOException(file + " isn't a time-lapse segment.");
+            }
+
+            if (h.getInt(4) != SegmentWriter.VERSION) {
+                throw new IOException(file + " is segment version "
+                                      + h.getInt(4) + ", which we can't "
+                                      + "read.");
+            }
+
+            width = h.getInt(8);
+            height = h.getInt(12);
+            playbackFps = h.getInt(16);
+            intervalMillis = h.getInt(20);
+            sequence = h.getInt(24);
+
+            long size = channel.size();
+            ByteBuffer f = size >= SegmentWriter.HEADER_SIZE
+                                   + SegmentWriter.FOOTER_SIZE
+                           ? read(size - SegmentWriter.FOOTER_SIZE,
+                                  SegmentWriter.FOOTER_SIZE)
+                           : null;
+
+            if (f != null && f.getInt(0) == SegmentWriter.FOOTER_MAGIC
+                && f.getInt(16) == size - SegmentWriter.FOOTER_SIZE
+                && f.getInt(20)
+                   == SegmentWriter.checksum(f.array(), 0,
+                                             SegmentWriter.FOOTER_SIZE - 4)) {
+                footerRecords = f.getInt(4);
+                footerFirstIndex = f.getInt(8);
+                footerLastIndex = f.getInt(12);
+                recordsEnd = f.getInt(16);
+            } else {
+                footerRecords = footerFirstIndex = footerLastIndex = -1;
+                recordsEnd = -1;
+            }
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Finishes off a segment that was cut short: anything after the last
+     * whole record is thrown away and a footer is written. Does nothing to
+     * segments that are already finished.
+     *
+     * @param file The segment.
+     * @return True if the segment needed repairing.
+     * @throws IOException If it couldn't be read or written, or isn't a
+     * segment.
+     */
+    static boolean repair(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE);
+             SegmentReader reader = new SegmentReader(channel, file)) {
+            if (reader.isComplete()) {
+                return false;
+            }
+
+            int records = 0, first = -1, last = -1;
+
+            while (reader.next()) {
+                records++;
+                last = reader.getIndex();
+                if (first < 0) {
+                    first = last;
+                }
+            }
+
+            channel.truncate(reader.position);
+            SegmentWriter.writeFooter(channel, reader.position, records, first,
+                                      last);
+            channel.force(true);
+            return true;
+        }
+    }
+
+    /**
+     * Reads exactly count bytes, or returns null if the file ends first.
+     */
+    private ByteBuffer read(long at, int count) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(count).
+                order(ByteOrder.LITTLE_ENDIAN);
+        return readInto(buf, at) ? buf : null;
+    }
+
+    private boolean readInto(ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, at);
+            if (n < 0) {
+                return false;
+            }
+            at += n;
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves on to the next record.
+     *
+     * @return False if there are no more (whole, intact) records.
+     */
+    boolean next() throws IOException {
+        if (recordsEnd >= 0 && position >= recordsEnd) {
+            return false;
+        }
+
+        recordHeader.clear();
+        if (!readInto(recordHeader, position)) {
+            return false;
+        }
+
+        int i = recordHeader.getInt(0);
+        int len = recordHeader.getInt(4);
+
+        //A torn record's length can be anything, so it has to fit in what's
+        //there before anything's allocated for it.
+        long end = recordsEnd >= 0 ? recordsEnd : channel.size();
+
+        if (len < 0
+            || position + SegmentWriter.RECORD_HEADER_SIZE + len > end) {
+            return false;
+        }
+
+        if (data.length < len) {
+            data = new byte[Math.max(len, data.length * 2)];
+        }
+
+        if (!readInto(ByteBuffer.wrap(data, 0, len),
+                      position + SegmentWriter.RECORD_HEADER_SIZE)) {
+            return false;
+        }
+
+        crc.reset();
+        crc.update(recordHeader.array(), 0, 8);
+        crc.update(data, 0, len);
+        if ((int) crc.getValue() != recordHeader.getInt(8)) {
+            return false;
+        }
+
+        index = i;
+        length = len;
+        position += SegmentWriter.RECORD_HEADER_SIZE + len;
+        return true;
+    }
+
+    /**
+     * @return True if the segment has a valid footer.
+     */
+    boolean isComplete() {
+        return recordsEnd >= 0;
+    }
+
+    /**
+     * @return Timeline index of the current record.
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Length of the current record's JPEG, zero for a repeat.
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return Buffer holding the current record's JPEG. Only valid until the
+     * next call to next().
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return Timeline index of the last record, from the footer, or -1 if
+     * the segment isn't finished or is empty.
+     */
+    int getLastIndex() {
+        return footerLastIndex;
+    }
+
+    /**
+     * @return How many records the footer says there are, or -1 if the
+     * segment isn't finished.
+     */
+    int getRecordCount() {
+        return footerRecords;
+    }
+
+    int getFirstIndex() {
+        return footerFirstIndex;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getPlaybackFps() {
+        return playbackFps;
+    }
+
+    int getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    int getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ Project: dbx-capture
+ File: SegmentWriter.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Writes one segment of a time-lapse recording. A segment is a self-contained
+ * file that can be read back without any of the others:
+ *
+ * <ul><li>A 32 byte header: "DBXT", format version, frame width and height,
+ * playback rate, capture interval in milliseconds, the segment's sequence
+ * number and a CRC of the rest of the header.</li>
+ * <li>One record per frame: timeline index, length and a CRC of the two plus
+ * the data, then the JPEG itself. A length of zero is a repeat of the previous
+ * frame.</li>
+ * <li>Once the segment is finished, a 24 byte footer: "DBXE", record count,
+ * first and last timeline index, where the records end and a CRC of the rest
+ * of the footer.</li></ul>
+ *
+ * Everything is little-endian, like the AVI files. A segment without a footer
+ * was cut off by a crash; SegmentReader.repair() keeps every record that made
+ * it out whole and finishes it off.
+ *
+ * @author Alex Kersten
+ */
+class SegmentWriter implements Closeable {
+
+    static final int MAGIC = 0x54584244;
+
+    static final int FOOTER_MAGIC = 0x45584244;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int RECORD_HEADER_SIZE = 12;
+
+    static final int FOOTER_SIZE = 24;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final FileChannel channel;
+
+    private final ByteBuffer recordHeader =
+            ByteBuffer.allocate(RECORD_HEADER_SIZE).
+            order(ByteOrder.LITTLE_ENDIAN);
+
+    private final CRC32 crc = new CRC32();
+
+    private long position = HEADER_SIZE;
+
+    private int records = 0;
+
+    private int firstIndex = -1, lastIndex = -1;
+
+    private boolean closed = false;
+
+    /**
+     * Creates (or truncates) a segment file and writes its header.
+     *
+     * @param file Where the segment goes.
+     * @param width Width of every frame.
+     * @param height Height of every frame.
+     * @param playbackFps Rate the finished video plays at.
+     * @param intervalMillis Time between captured frames.
+     * @param sequence Which segment of the recording this is.
+     * @throws IOException If the file couldn't be created.
+     */
+    SegmentWriter(File file, int width, int height, int playbackFps,
+                  int intervalMillis, int sequence) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).
+                order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).
+                putInt(playbackFps).putInt(intervalMillis).putInt(sequence);
+        h.putInt(checksum(h.array(), 0, HEADER_SIZE - 4));
+        h.flip();
+
+        try {
+            writeFully(channel, h, 0);
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Writes a captured frame.
+     *
+     * @param index The frame's place on the recording's timeline.
+     * @param jpeg Buffer holding the JPEG data.
+     * @param length How many bytes of the buffer are used.
+     */
+    void writeFrame(int index, byte[] jpeg, int length) throws IOException {
+        if (index <= lastIndex) {
+            throw new IllegalArgumentException("Frame " + index
+                                               + " is out of order.");
+        }
+
+        recordHeader.clear();
+        recordHeader.putInt(index).putInt(length);
+
+        crc.reset();
+        crc.update(recordHeader.array(), 0, 8);
+        crc.update(jpeg, 0, length);
+        recordHeader.putInt((int) crc.getValue());
+        recordHeader.flip();
+
+        writeFully(channel, recordHeader, position);
+        writeFully(channel, ByteBuffer.wrap(jpeg, 0, length),
+                   position + RECORD_HEADER_SIZE);
+
+        position += RECORD_HEADER_SIZE + length;
+        records++;
+        lastIndex = index;
+        if (firstIndex < 0) {
+            firstIndex = index;
+        }
+    }
+
+    /**
+     * Writes a frame that's the same as the one before it.
+     *
+     * @param index The frame's place on the recording's timeline.
+     */
+    void writeRepeat(int index) throws IOException {
+        writeFrame(index, EMPTY, 0);
+    }
+
+    /**
+     * @return How many frames (repeats included) are in the segment.
+     */
+    int getRecordCount() {
+        return records;
+    }
+
+    /**
+     * @return How big the segment is so far, not counting the footer.
+     */
+    long getSize() {
+        return position;
+    }
+
+    /**
+     * Writes the footer, makes sure everything is on disk and closes the
+     * file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            writeFooter(channel, position, records, firstIndex, lastIndex);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes a footer at the given position. Also used to finish segments
+     * after a crash.
+     */
+    static void writeFooter(FileChannel channel, long at, int records,
+                            int firstIndex, int lastIndex) throws IOException {
+        ByteBuffer f = ByteBuffer.allocate(FOOTER_SIZE).
+                order(ByteOrder.LITTLE_ENDIAN);
+        f.putInt(FOOTER_MAGIC).putInt(records).putInt(firstIndex).
+                putInt(lastIndex).putInt((int) at);
+        f.putInt(checksum(f.array(), 0, FOOTER_SIZE - 4));
+        f.flip();
+
+        writeFully(channel, f, at);
+    }
+
+    static int checksum(byte[] data, int offset, int length) {
+        CRC32 c = new CRC32();
+        c.update(data, offset, length);
+        return (int) c.getValue();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buf, long at)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            at += channel.write(buf, at);
+        }
+    }
+}
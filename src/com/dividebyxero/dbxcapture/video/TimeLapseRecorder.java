@@ -0,0 +1,419 @@
+/*
+ Project: dbx-capture
+ File: TimeLapseRecorder.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBackend;
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records a time-lapse: one frame every few seconds, for as long as you like.
+ *
+ * Unlike VideoRecorder there's no frame buffer and no encoder thread - at
+ * these rates there's all the time in the world, so a single thread grabs,
+ * diffs, shrinks and encodes each frame straight to disk. Everything it uses
+ * is allocated once when recording starts, so memory use stays flat no matter
+ * how many hours it runs.
+ *
+ * Frames go into a directory of segment files (see SegmentWriter), a new one
+ * every SEGMENT_FRAMES frames. Finished segments are synced to disk, and an
+ * unfinished one is repaired up to its last whole frame, so a crash costs at
+ * most the frames of the segment being written. Starting a recording in a
+ * directory that already has segments picks up where they left off, and
+ * export() turns the segments into an ordinary AVI once it's done.
+ *
+ * @author Alex Kersten
+ */
+public class TimeLapseRecorder {
+
+    //Frames per segment file.
+    public static final int SEGMENT_FRAMES = 240;
+
+    //Start a new segment early if one gets this big.
+    public static final long MAX_SEGMENT_SIZE = 64L << 20;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".dbxt";
+
+    private final CaptureBackend backend;
+
+    private final int intervalMillis, playbackFps, scale;
+
+    //Everything below is only touched by the grabber thread while recording.
+    private final CaptureBuffer captureBuffer = new CaptureBuffer(0);
+
+    private int captureWidth, captureHeight;
+
+    private FrameCanvas canvas;
+
+    private JpegFrameEncoder jpeg;
+
+    private File directory;
+
+    private SegmentWriter segment;
+
+    private int nextSequence;
+
+    //Timeline index of the first frame this session, and the last written.
+    private int firstIndex, lastIndex;
+
+    private long startNanos;
+
+    private ScheduledExecutorService grabber;
+
+    private volatile boolean recording = false;
+
+    private volatile IOException writeError;
+
+    private final AtomicLong captured = new AtomicLong();
+
+    private final AtomicLong unchanged = new AtomicLong();
+
+    /**
+     * @param backend Where frames come from.
+     * @param intervalMillis Time between frames.
+     * @param playbackFps How many frames per second the video plays at.
+     * @param scale Divide the resolution by this: 1, 2 or 4 (or 8).
+     */
+    public TimeLapseRecorder(CaptureBackend backend, int intervalMillis,
+                             int playbackFps, int scale) {
+        if (intervalMillis <= 0 || playbackFps <= 0
+            || !FrameScaler.isSupported(scale)) {
+            throw new IllegalArgumentException("Bad time-lapse settings: "
+                                               + intervalMillis + " ms, "
+                                               + playbackFps
+                                               + " fps playback, scale "
+                                               + scale);
+        }
+
+        this.backend = backend;
+        this.intervalMillis = intervalMillis;
+        this.playbackFps = playbackFps;
+        this.scale = scale;
+    }
+
+    /**
+     * Starts recording into a directory, continuing whatever recording is
+     * already in there.
+     *
+     * @param dir Where to put the segments. Created if it doesn't exist.
+     * @return True if an earlier recording was picked up again.
+     * @throws IOException If the screen couldn't be grabbed, the directory
+     * couldn't be written to, or it holds a recording with different
+     * settings.
+     */
+    public synchronized boolean start(File dir) throws IOException {
+        if (recording) {
+            throw new IllegalStateException("Already recording.");
+        }
+
+        captureBuffer.ensureCapacity(backend.getRequiredCapacity());
+        if (!backend.grab(captureBuffer)) {
+            throw new IOException("Couldn't grab the screen.");
+        }
+
+        captureWidth = captureBuffer.getWidth();
+        captureHeight = captureBuffer.getHeight();
+        int outWidth = captureWidth / scale;
+        int outHeight = captureHeight / scale;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create " + dir + ".");
+        }
+
+        lastIndex = -1;
+        nextSequence = 0;
+
+        File[] existing = listSegments(dir);
+
+        for (File f : existing) {
+            SegmentReader.repair(f);
+
+            try (SegmentReader reader = new SegmentReader(f)) {
+                if (reader.getWidth() != outWidth
+                    || reader.getHeight() != outHeight
+                    || reader.getPlaybackFps() != playbackFps
+                    || reader.getIntervalMillis() != intervalMillis) {
+                    throw new IOException("The time-lapse in " + dir
+                                          + " was recorded with different "
+                                          + "settings.");
+                }
+
+                lastIndex = Math.max(lastIndex, reader.getLastIndex());
+                nextSequence = Math.max(nextSequence,
+                                        reader.getSequence() + 1);
+            }
+        }
+
+        directory = dir;
+        firstIndex = lastIndex + 1;
+
+        canvas = new FrameCanvas(captureWidth, captureHeight, scale);
+        jpeg = new JpegFrameEncoder();
+
+        openSegment();
+
+        captured.set(0);
+        unchanged.set(0);
+        writeError = null;
+
+        grabber = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DBXC time-lapse");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        startNanos = System.nanoTime();
+        recording = true;
+
+        grabber.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                grabFrame();
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+
+        return existing.length > 0;
+    }
+
+    private void openSegment() throws IOException {
+        File f = new File(directory, String.format("%s%05d%s", SEGMENT_PREFIX,
+                                                   nextSequence,
+                                                   SEGMENT_SUFFIX));
+
+        segment = new SegmentWriter(f, canvas.getOutWidth(),
+                                    canvas.getOutHeight(), playbackFps,
+                                    intervalMillis, nextSequence);
+        nextSequence++;
+    }
+
+    /**
+     * Stops recording and finishes the current segment. The recording can be
+     * continued later by starting again in the same directory, or turned into
+     * a video with export().
+     *
+     * @throws IOException If writing the recording failed at any point.
+     */
+    public synchronized void stop() throws IOException {
+        if (!recording) {
+            return;
+        }
+
+        recording = false;
+
+        grabber.shutdown();
+        try {
+            grabber.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (segment != null) {
+                segment.close();
+            }
+        } finally {
+            segment = null;
+            jpeg = null;
+            canvas = null;
+        }
+
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private void grabFrame() {
+        if (!recording || writeError != null) {
+            return;
+        }
+
+        long ticks = (System.nanoTime() - startNanos
+                      + intervalMillis * 500000L) / (intervalMillis * 1000000L);
+        int index = firstIndex + (int) ticks;
+
+        if (index <= lastIndex) {
+            return;
+        }
+
+        if (!backend.grab(captureBuffer)
+            || captureBuffer.getWidth() != captureWidth
+            || captureBuffer.getHeight() != captureHeight) {
+            return;
+        }
+
+        try {
+            //Each segment starts with a whole frame, so it can stand on its
+            //own.
+            if (canvas.update(captureBuffer) == 0
+                && segment.getRecordCount() > 0) {
+                segment.writeRepeat(index);
+                unchanged.incrementAndGet();
+            } else {
+                int length = jpeg.encode(canvas.getPixels(),
+                                         canvas.getOutWidth(),
+                                         canvas.getOutHeight());
+                segment.writeFrame(index, jpeg.getBuffer(), length);
+                captured.incrementAndGet();
+            }
+
+            lastIndex = index;
+
+            if (segment.getRecordCount() >= SEGMENT_FRAMES
+                || segment.getSize() >= MAX_SEGMENT_SIZE) {
+                segment.close();
+                segment = null;
+                openSegment();
+            }
+        } catch (IOException ioe) {
+            System.err.println("Time-lapse recording failed:\n"
+                               + ioe.getMessage());
+            writeError = ioe;
+        }
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @return How many frames were grabbed and encoded this session.
+     */
+    public long getCapturedCount() {
+        return captured.get();
+    }
+
+    /**
+     * @return How many frames were identical to the one before, and stored
+     * as repeats.
+     */
+    public long getUnchangedCount() {
+        return unchanged.get();
+    }
+
+    /**
+     * Turns a recorded time-lapse into an MJPEG AVI. Unfinished segments are
+     * repaired first. Frames are copied across one at a time, so this doesn't
+     * need much memory either.
+     *
+     * @param dir The directory the time-lapse was recorded into.
+     * @param file Where to write the video.
+     * @return How many frames the video has.
+     * @throws IOException If the segments couldn't be read or the video
+     * couldn't be written.
+     */
+    public static int export(File dir, File file) throws IOException {
+        File[] segments = listSegments(dir);
+
+        if (segments.length == 0) {
+            throw new IOException("There's no time-lapse in " + dir + ".");
+        }
+
+        AviWriter writer = null;
+        int next = -1;
+
+        try {
+            for (File f : segments) {
+                SegmentReader.repair(f);
+
+                try (SegmentReader reader = new SegmentReader(f)) {
+                    if (writer == null) {
+                        writer = new AviWriter(file, reader.getWidth(),
+                                               reader.getHeight(),
+                                               reader.getPlaybackFps());
+                    }
+
+                    while (reader.next()) {
+                        if (next < 0) {
+                            next = reader.getIndex();
+                        }
+
+                        //Ticks that were missed repeat the last frame.
+                        while (next < reader.getIndex()) {
+                            writer.writeEmptyFrame();
+                            next++;
+                        }
+
+                        if (reader.getLength() == 0) {
+                            writer.writeEmptyFrame();
+                        } else {
+                            writer.writeFrame(reader.getData(),
+                                              reader.getLength());
+                        }
+
+                        next++;
+                    }
+                }
+            }
+
+            return writer.getFrameCount();
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes a recorded time-lapse's segments, and the directory if that
+     * leaves it empty.
+     *
+     * @param dir The directory the time-lapse was recorded into.
+     */
+    public static void discard(File dir) {
+        for (File f : listSegments(dir)) {
+            if (!f.delete()) {
+                System.err.println("Couldn't delete " + f + ".");
+            }
+        }
+
+        dir.delete();
+    }
+
+    /**
+     * @return True if the directory holds any time-lapse segments.
+     */
+    public static boolean hasSegments(File dir) {
+        return listSegments(dir).length > 0;
+    }
+
+    /**
+     * @return The segment files in a directory, in recording order.
+     */
+    private static File[] listSegments(File dir) {
+        File[] segments = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().startsWith(SEGMENT_PREFIX)
+                       && f.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        if (segments == null) {
+            return new File[0];
+        }
+
+        //Sequence numbers are zero-padded, so names sort in order.
+        Arrays.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ Project: dbx-capture
+ File: VideoFrame.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+/**
+ * One reusable slot in a VideoRecorder's frame buffer: a copy of the canvas at
+ * the output size, waiting for the encoder.
+ *
+ * Frames without pixels are repeats: the screen didn't change, so the encoder
+ * has nothing to do but note that in the file.
+ *
+ * @author Alex Kersten
+ */
+class VideoFrame {
+
+    //What gets encoded, packed xRGB at the output size. Null for repeats.
+    final int[] pixels;
+
+    final int width, height;
+
+    //Position on the recording's timeline, in frame periods.
+    long index;
+
+    /**
+     * @param outWidth Width after scaling.
+     * @param outHeight Height after scaling.
+     */
+    VideoFrame(int outWidth, int outHeight) {
+        pixels = new int[outWidth * outHeight];
+        width = outWidth;
+        height = outHeight;
+    }
+
+    /**
+     * A repeat of the previous frame, or the end of the stream.
+     */
+    private VideoFrame(long index) {
+        pixels = null;
+        width = height = 0;
+        this.index = index;
+    }
+
+    /**
+     * Marks the end of the stream for the encoder.
+     */
+    static final VideoFrame END = new VideoFrame(-1);
+
+    /**
+     * @param index Where on the timeline the repeat goes.
+     * @return A frame telling the encoder nothing changed.
+     */
+    static VideoFrame repeat(long index) {
+        return new VideoFrame(index);
+    }
+
+    /**
+     * Copies packed xRGB pixels at the output size into the frame.
+     */
+    void pack(int[] canvas) {
+        System.arraycopy(canvas, 0, pixels, 0, pixels.length);
+    }
+
+}
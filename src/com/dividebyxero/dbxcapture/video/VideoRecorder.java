@@ -0,0 +1,450 @@
+/*
+ Project: dbx-capture
+ File: VideoRecorder.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import com.dividebyxero.dbxcapture.audio.AudioCapture;
+import com.dividebyxero.dbxcapture.audio.AudioSource;
+import com.dividebyxero.dbxcapture.capture.CaptureBackend;
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the screen to an MJPEG AVI file.
+ *
+ * Two threads do the work. The grabber runs on a fixed-rate schedule at the
+ * capture frame rate: every tick it grabs the screen, brings a FrameCanvas
+ * up to date with it (converting and shrinking just the tiles that changed),
+ * then packs the canvas into a free frame slot and queues it. The encoder
+ * compresses queued frames to JPEG, writes them out and hands the slots back.
+ *
+ * If nothing at all changed the grabber queues a repeat instead, which takes
+ * no slot and which the encoder writes as an empty frame without encoding
+ * anything - MJPEG has no way to store part of a frame, so that's the most
+ * there is to save, but on a mostly idle desktop it's most frames.
+ *
+ * There's a fixed number of slots, so memory use is bounded no matter how far
+ * behind the encoder falls. When there's no free slot (or a tick came too late
+ * to grab in time) that frame is skipped, and the encoder fills the gap in the
+ * timeline with an empty frame so the video keeps its timing. Those are
+ * counted as dropped frames.
+ *
+ * With an audio source set, sound is recorded alongside on its own thread and
+ * the encoder mixes it in after every frame (see AudioTrack). That only
+ * makes sense when the video plays back at the speed it was recorded, so
+ * sound is left out otherwise.
+ *
+ * Playback rate is separate from the capture rate - capture at 1 fps and play
+ * back at 24 and you get a time-lapse. For anything slower than that, or
+ * anything that runs for hours, TimeLapseRecorder is a better fit.
+ *
+ * @author Alex Kersten
+ */
+public class VideoRecorder {
+
+    //How many frames can be grabbed and waiting to be encoded.
+    public static final int FRAME_BUFFER_SIZE = 8;
+
+    //How much sound can be waiting to be written before it's thrown away.
+    public static final int AUDIO_BUFFER_MILLIS = 2000;
+
+    private final CaptureBackend backend;
+
+    private final int captureFps, playbackFps, scale;
+
+    //Only the grabber touches these.
+    private final CaptureBuffer captureBuffer = new CaptureBuffer(0);
+
+    private FrameCanvas canvas;
+
+    //Capture size, and size after scaling. Fixed when recording starts.
+    private int captureWidth, captureHeight, outWidth, outHeight;
+
+    private BlockingQueue<VideoFrame> freeFrames;
+
+    //Never bounded by itself - there are only so many frames to put in it.
+    private final BlockingQueue<VideoFrame> filledFrames =
+                                            new LinkedBlockingQueue<>();
+
+    private ScheduledExecutorService grabber;
+
+    private Thread encoder;
+
+    private AviWriter writer;
+
+    private AudioSource audioSource;
+
+    //Null when recording without sound.
+    private AudioCapture audio;
+
+    private AudioTrack audioTrack;
+
+    private long startNanos, periodNanos;
+
+    //Timeline index of the last frame grabbed. Grabber thread only.
+    private long lastIndex = -1;
+
+    //The canvas has changes the last queued frame doesn't have, because the
+    //frame they came in was dropped. Grabber thread only.
+    private boolean canvasAhead = false;
+
+    private volatile boolean recording = false;
+
+    private volatile IOException writeError;
+
+    private final AtomicLong captured = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong unchanged = new AtomicLong();
+
+    /**
+     * @param backend Where frames come from.
+     * @param captureFps How many frames to grab per second.
+     * @param playbackFps How many frames per second the video plays at.
+     * @param scale Divide the resolution by this: 1, 2 or 4 (or 8).
+     */
+    public VideoRecorder(CaptureBackend backend, int captureFps,
+                         int playbackFps, int scale) {
+        if (captureFps <= 0 || playbackFps <= 0
+            || !FrameScaler.isSupported(scale)) {
+            throw new IllegalArgumentException("Bad video settings: "
+                                               + captureFps + " fps, "
+                                               + playbackFps
+                                               + " fps playback, scale "
+                                               + scale);
+        }
+
+        this.backend = backend;
+        this.captureFps = captureFps;
+        this.playbackFps = playbackFps;
+        this.scale = scale;
+    }
+
+    /**
+     * Sets where to record sound from, for recordings started after this.
+     *
+     * @param source The source, or null for silent videos.
+     */
+    public synchronized void setAudioSource(AudioSource source) {
+        audioSource = source;
+    }
+
+    /**
+     * Starts recording into a file. The screen is grabbed once right away to
+     * find out how big frames are.
+     *
+     * @param file Where to write the video. It's only complete after stop().
+     * @throws IOException If the screen couldn't be grabbed or the file
+     * couldn't be created.
+     */
+    public synchronized void start(File file) throws IOException {
+        if (recording) {
+            throw new IllegalStateException("Already recording.");
+        }
+
+        captureBuffer.ensureCapacity(backend.getRequiredCapacity());
+        if (!backend.grab(captureBuffer)) {
+            throw new IOException("Couldn't grab the screen.");
+        }
+
+        captureWidth = captureBuffer.getWidth();
+        captureHeight = captureBuffer.getHeight();
+        outWidth = captureWidth / scale;
+        outHeight = captureHeight / scale;
+
+        audio = null;
+        audioTrack = null;
+
+        if (audioSource != null && captureFps != playbackFps) {
+            System.out.println("Not recording sound, the video isn't played "
+                               + "back at 1x.");
+        } else if (audioSource != null) {
+            audio = new AudioCapture(audioSource, AUDIO_BUFFER_MILLIS);
+
+            try {
+                audio.start();
+            } catch (IOException ioe) {
+                System.err.println("Recording without sound:\n"
+                                   + ioe.getMessage());
+                audio = null;
+            }
+        }
+
+        try {
+            writer = new AviWriter(file, outWidth, outHeight, playbackFps,
+                                   audio == null ? null : audio.getFormat());
+        } catch (IOException ioe) {
+            if (audio != null) {
+                audio.stop();
+            }
+            throw ioe;
+        }
+
+        freeFrames = new ArrayBlockingQueue<>(FRAME_BUFFER_SIZE);
+        for (int i = 0; i < FRAME_BUFFER_SIZE; i++) {
+            freeFrames.add(new VideoFrame(outWidth, outHeight));
+        }
+
+        canvas = new FrameCanvas(captureWidth, captureHeight, scale);
+
+        filledFrames.clear();
+        captured.set(0);
+        written.set(0);
+        dropped.set(0);
+        unchanged.set(0);
+        writeError = null;
+        lastIndex = -1;
+        canvasAhead = false;
+
+        encoder = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, "DBXC video encoder");
+        encoder.setDaemon(true);
+        encoder.start();
+
+        grabber = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DBXC video grabber");
+                        t.setDaemon(true);
+                        //Late frames are dropped frames.
+                        t.setPriority(Thread.MAX_PRIORITY);
+                        return t;
+                    }
+                });
+
+        periodNanos = 1000000000L / captureFps;
+        startNanos = System.nanoTime();
+
+        if (audio != null) {
+            audioTrack = new AudioTrack(audio, startNanos);
+        }
+
+        recording = true;
+
+        grabber.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                grabFrame();
+            }
+        }, 0, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops grabbing, waits for the encoder to write out everything that was
+     * grabbed, and finishes the file.
+     *
+     * @throws IOException If writing the video failed at any point.
+     */
+    public synchronized void stop() throws IOException {
+        if (!recording) {
+            return;
+        }
+
+        recording = false;
+
+        grabber.shutdown();
+        try {
+            grabber.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        filledFrames.add(VideoFrame.END);
+
+        try {
+            encoder.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (audio != null) {
+            audio.stop();
+        }
+
+        try {
+            writer.close();
+        } finally {
+            freeFrames = null;
+            canvas = null;
+        }
+
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private void grabFrame() {
+        if (!recording || writeError != null) {
+            return;
+        }
+
+        //Round to the nearest tick, so a little scheduling jitter doesn't
+        //shift frames around.
+        long index = (System.nanoTime() - startNanos + periodNanos / 2)
+                     / periodNanos;
+
+        if (index <= lastIndex) {
+            return;
+        }
+
+        //Encoder's behind, this frame gets dropped. Don't bother grabbing it
+        //either - on one core that's time taken from the encoder, and the
+        //canvas picks up whatever changed on the next grab anyway.
+        if (freeFrames.isEmpty()) {
+            return;
+        }
+
+        if (!backend.grab(captureBuffer)
+            || captureBuffer.getWidth() != captureWidth
+            || captureBuffer.getHeight() != captureHeight) {
+            //Failed, or the resolution changed under us. Either way there's
+            //nothing to put in this frame.
+            return;
+        }
+
+        //The canvas has to be kept up to date even if this frame ends up
+        //dropped, since the next one is only diffed against this one.
+        //Repeating is only right if the last frame queued has everything in
+        //the canvas.
+        if (canvas.update(captureBuffer) == 0 && !canvasAhead) {
+            lastIndex = index;
+            unchanged.incrementAndGet();
+            filledFrames.add(VideoFrame.repeat(index));
+            return;
+        }
+
+        VideoFrame frame = freeFrames.poll();
+
+        if (frame == null) {
+            //Only this thread takes slots, so there was one left after the
+            //check above. If not, drop it like any other frame - whatever
+            //changed in it goes into the next frame that gets a slot.
+            canvasAhead = true;
+            return;
+        }
+
+        frame.pack(canvas.getPixels());
+        canvasAhead = false;
+
+        frame.index = index;
+        lastIndex = index;
+        captured.incrementAndGet();
+        filledFrames.add(frame);
+    }
+
+    private void encodeLoop() {
+        JpegFrameEncoder jpeg = new JpegFrameEncoder();
+
+        //Timeline index the next frame written will have.
+        long nextIndex = 0;
+
+        while (true) {
+            VideoFrame frame;
+
+            try {
+                frame = filledFrames.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+
+            if (frame == VideoFrame.END) {
+                break;
+            }
+
+            if (writeError == null) {
+                try {
+                    while (nextIndex < frame.index) {
+                        writer.writeEmptyFrame();
+                        dropped.incrementAndGet();
+                        nextIndex++;
+                    }
+
+                    if (frame.pixels == null) {
+                        writer.writeEmptyFrame();
+                    } else {
+                        int length = jpeg.encode(frame.pixels, frame.width,
+                                                 frame.height);
+                        writer.writeFrame(jpeg.getBuffer(), length);
+                        written.incrementAndGet();
+                    }
+
+                    nextIndex++;
+
+                    if (audioTrack != null) {
+                        audioTrack.writeUpTo(writer, nextIndex * periodNanos);
+                    }
+                } catch (IOException ioe) {
+                    System.err.println("Video recording failed:\n"
+                                       + ioe.getMessage());
+                    writeError = ioe;
+                }
+            }
+
+            if (frame.pixels != null) {
+                freeFrames.offer(frame);
+            }
+        }
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @return The size of the video being recorded, as width and height.
+     */
+    public int[] getOutputSize() {
+        return new int[]{outWidth, outHeight};
+    }
+
+    /**
+     * @return How many frames were grabbed.
+     */
+    public long getCapturedCount() {
+        return captured.get();
+    }
+
+    /**
+     * @return How many frames made it into the file.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return How many frames were skipped (and written empty instead).
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return How many frames were identical to the one before, and were
+     * written empty without being encoded.
+     */
+    public long getUnchangedCount() {
+        return unchanged.get();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ Project: dbx-capture
+ File: PixelConverterTest.java (com.dividebyxero.dbxcapture.capture)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.capture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks every PixelFormat converts to exactly the xRGB it should, through
+ * each of PixelConverter's paths, with padded rows and rectangles that don't
+ * start at the corner.
+ *
+ * @author Alex Kersten
+ */
+public class PixelConverterTest {
+
+    //Marks the parts of the destination a conversion shouldn't touch.
+    private static final int UNTOUCHED = 0xDEADBEEF;
+
+    /**
+     * Converts one pixel given as raw bytes in memory order. The buffer's
+     * position is left after the pixel, which the conversion should ignore.
+     */
+    private static int convertOne(PixelFormat format, byte... bytes) {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(bytes.length).
+                order(ByteOrder.nativeOrder());
+        pixels.put(bytes);
+
+        int[] data = new int[1];
+        PixelConverter.toXRGB(pixels, format, bytes.length, 0, 0, 1, 1, data,
+                              0, 1);
+
+        //The top byte of BGRA is alpha (or garbage), which xRGB ignores.
+        return data[0] & 0xFFFFFF;
+    }
+
+    private static int convert565(int value) {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(2).
+                order(ByteOrder.nativeOrder());
+        pixels.putShort(0, (short) value);
+
+        int[] data = new int[1];
+        PixelConverter.toXRGB(pixels, PixelFormat.RGB_565, 2, 0, 0, 1, 1,
+                              data, 0, 1);
+        return data[0];
+    }
+
+    /**
+     * Lays out an xRGB image in a format the way a backend would, with the
+     * given stride.
+     */
+    private static ByteBuffer encode(int[] image, int width, int height,
+                                     PixelFormat format, int stride) {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(stride * height).
+                order(ByteOrder.nativeOrder());
+
+        //Padding that'd show up in the output if it were read.
+        for (int i = 0; i < pixels.capacity(); i++) {
+            pixels.put(i, (byte) 0xA5);
+        }
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int p = image[y * width + x];
+                int r = (p >> 16) & 0xFF, g = (p >> 8) & 0xFF, b = p & 0xFF;
+                int i = y * stride + x * format.getBytesPerPixel();
+
+                switch (format) {
+                    case BGRA_8888:
+                        pixels.put(i, (byte) b).put(i + 1, (byte) g).
+                                put(i + 2, (byte) r).put(i + 3, (byte) 0x7F);
+                        break;
+                    case RGB_888:
+                        pixels.put(i, (byte) r).put(i + 1, (byte) g).
+                                put(i + 2, (byte) b);
+                        break;
+                    case BGR_888:
+                        pixels.put(i, (byte) b).put(i + 1, (byte) g).
+                                put(i + 2, (byte) r);
+                        break;
+                    case RGB_565:
+                        pixels.putShort(i, (short) (((r >> 3) << 11)
+                                                    | ((g >> 2) << 5)
+                                                    | (b >> 3)));
+                        break;
+                }
+            }
+        }
+
+        return pixels;
+    }
+
+    /**
+     * @return The pixel as RGB565 would store it and bit replication would
+     * bring it back.
+     */
+    private static int quantize565(int p) {
+        int r = (p >> 19) & 0x1F, g = (p >> 10) & 0x3F, b = (p >> 3) & 0x1F;
+        return (((r << 3) | (r >> 2)) << 16) | (((g << 2) | (g >> 4)) << 8)
+               | ((b << 3) | (b >> 2));
+    }
+
+    private static int[] randomImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] image = new int[width * height];
+
+        for (int i = 0; i < image.length; i++) {
+            image[i] = random.nextInt() & 0xFFFFFF;
+        }
+
+        return image;
+    }
+
+    /**
+     * Converts a rectangle of a padded image into the middle of a bigger
+     * destination, and checks the rectangle came out right and nothing
+     * around it was written to.
+     */
+    private static void checkRegion(PixelFormat format, int padding) {
+        int width = 13, height = 9;
+        int stride = width * format.getBytesPerPixel() + padding;
+        int[] image = randomImage(width, height, format.ordinal() * 31
+                                                 + padding);
+        ByteBuffer pixels = encode(image, width, height, format, stride);
+
+        int x = 3, y = 2, w = 7, h = 5;
+        int dataWidth = 11, offset = dataWidth + 2;
+        int[] data = new int[dataWidth * (h + 2)];
+        Arrays.fill(data, UNTOUCHED);
+
+        PixelConverter.toXRGB(pixels, format, stride, x, y, w, h, data,
+                              offset, dataWidth);
+
+        for (int i = 0; i < data.length; i++) {
+            int row = (i - offset) / dataWidth;
+            int col = (i - offset) % dataWidth;
+            boolean inside = i >= offset && row < h && col >= 0 && col < w;
+
+            if (!inside) {
+                assertEquals(format + " wrote outside the rectangle at " + i,
+                             UNTOUCHED, data[i]);
+                continue;
+            }
+
+            int expected = image[(y + row) * width + x + col];
+            if (format == PixelFormat.RGB_565) {
+                expected = quantize565(expected);
+            }
+
+            assertEquals(format + " pixel " + col + "," + row
+                         + " with stride " + stride,
+                         expected, data[i] & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    public void knownBGRAPixels() {
+        assertEquals(0x302010, convertOne(PixelFormat.BGRA_8888,
+                                          (byte) 0x10, (byte) 0x20,
+                                          (byte) 0x30, (byte) 0xFF));
+        //Alpha doesn't leak into the colour.
+        assertEquals(0xFFFFFF, convertOne(PixelFormat.BGRA_8888,
+                                          (byte) 0xFF, (byte) 0xFF,
+                                          (byte) 0xFF, (byte) 0x00));
+        assertEquals(0x000000, convertOne(PixelFormat.BGRA_8888,
+                                          (byte) 0x00, (byte) 0x00,
+                                          (byte) 0x00, (byte) 0xFF));
+    }
+
+    @Test
+    public void knownRGB888Pixels() {
+        assertEquals(0x102030, convertOne(PixelFormat.RGB_888, (byte) 0x10,
+                                          (byte) 0x20, (byte) 0x30));
+        assertEquals(0xFF0080, convertOne(PixelFormat.RGB_888, (byte) 0xFF,
+                                          (byte) 0x00, (byte) 0x80));
+    }
+
+    @Test
+    public void knownBGR888Pixels() {
+        assertEquals(0x302010, convertOne(PixelFormat.BGR_888, (byte) 0x10,
+                                          (byte) 0x20, (byte) 0x30));
+        assertEquals(0x8000FF, convertOne(PixelFormat.BGR_888, (byte) 0xFF,
+                                          (byte) 0x00, (byte) 0x80));
+    }
+
+    @Test
+    public void knownRGB565Pixels() {
+        assertEquals(0xFF0000, convert565(0xF800));
+        assertEquals(0x00FF00, convert565(0x07E0));
+        assertEquals(0x0000FF, convert565(0x001F));
+        assertEquals(0xFFFFFF, convert565(0xFFFF));
+        assertEquals(0x000000, convert565(0x0000));
+        //Half intensity: 10000 -> 10000100, 100000 -> 10000010.
+        assertEquals(0x848284, convert565(0x8410));
+    }
+
+    /**
+     * Every entry of the lookup table, against bit replication worked out
+     * one channel at a time.
+     */
+    @Test
+    public void rgb565TableReplicatesTopBits() {
+        for (int p = 0; p < 1 << 16; p++) {
+            int r = p >>> 11, g = (p >>> 5) & 0x3F, b = p & 0x1F;
+            int expected = ((r * 8 + r / 4) << 16) | ((g * 4 + g / 16) << 8)
+                           | (b * 8 + b / 4);
+
+            assertEquals("RGB565 " + Integer.toHexString(p), expected,
+                         convert565(p));
+        }
+    }
+
+    /**
+     * A stride that's a multiple of 4 takes the bulk row copy on
+     * little-endian machines, any other stride the pixel by pixel path. Both
+     * have to agree.
+     */
+    @Test
+    public void bgraBulkAndPixelPathsAgree() {
+        int width = 16, height = 4;
+        int[] image = randomImage(width, height, 1);
+        int[] bulk = new int[width * height];
+        int[] single = new int[width * height];
+
+        PixelConverter.toXRGB(encode(image, width, height,
+                                     PixelFormat.BGRA_8888, width * 4 + 8),
+                              PixelFormat.BGRA_8888, width * 4 + 8, 0, 0,
+                              width, height, bulk, 0, width);
+        PixelConverter.toXRGB(encode(image, width, height,
+                                     PixelFormat.BGRA_8888, width * 4 + 3),
+                              PixelFormat.BGRA_8888, width * 4 + 3, 0, 0,
+                              width, height, single, 0, width);
+
+        for (int i = 0; i < bulk.length; i++) {
+            bulk[i] &= 0xFFFFFF;
+            single[i] &= 0xFFFFFF;
+        }
+
+        assertArrayEquals(image, bulk);
+        assertArrayEquals(image, single);
+    }
+
+    @Test
+    public void bgraRegions() {
+        checkRegion(PixelFormat.BGRA_8888, 0);
+        checkRegion(PixelFormat.BGRA_8888, 12);
+        checkRegion(PixelFormat.BGRA_8888, 5);
+    }
+
+    @Test
+    public void rgb888Regions() {
+        checkRegion(PixelFormat.RGB_888, 0);
+        checkRegion(PixelFormat.RGB_888, 1);
+        checkRegion(PixelFormat.RGB_888, 8);
+    }
+
+    @Test
+    public void bgr888Regions() {
+        checkRegion(PixelFormat.BGR_888, 0);
+        checkRegion(PixelFormat.BGR_888, 3);
+    }
+
+    @Test
+    public void rgb565Regions() {
+        checkRegion(PixelFormat.RGB_565, 0);
+        checkRegion(PixelFormat.RGB_565, 2);
+        checkRegion(PixelFormat.RGB_565, 6);
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ Project: dbx-capture
+ File: CaptureCatalogTest.java (com.dividebyxero.dbxcapture.catalog)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.catalog;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes catalog logs in a temporary directory and reads them back: appends,
+ * removals, a torn last record, logs from older versions, compaction and
+ * rebuilding from the screenshots, checking the indexes after each.
+ *
+ * @author Alex Kersten
+ */
+public class CaptureCatalogTest {
+
+    //Mirrors of the log format, for writing old and broken logs by hand.
+    private static final int MAGIC = 0x44425843;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    private Path log;
+
+    private CaptureCatalog catalog;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("content").toPath();
+        log = directory.resolve(CaptureCatalog.CATALOG_FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (catalog != null) {
+            catalog.close();
+        }
+    }
+
+    private void reopen() throws IOException {
+        if (catalog != null) {
+            catalog.close();
+        }
+
+        catalog = CaptureCatalog.open(directory);
+    }
+
+    private static CatalogEntry entry(long time, String name) {
+        return new CatalogEntry(time, name, 640, 480, "script", null,
+                                "hash-" + name, "pixels-" + name, 12, 6);
+    }
+
+    /**
+     * @param expected The entries' file names, as a list's toString().
+     */
+    private static void assertNames(String expected,
+                                    List<CatalogEntry> entries) {
+        List<String> names = new ArrayList<>();
+
+        for (CatalogEntry e : entries) {
+            names.add(e.getFileName());
+        }
+
+        assertEquals(expected, names.toString());
+    }
+
+    private static void assertSameEntry(CatalogEntry expected,
+                                        CatalogEntry actual) {
+        assertNotNull(expected.getFileName() + " is missing", actual);
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getScript(), actual.getScript());
+        assertEquals(expected.getResult(), actual.getResult());
+        assertEquals(expected.getFileHash(), actual.getFileHash());
+        assertEquals(expected.getPixelHash(), actual.getPixelHash());
+        assertEquals(expected.getThumbnailOffset(),
+                     actual.getThumbnailOffset());
+        assertEquals(expected.getCompression(), actual.getCompression());
+    }
+
+    @Test
+    public void appendsSurviveReopening() throws IOException {
+        reopen();
+        assertEquals(0, catalog.size());
+
+        CatalogEntry a = catalog.add(entry(1000, "2014-03-07_10-00-00-000"));
+        CatalogEntry b = catalog.add(entry(2000, "2014-03-07_11-00-00-000"));
+        CatalogEntry c = catalog.add(entry(3000, "2014-03-08_09-00-00-000"));
+        assertTrue(catalog.setResult(b.getFileName(), "http://example/b"));
+        assertFalse(catalog.setResult("nothing.png", "x"));
+
+        reopen();
+
+        assertEquals(3, catalog.size());
+        assertSameEntry(a, catalog.get(a.getFileName()));
+        assertSameEntry(b.withResult("http://example/b"),
+                        catalog.get(b.getFileName()));
+        assertSameEntry(c, catalog.get(c.getFileName()));
+    }
+
+    @Test
+    public void timesAreKeptUnique() throws IOException {
+        reopen();
+
+        CatalogEntry a = catalog.add(entry(1000, "a.png"));
+        CatalogEntry b = catalog.add(entry(1000, "b.png"));
+        CatalogEntry c = catalog.add(entry(1000, "c.png"));
+
+        assertEquals(1000, a.getTime());
+        assertEquals(1001, b.getTime());
+        assertEquals(1002, c.getTime());
+
+        //Replacing an entry keeps its own time.
+        assertEquals(1000, catalog.add(entry(1000, "a.png")).getTime());
+        assertEquals(3, catalog.size());
+    }
+
+    @Test
+    public void indexes() throws IOException {
+        reopen();
+
+        catalog.add(entry(1000, "2014-03-07_10-00-00-000"));
+        catalog.add(entry(2000, "2014-03-07_11-00-00-000"));
+        catalog.add(entry(3000, "2014-03-08_09-00-00-000"));
+        catalog.add(entry(4000, "2014-04-01_09-00-00-000"));
+
+        assertNames("[2014-03-07_10-00-00-000, 2014-03-07_11-00-00-000]",
+                    catalog.findByPrefix("2014-03-07"));
+        assertEquals(3, catalog.findByPrefix("2014-03").size());
+        assertEquals(0, catalog.findByPrefix("2015").size());
+
+        assertNames("[2014-03-07_11-00-00-000, 2014-03-08_09-00-00-000]",
+                    catalog.findBetween(2000, 4000));
+        assertEquals(4, catalog.findBetween(Long.MIN_VALUE,
+                                            Long.MAX_VALUE).size());
+        assertEquals(0, catalog.findBetween(3000, 3000).size());
+        assertEquals(0, catalog.findBetween(4000, 1000).size());
+
+        assertNames("[2014-04-01_09-00-00-000, 2014-03-08_09-00-00-000]",
+                    catalog.findLatest(2));
+        assertEquals(4, catalog.findLatest(10).size());
+
+        //The newest capture of a picture wins.
+        CatalogEntry older = new CatalogEntry(5000, "same-1.png", 1, 1, null,
+                                              null, null, "same", -1, -1);
+        CatalogEntry newer = new CatalogEntry(6000, "same-2.png", 1, 1, null,
+                                              null, null, "same", -1, -1);
+        catalog.add(newer);
+        catalog.add(older);
+        assertEquals("same-2.png",
+                     catalog.findByPixels("same").getFileName());
+
+        catalog.remove("same-2.png");
+        assertNull(catalog.findByPixels("same"));
+    }
+
+    @Test
+    public void removalsSurviveReopening() throws IOException {
+        reopen();
+
+        catalog.add(entry(1000, "a.png"));
+        catalog.add(entry(2000, "b.png"));
+        catalog.add(entry(3000, "c.png"));
+
+        assertTrue(catalog.remove("b.png"));
+        assertFalse(catalog.remove("b.png"));
+        assertFalse(catalog.remove("nothing.png"));
+
+        reopen();
+
+        assertEquals(2, catalog.size());
+        assertNull(catalog.get("b.png"));
+        assertNull(catalog.findByPixels("pixels-b.png"));
+        assertNames("[a.png, c.png]", catalog.findBetween(0, 10000));
+
+        //And it can come back.
+        catalog.add(entry(2000, "b.png"));
+        reopen();
+        assertEquals(3, catalog.size());
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws IOException {
+        reopen();
+        CatalogEntry a = catalog.add(entry(1000, "a.png"));
+        catalog.add(entry(2000, "b.png"));
+        catalog.close();
+
+        //Lose the end of the last record, as a crash part way through
+        //writing it would.
+        long full = Files.size(log);
+        try (FileChannel channel = FileChannel.open(
+                log, StandardOpenOption.WRITE)) {
+            channel.truncate(full - 5);
+        }
+
+        reopen();
+
+        assertEquals(1, catalog.size());
+        assertSameEntry(a, catalog.get("a.png"));
+        long good = Files.size(log);
+        assertTrue("Torn record left in the log", good < full - 5);
+
+        //Appending carries on from the last good record.
+        catalog.add(entry(3000, "c.png"));
+        reopen();
+        assertNames("[a.png, c.png]", catalog.findBetween(0, 10000));
+    }
+
+    @Test
+    public void corruptRecordEndsTheLog() throws IOException {
+        reopen();
+        catalog.add(entry(1000, "a.png"));
+        catalog.close();
+        long good = Files.size(log);
+
+        //A whole record whose CRC doesn't match, then a good one after it
+        //that can't be trusted either.
+        byte[] bad = record(putBody(3, entry(2000, "b.png")));
+        bad[bad.length - 1] ^= 1;
+        Files.write(log, bad, StandardOpenOption.APPEND);
+        Files.write(log, record(putBody(3, entry(3000, "c.png"))),
+                    StandardOpenOption.APPEND);
+
+        reopen();
+
+        assertEquals(1, catalog.size());
+        assertNull(catalog.get("c.png"));
+        assertEquals(good, Files.size(log));
+    }
+
+    @Test
+    public void unreadableLogIsSetAsideAndRebuilt() throws IOException {
+        writePng("2014-03-07_10-00-00-000.png", 8, 4);
+        Files.write(log, new byte[]{'n', 'o', 'p', 'e', 0, 0, 0, 1});
+
+        reopen();
+
+        assertTrue(Files.exists(directory.resolve(
+                CaptureCatalog.CATALOG_FILE_NAME + ".old")));
+        assertEquals(1, catalog.size());
+    }
+
+    @Test
+    public void upgradesVersion1() throws IOException {
+        CatalogEntry a = entry(1000, "a.png");
+        CatalogEntry b = entry(2000, "b.png");
+        writeLog(1, putBody(1, a), putBody(1, b));
+
+        reopen();
+
+        //Version 1 had no pixel hashes or compression levels.
+        checkUpgraded(new CatalogEntry(1000, "a.png", 640, 480, "script",
+                                       null, "hash-a.png", null, 12, -1),
+                      new CatalogEntry(2000, "b.png", 640, 480, "script",
+                                       null, "hash-b.png", null, 12, -1));
+    }
+
+    @Test
+    public void upgradesVersion2() throws IOException {
+        CatalogEntry a = entry(1000, "a.png");
+        CatalogEntry b = entry(2000, "b.png");
+        writeLog(2, putBody(2, a), putBody(2, b), putBody(2, a.withResult(
+                "http://example/a")));
+
+        reopen();
+
+        //Version 2 had no compression levels.
+        checkUpgraded(new CatalogEntry(1000, "a.png", 640, 480, "script",
+                                       "http://example/a", "hash-a.png",
+                                       "pixels-a.png", 12, -1),
+                      new CatalogEntry(2000, "b.png", 640, 480, "script",
+                                       null, "hash-b.png", "pixels-b.png", 12,
+                                       -1));
+        assertEquals("a.png", catalog.findByPixels("pixels-a.png").
+                getFileName());
+    }
+
+    /**
+     * Checks an old log came through, and that it was rewritten as the
+     * current version (which reads back the same).
+     */
+    private void checkUpgraded(CatalogEntry a, CatalogEntry b)
+            throws IOException {
+        assertEquals(2, catalog.size());
+        assertSameEntry(a, catalog.get("a.png"));
+        assertSameEntry(b, catalog.get("b.png"));
+        assertEquals(3, readVersion());
+
+        //Removals need version 3, so this only works once it's upgraded.
+        catalog.remove("b.png");
+        reopen();
+
+        assertEquals(1, catalog.size());
+        assertSameEntry(a, catalog.get("a.png"));
+    }
+
+    @Test
+    public void compactsOutdatedRecords() throws IOException {
+        reopen();
+
+        catalog.add(entry(1000, "a.png"));
+        catalog.add(entry(2000, "b.png"));
+
+        for (int i = 0; i < 300; i++) {
+            catalog.setResult("a.png", "http://example/" + i);
+        }
+
+        catalog.add(entry(3000, "c.png"));
+        catalog.remove("c.png");
+        long before = Files.size(log);
+
+        reopen();
+
+        long after = Files.size(log);
+        assertTrue("Log went from " + before + " to " + after + " bytes",
+                   after < before / 50);
+        assertEquals(2, catalog.size());
+        assertEquals("http://example/299", catalog.get("a.png").getResult());
+        assertNull(catalog.get("c.png"));
+
+        //Still appendable, and the compacted log reads back the same.
+        catalog.add(entry(4000, "d.png"));
+        reopen();
+        assertNames("[a.png, b.png, d.png]", catalog.findBetween(0, 10000));
+    }
+
+    @Test
+    public void fewOutdatedRecordsAreLeftAlone() throws IOException {
+        reopen();
+
+        catalog.add(entry(1000, "a.png"));
+        for (int i = 0; i < 10; i++) {
+            catalog.setResult("a.png", "http://example/" + i);
+        }
+        long before = Files.size(log);
+
+        reopen();
+
+        assertEquals(before, Files.size(log));
+    }
+
+    @Test
+    public void rebuildsFromScreenshots() throws IOException {
+        writePng("2014-03-07_10-00-00-000.png", 8, 4);
+        writePng("2014-03-07_10-00-00-001.png", 16, 2);
+        writePng("holiday.png", 3, 3);
+        Files.write(directory.resolve("notes.png"), new byte[]{1, 2, 3});
+        Files.write(directory.resolve("notes.txt"), new byte[]{1, 2, 3});
+
+        reopen();
+
+        assertEquals(3, catalog.size());
+        assertTrue(Files.exists(log));
+
+        CatalogEntry named = catalog.get("2014-03-07_10-00-00-000.png");
+        assertEquals(8, named.getWidth());
+        assertEquals(4, named.getHeight());
+        assertEquals(CaptureCatalog.hashFile(directory.resolve(
+                named.getFileName())), named.getFileHash());
+        assertEquals(TimeUnit.MILLISECONDS.toMicros(parse(
+                "2014-03-07_10-00-00-000")), named.getTime());
+        assertNull(named.getScript());
+        assertNull(named.getResult());
+
+        //Named a millisecond apart, so still in order.
+        assertNames("[2014-03-07_10-00-00-000.png, "
+                    + "2014-03-07_10-00-00-001.png]",
+                    catalog.findByPrefix("2014-03-07"));
+
+        //Not named by date, so it goes by when the file was written.
+        CatalogEntry other = catalog.get("holiday.png");
+        assertEquals(TimeUnit.MILLISECONDS.toMicros(Files.getLastModifiedTime(
+                directory.resolve("holiday.png")).toMillis()),
+                     other.getTime());
+
+        //Rebuilding by hand throws away what wasn't in the files.
+        catalog.setResult("holiday.png", "http://example/holiday");
+        catalog.rebuild();
+        assertNull(catalog.get("holiday.png").getResult());
+
+        reopen();
+        assertEquals(3, catalog.size());
+    }
+
+    private static long parse(String name) {
+        try {
+            return new SimpleDateFormat(CaptureCatalog.FILE_NAME_FORMAT).
+                    parse(name).getTime();
+        } catch (ParseException pe) {
+            throw new AssertionError(pe);
+        }
+    }
+
+    private void writePng(String name, int width, int height)
+            throws IOException {
+        BufferedImage image = new BufferedImage(width, height,
+                                                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 0xFF8800);
+        ImageIO.write(image, "png", directory.resolve(name).toFile());
+    }
+
+    private int readVersion() throws IOException {
+        byte[] header = Files.readAllBytes(log);
+        return ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16)
+               | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+    }
+
+    /**
+     * Writes a log from scratch, in any version.
+     */
+    private void writeLog(int version, byte[]... bodies) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(version);
+
+        for (byte[] body : bodies) {
+            out.write(record(body));
+        }
+
+        Files.write(log, bytes.toByteArray());
+    }
+
+    /**
+     * @return A body with its length in front and CRC behind.
+     */
+    private static byte[] record(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return A put record's body the way the given version wrote it.
+     */
+    private static byte[] putBody(int version, CatalogEntry entry)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(1);
+        out.writeLong(entry.getTime());
+        out.writeUTF(entry.getFileName());
+        out.writeInt(entry.getWidth());
+        out.writeInt(entry.getHeight());
+        writeString(out, entry.getScript());
+        writeString(out, entry.getResult());
+        writeString(out, entry.getFileHash());
+
+        if (version >= 2) {
+            writeString(out, entry.getPixelHash());
+        }
+
+        out.writeLong(entry.getThumbnailOffset());
+
+        if (version >= 3) {
+            out.writeInt(entry.getCompression());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+}
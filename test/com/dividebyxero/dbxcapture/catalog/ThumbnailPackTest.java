@@ -0,0 +1,194 @@
+/*
+ Project: dbx-capture
+ File: ThumbnailPackTest.java (com.dividebyxero.dbxcapture.catalog)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.catalog;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Stores thumbnails in a pack alongside a real catalog, deletes most of the
+ * captures and compacts it, checking the pack shrinks and every capture left
+ * still gets its own thumbnail back.
+ *
+ * @author Alex Kersten
+ */
+public class ThumbnailPackTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    private ThumbnailPack pack;
+
+    private CaptureCatalog catalog;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.getRoot().toPath().resolve("thumbnails.dbxt");
+        pack = ThumbnailPack.open(file);
+        catalog = CaptureCatalog.open(folder.newFolder("content").toPath());
+    }
+
+    @After
+    public void tearDown() {
+        pack.close();
+        catalog.close();
+    }
+
+    /**
+     * Noise, so it doesn't deflate and a few dozen of them make a pack worth
+     * compacting.
+     */
+    private static BufferedImage thumbnail(int seed) {
+        BufferedImage thumbnail = new BufferedImage(
+                ThumbnailPack.THUMBNAIL_WIDTH, ThumbnailPack.THUMBNAIL_HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+
+        for (int y = 0; y < thumbnail.getHeight(); y++) {
+            for (int x = 0; x < thumbnail.getWidth(); x++) {
+                thumbnail.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+
+        return thumbnail;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null,
+                            0, image.getWidth());
+    }
+
+    private static String name(int i) {
+        return "capture-" + i + ".png";
+    }
+
+    /**
+     * Catalogues a number of captures, each with its thumbnail in the pack.
+     */
+    private void capture(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            long offset = pack.append(name(i), thumbnail(i));
+            catalog.add(new CatalogEntry(1000 + i, name(i), 1, 1, null, null,
+                                         null, null, offset, -1));
+        }
+    }
+
+    private void assertThumbnail(int i) {
+        CatalogEntry entry = catalog.get(name(i));
+        BufferedImage read = pack.read(entry.getThumbnailOffset(),
+                                       entry.getFileName());
+
+        assertNotNull("Lost the thumbnail of " + name(i), read);
+        assertArrayEquals(name(i), pixels(thumbnail(i)), pixels(read));
+    }
+
+    @Test
+    public void compactsAroundDeletedCaptures() throws IOException {
+        capture(60);
+
+        //Every other one of the first 50, then all of the last few.
+        for (int i = 0; i < 60; i++) {
+            if (i % 2 == 0 || i >= 50) {
+                catalog.remove(name(i));
+            }
+        }
+
+        long before = pack.getSize();
+        long saved = pack.compact(catalog);
+
+        assertTrue("Nothing got compacted", saved > 0);
+        assertEquals(before - saved, pack.getSize());
+        assertEquals(pack.getSize(), Files.size(file));
+
+        for (int i = 1; i < 50; i += 2) {
+            assertThumbnail(i);
+        }
+
+        //New ones go after what's left.
+        long offset = pack.append(name(100), thumbnail(100));
+        assertEquals(before - saved, offset);
+        assertNotNull(pack.read(offset, name(100)));
+    }
+
+    @Test
+    public void survivesReopening() throws IOException {
+        capture(40);
+
+        for (int i = 0; i < 30; i++) {
+            catalog.remove(name(i));
+        }
+
+        assertTrue(pack.compact(catalog) > 0);
+
+        pack.close();
+        pack = ThumbnailPack.open(file);
+
+        for (int i = 30; i < 40; i++) {
+            assertThumbnail(i);
+        }
+    }
+
+    /**
+     * A pack that's mostly alive, or has little dead in it, is left alone.
+     */
+    @Test
+    public void leavesSmallWasteAlone() throws IOException {
+        capture(60);
+
+        for (int i = 0; i < 20; i++) {
+            catalog.remove(name(i));
+        }
+
+        long size = pack.getSize();
+        assertEquals(0, pack.compact(catalog));
+        assertEquals(size, pack.getSize());
+
+        for (int i = 20; i < 60; i++) {
+            assertThumbnail(i);
+        }
+    }
+
+    /**
+     * Entries whose offsets don't point at their own thumbnail don't keep
+     * anything alive, and don't get anything else's.
+     */
+    @Test
+    public void dropsMismatchedEntries() throws IOException {
+        capture(40);
+
+        for (int i = 0; i < 30; i++) {
+            catalog.remove(name(i));
+        }
+
+        //Pointed at a deleted capture's thumbnail.
+        catalog.add(catalog.get(name(30)).withThumbnailOffset(
+                pack.append(name(0), thumbnail(0))));
+
+        assertTrue(pack.compact(catalog) > 0);
+
+        CatalogEntry entry = catalog.get(name(30));
+        assertNull(pack.read(entry.getThumbnailOffset(), name(30)));
+
+        for (int i = 31; i < 40; i++) {
+            assertThumbnail(i);
+        }
+    }
+}
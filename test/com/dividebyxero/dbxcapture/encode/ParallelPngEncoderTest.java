@@ -0,0 +1,354 @@
+/*
+ Project: dbx-capture
+ File: ParallelPngEncoderTest.java (com.dividebyxero.dbxcapture.encode)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.encode;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Encodes images of awkward sizes at every preset level, split into different
+ * numbers of bands, and decodes them twice: once with ImageIO, and once by
+ * hand with a zlib Inflater that has to find exactly one well formed stream
+ * (Adler-32 included) across the IDAT chunks. Both have to give back the
+ * original pixels.
+ *
+ * @author Alex Kersten
+ */
+public class ParallelPngEncoderTest {
+
+    private static final int[] LEVELS = {
+        ParallelPngEncoder.STORE, ParallelPngEncoder.FAST,
+        ParallelPngEncoder.DEFAULT, ParallelPngEncoder.BEST
+    };
+
+    //Band counts follow the pool's parallelism.
+    private static final int[] PARALLELISM = {1, 2, 3, 7};
+
+    private static ForkJoinPool[] pools;
+
+    @BeforeClass
+    public static void setUpPools() {
+        pools = new ForkJoinPool[PARALLELISM.length];
+
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ForkJoinPool(PARALLELISM[i]);
+        }
+    }
+
+    @AfterClass
+    public static void tearDownPools() {
+        for (ForkJoinPool pool : pools) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Screen-like content: flat areas, gradients and a patch of noise, so
+     * every filter gets picked somewhere.
+     */
+    private static BufferedImage image(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31 + height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb;
+
+                if (y < height / 3) {
+                    rgb = 0x336699;
+                } else if (x < width / 2) {
+                    rgb = ((x * 7) & 0xFF) << 16 | ((y * 3) & 0xFF) << 8
+                          | ((x + y) & 0xFF);
+                } else {
+                    rgb = random.nextInt(0x1000000);
+                }
+
+                image.setRGB(x, y, 0xFF000000 | rgb);
+            }
+        }
+
+        return image;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        int[] rgb = image.getRGB(0, 0, image.getWidth(), image.getHeight(),
+                                 null, 0, image.getWidth());
+
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] &= 0xFFFFFF;
+        }
+
+        return rgb;
+    }
+
+    private static byte[] encode(BufferedImage image, int level,
+                                 ForkJoinPool pool, boolean unfiltered)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ParallelPngEncoder(level, pool, unfiltered).write(image, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes the image every way there is and checks each comes back the
+     * same.
+     */
+    private static void checkRoundTrip(BufferedImage image)
+            throws IOException, DataFormatException {
+        int[] expected = pixels(image);
+
+        for (int level : LEVELS) {
+            for (int p = 0; p < pools.length; p++) {
+                for (int unfiltered = 0; unfiltered < 2; unfiltered++) {
+                    String what = image.getWidth() + "x" + image.getHeight()
+                                  + " at level " + level + " on "
+                                  + PARALLELISM[p] + " threads"
+                                  + (unfiltered == 1 ? ", unfiltered" : "");
+                    byte[] png = encode(image, level, pools[p],
+                                        unfiltered == 1);
+
+                    BufferedImage decoded = ImageIO.read(
+                            new ByteArrayInputStream(png));
+                    assertEquals(what, image.getWidth(), decoded.getWidth());
+                    assertEquals(what, image.getHeight(),
+                                 decoded.getHeight());
+                    assertArrayEquals("ImageIO, " + what, expected,
+                                      pixels(decoded));
+
+                    assertArrayEquals("Inflater, " + what, expected,
+                                      strictDecode(png, image.getWidth(),
+                                                   image.getHeight()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void onePixel() throws Exception {
+        checkRoundTrip(image(1, 1, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test
+    public void oneRow() throws Exception {
+        checkRoundTrip(image(333, 1, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test
+    public void oneColumn() throws Exception {
+        checkRoundTrip(image(1, 77, BufferedImage.TYPE_INT_RGB));
+    }
+
+    /**
+     * 101 rows don't split evenly into bands on any of the pools, so the last
+     * band is always a short one.
+     */
+    @Test
+    public void unevenBands() throws Exception {
+        checkRoundTrip(image(67, 101, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test
+    public void manyBands() throws Exception {
+        checkRoundTrip(image(250, 517, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test
+    public void otherImageTypes() throws Exception {
+        checkRoundTrip(image(45, 38, BufferedImage.TYPE_3BYTE_BGR));
+
+        //Alpha is dropped.
+        checkRoundTrip(image(45, 38, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    @Test
+    public void combinesAdler32() {
+        byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+
+        for (int split : new int[]{0, 1, 65521, 65522, 99999, 100000}) {
+            Adler32 first = new Adler32();
+            first.update(data, 0, split);
+            Adler32 second = new Adler32();
+            second.update(data, split, data.length - split);
+            Adler32 whole = new Adler32();
+            whole.update(data);
+
+            assertEquals("Split at " + split, whole.getValue(),
+                         ParallelPngEncoder.combineAdler32(
+                                 first.getValue(), second.getValue(),
+                                 data.length - split));
+        }
+    }
+
+    /**
+     * Decodes a PNG without ImageIO: checks the signature, the header and
+     * every chunk's CRC, inflates the IDAT chunks as one zlib stream (which
+     * has to end exactly where the data does, with the right Adler-32) and
+     * undoes the row filters.
+     *
+     * @return The pixels as xRGB ints.
+     */
+    private static int[] strictDecode(byte[] png, int width, int height)
+            throws IOException, DataFormatException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(png));
+
+        byte[] signature = new byte[8];
+        in.readFully(signature);
+        assertArrayEquals(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n',
+                                     0x1A, '\n'}, signature);
+
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        boolean ended = false;
+        boolean first = true;
+
+        while (!ended) {
+            int length = in.readInt();
+            byte[] type = new byte[4];
+            in.readFully(type);
+            byte[] data = new byte[length];
+            in.readFully(data);
+
+            String name = new String(type, "US-ASCII");
+
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(data);
+            assertEquals("CRC of " + name, (int) crc.getValue(),
+                         in.readInt());
+
+            if (first) {
+                assertEquals("IHDR", name);
+                DataInputStream header = new DataInputStream(
+                        new ByteArrayInputStream(data));
+                assertEquals(width, header.readInt());
+                assertEquals(height, header.readInt());
+                //8 bits, truecolor, deflate, adaptive filtering, no
+                //interlace.
+                assertEquals(8, header.readByte());
+                assertEquals(2, header.readByte());
+                assertEquals(0, header.readByte());
+                assertEquals(0, header.readByte());
+                assertEquals(0, header.readByte());
+                first = false;
+            } else if (name.equals("IDAT")) {
+                idat.write(data);
+            } else {
+                assertEquals("IEND", name);
+                ended = true;
+            }
+        }
+
+        assertEquals("Data after IEND", -1, in.read());
+
+        int stride = width * 3;
+        byte[] raw = new byte[height * (stride + 1)];
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(idat.toByteArray());
+        int done = 0;
+
+        while (done < raw.length && !inflater.finished()) {
+            int n = inflater.inflate(raw, done, raw.length - done);
+            assertTrue("Stream stalled", n > 0 || inflater.finished());
+            done += n;
+        }
+
+        assertEquals("Uncompressed length", raw.length, done);
+
+        //Nothing more can come out, and the stream (trailer and all) has
+        //to be used up exactly.
+        assertEquals(0, inflater.inflate(new byte[1]));
+        assertTrue("zlib stream didn't end", inflater.finished());
+        assertEquals("Bytes after the zlib stream", 0,
+                     inflater.getRemaining());
+        inflater.end();
+
+        return unfilter(raw, width, height);
+    }
+
+    private static int[] unfilter(byte[] raw, int width, int height) {
+        int stride = width * 3;
+        byte[] previous = new byte[stride];
+        byte[] row = new byte[stride];
+        int[] pixels = new int[width * height];
+
+        for (int y = 0; y < height; y++) {
+            int offset = y * (stride + 1);
+            int filter = raw[offset];
+
+            for (int i = 0; i < stride; i++) {
+                int a = i >= 3 ? row[i - 3] & 0xFF : 0;
+                int b = previous[i] & 0xFF;
+                int c = i >= 3 ? previous[i - 3] & 0xFF : 0;
+                int x = raw[offset + 1 + i] & 0xFF;
+
+                switch (filter) {
+                    case 0:
+                        break;
+                    case 1:
+                        x += a;
+                        break;
+                    case 2:
+                        x += b;
+                        break;
+                    case 3:
+                        x += (a + b) >> 1;
+                        break;
+                    case 4:
+                        x += paeth(a, b, c);
+                        break;
+                    default:
+                        throw new AssertionError("Row " + y + " has filter "
+                                                 + filter);
+                }
+
+                row[i] = (byte) x;
+            }
+
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = (row[x * 3] & 0xFF) << 16
+                                        | (row[x * 3 + 1] & 0xFF) << 8
+                                        | (row[x * 3 + 2] & 0xFF);
+            }
+
+            byte[] swap = previous;
+            previous = row;
+            row = swap;
+        }
+
+        return pixels;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+
+        return pb <= pc ? b : c;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ Project: dbx-capture
+ File: OverlayRendererTest.java (com.dividebyxero.dbxcapture.gui)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.gui;
+
+import com.dividebyxero.dbxcapture.capture.DisplayGrabber;
+import com.dividebyxero.dbxcapture.capture.SyntheticCaptureBackend;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drags a selection across a 1080p overlay painted into BufferedImages, once
+ * repainting only the damage the way CropOverlay does and once repainting
+ * everything every time. The two have to come out identical, pixel for pixel,
+ * after every move.
+ *
+ * @author Alex Kersten
+ */
+public class OverlayRendererTest {
+
+    private static final int WIDTH = 1920, HEIGHT = 1080;
+
+    private static final int MOVES = 60;
+
+    private DisplayGrabber grabber;
+
+    private OverlayRenderer partial, full;
+
+    @Before
+    public void setUp() {
+        SyntheticCaptureBackend backend =
+                new SyntheticCaptureBackend(WIDTH, HEIGHT);
+        grabber = new DisplayGrabber(backend, backend.getTopology());
+        assertTrue(grabber.grab());
+
+        ScreenPreview preview = new ScreenPreview(grabber);
+        partial = new OverlayRenderer(preview);
+        full = new OverlayRenderer(preview);
+    }
+
+    @After
+    public void tearDown() {
+        partial.dispose();
+        full.dispose();
+        grabber.dispose();
+    }
+
+    private static BufferedImage newImage() {
+        return new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Paints like Swing would: clipped to the damage, if there is any.
+     */
+    private static void paint(OverlayRenderer renderer, BufferedImage image,
+                              Rectangle clip, Rectangle selection) {
+        Graphics2D g = image.createGraphics();
+
+        try {
+            if (clip != null) {
+                g.setClip(clip);
+            }
+
+            renderer.paint(g, clip, selection);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private static void assertSamePixels(String message, BufferedImage a,
+                                         BufferedImage b) {
+        int[] pa = ((DataBufferInt) a.getRaster().getDataBuffer()).getData();
+        int[] pb = ((DataBufferInt) b.getRaster().getDataBuffer()).getData();
+
+        for (int i = 0; i < pa.length; i++) {
+            if (pa[i] != pb[i]) {
+                assertEquals(message + " at " + i % WIDTH + "," + i / WIDTH,
+                             Integer.toHexString(pb[i]),
+                             Integer.toHexString(pa[i]));
+            }
+        }
+    }
+
+    /**
+     * Follows a selection through a drag, repainting as it goes.
+     *
+     * @param moves Where the selection is after each mouse move.
+     * @return How long the partial and the full repaints took altogether,
+     * in nanoseconds.
+     */
+    private long[] drag(Rectangle[] moves) {
+        BufferedImage partialImage = newImage();
+        BufferedImage fullImage = newImage();
+
+        //Both start with the overlay up and nothing picked yet. That first
+        //paint builds the cached images, so it isn't counted.
+        paint(partial, partialImage, null, null);
+        paint(full, fullImage, null, null);
+
+        Rectangle selection = null;
+        long partialNanos = 0, fullNanos = 0;
+
+        for (int i = 0; i < moves.length; i++) {
+            Rectangle damage = partial.getDamage(selection).union(
+                    partial.getDamage(moves[i]));
+            selection = moves[i];
+
+            if (!damage.isEmpty()) {
+                paint(partial, partialImage, damage, selection);
+                partialNanos += partial.getLastPaintNanos();
+            }
+
+            paint(full, fullImage, null, selection);
+            fullNanos += full.getLastPaintNanos();
+
+            assertSamePixels("Move " + i + " to " + selection, partialImage,
+                             fullImage);
+        }
+
+        System.out.println(String.format(
+                "%d moves: partial repaints %.3f ms, full %.3f ms average",
+                moves.length, partialNanos / 1e6 / moves.length,
+                fullNanos / 1e6 / moves.length));
+
+        return new long[]{partialNanos, fullNanos};
+    }
+
+    @Test
+    public void dragDownAndRightMatchesFullRepaint() {
+        Rectangle[] moves = new Rectangle[MOVES];
+
+        for (int i = 0; i < MOVES; i++) {
+            moves[i] = new Rectangle(300, 200, 1 + i * 17, 1 + i * 9);
+        }
+
+        drag(moves);
+    }
+
+    /**
+     * Dragging up and left from the start point, into a selection against
+     * the top edge, where the size label moves inside it.
+     */
+    @Test
+    public void dragUpAndLeftMatchesFullRepaint() {
+        Rectangle[] moves = new Rectangle[MOVES];
+
+        for (int i = 0; i < MOVES; i++) {
+            int x = 1200 - i * 19, y = Math.max(0, 300 - i * 7);
+            moves[i] = new Rectangle(x, y, 1200 - x + 1, 301 - y);
+        }
+
+        drag(moves);
+    }
+
+    /**
+     * The partial repaints should be the cheap ones - that's the point of
+     * tracking damage.
+     */
+    @Test
+    public void partialRepaintsAreCheaper() {
+        Rectangle[] moves = new Rectangle[MOVES];
+
+        for (int i = 0; i < MOVES; i++) {
+            moves[i] = new Rectangle(500 + i * 3, 400 + i * 2, 320, 180);
+        }
+
+        long[] nanos = drag(moves);
+
+        assertTrue("Partial " + nanos[0] + " ns, full " + nanos[1] + " ns",
+                   nanos[0] < nanos[1]);
+    }
+}
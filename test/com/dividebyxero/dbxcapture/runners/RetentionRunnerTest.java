@@ -0,0 +1,253 @@
+/*
+ Project: dbx-capture
+ File: RetentionRunnerTest.java (com.dividebyxero.dbxcapture.runners)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.runners;
+
+import com.dividebyxero.dbxcapture.catalog.CaptureCatalog;
+import com.dividebyxero.dbxcapture.catalog.CatalogEntry;
+import com.dividebyxero.dbxcapture.config.Configuration;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs retention passes over a real catalog of a temporary content directory,
+ * with every policy on its own and together, and checks the oldest captures
+ * go first, young ones never do, and linked captures count once.
+ *
+ * @author Alex Kersten
+ */
+public class RetentionRunnerTest {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    private CaptureCatalog catalog;
+
+    private Configuration settings;
+
+    private RetentionRunner runner;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("content").toPath();
+        catalog = CaptureCatalog.open(directory);
+
+        settings = new Configuration();
+        settings.setSetting("bRetention", "true");
+        settings.setSetting("bRecompressOld", "false");
+        settings.setSetting("iRetentionDays", "0");
+        settings.setSetting("iRetentionCount", "0");
+        settings.setSetting("iRetentionMegabytes", "0");
+
+        runner = new RetentionRunner(null, false);
+    }
+
+    @After
+    public void tearDown() {
+        runner.stop();
+        catalog.close();
+    }
+
+    private static long ago(long amount, TimeUnit unit) {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+               - unit.toMicros(amount);
+    }
+
+    /**
+     * Writes a capture of some size and catalogues it.
+     *
+     * @param time When it was taken, microseconds since the epoch.
+     */
+    private void capture(String name, long time, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(name.hashCode()).nextBytes(data);
+        Files.write(directory.resolve(name), data);
+
+        catalog.add(new CatalogEntry(time, name, 1, 1, null, null, null, null,
+                                     -1, -1));
+    }
+
+    /**
+     * Catalogues another name for an existing capture's file, the way
+     * duplicate screenshots are stored.
+     */
+    private void link(String name, String existing, long time)
+            throws IOException {
+        Files.createLink(directory.resolve(name), directory.resolve(existing));
+
+        catalog.add(new CatalogEntry(time, name, 1, 1, null, null, null, null,
+                                     -1, -1));
+    }
+
+    private void assertKept(String... names) {
+        for (String name : names) {
+            assertNotNull(name + " isn't catalogued", catalog.get(name));
+            assertTrue(name + " was deleted",
+                       Files.exists(directory.resolve(name)));
+        }
+    }
+
+    private void assertDeleted(String... names) {
+        for (String name : names) {
+            assertNull(name + " is still catalogued", catalog.get(name));
+            assertFalse(name + " is still there",
+                        Files.exists(directory.resolve(name)));
+        }
+    }
+
+    @Test
+    public void deletesByAge() throws IOException {
+        settings.setSetting("iRetentionDays", "7");
+
+        capture("a.png", ago(30, TimeUnit.DAYS), 1000);
+        capture("b.png", ago(8, TimeUnit.DAYS), 1000);
+        capture("c.png", ago(6, TimeUnit.DAYS), 1000);
+        capture("d.png", ago(1, TimeUnit.HOURS), 1000);
+
+        runner.pass(catalog, settings);
+
+        assertDeleted("a.png", "b.png");
+        assertKept("c.png", "d.png");
+        assertEquals(2, runner.getDeletedFiles());
+        assertEquals(2000, runner.getReclaimedBytes());
+        assertEquals(2000, runner.getUsedBytes());
+    }
+
+    @Test
+    public void deletesByCount() throws IOException {
+        settings.setSetting("iRetentionCount", "2");
+
+        //Catalogued out of order, deleted oldest first anyway.
+        capture("c.png", ago(3, TimeUnit.DAYS), 1000);
+        capture("a.png", ago(5, TimeUnit.DAYS), 1000);
+        capture("e.png", ago(1, TimeUnit.DAYS), 1000);
+        capture("b.png", ago(4, TimeUnit.DAYS), 1000);
+        capture("d.png", ago(2, TimeUnit.DAYS), 1000);
+
+        runner.pass(catalog, settings);
+
+        assertDeleted("a.png", "b.png", "c.png");
+        assertKept("d.png", "e.png");
+        assertEquals(2, catalog.size());
+    }
+
+    @Test
+    public void deletesOldestUntilUnderBudget() throws IOException {
+        settings.setSetting("iRetentionMegabytes", "1");
+
+        capture("a.png", ago(4, TimeUnit.DAYS), MEGABYTE / 2);
+        capture("b.png", ago(3, TimeUnit.DAYS), MEGABYTE / 4);
+        capture("c.png", ago(2, TimeUnit.DAYS), MEGABYTE / 2);
+        capture("d.png", ago(1, TimeUnit.DAYS), MEGABYTE / 2);
+
+        runner.pass(catalog, settings);
+
+        //1.75 MB to start with. Taking a leaves 1.25, and b brings it under.
+        assertDeleted("a.png", "b.png");
+        assertKept("c.png", "d.png");
+        assertEquals(MEGABYTE, runner.getUsedBytes());
+        assertEquals(MEGABYTE * 3 / 4, runner.getReclaimedBytes());
+    }
+
+    /**
+     * Whichever policy says so first gets the capture deleted.
+     */
+    @Test
+    public void policiesCombine() throws IOException {
+        settings.setSetting("iRetentionDays", "10");
+        settings.setSetting("iRetentionCount", "3");
+        settings.setSetting("iRetentionMegabytes", "1");
+
+        capture("a.png", ago(20, TimeUnit.DAYS), 1000);
+        capture("b.png", ago(9, TimeUnit.DAYS), 1000);
+        capture("c.png", ago(8, TimeUnit.DAYS), MEGABYTE / 2);
+        capture("d.png", ago(7, TimeUnit.DAYS), MEGABYTE / 2);
+        capture("e.png", ago(6, TimeUnit.DAYS), MEGABYTE / 2);
+
+        runner.pass(catalog, settings);
+
+        //a is too old, b one too many and c over the budget.
+        assertDeleted("a.png", "b.png", "c.png");
+        assertKept("d.png", "e.png");
+    }
+
+    @Test
+    public void youngCapturesAreNeverDeleted() throws IOException {
+        settings.setSetting("iRetentionCount", "1");
+        settings.setSetting("iRetentionMegabytes", "1");
+
+        capture("a.png", ago(1, TimeUnit.DAYS), MEGABYTE);
+        capture("b.png", ago(5, TimeUnit.MINUTES), MEGABYTE);
+        capture("c.png", ago(1, TimeUnit.MINUTES), MEGABYTE);
+
+        runner.pass(catalog, settings);
+
+        //Both policies want b gone too, but it's too new to touch.
+        assertDeleted("a.png");
+        assertKept("b.png", "c.png");
+        assertEquals(2 * MEGABYTE, runner.getUsedBytes());
+    }
+
+    @Test
+    public void linkedCapturesCountOnce() throws IOException {
+        settings.setSetting("iRetentionMegabytes", "1");
+
+        capture("a.png", ago(4, TimeUnit.DAYS), MEGABYTE / 2);
+        link("b.png", "a.png", ago(3, TimeUnit.DAYS));
+        capture("c.png", ago(2, TimeUnit.DAYS), MEGABYTE / 2);
+
+        runner.pass(catalog, settings);
+
+        //Three captures, but only one megabyte of files.
+        assertKept("a.png", "b.png", "c.png");
+        assertEquals(MEGABYTE, runner.getUsedBytes());
+
+        settings.setSetting("iRetentionMegabytes", "0");
+        settings.setSetting("iRetentionCount", "1");
+        runner.pass(catalog, settings);
+
+        //Deleting a doesn't free anything while b still links to it.
+        assertDeleted("a.png", "b.png");
+        assertKept("c.png");
+        assertEquals(MEGABYTE / 2, runner.getUsedBytes());
+        assertEquals(MEGABYTE / 2, runner.getReclaimedBytes());
+    }
+
+    /**
+     * Captures deleted by hand drop out of the catalog, and out of the size.
+     */
+    @Test
+    public void forgetsMissingFiles() throws IOException {
+        settings.setSetting("iRetentionMegabytes", "1");
+
+        capture("a.png", ago(2, TimeUnit.DAYS), MEGABYTE / 2);
+        capture("b.png", ago(1, TimeUnit.DAYS), MEGABYTE / 2);
+        Files.delete(directory.resolve("a.png"));
+
+        runner.pass(catalog, settings);
+
+        assertNull(catalog.get("a.png"));
+        assertKept("b.png");
+        assertEquals(MEGABYTE / 2, runner.getUsedBytes());
+        assertEquals(0, runner.getDeletedFiles());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ Project: dbx-capture
+ File: ManualTriggerSourceTest.java (com.dividebyxero.dbxcapture.trigger)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.trigger;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives a TriggerDispatcher with simulated key presses from a
+ * ManualTriggerSource: every press should reach its handler quickly, and
+ * stop() should leave nothing running.
+ *
+ * @author Alex Kersten
+ */
+public class ManualTriggerSourceTest {
+
+    private static final int KEY = 44;
+
+    private static final int PRESSES = 500;
+
+    private TriggerDispatcher dispatcher;
+
+    private ManualTriggerSource source;
+
+    @Before
+    public void setUp() {
+        dispatcher = new TriggerDispatcher();
+        source = new ManualTriggerSource();
+        dispatcher.addSource(source);
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Test
+    public void pressesReachTheHandlerQuickly() throws InterruptedException {
+        final long[] latencies = new long[PRESSES];
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger wrongKey = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(PRESSES);
+
+        dispatcher.setHandler(KEY, new TriggerHandler() {
+
+            @Override
+            public void triggered(TriggerEvent event) {
+                long age = event.getAge();
+
+                if (event.getKeyCode() != KEY) {
+                    wrongKey.incrementAndGet();
+                }
+
+                latencies[handled.getAndIncrement()] = age;
+                done.countDown();
+            }
+        });
+
+        for (int i = 0; i < PRESSES; i++) {
+            assertTrue("Press " + i + " was dropped", source.fire(KEY));
+
+            //About as fast as anyone can press a key, so the queue never
+            //fills.
+            Thread.sleep(1);
+        }
+
+        assertTrue("Not every press was handled",
+                   done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, wrongKey.get());
+        assertEquals(PRESSES, dispatcher.getDispatchedCount());
+        assertEquals(0, dispatcher.getDroppedCount());
+        assertTrue(dispatcher.getLastLatencyNanos() >= 0);
+
+        Arrays.sort(latencies);
+        long median = latencies[PRESSES / 2];
+        long worst = latencies[PRESSES * 99 / 100];
+
+        System.out.println("Trigger latency: median "
+                           + TimeUnit.NANOSECONDS.toMicros(median)
+                           + " us, 99th percentile "
+                           + TimeUnit.NANOSECONDS.toMicros(worst) + " us");
+
+        //Generous, so a busy build machine doesn't fail it - a press that
+        //takes this long to be handled is noticeable.
+        assertTrue("Median latency " + median + " ns",
+                   median < TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void keysWithoutHandlersAreIgnored() throws InterruptedException {
+        final CountDownLatch handled = new CountDownLatch(1);
+
+        dispatcher.setHandler(KEY, new TriggerHandler() {
+
+            @Override
+            public void triggered(TriggerEvent event) {
+                handled.countDown();
+            }
+        });
+
+        assertTrue(source.fire(KEY + 1));
+        assertTrue(source.fire(KEY));
+
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(1, dispatcher.getDispatchedCount());
+    }
+
+    @Test
+    public void stopIsClean() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+
+        //Stuck until interrupted, like a capture that never finishes.
+        dispatcher.setHandler(KEY, new TriggerHandler() {
+
+            @Override
+            public void triggered(TriggerEvent event) {
+                started.countDown();
+
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    interrupted.set(true);
+                } finally {
+                    finished.countDown();
+                }
+            }
+        });
+
+        assertTrue(source.fire(KEY));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        dispatcher.stop();
+        long took = System.nanoTime() - start;
+
+        //Two seconds for handlers to finish, then they're interrupted.
+        assertTrue("stop() took " + took + " ns",
+                   took < TimeUnit.SECONDS.toNanos(5));
+
+        //stop() interrupts it but doesn't wait around after that.
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(interrupted.get());
+
+        //Nothing gets in anymore, through the source or directly.
+        assertFalse(source.fire(KEY));
+        assertFalse(dispatcher.post(new TriggerEvent(KEY, System.nanoTime())));
+
+        //And none of the dispatcher's threads are left.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (hasTriggerThreads() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse("Trigger threads still running", hasTriggerThreads());
+
+        //Stopping again does nothing.
+        dispatcher.stop();
+    }
+
+    private static boolean hasTriggerThreads() {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && t.getName().startsWith("DBXC trigger")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ Project: dbx-capture
+ File: SegmentReaderTest.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads back segments that were cut off part way through a record, the way a
+ * crash leaves them, including ones whose last record header claims far more
+ * data than there is.
+ *
+ * @author Alex Kersten
+ */
+public class SegmentReaderTest {
+
+    private static final byte[] FRAME = {1, 2, 3, 4, 5, 6, 7};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes a segment with two frames, takes the footer off and puts a torn
+     * record header claiming the given length where the next record would go.
+     *
+     * @return The segment.
+     */
+    private File tornSegment(int claimedLength) throws IOException {
+        File file = folder.newFile();
+
+        SegmentWriter writer = new SegmentWriter(file, 4, 4, 24, 1000, 0);
+        writer.writeFrame(0, FRAME, FRAME.length);
+        writer.writeRepeat(1);
+        long end = writer.getSize();
+        writer.close();
+
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+
+            ByteBuffer header = ByteBuffer.allocate(
+                    SegmentWriter.RECORD_HEADER_SIZE).
+                    order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(2).putInt(claimedLength).putInt(0).flip();
+            SegmentWriter.writeFully(channel, header, end);
+        }
+
+        return file;
+    }
+
+    private static void checkRecords(SegmentReader reader)
+            throws IOException {
+        assertTrue(reader.next());
+        assertEquals(0, reader.getIndex());
+        assertEquals(FRAME.length, reader.getLength());
+        assertArrayEquals(FRAME, Arrays.copyOf(reader.getData(),
+                                               FRAME.length));
+
+        assertTrue(reader.next());
+        assertEquals(1, reader.getIndex());
+        assertEquals(0, reader.getLength());
+    }
+
+    /**
+     * A length that runs past the end of the file stops the reading before
+     * anything's allocated for it.
+     */
+    @Test
+    public void stopsAtLengthPastTheEnd() throws IOException {
+        File file = tornSegment(Integer.MAX_VALUE - 64);
+
+        try (SegmentReader reader = new SegmentReader(file)) {
+            assertFalse(reader.isComplete());
+            checkRecords(reader);
+
+            assertFalse(reader.next());
+            assertTrue("Allocated " + reader.getData().length + " bytes",
+                       reader.getData().length < 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void stopsAtNegativeLength() throws IOException {
+        try (SegmentReader reader = new SegmentReader(tornSegment(-1))) {
+            checkRecords(reader);
+            assertFalse(reader.next());
+        }
+    }
+
+    /**
+     * Repairing drops the torn record and finishes the segment with what's
+     * left.
+     */
+    @Test
+    public void repairsTornSegment() throws IOException {
+        File file = tornSegment(Integer.MAX_VALUE - 64);
+
+        assertTrue(SegmentReader.repair(file));
+        assertFalse(SegmentReader.repair(file));
+
+        try (SegmentReader reader = new SegmentReader(file)) {
+            assertTrue(reader.isComplete());
+            assertEquals(2, reader.getRecordCount());
+            assertEquals(0, reader.getFirstIndex());
+            assertEquals(1, reader.getLastIndex());
+
+            checkRecords(reader);
+            assertFalse(reader.next());
+        }
+    }
+}
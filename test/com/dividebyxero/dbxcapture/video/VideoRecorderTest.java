@@ -0,0 +1,236 @@
+/*
+ Project: dbx-capture
+ File: VideoRecorderTest.java (com.dividebyxero.dbxcapture.video)
+ Author: Alex Kersten
+ */
+package com.dividebyxero.dbxcapture.video;
+
+import com.dividebyxero.dbxcapture.capture.CaptureBackend;
+import com.dividebyxero.dbxcapture.capture.CaptureBuffer;
+import com.dividebyxero.dbxcapture.capture.DisplayTopology;
+import com.dividebyxero.dbxcapture.capture.PixelFormat;
+import com.dividebyxero.dbxcapture.capture.SyntheticCaptureBackend;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Records 1080p from a SyntheticCaptureBackend at 24 to 60 fps and checks the
+ * recorder keeps up, and that the file keeps its timing when it can't.
+ *
+ * @author Alex Kersten
+ */
+public class VideoRecorderTest {
+
+    private static final int WIDTH = 1920, HEIGHT = 1080;
+
+    private static final int SECONDS = 3;
+
+    //Startup (and the JIT warming up) drops a few frames, and a shared build
+    //machine will drop some more.
+    private static final double TOLERANCE = 0.15;
+
+    //The least a 1080p recording has to manage, whatever it was asked for.
+    private static final int MIN_FULL_MOTION_FPS = 24;
+
+    //A build machine shared with other jobs can lose whole seconds, so a
+    //recording that falls short gets another couple of tries before the test
+    //fails - the bar itself doesn't move.
+    private static final int ATTEMPTS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records for a few seconds, prints how it went and checks nothing went
+     * missing from the timeline.
+     *
+     * @return The recorder, stopped.
+     */
+    private VideoRecorder record(CaptureBackend backend, int fps, int scale)
+            throws IOException, InterruptedException {
+        VideoRecorder recorder = new VideoRecorder(backend, fps, fps, scale);
+        File file = folder.newFile();
+
+        recorder.start(file);
+        Thread.sleep(SECONDS * 1000L);
+        recorder.stop();
+
+        long written = recorder.getWrittenCount();
+        long dropped = recorder.getDroppedCount();
+        long unchanged = recorder.getUnchangedCount();
+        long total = written + dropped + unchanged;
+
+        System.out.println(WIDTH / scale + "x" + HEIGHT / scale + " at "
+                           + fps + " fps: " + written + " encoded, "
+                           + unchanged + " unchanged, " + dropped
+                           + " dropped in " + SECONDS + " s");
+
+        assertEquals(recorder.getCapturedCount(), written);
+        assertTrue("Nothing was recorded", written > 0);
+        assertTrue(file.length() > 0);
+
+        //Dropped frames are still in the file, as empty ones, so it plays
+        //back at the right speed.
+        assertTrue("Only " + total + " frames in the file",
+                   total >= fps * SECONDS * (1 - TOLERANCE));
+
+        return recorder;
+    }
+
+    /**
+     * Full motion: the pattern moves every frame, so every frame has to be
+     * encoded.
+     *
+     * @param expected How many frames a second have to make it into the file
+     * encoded.
+     */
+    private void checkFullMotion(int fps, int scale, int expected)
+            throws Exception {
+        double best = 0;
+
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            VideoRecorder recorder = record(
+                    new SyntheticCaptureBackend(WIDTH, HEIGHT), fps, scale);
+            best = Math.max(best,
+                            recorder.getWrittenCount() / (double) SECONDS);
+
+            if (best >= expected * (1 - TOLERANCE)) {
+                return;
+            }
+        }
+
+        fail("Encoded " + best + " fps at best, wanted " + expected);
+    }
+
+    /**
+     * Mostly idle: something on screen changes twice a second, like a
+     * blinking cursor. Every frame should be kept, give or take the ones
+     * the blinks themselves hold up - with the same retries as full motion.
+     */
+    private void checkIdle(int fps) throws Exception {
+        long fewest = Long.MAX_VALUE;
+
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            VideoRecorder recorder = record(new BlinkingBackend(fps / 2),
+                                            fps, 1);
+            fewest = Math.min(fewest, recorder.getDroppedCount());
+
+            if (fewest <= fps * SECONDS * TOLERANCE) {
+                return;
+            }
+        }
+
+        fail("Dropped " + fewest + " at least");
+    }
+
+    @Test
+    public void idleAt24Fps() throws Exception {
+        checkIdle(24);
+    }
+
+    @Test
+    public void idleAt30Fps() throws Exception {
+        checkIdle(30);
+    }
+
+    @Test
+    public void idleAt60Fps() throws Exception {
+        checkIdle(60);
+    }
+
+    @Test
+    public void fullMotionAt24Fps() throws Exception {
+        checkFullMotion(24, 1, MIN_FULL_MOTION_FPS);
+    }
+
+    /**
+     * One core doesn't encode every frame of 1080p at 30 or 60, but it
+     * shouldn't fall below full motion's 24.
+     */
+    @Test
+    public void fullMotionAt30Fps() throws Exception {
+        checkFullMotion(30, 1, MIN_FULL_MOTION_FPS);
+    }
+
+    @Test
+    public void fullMotionAt60Fps() throws Exception {
+        checkFullMotion(60, 1, MIN_FULL_MOTION_FPS);
+    }
+
+    /**
+     * A quarter of the pixels gets at least 30 out of one core.
+     */
+    @Test
+    public void fullMotionAt60FpsHalfScale() throws Exception {
+        checkFullMotion(60, 2, 30);
+    }
+
+    /**
+     * A synthetic screen that only moves every so many grabs, and grabs the
+     * same picture again the rest of the time.
+     */
+    private static class BlinkingBackend implements CaptureBackend {
+
+        private final SyntheticCaptureBackend screen =
+                new SyntheticCaptureBackend(WIDTH, HEIGHT);
+
+        private final Rectangle bounds = new Rectangle(WIDTH, HEIGHT);
+
+        private final int every;
+
+        private final AtomicInteger grabs = new AtomicInteger();
+
+        BlinkingBackend(int every) {
+            this.every = every;
+        }
+
+        @Override
+        public String getName() {
+            return "Blinking " + screen.getName();
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public PixelFormat getNativeFormat() {
+            return screen.getNativeFormat();
+        }
+
+        @Override
+        public int getRequiredCapacity() {
+            return screen.getRequiredCapacity();
+        }
+
+        @Override
+        public boolean grab(CaptureBuffer target) {
+            return grabs.getAndIncrement() % every == 0 ? screen.grab(target)
+                   : screen.grabRegion(target, bounds);
+        }
+
+        @Override
+        public DisplayTopology getTopology() {
+            return screen.getTopology();
+        }
+
+        @Override
+        public int getRequiredCapacity(Rectangle region) {
+            return screen.getRequiredCapacity(region);
+        }
+
+        @Override
+        public boolean grabRegion(CaptureBuffer target, Rectangle region) {
+            return screen.grabRegion(target, region);
+        }
+    }
+}